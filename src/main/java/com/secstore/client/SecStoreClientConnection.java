@@ -0,0 +1,206 @@
+package com.secstore.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.PublicKey;
+import com.secstore.ssap.SsapHandshake;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+import com.secstore.ssap.SsapTicket;
+import com.secstore.sscp.SscpConnection;
+
+
+/*
+ * The client end of a connection to a SecStore server.
+ *
+ * The handshake runs SSAP/1.0 and then SSAP/2.0, so every protocol is ready
+ * to use once it returns. Given the ticket of an earlier session with the same
+ * server, it resumes that session instead, and given the server key learnt in
+ * an earlier handshake it runs both in a single round trip. Either way it keeps
+ * the ticket and the key for the next connection.
+ */
+public class SecStoreClientConnection extends SscpConnection
+{
+    private final InetSocketAddress address;
+    private volatile boolean debug = false;
+    private volatile boolean closed = false;
+    private volatile SsapTicket ticket = null;
+    private volatile PublicKey serverKey = null;
+    private volatile SsapHandshake.Kind handshakeKind = null;
+    
+    public SecStoreClientConnection(InetSocketAddress address)
+    {
+        this.address = address;
+    }
+    
+    @Override
+    public boolean debug()
+    {
+        return debug;
+    }
+    
+    public SecStoreClientConnection setDebug(boolean debug)
+    {
+        this.debug = debug;
+        
+        return this;
+    }
+    
+    // The server address asked for, which pools use as a key
+    public InetSocketAddress getAddress()
+    {
+        return address;
+    }
+    
+    // The ticket to resume the next session with, once the handshake is done
+    public SsapTicket getTicket()
+    {
+        return ticket;
+    }
+    
+    // Whether the handshake resumed the session of the ticket it was given
+    public boolean isResumed()
+    {
+        return handshakeKind == SsapHandshake.Kind.RESUMED;
+    }
+    
+    // Which handshake ran, null before it did
+    public SsapHandshake.Kind getHandshakeKind()
+    {
+        return handshakeKind;
+    }
+    
+    // Only tickets issued by the server at this address resume anything, others cost a round trip
+    public SecStoreClientConnection setTicket(SsapTicket ticket)
+    {
+        this.ticket = ticket;
+        
+        return this;
+    }
+    
+    // The server key for the single round trip handshake once the handshake is done, null if the server has none
+    public PublicKey getServerKey()
+    {
+        return serverKey;
+    }
+    
+    // Only keys from an earlier handshake with the server at this address, others cost a round trip
+    public SecStoreClientConnection setServerKey(PublicKey serverKey)
+    {
+        this.serverKey = serverKey;
+        
+        return this;
+    }
+    
+    /*
+     * Connects to the address and runs the handshake, each within its timeout
+     * in milliseconds where 0 waits for as long as it takes.
+     */
+    public void open(int connectTimeout, int handshakeTimeout, SocketOptions options)
+        throws IOException
+    {
+        Socket socket = new Socket();
+        
+        try {
+            socket.connect(address, connectTimeout);
+            
+            connect(socket, options);
+            
+            socket.setSoTimeout(handshakeTimeout);
+            
+            establishHandshake();
+            
+            socket.setSoTimeout(0);
+        }
+        
+        catch (IOException exception) {
+            closed = true;
+            
+            socket.close();
+            
+            throw exception;
+        }
+    }
+    
+    @Override
+    public void establishHandshake()
+        throws IOException
+    {
+        try {
+            SsapHandshake.Result result = SsapHandshake.doOpeningHandShake(this, ticket, serverKey);
+            
+            ticket = result.getTicket();
+            
+            serverKey = result.getServerKey();
+            
+            handshakeKind = result.getKind();
+        }
+        
+        catch (SsapProtocolException exception) {
+            throw new IOException("ssap handshake failed: " + exception);
+        }
+    }
+    
+    @Override
+    public String getHostAddress()
+    {
+        return super.getHostAddress();
+    }
+    
+    /*
+     * Waits up to timeout milliseconds for the server to say something and
+     * returns true if it did not.
+     *
+     * Only meant for idle connections, where the server has nothing to say. A
+     * server that closed the connection or sent anything unasked fails.
+     */
+    public boolean probe(int timeout)
+        throws IOException
+    {
+        Socket socket = getSocket();
+        
+        int soTimeout = socket.getSoTimeout();
+        
+        socket.setSoTimeout(timeout);
+        
+        try {
+            socket.getInputStream().read();
+            
+            return false;
+        }
+        
+        catch (SocketTimeoutException exception) {
+            return true;
+        }
+        
+        finally {
+            socket.setSoTimeout(soTimeout);
+        }
+    }
+    
+    public boolean isClosed()
+        throws IOException
+    {
+        Socket socket = getSocket();
+        
+        return closed || socket == null || socket.isClosed();
+    }
+    
+    public void close()
+        throws IOException
+    {
+        closed = true;
+        
+        Socket socket = getSocket();
+        
+        if (socket != null)
+            socket.close();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SecStoreClientConnection {address=" + address + "}";
+    }
+}
@@ -0,0 +1,530 @@
+package com.secstore.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.secstore.Logger.Loggable;
+import com.secstore.ssap.SsapHandshake;
+import com.secstore.ssap.SsapTicket;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+
+
+/*
+ * Keeps handshaken connections to SecStore servers for reuse.
+ *
+ * Opening a connection costs a TCP connect, the nonce, certificate and RSA
+ * exchange of SSAP/1.0 and the wrapped session key of SSAP/2.0, all before the
+ * first byte of data. A connection given back to the pool between two
+ * transmissions skips all of that the next time the same address is asked for.
+ *
+ * Idle connections are kept per address, most recently used first, and are
+ * closed after idleTimeout. A connection is checked before it is handed out
+ * again: it must not be closed, nor have anything unread, and one that has
+ * been idle for longer than validateAfterIdle must also pass a short probe
+ * that catches servers which have gone away in the meantime.
+ *
+ * The latest session ticket and server key of each address are kept as well,
+ * so connections opened after the first resume its session, or failing that
+ * run the single round trip handshake, instead of running the full handshake.
+ *
+ * Whatever protocol the last borrower set is left on the connection.
+ */
+public class SscpConnectionPool
+    implements Closeable, Loggable
+{
+    public static final int DEFAULT_MAX_IDLE_PER_ADDRESS = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    public static final long DEFAULT_VALIDATE_AFTER_IDLE = 2000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+    
+    // how long the probe waits for a server that has gone away to show it
+    private static final int PROBE_TIMEOUT = 1;
+    
+    private static final long EVICTION_INTERVAL = 1000;
+    
+    private int maxIdlePerAddress = DEFAULT_MAX_IDLE_PER_ADDRESS;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long validateAfterIdle = DEFAULT_VALIDATE_AFTER_IDLE;
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+    private volatile SocketOptions socketOptions = new SocketOptions();
+    private volatile boolean debug = false;
+    private boolean closed = false;
+    private final Map<InetSocketAddress, Deque<IdleConnection>> idleConnections = new HashMap<>();
+    private final Map<InetSocketAddress, SsapTicket> tickets = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, PublicKey> serverKeys = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong reusedConnections = new AtomicLong();
+    private final AtomicLong evictedConnections = new AtomicLong();
+    private final AtomicLong resumedConnections = new AtomicLong();
+    private final AtomicLong fastConnections = new AtomicLong();
+    
+    @FunctionalInterface
+    public static interface ConnectionCallback<T>
+    {
+        T run(SecStoreClientConnection connection) throws IOException;
+    }
+    
+    private static class IdleConnection
+    {
+        private final SecStoreClientConnection connection;
+        private final long since;
+        
+        private IdleConnection(SecStoreClientConnection connection)
+        {
+            this.connection = connection;
+            this.since = System.nanoTime();
+        }
+        
+        private long getIdleMillis(long now)
+        {
+            return TimeUnit.NANOSECONDS.toMillis(now - since);
+        }
+    }
+    
+    public SscpConnectionPool()
+    {
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sscp-pool-evictor");
+            
+            thread.setDaemon(true);
+            
+            return thread;
+        });
+        
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, EVICTION_INTERVAL, EVICTION_INTERVAL,
+            TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public boolean debug()
+    {
+        return debug;
+    }
+    
+    public SscpConnectionPool setDebug(boolean debug)
+    {
+        this.debug = debug;
+        
+        return this;
+    }
+    
+    @Override
+    public void log(String message)
+    {
+        Loggable.super.log("[POOL] " + message);
+    }
+    
+    public synchronized int getMaxIdlePerAddress()
+    {
+        return maxIdlePerAddress;
+    }
+    
+    // Connections given back beyond this many idle ones for their address are closed
+    public synchronized SscpConnectionPool setMaxIdlePerAddress(int maxIdlePerAddress)
+    {
+        if (maxIdlePerAddress < 0)
+            throw new IllegalArgumentException("max idle per address must not be negative");
+        
+        this.maxIdlePerAddress = maxIdlePerAddress;
+        
+        return this;
+    }
+    
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+    
+    // Idle connections are closed after this many milliseconds
+    public SscpConnectionPool setIdleTimeout(long idleTimeout)
+    {
+        if (idleTimeout < 0)
+            throw new IllegalArgumentException("idle timeout must not be negative");
+        
+        this.idleTimeout = idleTimeout;
+        
+        return this;
+    }
+    
+    public long getValidateAfterIdle()
+    {
+        return validateAfterIdle;
+    }
+    
+    // Connections idle for longer than this many milliseconds are probed before they are handed out
+    public SscpConnectionPool setValidateAfterIdle(long validateAfterIdle)
+    {
+        if (validateAfterIdle < 0)
+            throw new IllegalArgumentException("validate after idle must not be negative");
+        
+        this.validateAfterIdle = validateAfterIdle;
+        
+        return this;
+    }
+    
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+    
+    // In milliseconds, 0 waits forever
+    public SscpConnectionPool setConnectTimeout(int connectTimeout)
+    {
+        if (connectTimeout < 0)
+            throw new IllegalArgumentException("connect timeout must not be negative");
+        
+        this.connectTimeout = connectTimeout;
+        
+        return this;
+    }
+    
+    public int getHandshakeTimeout()
+    {
+        return handshakeTimeout;
+    }
+    
+    // Servers that do not finish the handshake within this many milliseconds are given up on, 0 waits forever
+    public SscpConnectionPool setHandshakeTimeout(int handshakeTimeout)
+    {
+        if (handshakeTimeout < 0)
+            throw new IllegalArgumentException("handshake timeout must not be negative");
+        
+        this.handshakeTimeout = handshakeTimeout;
+        
+        return this;
+    }
+    
+    public SocketOptions getSocketOptions()
+    {
+        return socketOptions;
+    }
+    
+    public SscpConnectionPool setSocketOptions(SocketOptions socketOptions)
+    {
+        if (socketOptions == null)
+            throw new IllegalArgumentException("socket options missing");
+        
+        this.socketOptions = socketOptions;
+        
+        return this;
+    }
+    
+    // Connections opened, each of which took a full, fast or resumed handshake
+    public long getCreatedConnections()
+    {
+        return createdConnections.get();
+    }
+    
+    // Connections opened by resuming an earlier session
+    public long getResumedConnections()
+    {
+        return resumedConnections.get();
+    }
+    
+    // Connections opened with the single round trip handshake
+    public long getFastConnections()
+    {
+        return fastConnections.get();
+    }
+    
+    // Borrows served by an idle connection
+    public long getReusedConnections()
+    {
+        return reusedConnections.get();
+    }
+    
+    // Idle connections closed for being idle too long or failing their check
+    public long getEvictedConnections()
+    {
+        return evictedConnections.get();
+    }
+    
+    public synchronized int getIdleConnections()
+    {
+        int count = 0;
+        
+        for (Deque<IdleConnection> idle : idleConnections.values())
+            count += idle.size();
+        
+        return count;
+    }
+    
+    public synchronized int getIdleConnections(InetSocketAddress address)
+    {
+        Deque<IdleConnection> idle = idleConnections.get(address);
+        
+        return (idle == null) ? 0 : idle.size();
+    }
+    
+    /*
+     * Hands out a connection to the address that has been through the handshake
+     * and is between transmissions, opening a new one if no idle one passes its
+     * check.
+     *
+     * The connection must be given back through release or invalidate.
+     */
+    public SecStoreClientConnection borrow(InetSocketAddress address)
+        throws IOException
+    {
+        IdleConnection idle;
+        
+        while ((idle = pollIdleConnection(address)) != null) {
+            if (validate(idle)) {
+                reusedConnections.incrementAndGet();
+                
+                log("Reusing " + idle.connection);
+                
+                return idle.connection;
+            }
+            
+            evictedConnections.incrementAndGet();
+            
+            discard(idle.connection);
+        }
+        
+        return open(address);
+    }
+    
+    /*
+     * Gives a connection back for reuse.
+     *
+     * A connection left in the middle of a transmission, multiplexed, closed or
+     * beyond the idle limit for its address is closed instead.
+     */
+    public void release(SecStoreClientConnection connection)
+    {
+        boolean reusable;
+        
+        try {
+            reusable = !connection.isClosed() && connection.isIdle();
+        }
+        
+        catch (IOException exception) {
+            reusable = false;
+        }
+        
+        IdleConnection evicted = null;
+        
+        synchronized (this) {
+            if (closed || maxIdlePerAddress == 0)
+                reusable = false;
+            
+            if (reusable) {
+                Deque<IdleConnection> idle = idleConnections.computeIfAbsent(connection.getAddress(),
+                    address -> new ArrayDeque<>());
+                
+                if (idle.size() >= maxIdlePerAddress)
+                    evicted = idle.pollLast();
+                
+                idle.addFirst(new IdleConnection(connection));
+            }
+        }
+        
+        if (evicted != null)
+            discard(evicted.connection);
+        
+        if (!reusable)
+            discard(connection);
+    }
+    
+    // Closes a connection that must not be reused, after a failed transfer for instance
+    public void invalidate(SecStoreClientConnection connection)
+    {
+        discard(connection);
+    }
+    
+    /*
+     * Borrows a connection for the callback and gives it back once the callback
+     * returns, or closes it if the callback throws.
+     */
+    public <T> T withConnection(InetSocketAddress address, ConnectionCallback<T> callback)
+        throws IOException
+    {
+        SecStoreClientConnection connection = borrow(address);
+        
+        T result;
+        
+        try {
+            result = callback.run(connection);
+        }
+        
+        catch (IOException | RuntimeException exception) {
+            invalidate(connection);
+            
+            throw exception;
+        }
+        
+        release(connection);
+        
+        return result;
+    }
+    
+    private final SecStoreClientConnection open(InetSocketAddress address)
+        throws IOException
+    {
+        ensureOpen();
+        
+        SsapTicket ticket = tickets.get(address);
+        
+        PublicKey serverKey = serverKeys.get(address);
+        
+        SecStoreClientConnection connection = new SecStoreClientConnection(address).setDebug(debug).setTicket(ticket)
+            .setServerKey(serverKey);
+        
+        try {
+            connection.open(connectTimeout, handshakeTimeout, socketOptions);
+        }
+        
+        catch (IOException exception) {
+            // a ticket or key that leads nowhere is not tried again
+            if (ticket != null)
+                tickets.remove(address, ticket);
+            
+            if (serverKey != null)
+                serverKeys.remove(address, serverKey);
+            
+            throw exception;
+        }
+        
+        createdConnections.incrementAndGet();
+        
+        SsapTicket nextTicket = connection.getTicket();
+        
+        if (nextTicket == null)
+            tickets.remove(address);
+        
+        else
+            tickets.put(address, nextTicket);
+        
+        PublicKey nextServerKey = connection.getServerKey();
+        
+        if (nextServerKey == null)
+            serverKeys.remove(address);
+        
+        else
+            serverKeys.put(address, nextServerKey);
+        
+        if (connection.getHandshakeKind() == SsapHandshake.Kind.RESUMED)
+            resumedConnections.incrementAndGet();
+        
+        else if (connection.getHandshakeKind() == SsapHandshake.Kind.FAST)
+            fastConnections.incrementAndGet();
+        
+        log("Opened " + connection);
+        
+        return connection;
+    }
+    
+    private final synchronized IdleConnection pollIdleConnection(InetSocketAddress address)
+    {
+        ensureOpen();
+        
+        Deque<IdleConnection> idle = idleConnections.get(address);
+        
+        return (idle == null) ? null : idle.pollFirst();
+    }
+    
+    private final boolean validate(IdleConnection idle)
+    {
+        SecStoreClientConnection connection = idle.connection;
+        
+        try {
+            if (connection.isClosed() || !connection.isIdle())
+                return false;
+            
+            if (idle.getIdleMillis(System.nanoTime()) <= validateAfterIdle)
+                return true;
+            
+            return connection.probe(PROBE_TIMEOUT);
+        }
+        
+        catch (IOException exception) {
+            return false;
+        }
+    }
+    
+    private final void evictIdleConnections()
+    {
+        List<SecStoreClientConnection> evicted = new ArrayList<>();
+        
+        long now = System.nanoTime();
+        
+        synchronized (this) {
+            Iterator<Deque<IdleConnection>> iterator = idleConnections.values().iterator();
+            
+            while (iterator.hasNext()) {
+                Deque<IdleConnection> idle = iterator.next();
+                
+                // the least recently used are at the end
+                while (!idle.isEmpty() && idle.peekLast().getIdleMillis(now) > idleTimeout)
+                    evicted.add(idle.pollLast().connection);
+                
+                if (idle.isEmpty())
+                    iterator.remove();
+            }
+        }
+        
+        for (SecStoreClientConnection connection : evicted) {
+            evictedConnections.incrementAndGet();
+            
+            log("Evicting idle " + connection);
+            
+            discard(connection);
+        }
+    }
+    
+    private final void discard(SecStoreClientConnection connection)
+    {
+        try {
+            connection.close();
+        }
+        
+        catch (IOException exception) { }
+    }
+    
+    // Closes every idle connection, those still borrowed are closed when given back
+    @Override
+    public void close()
+    {
+        List<IdleConnection> idle = new ArrayList<>();
+        
+        synchronized (this) {
+            if (closed)
+                return;
+            
+            closed = true;
+            
+            for (Deque<IdleConnection> connections : idleConnections.values())
+                idle.addAll(connections);
+            
+            idleConnections.clear();
+        }
+        
+        evictor.shutdownNow();
+        
+        for (IdleConnection connection : idle)
+            discard(connection.connection);
+    }
+    
+    private final synchronized void ensureOpen()
+    {
+        if (closed)
+            throw new IllegalStateException("pool closed");
+    }
+}
@@ -0,0 +1,140 @@
+package com.secstore.example;
+
+import java.security.Key;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Cipher;
+import com.secstore.Logger;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.utils.CryptoUtils;
+
+
+/*
+ * Compares encrypting SSCP2 frames on ciphers from the CipherPool against one
+ * shared cipher, at 1, 8 and 64 threads.
+ *
+ * The shared cipher is used the way the streams used it before the pool:
+ * initialised again for every frame, under its monitor. Pooled ciphers belong
+ * to the thread using them and are only initialised once. Every thread
+ * encrypts frames of the default block size for the length of a run.
+ *
+ * Usage: CipherContentionBenchmark [seconds per run] [runs] [threads...]
+ */
+public class CipherContentionBenchmark
+{
+    @FunctionalInterface
+    private static interface Encryption
+    {
+        int encrypt(byte[] input, byte[] output);
+    }
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        
+        int[] threadCounts = { 1, 8, 64 };
+        
+        if (args.length > 2) {
+            threadCounts = new int[args.length - 2];
+            
+            for (int i = 2; i < args.length; i++)
+                threadCounts[i - 2] = Integer.parseInt(args[i]);
+        }
+        
+        SscpProtocol protocol = SscpProtocol.SSCP2;
+        
+        Key key = protocol.generateSecretKey();
+        
+        Cipher shared = protocol.generateCipher();
+        
+        Encryption synchronizedEncryption = (input, output) -> {
+            synchronized (shared) {
+                CryptoUtils.initializeCipher(shared, Cipher.ENCRYPT_MODE, key);
+                
+                return CryptoUtils.encryptBytes(shared, input, 0, input.length, output, 0);
+            }
+        };
+        
+        Encryption pooledEncryption = (input, output) -> CryptoUtils.encryptBytes(
+            protocol.getCipher(Cipher.ENCRYPT_MODE, key), input, 0, input.length, output, 0);
+        
+        Logger.log("Benchmark: " + runs + " runs of " + seconds + " s, " + SscpProtocol.DEFAULT_BLOCK_SIZE
+            + "-byte " + protocol + " frames, on " + Runtime.getRuntime().availableProcessors() + " cores");
+        
+        for (int run = 1; run <= runs; run++) {
+            for (int threads : threadCounts) {
+                double synchronizedRate = measure(synchronizedEncryption, threads, seconds);
+                
+                double pooledRate = measure(pooledEncryption, threads, seconds);
+                
+                Logger.log(String.format("run %d: %d threads, synchronized %.0f frames/s, pooled %.0f frames/s, %.1fx",
+                    run, threads, synchronizedRate, pooledRate, pooledRate / synchronizedRate));
+            }
+        }
+    }
+    
+    // Frames encrypted a second by all threads together
+    private static double measure(Encryption encryption, int threads, int seconds)
+        throws InterruptedException
+    {
+        LongAdder frames = new LongAdder();
+        
+        CountDownLatch ready = new CountDownLatch(threads);
+        
+        CountDownLatch go = new CountDownLatch(1);
+        
+        // written before go opens, so every thread sees it
+        long[] deadline = new long[1];
+        
+        Thread[] workers = new Thread[threads];
+        
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                byte[] input = new byte[SscpProtocol.DEFAULT_BLOCK_SIZE];
+                
+                byte[] output = new byte[SscpProtocol.MAX_FRAME_SIZE];
+                
+                ThreadLocalRandom.current().nextBytes(input);
+                
+                long count = 0;
+                
+                ready.countDown();
+                
+                try {
+                    go.await();
+                }
+                
+                catch (InterruptedException exception) {
+                    return;
+                }
+                
+                while (System.nanoTime() < deadline[0]) {
+                    encryption.encrypt(input, output);
+                    
+                    count++;
+                }
+                
+                frames.add(count);
+            });
+            
+            workers[i].start();
+        }
+        
+        ready.await();
+        
+        long start = System.nanoTime();
+        
+        deadline[0] = start + seconds * 1000000000L;
+        
+        go.countDown();
+        
+        for (Thread worker : workers)
+            worker.join();
+        
+        return frames.sum() * 1e9 / (System.nanoTime() - start);
+    }
+}
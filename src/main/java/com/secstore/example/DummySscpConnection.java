@@ -10,6 +10,7 @@ import java.security.PublicKey;
 import java.util.concurrent.TimeUnit;
 import javax.crypto.SecretKey;
 import com.secstore.Logger;
+import com.secstore.ssap.Ssap2_0;
 import com.secstore.sscp.SscpConnection;
 import com.secstore.sscp.SscpProtocol;
 
@@ -17,7 +18,7 @@ import com.secstore.sscp.SscpProtocol;
 /*
  * This class bypasses all authentication protocols SSAP/1.0 and SSAP/2.0.
  * 
- * It is for testing SSCP/1.0 and SSCP/2.0 without interference of SSAP.
+ * It is for testing SSCP/1.0, SSCP/2.0 and SSCP/3.0 without interference of SSAP.
  */
 public class DummySscpConnection extends SscpConnection
 {
@@ -234,10 +235,14 @@ public class DummySscpConnection extends SscpConnection
         switch (type) {
             case SERVER:
                 setKey(SscpProtocol.SSCP1, serverPrivateKey);
+                
+                setUseClientMode(false);
                 break;
             
             case CLIENT:
                 setKey(SscpProtocol.SSCP1, serverPublicKey);
+                
+                setUseClientMode(true);
                 break;
             
             default:
@@ -245,6 +250,8 @@ public class DummySscpConnection extends SscpConnection
         }
         
         setKey(SscpProtocol.SSCP2, symmetricKey);
+        
+        Ssap2_0.setDerivedKeys(this, symmetricKey);
     }
     
     public static void waitNSeconds(int N)
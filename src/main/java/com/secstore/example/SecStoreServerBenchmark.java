@@ -0,0 +1,208 @@
+package com.secstore.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.secstore.Logger;
+import com.secstore.server.SecStoreServer;
+import com.secstore.server.SecStoreServerConnection;
+import com.secstore.ssap.Ssap1_0;
+import com.secstore.ssap.Ssap2_0;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Runs a SecStoreServer on localhost and lets many clients upload to it at once.
+ *
+ * Every client opens its own socket, does the full SSAP/1.0 and SSAP/2.0
+ * handshake and uploads the same file several times. The server counts the
+ * bytes and acknowledges each upload.
+ *
+ * Usage: SecStoreServerBenchmark [clients] [uploads per client] [file] [protocol] [max connections]
+ */
+public class SecStoreServerBenchmark
+{
+    public static final String RESOURCES = "src/main/resources";
+    public static final String UPLOAD = "UPLOAD";
+    public static final String BYE = "BYE";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        
+        int uploads = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        
+        String fileName = (args.length > 2) ? args[2] : "5000.txt";
+        
+        SscpProtocol protocol = (args.length > 3) ? SscpProtocol.valueOf(args[3]) : SscpProtocol.SSCP2;
+        
+        int maxConnections = (args.length > 4) ? Integer.parseInt(args[4]) : SecStoreServer.DEFAULT_MAX_CONNECTIONS;
+        
+        byte[] file = Files.readAllBytes(Paths.get(RESOURCES, fileName));
+        
+        AtomicLong bytesReceived = new AtomicLong();
+        
+        AtomicInteger activeClients = new AtomicInteger();
+        
+        AtomicInteger peakActiveClients = new AtomicInteger();
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            int active = activeClients.incrementAndGet();
+            
+            peakActiveClients.accumulateAndGet(active, Math::max);
+            
+            try {
+                serve(connection, protocol, bytesReceived);
+            }
+            
+            finally {
+                activeClients.decrementAndGet();
+            }
+        });
+        
+        server.setMaxConnections(maxConnections).start();
+        
+        Logger.log("Benchmark: " + clients + " clients, " + uploads + " uploads of " + fileName
+            + " each over " + protocol + ", at most " + maxConnections + " at once");
+        
+        CountDownLatch ready = new CountDownLatch(clients);
+        
+        CountDownLatch go = new CountDownLatch(1);
+        
+        AtomicInteger failures = new AtomicInteger();
+        
+        Thread[] threads = new Thread[clients];
+        
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    ready.countDown();
+                    
+                    go.await();
+                    
+                    upload(server.getPort(), protocol, file, uploads);
+                }
+                
+                catch (Exception exception) {
+                    failures.incrementAndGet();
+                    
+                    Logger.log("Client failed: " + exception);
+                }
+            }, "client-" + i);
+            
+            threads[i].setDaemon(true);
+            
+            threads[i].start();
+        }
+        
+        ready.await();
+        
+        long start = System.nanoTime();
+        
+        go.countDown();
+        
+        for (Thread thread : threads)
+            thread.join();
+        
+        long nanos = System.nanoTime() - start;
+        
+        server.close();
+        
+        double seconds = nanos / 1e9;
+        
+        long expected = (long) (clients - failures.get()) * uploads * file.length;
+        
+        Logger.log(String.format("Done in %.2f s: %d connections accepted, %d failed, peak %d served at once",
+            seconds, server.getAcceptedConnections(), failures.get(), peakActiveClients.get()));
+        
+        Logger.log(String.format("%.1f connections/s, %.1f uploads/s, %.2f MB/s, %d of %d bytes received",
+            clients / seconds, clients * uploads / seconds, bytesReceived.get() / seconds / 1e6,
+            bytesReceived.get(), expected));
+    }
+    
+    private static void serve(SecStoreServerConnection connection, SscpProtocol protocol, AtomicLong bytesReceived)
+        throws IOException
+    {
+        connection.setProtocol(protocol);
+        
+        OutputStream sink = new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                bytesReceived.incrementAndGet();
+            }
+            
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+            {
+                bytesReceived.addAndGet(length);
+            }
+        };
+        
+        String command;
+        
+        while (UPLOAD.equals(command = connection.readString())) {
+            connection.downloadTo(sink);
+            
+            connection.writeString("OK");
+        }
+        
+        if (!BYE.equals(command))
+            throw new IOException("unknown command: " + command);
+    }
+    
+    private static void upload(int port, SscpProtocol protocol, byte[] file, int uploads)
+        throws IOException
+    {
+        BenchmarkClient client = new BenchmarkClient();
+        
+        try (Socket socket = new Socket("localhost", port)) {
+            client.connect(socket);
+            
+            client.establishHandshake();
+            
+            client.setProtocol(protocol);
+            
+            for (int i = 0; i < uploads; i++) {
+                client.writeString(UPLOAD);
+                
+                client.uploadFrom(new ByteArrayInputStream(file));
+                
+                String reply = client.readString();
+                
+                if (!"OK".equals(reply))
+                    throw new IOException("upload refused: " + reply);
+            }
+            
+            client.writeString(BYE);
+        }
+    }
+    
+    private static class BenchmarkClient extends SscpConnection
+    {
+        @Override
+        public void establishHandshake()
+            throws IOException
+        {
+            try {
+                Ssap1_0.doOpeningHandShake(this);
+                
+                Ssap2_0.doOpeningHandShake(this);
+            }
+            
+            catch (SsapProtocolException exception) {
+                throw new IOException("ssap handshake failed: " + exception);
+            }
+        }
+    }
+}
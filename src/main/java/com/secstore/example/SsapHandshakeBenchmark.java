@@ -0,0 +1,282 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.ssap.SsapHandshake;
+import com.secstore.ssap.SsapTicket;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Measures how long the handshake takes over a link with a round trip time,
+ * for the full handshake, the single round trip handshake and a resumed
+ * session.
+ *
+ * Clients connect through a relay on loopback that holds back everything it
+ * forwards for the given one way delay, so each round trip costs twice that.
+ * The relay accepts at once, so the TCP handshake itself is not delayed and
+ * the figures are for SSAP alone. Every connection does the handshake, sends
+ * one short string over SSCP2 and waits for the echo, which takes one more
+ * round trip.
+ *
+ * Usage: SsapHandshakeBenchmark [one way delay in ms] [connections]
+ */
+public class SsapHandshakeBenchmark
+{
+    public static final String BYE = "BYE";
+    
+    private static final int WARMUP_CONNECTIONS = 5;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        long delay = (args.length > 0) ? Long.parseLong(args[0]) : 10;
+        
+        int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.setProtocol(SscpProtocol.SSCP2);
+            
+            String message;
+            
+            while (!BYE.equals(message = connection.readString()))
+                connection.writeString(message);
+        });
+        
+        server.start();
+        
+        DelayRelay relay = new DelayRelay(new InetSocketAddress("localhost", server.getPort()), delay);
+        
+        relay.start();
+        
+        InetSocketAddress address = new InetSocketAddress("localhost", relay.getPort());
+        
+        Logger.log("Benchmark: " + connections + " connections each way, " + delay + " ms one way delay");
+        
+        for (SsapHandshake.Kind kind : SsapHandshake.Kind.values())
+            measure(address, connections, kind);
+        
+        Logger.log("Server ran " + server.getFastConnections() + " fast handshakes and resumed "
+            + server.getResumedConnections() + " sessions");
+        
+        relay.close();
+        
+        server.close();
+    }
+    
+    private static void measure(InetSocketAddress address, int connections, SsapHandshake.Kind kind)
+        throws IOException
+    {
+        SsapTicket ticket = null;
+        
+        PublicKey serverKey = null;
+        
+        long[] handshakes = new long[connections];
+        
+        long[] totals = new long[connections];
+        
+        for (int i = -WARMUP_CONNECTIONS; i < connections; i++) {
+            SecStoreClientConnection connection = new SecStoreClientConnection(address)
+                .setTicket((kind == SsapHandshake.Kind.RESUMED) ? ticket : null)
+                .setServerKey((kind == SsapHandshake.Kind.FAST) ? serverKey : null);
+            
+            long start = System.nanoTime();
+            
+            try {
+                connection.open(0, 0, new SocketOptions());
+                
+                long handshake = System.nanoTime() - start;
+                
+                connection.setProtocol(SscpProtocol.SSCP2);
+                
+                connection.writeString("PING");
+                
+                if (!"PING".equals(connection.readString()))
+                    throw new IOException("echo mismatch");
+                
+                long total = System.nanoTime() - start;
+                
+                connection.writeString(BYE);
+                
+                if (i >= 0) {
+                    // the first connection of each run has nothing to go on yet
+                    if (connection.getHandshakeKind() != kind)
+                        throw new IOException("expected " + kind + " handshake, got " + connection.getHandshakeKind());
+                    
+                    handshakes[i] = handshake;
+                    
+                    totals[i] = total;
+                }
+            }
+            
+            finally {
+                connection.close();
+            }
+            
+            ticket = connection.getTicket();
+            
+            serverKey = connection.getServerKey();
+        }
+        
+        Arrays.sort(handshakes);
+        
+        Arrays.sort(totals);
+        
+        Logger.log(String.format("%-8s handshake p50=%.2f ms p90=%.2f ms, first reply p50=%.2f ms p90=%.2f ms", kind,
+            percentile(handshakes, 50) / 1e6, percentile(handshakes, 90) / 1e6, percentile(totals, 50) / 1e6,
+            percentile(totals, 90) / 1e6));
+    }
+    
+    private static long percentile(long[] sorted, int percentile)
+    {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+    
+    // Forwards connections to the target, each chunk after the delay and in order
+    private static class DelayRelay
+        implements Runnable
+    {
+        private final InetSocketAddress target;
+        private final long delay;
+        private final ServerSocket serverSocket;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "delay-relay-writer");
+            
+            thread.setDaemon(true);
+            
+            return thread;
+        });
+        
+        public DelayRelay(InetSocketAddress target, long delay)
+            throws IOException
+        {
+            this.target = target;
+            this.delay = delay;
+            this.serverSocket = new ServerSocket(0);
+        }
+        
+        public int getPort()
+        {
+            return serverSocket.getLocalPort();
+        }
+        
+        public void start()
+        {
+            Thread thread = new Thread(this, "delay-relay");
+            
+            thread.setDaemon(true);
+            
+            thread.start();
+        }
+        
+        @Override
+        public void run()
+        {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    
+                    Socket server = new Socket(target.getAddress(), target.getPort());
+                    
+                    client.setTcpNoDelay(true);
+                    
+                    server.setTcpNoDelay(true);
+                    
+                    pump(client, server);
+                    
+                    pump(server, client);
+                }
+                
+                catch (IOException exception) {
+                    if (!serverSocket.isClosed())
+                        Logger.log("Relay failed: " + exception);
+                }
+            }
+        }
+        
+        private final void pump(Socket from, Socket to)
+            throws IOException
+        {
+            InputStream inputStream = from.getInputStream();
+            
+            OutputStream outputStream = to.getOutputStream();
+            
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[65536];
+                
+                int bytesRead;
+                
+                try {
+                    while ((bytesRead = inputStream.read(buffer)) != -1) {
+                        byte[] chunk = Arrays.copyOf(buffer, bytesRead);
+                        
+                        scheduler.schedule(() -> write(outputStream, chunk, to), delay, TimeUnit.MILLISECONDS);
+                    }
+                }
+                
+                catch (IOException exception) {
+                    // the other direction closed both sockets
+                }
+                
+                catch (RejectedExecutionException exception) {
+                    // the relay was closed
+                }
+                
+                if (!scheduler.isShutdown())
+                    scheduler.schedule(() -> close(from, to), delay, TimeUnit.MILLISECONDS);
+            }, "delay-relay-pump");
+            
+            thread.setDaemon(true);
+            
+            thread.start();
+        }
+        
+        private static void write(OutputStream outputStream, byte[] chunk, Socket to)
+        {
+            try {
+                outputStream.write(chunk);
+            }
+            
+            catch (IOException exception) {
+                close(to);
+            }
+        }
+        
+        private static void close(Socket... sockets)
+        {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                }
+                
+                catch (IOException exception) {
+                    // already closed
+                }
+            }
+        }
+        
+        public void close()
+            throws IOException
+        {
+            serverSocket.close();
+            
+            scheduler.shutdownNow();
+        }
+    }
+}
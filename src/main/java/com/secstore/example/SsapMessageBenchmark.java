@@ -0,0 +1,201 @@
+package com.secstore.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.secstore.Logger;
+import com.secstore.ssap.Ssap1_0;
+import com.secstore.ssap.Ssap2_0;
+import com.secstore.ssap.SsapMessage;
+import com.secstore.ssap.SsapProtocol;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+
+
+/*
+ * Compares parsing handshake messages with SsapMessage against the Scanner and
+ * regex parsing the handshakes used before.
+ *
+ * Each round parses the SSAP/1.0 opening and closing handshakes and the
+ * SSAP/2.0 opening handshake from their bytes, as they come off the
+ * connection, and pulls out the values a handshake needs. Signatures and
+ * ciphers are left out, so only parsing is measured.
+ *
+ * Usage: SsapMessageBenchmark [rounds] [runs]
+ */
+public class SsapMessageBenchmark
+{
+    private static final String NEWLINE = SsapProtocol.NEWLINE;
+    private static final String SSTP = SsapProtocol.SSTP;
+    
+    @FunctionalInterface
+    private static interface Parser
+    {
+        int parse(byte[] ssap1Opening, byte[] ssap1Closing, byte[] ssap2Opening) throws SsapProtocolException;
+    }
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        
+        String nonce = Ssap1_0.generateNonce();
+        
+        byte[] ssap1Opening = Ssap1_0.newOpeningHandshake(nonce, 65536).getBytes(StandardCharsets.UTF_8);
+        
+        byte[] ssap1Closing = Ssap1_0.newClosingHandshake(Ssap1_0.generateNonce() + Ssap1_0.generateNonce(), 65536)
+            .getBytes(StandardCharsets.UTF_8);
+        
+        byte[] ssap2Opening = Ssap2_0.newOpeningHandshake("AAAAAAAAAAAAAAAAAAAAAA==", true)
+            .getBytes(StandardCharsets.UTF_8);
+        
+        SsapMessage message = new SsapMessage();
+        
+        Parser scanner = SsapMessageBenchmark::parseWithScanner;
+        
+        Parser streaming = (opening, closing, upgrade) -> parseWithMessage(message, opening, closing, upgrade);
+        
+        if (scanner.parse(ssap1Opening, ssap1Closing, ssap2Opening)
+            != streaming.parse(ssap1Opening, ssap1Closing, ssap2Opening))
+            throw new IllegalStateException("parsers disagree");
+        
+        Logger.log("Benchmark: " + runs + " runs of " + rounds + " rounds, 3 messages each");
+        
+        for (int run = 1; run <= runs; run++) {
+            double scannerNanos = measure(scanner, rounds, ssap1Opening, ssap1Closing, ssap2Opening);
+            
+            double streamingNanos = measure(streaming, rounds, ssap1Opening, ssap1Closing, ssap2Opening);
+            
+            Logger.log(String.format("run %d: scanner/regex %.0f ns/round, SsapMessage %.0f ns/round, %.1fx", run,
+                scannerNanos, streamingNanos, scannerNanos / streamingNanos));
+        }
+    }
+    
+    private static double measure(Parser parser, int rounds, byte[] ssap1Opening, byte[] ssap1Closing,
+        byte[] ssap2Opening)
+        throws SsapProtocolException
+    {
+        int sink = 0;
+        
+        long start = System.nanoTime();
+        
+        for (int i = 0; i < rounds; i++)
+            sink += parser.parse(ssap1Opening, ssap1Closing, ssap2Opening);
+        
+        long nanos = System.nanoTime() - start;
+        
+        // keeps the results alive, so the parsing cannot be optimised away
+        if (sink == 42)
+            Logger.log("");
+        
+        return (double) nanos / rounds;
+    }
+    
+    private static int parseWithMessage(SsapMessage message, byte[] ssap1Opening, byte[] ssap1Closing,
+        byte[] ssap2Opening)
+        throws SsapProtocolException
+    {
+        message.parse(ssap1Opening);
+        
+        String nonce = Ssap1_0.parseNonce(message);
+        
+        Integer blockSize = Ssap1_0.parseBlockSize(message, 65536);
+        
+        message.parse(ssap1Closing);
+        
+        if (!message.headerEquals(SsapMessage.Header.UPGRADE, SSTP))
+            throw new SsapProtocolException("invalid upgrade protocol");
+        
+        String encryptedNonce = message.getHeader(SsapMessage.Header.ENCRYPTED_NONCE);
+        
+        String certificate = message.getBody();
+        
+        message.parse(ssap2Opening);
+        
+        String sessionKey = message.getHeader(SsapMessage.Header.SESSION_KEY);
+        
+        boolean ticket = Ssap2_0.parseTicketRequest(message);
+        
+        return nonce.length() + blockSize + encryptedNonce.length() + certificate.length() + sessionKey.length()
+            + (ticket ? 1 : 0);
+    }
+    
+    // How Ssap1_0 and Ssap2_0 parsed these messages before SsapMessage
+    private static int parseWithScanner(byte[] ssap1Opening, byte[] ssap1Closing, byte[] ssap2Opening)
+        throws SsapProtocolException
+    {
+        String opening = new String(ssap1Opening, StandardCharsets.UTF_8);
+        
+        String nonce;
+        
+        try (Scanner scanner = new Scanner(opening)) {
+            String data = scanner.useDelimiter(NEWLINE + NEWLINE).next();
+            
+            Matcher matcher = Pattern.compile("Upgrade: (.*)").matcher(data);
+            
+            if (!matcher.find() || !SSTP.equals(matcher.group(1)))
+                throw new SsapProtocolException("protocol not supported");
+            
+            matcher = Pattern.compile("Nonce: (.*)").matcher(data);
+            
+            if (!matcher.find())
+                throw new SsapProtocolException("nonce not found");
+            
+            nonce = matcher.group(1);
+        }
+        
+        Matcher matcher = Pattern.compile(Ssap1_0.MAX_BLOCK_SIZE_HEADER + ": (\\d+)").matcher(opening);
+        
+        int blockSize = matcher.find() ? Math.min(Integer.parseInt(matcher.group(1)), 65536) : 0;
+        
+        String encryptedNonce;
+        
+        String certificate;
+        
+        try (Scanner scanner = new Scanner(new String(ssap1Closing, StandardCharsets.UTF_8))) {
+            String data = scanner.useDelimiter(NEWLINE + NEWLINE).next();
+            
+            matcher = Pattern.compile("Upgrade: (.*)").matcher(data);
+            
+            if (!matcher.find() || !SSTP.equals(matcher.group(1)))
+                throw new SsapProtocolException("invalid upgrade protocol");
+            
+            matcher = Pattern.compile("Encrypted-Nonce: (.*)").matcher(data);
+            
+            if (!matcher.find())
+                throw new SsapProtocolException("encrypted nonce not found");
+            
+            encryptedNonce = matcher.group(1);
+            
+            certificate = scanner.useDelimiter(NEWLINE + NEWLINE).next().strip();
+        }
+        
+        String upgrade = new String(ssap2Opening, StandardCharsets.UTF_8);
+        
+        String sessionKey;
+        
+        try (Scanner scanner = new Scanner(upgrade)) {
+            if (!Ssap2_0.REQUEST.equals(scanner.useDelimiter(" ").next()))
+                throw new IllegalStateException("unexpected request");
+            
+            if (!SSTP.equals(scanner.useDelimiter(NEWLINE).next().stripLeading()))
+                throw new IllegalStateException("unexpected protocol");
+            
+            String data = scanner.useDelimiter(NEWLINE + NEWLINE).next();
+            
+            matcher = Pattern.compile("SecStore-Session-Key: (.*)").matcher(data);
+            
+            if (!matcher.find())
+                throw new SsapProtocolException("session key missing");
+            
+            sessionKey = matcher.group(1);
+        }
+        
+        boolean ticket = Pattern.compile(Ssap2_0.RESUMPTION_HEADER + ": ticket").matcher(upgrade).find();
+        
+        return nonce.length() + blockSize + encryptedNonce.length() + certificate.length() + sessionKey.length()
+            + (ticket ? 1 : 0);
+    }
+}
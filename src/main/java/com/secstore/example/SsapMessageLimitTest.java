@@ -0,0 +1,153 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.ssap.SsapMessage;
+import com.secstore.ssap.SsapProtocol;
+import com.secstore.sscp.SscpOutputStream;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Checks that SsapMessage refuses a message with an oversized header, read or
+ * parsed, and stays usable afterwards.
+ *
+ * A message of exactly MAX_MESSAGE_SIZE bytes, most of them one Upgrade
+ * header, has to be read whole. One byte more has to fail the read with an
+ * IOException, and a far larger one has to fail just the same without the
+ * rest of it being buffered. Parsing the same bytes has to be refused with an
+ * IllegalArgumentException, and the message that refused them has to parse an
+ * ordinary message next.
+ *
+ * Usage: SsapMessageLimitTest
+ */
+public class SsapMessageLimitTest
+{
+    public static final String START_LINE = "SSTP/1.0 101 Switching Protocols";
+    public static final String UPGRADE = "Upgrade: ";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        boolean passed = true;
+        
+        int[] sizes = {
+            SsapMessage.MAX_MESSAGE_SIZE, SsapMessage.MAX_MESSAGE_SIZE + 1, 16 * SsapMessage.MAX_MESSAGE_SIZE
+        };
+        
+        for (int size : sizes) {
+            String result = read(newMessage(size));
+            
+            Logger.log("read " + size + " bytes: " + result);
+            
+            passed &= result.startsWith((size > SsapMessage.MAX_MESSAGE_SIZE) ? "refused" : "read");
+        }
+        
+        SsapMessage message = new SsapMessage();
+        
+        try {
+            message.parse(newMessage(SsapMessage.MAX_MESSAGE_SIZE + 1));
+            
+            Logger.log("parse: accepted");
+            
+            passed = false;
+        }
+        
+        catch (IllegalArgumentException exception) {
+            Logger.log("parse: refused: " + exception.getMessage());
+        }
+        
+        message.parse(START_LINE + SsapProtocol.NEWLINE + UPGRADE + SsapProtocol.SSTP + SsapProtocol.NEWLINE
+            + SsapProtocol.NEWLINE);
+        
+        boolean reusable = message.headerEquals(SsapMessage.Header.UPGRADE, SsapProtocol.SSTP);
+        
+        Logger.log("ordinary message after the refusal: " + (reusable ? "parsed" : "garbled"));
+        
+        passed &= reusable;
+        
+        if (!passed)
+            throw new IllegalStateException("message size limit not kept");
+    }
+    
+    // A start line and one Upgrade header padded out to the given size
+    private static byte[] newMessage(int size)
+    {
+        byte[] head = (START_LINE + SsapProtocol.NEWLINE + UPGRADE).getBytes(SscpProtocol.CHARSET);
+        
+        byte[] tail = (SsapProtocol.NEWLINE + SsapProtocol.NEWLINE).getBytes(SscpProtocol.CHARSET);
+        
+        byte[] bytes = new byte[size];
+        
+        Arrays.fill(bytes, (byte) 'x');
+        
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        
+        System.arraycopy(tail, 0, bytes, size - tail.length, tail.length);
+        
+        return bytes;
+    }
+    
+    private static String read(byte[] bytes)
+        throws IOException
+    {
+        DummySscpConnection sender = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        DummySscpConnection receiver = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        Socket sendingSocket = new Socket();
+        
+        Socket receivingSocket;
+        
+        try (ServerSocket server = new ServerSocket(0)) {
+            sendingSocket.connect(server.getLocalSocketAddress());
+            
+            receivingSocket = server.accept();
+        }
+        
+        try {
+            sender.connect(sendingSocket);
+            
+            receiver.connect(receivingSocket);
+            
+            // whatever the receiver refuses stays unread, so the sender must not hold up the test
+            CompletableFuture.runAsync(() -> {
+                try {
+                    SscpOutputStream outputStream = sender.getOutputStream();
+                    
+                    outputStream.write(bytes);
+                    
+                    outputStream.writeEOT();
+                }
+                
+                catch (IOException exception) {
+                    // the receiver closed the connection on it
+                }
+            });
+            
+            try {
+                SsapMessage message = new SsapMessage().read(receiver.getInputStream());
+                
+                if (message.length() != bytes.length || !message.hasHeader(SsapMessage.Header.UPGRADE))
+                    return "garbled: " + message.length() + " bytes";
+                
+                return "read";
+            }
+            
+            catch (IOException exception) {
+                return "refused: " + exception.getMessage();
+            }
+        }
+        
+        finally {
+            sendingSocket.close();
+            
+            receivingSocket.close();
+        }
+    }
+}
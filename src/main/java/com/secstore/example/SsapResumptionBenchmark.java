@@ -0,0 +1,122 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.ssap.SsapTicket;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Measures how long reconnecting to a SecStore server takes with the full
+ * handshake and with a resumed session.
+ *
+ * Every connection does the handshake, sends one short string over SSCP2 and
+ * waits for the echo. The full handshake costs the server an RSA operation for
+ * the nonce of SSAP/1.0 and more to unwrap the session key of SSAP/2.0, which
+ * resuming a session from a ticket skips.
+ *
+ * Usage: SsapResumptionBenchmark [connections]
+ */
+public class SsapResumptionBenchmark
+{
+    public static final String BYE = "BYE";
+    
+    private static final int WARMUP_CONNECTIONS = 50;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.setProtocol(SscpProtocol.SSCP2);
+            
+            String message;
+            
+            while (!BYE.equals(message = connection.readString()))
+                connection.writeString(message);
+        });
+        
+        server.start();
+        
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+        
+        Logger.log("Benchmark: " + connections + " connections each way");
+        
+        report("full", measure(address, connections, false));
+        
+        long resumedBefore = server.getResumedConnections();
+        
+        report("resumed", measure(address, connections, true));
+        
+        Logger.log("Server resumed " + (server.getResumedConnections() - resumedBefore) + " sessions");
+        
+        server.close();
+    }
+    
+    // Latencies of the measured connections in nanoseconds, sorted
+    private static long[] measure(InetSocketAddress address, int connections, boolean resume)
+        throws IOException
+    {
+        SsapTicket ticket = null;
+        
+        long[] latencies = new long[connections];
+        
+        for (int i = -WARMUP_CONNECTIONS; i < connections; i++) {
+            long start = System.nanoTime();
+            
+            SecStoreClientConnection connection = new SecStoreClientConnection(address).setTicket(ticket);
+            
+            try {
+                connection.open(0, 0, new SocketOptions());
+                
+                connection.setProtocol(SscpProtocol.SSCP2);
+                
+                connection.writeString("PING");
+                
+                if (!"PING".equals(connection.readString()))
+                    throw new IOException("echo mismatch");
+                
+                connection.writeString(BYE);
+            }
+            
+            finally {
+                connection.close();
+            }
+            
+            if (resume)
+                ticket = connection.getTicket();
+            
+            if (i >= 0)
+                latencies[i] = System.nanoTime() - start;
+        }
+        
+        Arrays.sort(latencies);
+        
+        return latencies;
+    }
+    
+    private static void report(String name, long[] latencies)
+    {
+        long total = 0;
+        
+        for (long latency : latencies)
+            total += latency;
+        
+        Logger.log(String.format("%-8s p50=%.3f ms p90=%.3f ms p99=%.3f ms max=%.3f ms mean=%.3f ms", name,
+            percentile(latencies, 50) / 1e6, percentile(latencies, 90) / 1e6, percentile(latencies, 99) / 1e6,
+            latencies[latencies.length - 1] / 1e6, total / 1e6 / latencies.length));
+    }
+    
+    private static long percentile(long[] sorted, int percentile)
+    {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
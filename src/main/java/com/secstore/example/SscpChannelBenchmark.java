@@ -0,0 +1,217 @@
+package com.secstore.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.secstore.Logger;
+import com.secstore.ssap.SsapChannelHandshake;
+import com.secstore.sscp.SscpChannel;
+import com.secstore.sscp.SscpChannelEngine;
+
+
+/*
+ * Holds many mostly idle SSAP connections on a few event loop threads.
+ *
+ * The server echoes every transmission back. Clients open all their channels
+ * with the full SSAP/1.0 and SSAP/2.0 handshake, let them sit idle for a while
+ * and then have each one echo a message once. Both ends report how much heap
+ * the open channels take.
+ *
+ * Run the two ends as separate processes, each needs a file descriptor per channel.
+ *
+ * Usage: SscpChannelBenchmark server [port] [event loops]
+ *        SscpChannelBenchmark client [host] [port] [channels] [idle seconds] [event loops]
+ */
+public class SscpChannelBenchmark
+{
+    public static final int DEFAULT_PORT = 7443;
+    
+    // handshakes in flight at once, more only fill the listen backlog
+    private static final int MAX_PENDING_HANDSHAKES = 256;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length > 0 && args[0].equals("client"))
+            client(args);
+        
+        else
+            server(args);
+    }
+    
+    private static void server(String[] args)
+        throws Exception
+    {
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        
+        int eventLoops = (args.length > 2) ? Integer.parseInt(args[2]) : SscpChannelEngine.DEFAULT_EVENT_LOOPS;
+        
+        SscpChannelEngine engine = new SscpChannelEngine(eventLoops);
+        
+        engine.listen(new InetSocketAddress(port), SsapChannelHandshake::closing, new SscpChannel.Handler()
+        {
+            @Override
+            public void onData(SscpChannel channel, byte[] bytes, int offset, int length, boolean EOT)
+                throws IOException
+            {
+                channel.write(bytes, offset, length, EOT);
+            }
+        });
+        
+        Logger.log("Echo server on port " + port + " with " + eventLoops + " event loops");
+        
+        int reported = -1;
+        
+        while (true) {
+            Thread.sleep(5000);
+            
+            int open = engine.getOpenChannels();
+            
+            if (open == reported)
+                continue;
+            
+            reported = open;
+            
+            Logger.log(String.format("%d channels open, %s", open, memory(open)));
+        }
+    }
+    
+    private static void client(String[] args)
+        throws Exception
+    {
+        String host = (args.length > 1) ? args[1] : "localhost";
+        
+        int port = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+        
+        int channels = (args.length > 3) ? Integer.parseInt(args[3]) : 10000;
+        
+        int idleSeconds = (args.length > 4) ? Integer.parseInt(args[4]) : 10;
+        
+        int eventLoops = (args.length > 5) ? Integer.parseInt(args[5]) : SscpChannelEngine.DEFAULT_EVENT_LOOPS;
+        
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        
+        SscpChannelEngine engine = new SscpChannelEngine(eventLoops);
+        
+        Semaphore pending = new Semaphore(MAX_PENDING_HANDSHAKES);
+        
+        CountDownLatch opened = new CountDownLatch(channels);
+        
+        CountDownLatch echoed = new CountDownLatch(channels);
+        
+        AtomicInteger failures = new AtomicInteger();
+        
+        byte[] message = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+        
+        SscpChannel.Handler handler = new SscpChannel.Handler()
+        {
+            @Override
+            public void onOpen(SscpChannel channel)
+            {
+                channel.setAttachment(new ByteArrayOutputStream());
+                
+                pending.release();
+                
+                opened.countDown();
+            }
+            
+            @Override
+            public void onData(SscpChannel channel, byte[] bytes, int offset, int length, boolean EOT)
+                throws IOException
+            {
+                ByteArrayOutputStream echo = (ByteArrayOutputStream) channel.getAttachment();
+                
+                echo.write(bytes, offset, length);
+                
+                if (!EOT)
+                    return;
+                
+                if (!Arrays.equals(echo.toByteArray(), message))
+                    failures.incrementAndGet();
+                
+                echoed.countDown();
+            }
+            
+            @Override
+            public void onClose(SscpChannel channel, IOException failure)
+            {
+                // closing the engine at the end fails whatever is still open
+                if (failure == null || echoed.getCount() == 0)
+                    return;
+                
+                Logger.log("Channel failed: " + failure);
+                
+                failures.incrementAndGet();
+                
+                // never got as far as onOpen
+                if (channel.getAttachment() == null) {
+                    pending.release();
+                    
+                    opened.countDown();
+                }
+                
+                echoed.countDown();
+            }
+        };
+        
+        Logger.log("Opening " + channels + " channels to " + address + " on " + eventLoops + " event loops");
+        
+        List<SscpChannel> open = new ArrayList<>(channels);
+        
+        long start = System.nanoTime();
+        
+        for (int i = 0; i < channels; i++) {
+            pending.acquire();
+            
+            open.add(engine.connect(address, SsapChannelHandshake.opening(), handler));
+        }
+        
+        opened.await();
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        
+        Logger.log(String.format("%d channels open in %.2f s (%.0f handshakes/s), %d failed, %d threads",
+            engine.getOpenChannels(), seconds, channels / seconds, failures.get(),
+            Thread.activeCount()));
+        
+        Logger.log(memory(engine.getOpenChannels()));
+        
+        Thread.sleep(TimeUnit.SECONDS.toMillis(idleSeconds));
+        
+        start = System.nanoTime();
+        
+        for (SscpChannel channel : open) {
+            if (channel.isOpen())
+                channel.write(message, 0, message.length, true);
+        }
+        
+        echoed.await();
+        
+        seconds = (System.nanoTime() - start) / 1e9;
+        
+        Logger.log(String.format("%d echoes in %.2f s after %d s idle, %d failed, %d channels still open",
+            channels, seconds, idleSeconds, failures.get(), engine.getOpenChannels()));
+        
+        engine.close();
+    }
+    
+    private static String memory(int channels)
+    {
+        Runtime runtime = Runtime.getRuntime();
+        
+        System.gc();
+        
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        
+        return String.format("%.1f MB heap in use, %s per channel", used / 1e6,
+            (channels > 0) ? (used / channels) + " bytes" : "-");
+    }
+}
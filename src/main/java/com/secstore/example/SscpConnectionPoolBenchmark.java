@@ -0,0 +1,164 @@
+package com.secstore.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.client.SscpConnectionPool;
+import com.secstore.server.SecStoreServer;
+import com.secstore.server.SecStoreServerConnection;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Measures the latency of small uploads with and without an SscpConnectionPool.
+ *
+ * Without the pool every upload opens a connection, runs the full SSAP/1.0 and
+ * SSAP/2.0 handshake, uploads and waits for the acknowledgement. With the pool
+ * only the first upload pays for the handshake.
+ *
+ * Usage: SscpConnectionPoolBenchmark [uploads] [bytes per upload] [protocol]
+ */
+public class SscpConnectionPoolBenchmark
+{
+    public static final String UPLOAD = "UPLOAD";
+    public static final String BYE = "BYE";
+    
+    private static final int WARMUP_UPLOADS = 50;
+    
+    @FunctionalInterface
+    private static interface Upload
+    {
+        void run() throws IOException;
+    }
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int uploads = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        
+        int size = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+        
+        SscpProtocol protocol = (args.length > 2) ? SscpProtocol.valueOf(args[2]) : SscpProtocol.SSCP2;
+        
+        byte[] payload = new byte[size];
+        
+        new Random(1).nextBytes(payload);
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> serve(connection, protocol));
+        
+        server.start();
+        
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+        
+        Logger.log("Benchmark: " + uploads + " uploads of " + size + " bytes over " + protocol);
+        
+        report("without pool", measure(uploads, () -> {
+            SecStoreClientConnection connection = new SecStoreClientConnection(address);
+            
+            try {
+                connection.open(0, 0, new SecStoreClientConnection.SocketOptions());
+                
+                upload(connection, protocol, payload);
+                
+                connection.writeString(BYE);
+            }
+            
+            finally {
+                connection.close();
+            }
+        }));
+        
+        try (SscpConnectionPool pool = new SscpConnectionPool()) {
+            report("with pool", measure(uploads, () -> pool.withConnection(address, connection -> {
+                upload(connection, protocol, payload);
+                
+                return null;
+            })));
+            
+            Logger.log(String.format("Pool opened %d connections and reused them %d times",
+                pool.getCreatedConnections(), pool.getReusedConnections()));
+        }
+        
+        server.close();
+    }
+    
+    private static void serve(SecStoreServerConnection connection, SscpProtocol protocol)
+        throws IOException
+    {
+        connection.setProtocol(protocol);
+        
+        OutputStream sink = OutputStream.nullOutputStream();
+        
+        String command;
+        
+        while (UPLOAD.equals(command = connection.readString())) {
+            connection.downloadTo(sink);
+            
+            connection.writeString("OK");
+        }
+        
+        if (!BYE.equals(command))
+            throw new IOException("unknown command: " + command);
+    }
+    
+    private static void upload(SecStoreClientConnection connection, SscpProtocol protocol, byte[] payload)
+        throws IOException
+    {
+        connection.setProtocol(protocol);
+        
+        connection.writeString(UPLOAD);
+        
+        connection.uploadFrom(new ByteArrayInputStream(payload));
+        
+        String reply = connection.readString();
+        
+        if (!"OK".equals(reply))
+            throw new IOException("upload refused: " + reply);
+    }
+    
+    // Latencies of the measured uploads in nanoseconds, sorted
+    private static long[] measure(int uploads, Upload upload)
+        throws IOException
+    {
+        for (int i = 0; i < WARMUP_UPLOADS; i++)
+            upload.run();
+        
+        long[] latencies = new long[uploads];
+        
+        for (int i = 0; i < uploads; i++) {
+            long start = System.nanoTime();
+            
+            upload.run();
+            
+            latencies[i] = System.nanoTime() - start;
+        }
+        
+        Arrays.sort(latencies);
+        
+        return latencies;
+    }
+    
+    private static void report(String name, long[] latencies)
+    {
+        long total = 0;
+        
+        for (long latency : latencies)
+            total += latency;
+        
+        Logger.log(String.format("%-12s p50=%.3f ms p90=%.3f ms p99=%.3f ms max=%.3f ms mean=%.3f ms", name,
+            percentile(latencies, 50) / 1e6, percentile(latencies, 90) / 1e6, percentile(latencies, 99) / 1e6,
+            latencies[latencies.length - 1] / 1e6, total / 1e6 / latencies.length));
+    }
+    
+    private static long percentile(long[] sorted, int percentile)
+    {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,175 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpDiskWriter;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Compares downloading into a file on the thread that reads the socket with
+ * downloading through SscpDiskWriter, under the same sync policy.
+ *
+ * The inline download writes and syncs between reads, the way downloadTo does
+ * plus the syncs, so every sync stops the socket from being drained. Both run
+ * over SSCP3 on loopback into a temporary file, so the difference is only as
+ * large as the syncs of the local disk are slow.
+ *
+ * Usage: SscpDiskWriterBenchmark [file size in MB] [sync interval in MB] [runs]
+ */
+public class SscpDiskWriterBenchmark
+{
+    public static final String INLINE = "INLINE";
+    public static final String PIPELINED = "PIPELINED";
+    public static final String BYE = "BYE";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        long fileSize = ((args.length > 0) ? Long.parseLong(args[0]) : 256) << 20;
+        
+        long syncInterval = ((args.length > 1) ? Long.parseLong(args[1]) : 16) << 20;
+        
+        int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        
+        Path source = Files.createTempFile("sscp-disk-source", ".bin");
+        
+        Path target = Files.createTempFile("sscp-disk-target", ".bin");
+        
+        byte[] bytes = new byte[1 << 20];
+        
+        for (long written = 0; written < fileSize; written += bytes.length) {
+            ThreadLocalRandom.current().nextBytes(bytes);
+            
+            Files.write(source, bytes, StandardOpenOption.APPEND);
+        }
+        
+        SscpDiskWriter.Options options = new SscpDiskWriter.Options()
+            .setSyncPolicy(SscpDiskWriter.SyncPolicy.INTERVAL)
+            .setSyncInterval(syncInterval)
+            .setPreallocatedSize(fileSize);
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.setProtocol(SscpProtocol.SSCP3);
+            
+            String mode;
+            
+            while (!BYE.equals(mode = connection.readString())) {
+                long start = System.nanoTime();
+                
+                if (PIPELINED.equals(mode)) {
+                    SscpDiskWriter.Stats stats = connection.downloadTo(target, options);
+                    
+                    Logger.log(String.format("%-9s %.1f MB/s, %s", mode, stats.getBytesPerSecond() / 1e6, stats));
+                }
+                
+                else {
+                    try (SyncingOutputStream outputStream = new SyncingOutputStream(target, syncInterval)) {
+                        connection.downloadTo(outputStream);
+                    }
+                    
+                    long nanos = System.nanoTime() - start;
+                    
+                    Logger.log(String.format("%-9s %.1f MB/s", mode, fileSize * 1e9 / nanos / 1e6));
+                }
+                
+                connection.writeString(mode);
+            }
+        });
+        
+        server.start();
+        
+        SecStoreClientConnection connection = new SecStoreClientConnection(
+            new InetSocketAddress("localhost", server.getPort()));
+        
+        connection.open(0, 0, new SocketOptions());
+        
+        connection.setProtocol(SscpProtocol.SSCP3);
+        
+        Logger.log("Benchmark: " + (fileSize >> 20) + " MB, synced every " + (syncInterval >> 20) + " MB, " + runs
+            + " runs after one to warm up");
+        
+        for (int run = 0; run <= runs; run++) {
+            for (String mode : new String[] {INLINE, PIPELINED}) {
+                connection.writeString(mode);
+                
+                connection.uploadFrom(source.toString());
+                
+                if (!mode.equals(connection.readString()))
+                    throw new IOException("transfer not acknowledged");
+            }
+        }
+        
+        connection.writeString(BYE);
+        
+        connection.close();
+        
+        server.close();
+        
+        Files.delete(source);
+        
+        Files.delete(target);
+    }
+    
+    // Writes and syncs on the calling thread, as downloadTo would with syncs added
+    private static class SyncingOutputStream
+        extends OutputStream
+    {
+        private final FileChannel channel;
+        private final long syncInterval;
+        private long unsynced = 0;
+        
+        public SyncingOutputStream(Path path, long syncInterval)
+            throws IOException
+        {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            this.syncInterval = syncInterval;
+        }
+        
+        @Override
+        public void write(int value)
+            throws IOException
+        {
+            write(new byte[] {(byte) value}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+            throws IOException
+        {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+            
+            while (byteBuffer.hasRemaining())
+                channel.write(byteBuffer);
+            
+            unsynced += length;
+            
+            if (unsynced >= syncInterval) {
+                channel.force(false);
+                
+                unsynced = 0;
+            }
+        }
+        
+        @Override
+        public void close()
+            throws IOException
+        {
+            channel.force(false);
+            
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.secstore.example;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Counts the socket reads it takes to receive a MB, with the buffered frame
+ * reader under SscpInputStream and with the frame at a time reading it
+ * replaced.
+ *
+ * The same file is uploaded twice. An SscpConnection receives the first
+ * upload, and a plain decoder the second, which reads each frame as
+ * SscpInputStream used to: the two header bytes one at a time, then the rest
+ * of the frame. Bodies are not decrypted, only the reads are of interest. Both
+ * receive over a socket that counts the reads made on it, one syscall each.
+ *
+ * SSCP1 frames carry 117 bytes each and its RSA is slow, so it sends a MB at
+ * most.
+ *
+ * Usage: SscpFrameReaderBenchmark [MB] [runs]
+ */
+public class SscpFrameReaderBenchmark
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        
+        SscpProtocol[] protocols = {
+            SscpProtocol.DEFAULT, SscpProtocol.SSCP1, SscpProtocol.SSCP2, SscpProtocol.SSCP3
+        };
+        
+        Link buffered = new Link();
+        
+        Link unbuffered = new Link();
+        
+        CountingInputStream bufferedReads = buffered.receivingSocket.getInputStream();
+        
+        CountingInputStream unbufferedReads = unbuffered.receivingSocket.getInputStream();
+        
+        byte[] bytes = new byte[megabytes << 20];
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Path file = Files.createTempFile("sscp-frame-reader", ".bin");
+        
+        Path smallFile = Files.createTempFile("sscp-frame-reader", ".bin");
+        
+        Path received = Files.createTempFile("sscp-frame-reader", ".received");
+        
+        Files.write(file, bytes);
+        
+        Files.write(smallFile, Arrays.copyOf(bytes, Math.min(bytes.length, 1 << 20)));
+        
+        Logger.log("Benchmark: " + runs + " runs of " + megabytes + " MB per protocol");
+        
+        try {
+            for (int run = 1; run <= runs; run++) {
+                for (SscpProtocol protocol : protocols) {
+                    Path sent = (protocol == SscpProtocol.SSCP1) ? smallFile : file;
+                    
+                    double megabytesSent = Files.size(sent) / 1048576.0;
+                    
+                    buffered.sender.setProtocol(protocol);
+                    
+                    buffered.receiver.setProtocol(protocol);
+                    
+                    unbuffered.sender.setProtocol(protocol);
+                    
+                    long reads = bufferedReads.getReads();
+                    
+                    CompletableFuture<Void> uploaded = upload(buffered.sender, sent);
+                    
+                    buffered.receiver.downloadTo(received.toString());
+                    
+                    uploaded.join();
+                    
+                    double bufferedPerMegabyte = (bufferedReads.getReads() - reads) / megabytesSent;
+                    
+                    reads = unbufferedReads.getReads();
+                    
+                    uploaded = upload(unbuffered.sender, sent);
+                    
+                    int frames = readFrames(unbufferedReads);
+                    
+                    uploaded.join();
+                    
+                    double unbufferedPerMegabyte = (unbufferedReads.getReads() - reads) / megabytesSent;
+                    
+                    Logger.log(String.format("run %d: %s, %d frames, reads per MB: frame at a time %.0f, "
+                        + "buffered %.0f, %.1fx", run, protocol, frames, unbufferedPerMegabyte,
+                        bufferedPerMegabyte, unbufferedPerMegabyte / bufferedPerMegabyte));
+                }
+            }
+        }
+        
+        finally {
+            buffered.close();
+            
+            unbuffered.close();
+            
+            Files.delete(file);
+            
+            Files.delete(smallFile);
+            
+            Files.delete(received);
+        }
+    }
+    
+    // A sending and a receiving end, the receiving one over a counting socket
+    private static class Link
+    {
+        private final DummySscpConnection sender;
+        private final DummySscpConnection receiver;
+        private final Socket sendingSocket;
+        private final CountingSocket receivingSocket;
+        
+        Link()
+            throws IOException
+        {
+            sender = new DummySscpConnection("localhost", 0, Type.SERVER);
+            
+            receiver = new DummySscpConnection("localhost", 0, Type.CLIENT);
+            
+            receivingSocket = new CountingSocket();
+            
+            try (ServerSocket server = new ServerSocket(0)) {
+                receivingSocket.connect(server.getLocalSocketAddress());
+                
+                sendingSocket = server.accept();
+            }
+            
+            sender.connect(sendingSocket);
+            
+            receiver.connect(receivingSocket);
+            
+            sender.establishHandshake();
+            
+            receiver.establishHandshake();
+        }
+        
+        void close()
+            throws IOException
+        {
+            sendingSocket.close();
+            
+            receivingSocket.close();
+        }
+    }
+    
+    private static CompletableFuture<Void> upload(SscpConnection connection, Path file)
+    {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                connection.uploadFrom(file.toString());
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+    }
+    
+    // Reads one transmission frame by frame, as SscpInputStream did before the buffered reader
+    private static int readFrames(InputStream inputStream)
+        throws IOException
+    {
+        byte[] body = new byte[SscpProtocol.MAX_FRAME_SIZE];
+        
+        int frames = 0;
+        
+        boolean EOT = false;
+        
+        while (!EOT) {
+            int first = inputStream.read();
+            
+            int second = inputStream.read();
+            
+            if (first == -1 || second == -1)
+                throw new IOException("connection closed");
+            
+            EOT = (first & 0x40) != 0;
+            
+            int length = ((first & 0x3f) << 8) | second;
+            
+            if (length == SscpProtocol.EXTENDED_SIZE_MARKER) {
+                byte[] header = inputStream.readNBytes(SscpProtocol.EXTENDED_HEADER_SIZE
+                    - SscpProtocol.LEGACY_HEADER_SIZE);
+                
+                length = ((header[2] & 0xff) << 24) | ((header[3] & 0xff) << 16) | ((header[4] & 0xff) << 8)
+                    | (header[5] & 0xff);
+            }
+            
+            if (inputStream.readNBytes(body, 0, length) != length)
+                throw new IOException("connection closed");
+            
+            frames++;
+        }
+        
+        return frames;
+    }
+    
+    private static class CountingSocket extends Socket
+    {
+        private CountingInputStream inputStream;
+        
+        @Override
+        public synchronized CountingInputStream getInputStream()
+            throws IOException
+        {
+            if (inputStream == null)
+                inputStream = new CountingInputStream(super.getInputStream());
+            
+            return inputStream;
+        }
+    }
+    
+    // Every read reaching the socket is one syscall
+    private static class CountingInputStream extends FilterInputStream
+    {
+        private volatile long reads = 0;
+        
+        CountingInputStream(InputStream inputStream)
+        {
+            super(inputStream);
+        }
+        
+        long getReads()
+        {
+            return reads;
+        }
+        
+        @Override
+        public int read()
+            throws IOException
+        {
+            reads++;
+            
+            return super.read();
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length)
+            throws IOException
+        {
+            reads++;
+            
+            return super.read(bytes, offset, length);
+        }
+    }
+}
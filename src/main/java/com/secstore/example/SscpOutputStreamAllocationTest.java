@@ -0,0 +1,158 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Checks that the SscpOutputStream write path stays free of per-frame
+ * allocations, under every protocol but SSCP1, whose RSA is too slow to send
+ * enough frames for the measure to mean anything.
+ *
+ * The sender uploads a file once per protocol to warm up, then measures the
+ * bytes the uploading thread allocates while uploading it again. Nothing is
+ * sent back, the receiver downloads on a thread of its own.
+ *
+ * Buffers sized once per protocol do not count against the limit, a fresh
+ * buffer per frame does: that costs a frame's worth of bytes per frame, while
+ * the limit allows a few KB per MB for the odd object the JDK makes along the
+ * way.
+ *
+ * Frames are of the largest block size, as between peers that negotiated it.
+ * SSCP3 hands the JCE a new parameter spec for every nonce, and the cipher
+ * makes a few small objects of its own each frame, which smaller frames would
+ * multiply well past the limit.
+ *
+ * Usage: SscpOutputStreamAllocationTest [MB] [limit in bytes per MB]
+ */
+public class SscpOutputStreamAllocationTest
+{
+    public static final long DEFAULT_LIMIT = 16384;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        
+        long limit = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_LIMIT;
+        
+        SscpProtocol[] protocols = {
+            SscpProtocol.DEFAULT, SscpProtocol.SSCP2, SscpProtocol.SSCP3, SscpProtocol.SSCP3_CHACHA20
+        };
+        
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+        
+        if (!threads.isThreadAllocatedMemorySupported())
+            throw new IllegalStateException("allocated bytes cannot be measured on this JVM");
+        
+        threads.setThreadAllocatedMemoryEnabled(true);
+        
+        byte[] bytes = new byte[megabytes << 20];
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Path file = Files.createTempFile("sscp-allocation", ".bin");
+        
+        Path received = Files.createTempFile("sscp-allocation", ".received");
+        
+        Files.write(file, bytes);
+        
+        DummySscpConnection sender = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        DummySscpConnection receiver = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        Socket sendingSocket = new Socket();
+        
+        Socket receivingSocket;
+        
+        try (ServerSocket server = new ServerSocket(0)) {
+            sendingSocket.connect(server.getLocalSocketAddress());
+            
+            receivingSocket = server.accept();
+        }
+        
+        boolean passed = true;
+        
+        try {
+            sender.connect(sendingSocket);
+            
+            receiver.connect(receivingSocket);
+            
+            sender.establishHandshake();
+            
+            receiver.establishHandshake();
+            
+            sender.setMaxBlockSize(SscpProtocol.MAX_BLOCK_SIZE);
+            
+            sender.setBlockSize(SscpProtocol.MAX_BLOCK_SIZE);
+            
+            Logger.log("Test: " + megabytes + " MB per protocol, limit " + limit + " bytes allocated per MB");
+            
+            for (SscpProtocol protocol : protocols) {
+                sender.setProtocol(protocol);
+                
+                receiver.setProtocol(protocol);
+                
+                send(sender, receiver, file, received, threads);
+                
+                long allocated = send(sender, receiver, file, received, threads);
+                
+                long perMegabyte = allocated / megabytes;
+                
+                Logger.log(String.format("%s: %d bytes allocated, %d bytes per MB, %s", protocol, allocated,
+                    perMegabyte, (perMegabyte <= limit) ? "ok" : "over the limit"));
+                
+                passed &= perMegabyte <= limit;
+            }
+        }
+        
+        finally {
+            sendingSocket.close();
+            
+            receivingSocket.close();
+            
+            Files.delete(file);
+            
+            Files.delete(received);
+        }
+        
+        if (!passed)
+            throw new IllegalStateException("write path allocates per frame");
+    }
+    
+    // Returns the bytes the sending thread allocated while uploading
+    private static long send(DummySscpConnection sender, DummySscpConnection receiver, Path file, Path received,
+        com.sun.management.ThreadMXBean threads)
+        throws IOException
+    {
+        CompletableFuture<Void> receiving = CompletableFuture.runAsync(() -> {
+            try {
+                receiver.downloadTo(received.toString());
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        
+        sender.uploadFrom(file.toString());
+        
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        
+        receiving.join();
+        
+        return allocated;
+    }
+}
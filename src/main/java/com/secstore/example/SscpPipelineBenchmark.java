@@ -0,0 +1,138 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Measures the SSCP1 blocks a second that pipelining gets out of the cores.
+ *
+ * The sender seals every 117-byte block with the private key and the receiver
+ * opens it with the public one, so sealing is by far the slower half. Each run
+ * uploads the same file with pipelining off and at every window given, on
+ * both ends. Per core divides by the cores the sealing can use, one without
+ * pipelining and otherwise as many as the window allows, up to the machine's.
+ *
+ * Usage: SscpPipelineBenchmark [KB] [runs] [windows...]
+ */
+public class SscpPipelineBenchmark
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        int kilobytes = (args.length > 0) ? Integer.parseInt(args[0]) : 1024;
+        
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        
+        int cores = Runtime.getRuntime().availableProcessors();
+        
+        int[] windows = (args.length > 2)
+            ? IntStream.range(2, args.length).map(i -> Integer.parseInt(args[i])).toArray()
+            : IntStream.of(0, 1, cores, 2 * cores).distinct().toArray();
+        
+        DummySscpConnection sender = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        DummySscpConnection receiver = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        Socket receivingSocket = new Socket();
+        
+        Socket sendingSocket;
+        
+        try (ServerSocket server = new ServerSocket(0)) {
+            receivingSocket.connect(server.getLocalSocketAddress());
+            
+            sendingSocket = server.accept();
+        }
+        
+        sender.connect(sendingSocket);
+        
+        receiver.connect(receivingSocket);
+        
+        sender.establishHandshake();
+        
+        receiver.establishHandshake();
+        
+        sender.setProtocol(SscpProtocol.SSCP1);
+        
+        receiver.setProtocol(SscpProtocol.SSCP1);
+        
+        byte[] bytes = new byte[kilobytes * 1024];
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Path file = Files.createTempFile("sscp-pipeline", ".bin");
+        
+        Path received = Files.createTempFile("sscp-pipeline", ".received");
+        
+        Files.write(file, bytes);
+        
+        long blocks = (bytes.length + SscpProtocol.SSCP1.getMaxBlockSize() - 1) / SscpProtocol.SSCP1.getMaxBlockSize();
+        
+        Logger.log("Benchmark: " + runs + " runs of " + kilobytes + " KB, " + blocks + " SSCP1 blocks, on " + cores
+            + " cores");
+        
+        try {
+            for (int run = 0; run <= runs; run++) {
+                for (int window : windows) {
+                    sender.setPipelining(window);
+                    
+                    receiver.setPipelining(window);
+                    
+                    long start = System.nanoTime();
+                    
+                    CompletableFuture<Void> sent = upload(sender, file);
+                    
+                    receiver.downloadTo(received.toString());
+                    
+                    sent.join();
+                    
+                    long nanos = System.nanoTime() - start;
+                    
+                    if (Files.size(received) != bytes.length)
+                        throw new IOException("received " + Files.size(received) + " of " + bytes.length + " bytes");
+                    
+                    double blocksPerSecond = blocks * 1e9 / nanos;
+                    
+                    int coresUsed = Math.min(cores, Math.max(window, 1));
+                    
+                    // the first run only warms up
+                    if (run > 0)
+                        Logger.log(String.format("run %d: window %d, %.0f blocks/s, %.0f blocks/s per core on %d",
+                            run, window, blocksPerSecond, blocksPerSecond / coresUsed, coresUsed));
+                }
+            }
+        }
+        
+        finally {
+            sendingSocket.close();
+            
+            receivingSocket.close();
+            
+            Files.delete(file);
+            
+            Files.delete(received);
+        }
+    }
+    
+    private static CompletableFuture<Void> upload(DummySscpConnection connection, Path file)
+    {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                connection.uploadFrom(file.toString());
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+    }
+}
@@ -0,0 +1,154 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import com.sun.management.OperatingSystemMXBean;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpOutputStream;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Compares the MB/s per core of SSCP2 and of both SSCP3 variants over loopback,
+ * on resource files of text, audio and an image.
+ *
+ * One connection sends each file as a transmission, sealed frame by frame, as
+ * many times as it takes to reach the size of a run, and the other opens and
+ * discards them. Sending and receiving share the machine, so per core divides
+ * the bytes by the CPU time the whole process spent, both ends together.
+ *
+ * Usage: SscpProtocolBenchmark [MB] [runs] [files...]
+ */
+public class SscpProtocolBenchmark
+{
+    public static final int WRITE_SIZE = 65536;
+    public static final int WARM_UP_RUNS = 2;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        
+        String[] fileNames = { "50000.txt", "output_cave.wav", "sceneries.jpg" };
+        
+        if (args.length > 2) {
+            fileNames = new String[args.length - 2];
+            
+            for (int i = 2; i < args.length; i++)
+                fileNames[i - 2] = args[i];
+        }
+        
+        SscpProtocol[] protocols = {
+            SscpProtocol.SSCP2, SscpProtocol.SSCP3, SscpProtocol.SSCP3_CHACHA20
+        };
+        
+        OperatingSystemMXBean system = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        
+        DummySscpConnection sender = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        DummySscpConnection receiver = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        Socket receivingSocket = new Socket();
+        
+        Socket sendingSocket;
+        
+        try (ServerSocket server = new ServerSocket(0)) {
+            receivingSocket.connect(server.getLocalSocketAddress());
+            
+            sendingSocket = server.accept();
+        }
+        
+        sender.connect(sendingSocket);
+        
+        receiver.connect(receivingSocket);
+        
+        sender.establishHandshake();
+        
+        receiver.establishHandshake();
+        
+        Logger.log("Benchmark: " + runs + " runs of " + megabytes + " MB per file and protocol, on "
+            + system.getAvailableProcessors() + " cores");
+        
+        byte[][] files = new byte[fileNames.length][];
+        
+        for (int i = 0; i < fileNames.length; i++)
+            files[i] = Files.readAllBytes(Paths.get(DummySscpConnection.RESOURCES, fileNames[i]));
+        
+        // the first runs only warm up, over every file so none is measured before the others
+        for (int run = 1 - WARM_UP_RUNS; run <= runs; run++) {
+            for (int f = 0; f < files.length; f++) {
+                byte[] file = files[f];
+                
+                int transmissions = (int) Math.max(1, (long) megabytes * (1 << 20) / file.length);
+                
+                StringBuilder results = new StringBuilder();
+                
+                for (SscpProtocol protocol : protocols) {
+                    sender.setProtocol(protocol);
+                    
+                    receiver.setProtocol(protocol);
+                    
+                    long cpuStart = system.getProcessCpuTime();
+                    
+                    long start = System.nanoTime();
+                    
+                    CompletableFuture<Void> sent = send(sender.getOutputStream(), file, transmissions);
+                    
+                    long received = 0;
+                    
+                    for (int i = 0; i < transmissions; i++)
+                        received += receiver.getInputStream().transferTo(OutputStream.nullOutputStream());
+                    
+                    sent.join();
+                    
+                    long nanos = System.nanoTime() - start;
+                    
+                    long cpuNanos = system.getProcessCpuTime() - cpuStart;
+                    
+                    if (received != (long) file.length * transmissions)
+                        throw new IOException("received " + received + " of " + (long) file.length * transmissions
+                            + " bytes");
+                    
+                    double megabytesReceived = received / 1048576.0;
+                    
+                    results.append(String.format(", %s %.0f MB/s %.0f MB/s per core", protocol,
+                        megabytesReceived * 1e9 / nanos, megabytesReceived * 1e9 / cpuNanos));
+                }
+                
+                if (run > 0)
+                    Logger.log("run " + run + ": " + fileNames[f] + results);
+            }
+        }
+        
+        sendingSocket.close();
+        
+        receivingSocket.close();
+    }
+    
+    private static CompletableFuture<Void> send(SscpOutputStream outputStream, byte[] file, int transmissions)
+    {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                for (int i = 0; i < transmissions; i++) {
+                    for (int offset = 0; offset < file.length; offset += WRITE_SIZE)
+                        outputStream.write(file, offset, Math.min(WRITE_SIZE, file.length - offset));
+                    
+                    outputStream.writeEOT();
+                }
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+    }
+}
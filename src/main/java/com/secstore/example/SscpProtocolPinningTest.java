@@ -0,0 +1,105 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Checks that a stream reading an authenticated protocol refuses frames of any
+ * other, which carry no tag and could be replayed or forged.
+ *
+ * For each SSCP3 variant and each older protocol, a fresh pair of connections
+ * exchanges one genuine message under SSCP3. The sending end then switches to
+ * the older protocol behind the receiver's back, as an attacker injecting such
+ * frames would, and the receiver has to fail with an IOException instead of
+ * reading the message.
+ *
+ * Usage: SscpProtocolPinningTest
+ */
+public class SscpProtocolPinningTest
+{
+    public static final String GENUINE = "genuine";
+    public static final String INJECTED = "injected";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        SscpProtocol[] authenticated = { SscpProtocol.SSCP3, SscpProtocol.SSCP3_CHACHA20 };
+        
+        SscpProtocol[] injected = { SscpProtocol.SSCP2, SscpProtocol.SSCP1, SscpProtocol.DEFAULT };
+        
+        boolean passed = true;
+        
+        for (SscpProtocol protocol : authenticated) {
+            for (SscpProtocol injectedProtocol : injected) {
+                String result = inject(protocol, injectedProtocol);
+                
+                Logger.log(injectedProtocol + " into " + protocol + ": " + result);
+                
+                passed &= result.startsWith("refused");
+            }
+        }
+        
+        if (!passed)
+            throw new IllegalStateException("frame of another protocol accepted");
+    }
+    
+    private static String inject(SscpProtocol protocol, SscpProtocol injectedProtocol)
+        throws IOException
+    {
+        DummySscpConnection sender = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        DummySscpConnection receiver = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        Socket sendingSocket = new Socket();
+        
+        Socket receivingSocket;
+        
+        try (ServerSocket server = new ServerSocket(0)) {
+            sendingSocket.connect(server.getLocalSocketAddress());
+            
+            receivingSocket = server.accept();
+        }
+        
+        try {
+            sender.connect(sendingSocket);
+            
+            receiver.connect(receivingSocket);
+            
+            sender.establishHandshake();
+            
+            receiver.establishHandshake();
+            
+            sender.setProtocol(protocol);
+            
+            receiver.setProtocol(protocol);
+            
+            sender.writeString(GENUINE);
+            
+            if (!GENUINE.equals(receiver.readString()))
+                return "genuine message lost";
+            
+            sender.setProtocol(injectedProtocol);
+            
+            sender.writeString(INJECTED);
+            
+            try {
+                return "accepted: " + receiver.readString();
+            }
+            
+            catch (IOException exception) {
+                return "refused: " + exception.getMessage();
+            }
+        }
+        
+        finally {
+            sendingSocket.close();
+            
+            receivingSocket.close();
+        }
+    }
+}
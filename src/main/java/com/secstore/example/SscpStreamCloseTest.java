@@ -0,0 +1,105 @@
+package com.secstore.example;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sscp.SscpStream;
+
+
+/*
+ * Checks that a multiplexed stream closed without writing anything still
+ * reaches the peer as closed, under every protocol.
+ *
+ * The client opens a stream and closes it at once. The server accepts it,
+ * expects the end of the stream on its first read and answers on the
+ * connection's own stream, which also shows the connection survived.
+ *
+ * Usage: SscpStreamCloseTest
+ */
+public class SscpStreamCloseTest
+{
+    public static final String READY = "READY";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        SscpProtocol[] protocols = {
+            SscpProtocol.DEFAULT, SscpProtocol.SSCP2, SscpProtocol.SSCP3, SscpProtocol.SSCP3_CHACHA20
+        };
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.startMultiplexing();
+            
+            for (SscpProtocol protocol : protocols) {
+                connection.setProtocol(protocol);
+                
+                // streams take the protocol of the connection when their first frame arrives
+                connection.writeString(READY);
+                
+                try (SscpStream stream = connection.acceptStream()) {
+                    connection.writeString(readEnd(stream));
+                }
+            }
+        });
+        
+        server.start();
+        
+        SecStoreClientConnection connection = new SecStoreClientConnection(
+            new InetSocketAddress("localhost", server.getPort()));
+        
+        boolean passed = true;
+        
+        try {
+            connection.open(0, 0, new SocketOptions());
+            
+            connection.startMultiplexing();
+            
+            for (SscpProtocol protocol : protocols) {
+                connection.setProtocol(protocol);
+                
+                if (!READY.equals(connection.readString()))
+                    throw new IOException("server not ready");
+                
+                connection.openStream().close();
+                
+                String result = connection.readString();
+                
+                Logger.log(protocol + ": " + result);
+                
+                passed &= result.equals("closed");
+            }
+        }
+        
+        finally {
+            connection.close();
+            
+            server.close();
+        }
+        
+        if (!passed)
+            throw new IllegalStateException("stream close not seen by the peer");
+    }
+    
+    // The peer never wrote, so the first read has to find the end of the stream
+    private static String readEnd(SscpStream stream)
+    {
+        try {
+            int value = stream.getInputStream().read();
+            
+            return (value == -1) ? "closed" : "read " + value;
+        }
+        
+        catch (EOFException exception) {
+            return "closed";
+        }
+        
+        catch (IOException exception) {
+            return "failed: " + exception;
+        }
+    }
+}
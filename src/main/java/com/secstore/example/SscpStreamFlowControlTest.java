@@ -0,0 +1,213 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sscp.SscpStream;
+
+
+/*
+ * Checks that a multiplexed stream nobody reads holds up only its own writer,
+ * and that an end cannot open streams without limit.
+ *
+ * Under every protocol, the client sends far more than a stream's window on a
+ * stream the server accepts but leaves unread, until the writer stops. A message
+ * on stream 0 still has to get through then, and once the server reads the
+ * stream every byte has to arrive. The client then opens streams until it is
+ * refused.
+ *
+ * Usage: SscpStreamFlowControlTest [MB]
+ */
+public class SscpStreamFlowControlTest
+{
+    public static final String MESSAGE = "through";
+    public static final int TIMEOUT_SECONDS = 10;
+    public static final int MAX_TRIED_STREAMS = 4096;
+    public static final int STALL_MILLISECONDS = 500;
+    public static final int WRITE_SIZE = 65536;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+        
+        SscpProtocol[] protocols = {
+            SscpProtocol.DEFAULT, SscpProtocol.SSCP2, SscpProtocol.SSCP3, SscpProtocol.SSCP3_CHACHA20
+        };
+        
+        boolean passed = true;
+        
+        for (SscpProtocol protocol : protocols) {
+            String result = run(protocol, megabytes);
+            
+            Logger.log(protocol + ": " + result);
+            
+            passed &= result.startsWith("passed");
+        }
+        
+        if (!passed)
+            throw new IllegalStateException("flow control failed");
+    }
+    
+    private static String run(SscpProtocol protocol, int megabytes)
+        throws Exception
+    {
+        DummySscpConnection client = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        DummySscpConnection server = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        Socket clientSocket = new Socket();
+        
+        Socket serverSocket;
+        
+        try (ServerSocket listener = new ServerSocket(0)) {
+            clientSocket.connect(listener.getLocalSocketAddress());
+            
+            serverSocket = listener.accept();
+        }
+        
+        try {
+            client.connect(clientSocket);
+            
+            server.connect(serverSocket);
+            
+            client.establishHandshake();
+            
+            server.establishHandshake();
+            
+            client.setProtocol(protocol);
+            
+            server.setProtocol(protocol);
+            
+            client.startMultiplexing();
+            
+            server.startMultiplexing();
+            
+            byte[] bytes = new byte[megabytes << 20];
+            
+            ThreadLocalRandom.current().nextBytes(bytes);
+            
+            SscpStream upload = client.openStream();
+            
+            AtomicLong written = new AtomicLong();
+            
+            CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                try {
+                    for (int offset = 0; offset < bytes.length; offset += WRITE_SIZE) {
+                        upload.getOutputStream().write(bytes, offset, WRITE_SIZE);
+                        
+                        written.addAndGet(WRITE_SIZE);
+                    }
+                    
+                    upload.getOutputStream().writeEOT();
+                }
+                
+                catch (IOException exception) {
+                    throw new IllegalStateException(exception);
+                }
+            });
+            
+            SscpStream unread = server.acceptStream();
+            
+            // only a writer that has stopped has filled whatever there is to fill
+            long stalled;
+            
+            do {
+                stalled = written.get();
+                
+                Thread.sleep(STALL_MILLISECONDS);
+            }
+            while (written.get() != stalled && !sent.isDone());
+            
+            if (sent.isDone())
+                return "writer not held back by an unread stream";
+            
+            try {
+                if (!MESSAGE.equals(exchange(client, server)))
+                    return "stream 0 garbled";
+            }
+            
+            catch (TimeoutException exception) {
+                return "stream 0 held up by the unread stream";
+            }
+            
+            long received = unread.getInputStream().transferTo(OutputStream.nullOutputStream());
+            
+            sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            
+            if (received != bytes.length)
+                return "received " + received + " of " + bytes.length + " bytes";
+            
+            upload.close();
+            
+            unread.close();
+            
+            return "passed, " + received + " bytes, " + openUntilRefused(client) + " streams opened before refusal";
+        }
+        
+        finally {
+            clientSocket.close();
+            
+            serverSocket.close();
+        }
+    }
+    
+    // Both ends wait on other threads, since a stalled connection blocks the writer as well
+    private static String exchange(SscpConnection sender, SscpConnection receiver)
+        throws Exception
+    {
+        CompletableFuture.runAsync(() -> {
+            try {
+                sender.writeString(MESSAGE);
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return receiver.readString();
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    private static int openUntilRefused(SscpConnection connection)
+        throws IOException
+    {
+        List<SscpStream> streams = new ArrayList<>();
+        
+        try {
+            while (streams.size() < MAX_TRIED_STREAMS)
+                streams.add(connection.openStream());
+        }
+        
+        catch (IllegalStateException exception) {
+            return streams.size();
+        }
+        
+        finally {
+            for (SscpStream stream : streams)
+                stream.close();
+        }
+        
+        throw new IllegalStateException("no limit on open streams");
+    }
+}
@@ -0,0 +1,168 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sstp.SstpChunkStore;
+import com.secstore.sstp.SstpDedupTransfer;
+
+
+/*
+ * Compares uploading a large file whole with uploading it deduplicated into a
+ * chunk store, for a first upload, the same file again and a copy with a few
+ * small edits and an insertion in the middle.
+ *
+ * Everything runs over SSCP3 on loopback, so the times mostly show what
+ * chunking and hashing cost against sending the bytes. Over a real link the
+ * bytes sent are what counts.
+ *
+ * Usage: SstpDedupBenchmark [file size in MB] [edits]
+ */
+public class SstpDedupBenchmark
+{
+    public static final String DEDUP = "DEDUP";
+    public static final String WHOLE = "WHOLE";
+    public static final String DONE = "DONE";
+    public static final String BYE = "BYE";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int fileSize = ((args.length > 0) ? Integer.parseInt(args[0]) : 64) << 20;
+        
+        int edits = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        
+        Path directory = Files.createTempDirectory("sstp-dedup");
+        
+        Path original = directory.resolve("original.bin");
+        
+        Path edited = directory.resolve("edited.bin");
+        
+        byte[] bytes = new byte[fileSize];
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Files.write(original, bytes);
+        
+        for (int i = 0; i < edits; i++)
+            bytes[ThreadLocalRandom.current().nextInt(fileSize)] ^= 1;
+        
+        byte[] inserted = new byte[1000];
+        
+        ThreadLocalRandom.current().nextBytes(inserted);
+        
+        byte[] editedBytes = new byte[fileSize + inserted.length];
+        
+        System.arraycopy(bytes, 0, editedBytes, 0, fileSize / 2);
+        
+        System.arraycopy(inserted, 0, editedBytes, fileSize / 2, inserted.length);
+        
+        System.arraycopy(bytes, fileSize / 2, editedBytes, fileSize / 2 + inserted.length, fileSize - fileSize / 2);
+        
+        Files.write(edited, editedBytes);
+        
+        SstpChunkStore store = new SstpChunkStore(directory.resolve("store"));
+        
+        Path whole = directory.resolve("whole.bin");
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.setProtocol(SscpProtocol.SSCP3);
+            
+            String mode;
+            
+            while (!BYE.equals(mode = connection.readString())) {
+                if (DEDUP.equals(mode))
+                    SstpDedupTransfer.receive(connection, store);
+                
+                else
+                    connection.downloadTo(whole.toString());
+                
+                connection.writeString(DONE);
+            }
+        });
+        
+        server.start();
+        
+        SecStoreClientConnection connection = new SecStoreClientConnection(
+            new InetSocketAddress("localhost", server.getPort()));
+        
+        connection.open(0, 0, new SocketOptions());
+        
+        connection.setProtocol(SscpProtocol.SSCP3);
+        
+        Logger.log("Benchmark: " + (fileSize >> 20) + " MB file, " + edits + " edits and " + inserted.length
+            + " bytes inserted");
+        
+        // warms up both paths on a file that shares no chunks with the others
+        Path warmup = directory.resolve("warmup.bin");
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Files.write(warmup, bytes);
+        
+        measure(connection, WHOLE, warmup);
+        
+        measure(connection, DEDUP, warmup);
+        
+        measure(connection, WHOLE, original);
+        
+        measure(connection, DEDUP, original);
+        
+        measure(connection, DEDUP, original);
+        
+        measure(connection, DEDUP, edited);
+        
+        connection.writeString(BYE);
+        
+        connection.close();
+        
+        server.close();
+        
+        delete(directory);
+    }
+    
+    private static void measure(SecStoreClientConnection connection, String mode, Path path)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        
+        connection.writeString(mode);
+        
+        long bytesSent;
+        
+        if (DEDUP.equals(mode))
+            bytesSent = SstpDedupTransfer.upload(connection, path, path.getFileName().toString());
+        
+        else {
+            connection.uploadFrom(path.toString());
+            
+            bytesSent = Files.size(path);
+        }
+        
+        if (!DONE.equals(connection.readString()))
+            throw new IOException("transfer not acknowledged");
+        
+        long nanos = System.nanoTime() - start;
+        
+        Logger.log(String.format("%-5s %-12s %8.1f ms, %10d bytes of data sent", mode, path.getFileName(), nanos / 1e6,
+            bytesSent));
+    }
+    
+    private static void delete(Path directory)
+        throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sstp.SstpDeltaTransfer;
+
+
+/*
+ * Compares uploading a new version of a large file whole with uploading only
+ * its delta against the version the server already holds.
+ *
+ * The new version has a few bytes changed at random places, a run of bytes
+ * inserted in the middle and more appended at the end, like a database file or
+ * log between two backups. Everything runs over SSCP3 on loopback, so the
+ * times mostly show what the checksums cost against sending the bytes. Over a
+ * real link the bytes sent are what counts.
+ *
+ * Usage: SstpDeltaBenchmark [file size in MB] [edits] [runs]
+ */
+public class SstpDeltaBenchmark
+{
+    public static final String DELTA = "DELTA";
+    public static final String WHOLE = "WHOLE";
+    public static final String DONE = "DONE";
+    public static final String BYE = "BYE";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int fileSize = ((args.length > 0) ? Integer.parseInt(args[0]) : 64) << 20;
+        
+        int edits = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        
+        int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        
+        Path directory = Files.createTempDirectory("sstp-delta");
+        
+        Path original = directory.resolve("original.bin");
+        
+        Path edited = directory.resolve("edited.bin");
+        
+        Path target = directory.resolve("target.bin");
+        
+        byte[] bytes = new byte[fileSize];
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Files.write(original, bytes);
+        
+        for (int i = 0; i < edits; i++)
+            bytes[ThreadLocalRandom.current().nextInt(fileSize)] ^= 1;
+        
+        byte[] inserted = new byte[4096];
+        
+        ThreadLocalRandom.current().nextBytes(inserted);
+        
+        byte[] editedBytes = new byte[fileSize + 2 * inserted.length];
+        
+        System.arraycopy(bytes, 0, editedBytes, 0, fileSize / 2);
+        
+        System.arraycopy(inserted, 0, editedBytes, fileSize / 2, inserted.length);
+        
+        System.arraycopy(bytes, fileSize / 2, editedBytes, fileSize / 2 + inserted.length, fileSize - fileSize / 2);
+        
+        System.arraycopy(inserted, 0, editedBytes, fileSize + inserted.length, inserted.length);
+        
+        Files.write(edited, editedBytes);
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.setProtocol(SscpProtocol.SSCP3);
+            
+            String mode;
+            
+            while (!BYE.equals(mode = connection.readString())) {
+                if (DELTA.equals(mode))
+                    SstpDeltaTransfer.receive(connection, target);
+                
+                else
+                    connection.downloadTo(target.toString());
+                
+                connection.writeString(DONE);
+            }
+        });
+        
+        server.start();
+        
+        SecStoreClientConnection connection = new SecStoreClientConnection(
+            new InetSocketAddress("localhost", server.getPort()));
+        
+        connection.open(0, 0, new SocketOptions());
+        
+        connection.setProtocol(SscpProtocol.SSCP3);
+        
+        Logger.log("Benchmark: " + (fileSize >> 20) + " MB file, " + edits + " edits, " + inserted.length
+            + " bytes inserted and as many appended, " + runs + " runs");
+        
+        // the first run only warms up
+        for (int run = 0; run <= runs; run++) {
+            long wholeNanos = measure(connection, WHOLE, original, edited);
+            
+            long deltaNanos = measure(connection, DELTA, original, edited);
+            
+            if (run > 0)
+                Logger.log(String.format("run %d: whole %.1f ms, delta %.1f ms", run, wholeNanos / 1e6,
+                    deltaNanos / 1e6));
+        }
+        
+        connection.writeString(BYE);
+        
+        connection.close();
+        
+        server.close();
+        
+        delete(directory);
+    }
+    
+    // The server starts out with the original, then the edited version is uploaded
+    private static long measure(SecStoreClientConnection connection, String mode, Path original, Path edited)
+        throws IOException
+    {
+        connection.writeString(WHOLE);
+        
+        connection.uploadFrom(original.toString());
+        
+        if (!DONE.equals(connection.readString()))
+            throw new IOException("transfer not acknowledged");
+        
+        long start = System.nanoTime();
+        
+        connection.writeString(mode);
+        
+        long bytesSent;
+        
+        if (DELTA.equals(mode))
+            bytesSent = SstpDeltaTransfer.upload(connection, edited);
+        
+        else {
+            connection.uploadFrom(edited.toString());
+            
+            bytesSent = Files.size(edited);
+        }
+        
+        if (!DONE.equals(connection.readString()))
+            throw new IOException("transfer not acknowledged");
+        
+        long nanos = System.nanoTime() - start;
+        
+        Logger.log(String.format("%-5s %8.1f ms, %10d bytes of file data sent", mode, nanos / 1e6, bytesSent));
+        
+        return nanos;
+    }
+    
+    private static void delete(Path directory)
+        throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.secstore.example;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sstp.SstpDeltaTransfer;
+
+
+/*
+ * Checks that a delta the receiver refuses leaves the connection ready for the
+ * next transfer.
+ *
+ * The sender answers the receiver's signatures with a delta that copies blocks
+ * the old version does not have, one with a literal longer than allowed and
+ * one that does not match its hash, each followed by more bytes as the rest of
+ * a longer delta would be. The receiver has to fail, the sender has to be told
+ * REFUSED, and a valid upload on the same connection has to arrive whole.
+ *
+ * Usage: SstpDeltaRecoveryTest [file size in KB]
+ */
+public class SstpDeltaRecoveryTest
+{
+    public static final int TIMEOUT_SECONDS = 10;
+    public static final int TRAILING_SIZE = 65536;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int fileSize = ((args.length > 0) ? Integer.parseInt(args[0]) : 1024) << 10;
+        
+        Path directory = Files.createTempDirectory("sstp-delta-recovery");
+        
+        Path edited = directory.resolve("edited.bin");
+        
+        Path target = directory.resolve("target.bin");
+        
+        byte[] bytes = new byte[fileSize];
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Files.write(target, bytes);
+        
+        for (int i = 0; i < 10; i++)
+            bytes[ThreadLocalRandom.current().nextInt(fileSize)] ^= 1;
+        
+        Files.write(edited, bytes);
+        
+        DummySscpConnection sender = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        DummySscpConnection receiver = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        Socket sendingSocket = new Socket();
+        
+        Socket receivingSocket;
+        
+        try (ServerSocket server = new ServerSocket(0)) {
+            sendingSocket.connect(server.getLocalSocketAddress());
+            
+            receivingSocket = server.accept();
+        }
+        
+        boolean passed = true;
+        
+        try {
+            sender.connect(sendingSocket);
+            
+            receiver.connect(receivingSocket);
+            
+            sender.establishHandshake();
+            
+            receiver.establishHandshake();
+            
+            sender.setProtocol(SscpProtocol.SSCP3);
+            
+            receiver.setProtocol(SscpProtocol.SSCP3);
+            
+            String[] deltas = { "blocks", "literal", "hash" };
+            
+            for (String delta : deltas) {
+                String result = refuse(sender, receiver, delta, target);
+                
+                Logger.log(delta + ": " + result);
+                
+                passed &= result.startsWith("refused");
+                
+                if (!passed)
+                    break;
+                
+                result = upload(sender, receiver, edited, target);
+                
+                Logger.log("upload after it: " + result);
+                
+                passed &= result.startsWith("passed");
+                
+                if (!passed)
+                    break;
+            }
+        }
+        
+        finally {
+            sendingSocket.close();
+            
+            receivingSocket.close();
+            
+            delete(directory);
+        }
+        
+        if (!passed)
+            throw new IllegalStateException("connection not usable after a refused delta");
+    }
+    
+    private static String refuse(DummySscpConnection sender, DummySscpConnection receiver, String delta,
+        Path target)
+        throws Exception
+    {
+        CompletableFuture<Long> received = receive(receiver, target);
+        
+        CompletableFuture<Long> reply = CompletableFuture.supplyAsync(() -> {
+            try {
+                SscpInputStream inputStream = sender.getInputStream();
+                
+                SscpOutputStream outputStream = sender.getOutputStream();
+                
+                // the signatures are of no use to a delta made up in advance
+                inputStream.transferTo(OutputStream.nullOutputStream());
+                
+                DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+                
+                if ("blocks".equals(delta)) {
+                    dataOutputStream.writeByte(SstpDeltaTransfer.COPY);
+                    
+                    dataOutputStream.writeInt(1 << 20);
+                    
+                    dataOutputStream.writeInt(1);
+                }
+                
+                else if ("literal".equals(delta)) {
+                    dataOutputStream.writeByte(SstpDeltaTransfer.LITERAL);
+                    
+                    dataOutputStream.writeInt(SstpDeltaTransfer.MAX_LITERAL_LENGTH + 1);
+                }
+                
+                else {
+                    dataOutputStream.writeByte(SstpDeltaTransfer.LITERAL);
+                    
+                    dataOutputStream.writeInt(1);
+                    
+                    dataOutputStream.writeByte(0);
+                    
+                    dataOutputStream.writeByte(SstpDeltaTransfer.END);
+                    
+                    dataOutputStream.writeLong(1);
+                    
+                    dataOutputStream.write(new byte[SstpDeltaTransfer.HASH_LENGTH]);
+                }
+                
+                dataOutputStream.write(new byte[TRAILING_SIZE]);
+                
+                outputStream.writeEOT();
+                
+                long value = new DataInputStream(inputStream).readLong();
+                
+                if (inputStream.read() != -1)
+                    throw new IOException("reply longer than expected");
+                
+                return value;
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        
+        long value;
+        
+        try {
+            value = reply.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        catch (TimeoutException exception) {
+            return "sender not answered";
+        }
+        
+        if (value != SstpDeltaTransfer.REFUSED)
+            return "sender told " + value;
+        
+        try {
+            return "accepted: " + received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) + " bytes";
+        }
+        
+        catch (ExecutionException exception) {
+            return "refused: " + exception.getCause().getMessage();
+        }
+    }
+    
+    private static String upload(DummySscpConnection sender, DummySscpConnection receiver, Path edited,
+        Path target)
+        throws Exception
+    {
+        CompletableFuture<Long> received = receive(receiver, target);
+        
+        CompletableFuture<Long> sent = CompletableFuture.supplyAsync(() -> {
+            try {
+                return SstpDeltaTransfer.upload(sender.getOutputStream(), sender.getInputStream(), edited);
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        
+        long literalBytes;
+        
+        long size;
+        
+        try {
+            literalBytes = sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            
+            size = received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        catch (ExecutionException exception) {
+            return "failed: " + exception.getCause().getMessage();
+        }
+        
+        catch (TimeoutException exception) {
+            return "timed out";
+        }
+        
+        if (!Arrays.equals(Files.readAllBytes(edited), Files.readAllBytes(target)))
+            return "file differs";
+        
+        return "passed, " + size + " bytes, " + literalBytes + " of them sent as they are";
+    }
+    
+    private static CompletableFuture<Long> receive(DummySscpConnection receiver, Path target)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return SstpDeltaTransfer.receive(receiver.getInputStream(), receiver.getOutputStream(), target);
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception.getMessage(), exception);
+            }
+        });
+    }
+    
+    private static void delete(Path directory)
+        throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
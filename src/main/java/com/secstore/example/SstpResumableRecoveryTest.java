@@ -0,0 +1,298 @@
+package com.secstore.example;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import com.secstore.Logger;
+import com.secstore.example.DummySscpConnection.Type;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sstp.SstpResumableTransfer;
+
+
+/*
+ * Checks that a resumable transfer the receiver refuses leaves the connection
+ * ready for the next one, and the target as it was until a transfer completes.
+ *
+ * On one connection the sender makes an offer that is not one, followed by
+ * more bytes, then sends more data than it offered, then stops half way
+ * through the file. Each time the receiver has to fail, the sender has to be
+ * told REFUSED, and the file already at the target has to stay as it was. An
+ * upload of the file then has to continue from half way and leave it at the
+ * target, with nothing of the partial file or its record left behind.
+ *
+ * Usage: SstpResumableRecoveryTest [file size in KB]
+ */
+public class SstpResumableRecoveryTest
+{
+    public static final int TIMEOUT_SECONDS = 10;
+    public static final int TRAILING_SIZE = 65536;
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int fileSize = ((args.length > 0) ? Integer.parseInt(args[0]) : 1024) << 10;
+        
+        Path directory = Files.createTempDirectory("sstp-resumable-recovery");
+        
+        Path source = directory.resolve("source.bin");
+        
+        Path target = directory.resolve("target.bin");
+        
+        byte[] bytes = new byte[fileSize];
+        
+        ThreadLocalRandom.current().nextBytes(bytes);
+        
+        Files.write(source, bytes);
+        
+        byte[] old = new byte[fileSize / 3];
+        
+        ThreadLocalRandom.current().nextBytes(old);
+        
+        Files.write(target, old);
+        
+        DummySscpConnection sender = new DummySscpConnection("localhost", 0, Type.CLIENT);
+        
+        DummySscpConnection receiver = new DummySscpConnection("localhost", 0, Type.SERVER);
+        
+        Socket sendingSocket = new Socket();
+        
+        Socket receivingSocket;
+        
+        try (ServerSocket server = new ServerSocket(0)) {
+            sendingSocket.connect(server.getLocalSocketAddress());
+            
+            receivingSocket = server.accept();
+        }
+        
+        boolean passed = true;
+        
+        try {
+            sender.connect(sendingSocket);
+            
+            receiver.connect(receivingSocket);
+            
+            sender.establishHandshake();
+            
+            receiver.establishHandshake();
+            
+            sender.setProtocol(SscpProtocol.SSCP3);
+            
+            receiver.setProtocol(SscpProtocol.SSCP3);
+            
+            String id = SstpResumableTransfer.getId(source);
+            
+            String[] transfers = { "offer", "longer", "cut off" };
+            
+            for (String transfer : transfers) {
+                String result = refuse(sender, receiver, transfer, id, bytes, target);
+                
+                if (result.startsWith("refused") && !Arrays.equals(old, Files.readAllBytes(target)))
+                    result = "target changed, " + result;
+                
+                Logger.log(transfer + ": " + result);
+                
+                passed &= result.startsWith("refused");
+                
+                if (!passed)
+                    break;
+            }
+            
+            if (passed) {
+                String result = upload(sender, receiver, source, id, target);
+                
+                Logger.log("upload after them: " + result);
+                
+                passed &= result.startsWith("passed");
+            }
+        }
+        
+        finally {
+            sendingSocket.close();
+            
+            receivingSocket.close();
+            
+            delete(directory);
+        }
+        
+        if (!passed)
+            throw new IllegalStateException("refused transfer not recovered from");
+    }
+    
+    private static String refuse(DummySscpConnection sender, DummySscpConnection receiver, String transfer,
+        String id, byte[] bytes, Path target)
+        throws Exception
+    {
+        CompletableFuture<Long> received = download(receiver, target);
+        
+        CompletableFuture<String> replies = CompletableFuture.supplyAsync(() -> {
+            try {
+                SscpInputStream inputStream = sender.getInputStream();
+                
+                SscpOutputStream outputStream = sender.getOutputStream();
+                
+                DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+                
+                if ("offer".equals(transfer)) {
+                    dataOutputStream.writeInt(~SstpResumableTransfer.MAGIC);
+                    
+                    dataOutputStream.write(new byte[TRAILING_SIZE]);
+                    
+                    outputStream.writeEOT();
+                    
+                    return "offer answered " + readLong(inputStream);
+                }
+                
+                dataOutputStream.writeInt(SstpResumableTransfer.MAGIC);
+                
+                dataOutputStream.writeShort(SstpResumableTransfer.VERSION);
+                
+                // an id of its own, so the cut off transfer after it starts from the first byte
+                dataOutputStream.writeUTF("longer".equals(transfer) ? "other:" + id : id);
+                
+                dataOutputStream.writeLong(bytes.length);
+                
+                outputStream.writeEOT();
+                
+                long offset = readLong(inputStream);
+                
+                if (offset != 0)
+                    return "offer answered " + offset;
+                
+                if ("longer".equals(transfer)) {
+                    outputStream.write(bytes);
+                    
+                    outputStream.write(new byte[TRAILING_SIZE]);
+                }
+                
+                else
+                    outputStream.write(bytes, 0, bytes.length / 2);
+                
+                outputStream.writeEOT();
+                
+                return "data answered " + readLong(inputStream);
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        
+        String reply;
+        
+        try {
+            reply = replies.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        catch (TimeoutException exception) {
+            return "sender not answered";
+        }
+        
+        if (!reply.endsWith(" " + SstpResumableTransfer.REFUSED))
+            return reply;
+        
+        try {
+            return "accepted from " + received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        catch (ExecutionException exception) {
+            return "refused: " + exception.getCause().getMessage();
+        }
+    }
+    
+    private static String upload(DummySscpConnection sender, DummySscpConnection receiver, Path source, String id,
+        Path target)
+        throws Exception
+    {
+        CompletableFuture<Long> received = download(receiver, target);
+        
+        CompletableFuture<Long> sent = CompletableFuture.supplyAsync(() -> {
+            try {
+                return SstpResumableTransfer.upload(sender.getOutputStream(), sender.getInputStream(), source, id);
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        
+        long offset;
+        
+        try {
+            offset = sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            
+            received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        catch (ExecutionException exception) {
+            return "failed: " + exception.getCause().getMessage();
+        }
+        
+        catch (TimeoutException exception) {
+            return "timed out";
+        }
+        
+        long size = Files.size(source);
+        
+        if (offset != size / 2)
+            return "continued from " + offset + " instead of " + size / 2;
+        
+        if (!Arrays.equals(Files.readAllBytes(source), Files.readAllBytes(target)))
+            return "target differs";
+        
+        Path partial = target.resolveSibling(target.getFileName() + SstpResumableTransfer.PARTIAL_SUFFIX);
+        
+        Path record = target.resolveSibling(target.getFileName() + SstpResumableTransfer.RECORD_SUFFIX);
+        
+        if (Files.exists(partial) || Files.exists(record))
+            return "partial file or record left behind";
+        
+        return "passed, continued from " + offset + " of " + size + " bytes";
+    }
+    
+    private static CompletableFuture<Long> download(DummySscpConnection receiver, Path target)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return SstpResumableTransfer.download(receiver.getInputStream(), receiver.getOutputStream(), target);
+            }
+            
+            catch (IOException exception) {
+                throw new IllegalStateException(exception.getMessage(), exception);
+            }
+        });
+    }
+    
+    private static long readLong(SscpInputStream inputStream)
+        throws IOException
+    {
+        long value = new DataInputStream(inputStream).readLong();
+        
+        if (inputStream.read() != -1)
+            throw new IOException("reply longer than expected");
+        
+        return value;
+    }
+    
+    private static void delete(Path directory)
+        throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
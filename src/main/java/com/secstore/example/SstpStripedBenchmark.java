@@ -0,0 +1,131 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sstp.SstpStripedReceiver;
+import com.secstore.sstp.SstpStripedTransfer;
+
+
+/*
+ * Measures the throughput of a striped upload of one large file against the
+ * number of connections it is striped over.
+ *
+ * Every run opens its connections first, so the handshakes are not counted,
+ * and times the upload until the server has committed the file. Everything
+ * runs over SSCP3 on loopback, where a single connection is held back by the
+ * thread sealing its frames rather than by the link, so more stripes only pay
+ * off with the cores to seal them on.
+ *
+ * Usage: SstpStripedBenchmark [file size in MB] [stripe size in KB] [runs] [stripe counts...]
+ */
+public class SstpStripedBenchmark
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        long fileSize = ((args.length > 0) ? Long.parseLong(args[0]) : 256) << 20;
+        
+        int stripeSize = ((args.length > 1) ? Integer.parseInt(args[1]) : SstpStripedTransfer.DEFAULT_STRIPE_SIZE >> 10)
+            << 10;
+        
+        int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        
+        List<Integer> stripeCounts = new ArrayList<>();
+        
+        for (int i = 3; i < args.length; i++)
+            stripeCounts.add(Integer.parseInt(args[i]));
+        
+        if (stripeCounts.isEmpty())
+            stripeCounts = List.of(1, 2, 4, 8);
+        
+        Path source = Files.createTempFile("sstp-striped", ".bin");
+        
+        Path target = Files.createTempDirectory("sstp-striped-target");
+        
+        byte[] bytes = new byte[1 << 20];
+        
+        for (long written = 0; written < fileSize; written += bytes.length) {
+            ThreadLocalRandom.current().nextBytes(bytes);
+            
+            Files.write(source, bytes, StandardOpenOption.APPEND);
+        }
+        
+        SstpStripedReceiver receiver = new SstpStripedReceiver(target);
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.setProtocol(SscpProtocol.SSCP3);
+            
+            receiver.receive(connection);
+        });
+        
+        server.start();
+        
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+        
+        Logger.log("Benchmark: " + (fileSize >> 20) + " MB in stripes of " + (stripeSize >> 10) + " KB, " + runs
+            + " runs each, " + Runtime.getRuntime().availableProcessors() + " cores");
+        
+        // a first round only warms up, each count takes its own code paths
+        for (int stripeCount : stripeCounts)
+            upload(address, source, stripeCount, stripeSize);
+        
+        for (int stripeCount : stripeCounts) {
+            long best = Long.MAX_VALUE;
+            
+            for (int run = 0; run < runs; run++)
+                best = Math.min(best, upload(address, source, stripeCount, stripeSize));
+            
+            Logger.log(String.format("%2d connections: best %.1f ms, %.1f MB/s", stripeCount, best / 1e6,
+                fileSize / (1 << 20) / (best / 1e9)));
+        }
+        
+        server.close();
+        
+        Files.delete(target.resolve("striped.bin"));
+        
+        Files.delete(target);
+        
+        Files.delete(source);
+    }
+    
+    private static long upload(InetSocketAddress address, Path source, int stripeCount, int stripeSize)
+        throws IOException
+    {
+        List<SecStoreClientConnection> connections = new ArrayList<>();
+        
+        try {
+            for (int i = 0; i < stripeCount; i++) {
+                SecStoreClientConnection connection = new SecStoreClientConnection(address);
+                
+                connections.add(connection);
+                
+                connection.open(0, 0, new SocketOptions());
+                
+                connection.setProtocol(SscpProtocol.SSCP3);
+            }
+            
+            long start = System.nanoTime();
+            
+            if (SstpStripedTransfer.upload(connections, source, "striped.bin", stripeSize) != Files.size(source))
+                throw new IOException("upload incomplete");
+            
+            return System.nanoTime() - start;
+        }
+        
+        finally {
+            for (SecStoreClientConnection connection : connections)
+                connection.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.secstore.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import com.secstore.Logger;
+import com.secstore.client.SecStoreClientConnection;
+import com.secstore.server.SecStoreServer;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+import com.secstore.sscp.SscpProtocol;
+import com.secstore.sstp.SstpManifest;
+import com.secstore.sstp.SstpProtocol;
+
+
+/*
+ * Compares sending many small files over SSTP against sending each as its own
+ * transmission, the way files went before SSTP.
+ *
+ * Without SSTP every file takes a transmission for its name and another for
+ * its body, each ending in an EOT frame and a flush. With SSTP all of them
+ * go in one transmission. Both run over SSCP3 into an empty directory and the
+ * server acknowledges once every file is on disk. On loopback with a local disk
+ * creating the files takes most of the time either way.
+ *
+ * Usage: SstpTransferBenchmark [files] [file size] [runs]
+ */
+public class SstpTransferBenchmark
+{
+    public static final String SSTP = "SSTP";
+    public static final String SINGLE = "SINGLE";
+    public static final String DONE = "DONE";
+    public static final String BYE = "BYE";
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        int fileCount = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        
+        int fileSize = (args.length > 1) ? Integer.parseInt(args[1]) : 4096;
+        
+        int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        
+        Path source = Files.createTempDirectory("sstp-source");
+        
+        Path target = Files.createTempDirectory("sstp-target");
+        
+        List<Path> files = new ArrayList<>();
+        
+        for (int i = 0; i < fileCount; i++) {
+            byte[] bytes = new byte[fileSize];
+            
+            ThreadLocalRandom.current().nextBytes(bytes);
+            
+            Path file = source.resolve("dir" + (i % 16)).resolve("file" + i + ".bin");
+            
+            Files.createDirectories(file.getParent());
+            
+            files.add(Files.write(file, bytes));
+        }
+        
+        SecStoreServer server = new SecStoreServer("localhost", 0, connection -> {
+            connection.setProtocol(SscpProtocol.SSCP3);
+            
+            String mode;
+            
+            while (!BYE.equals(mode = connection.readString())) {
+                if (SSTP.equals(mode))
+                    SstpProtocol.receive(connection, target);
+                
+                else {
+                    for (int i = 0; i < fileCount; i++) {
+                        Path file = target.resolve(connection.readString());
+                        
+                        Files.createDirectories(file.getParent());
+                        
+                        connection.downloadTo(file.toString());
+                    }
+                }
+                
+                connection.writeString(DONE);
+            }
+        });
+        
+        server.start();
+        
+        SecStoreClientConnection connection = new SecStoreClientConnection(
+            new InetSocketAddress("localhost", server.getPort()));
+        
+        connection.open(0, 0, new SocketOptions());
+        
+        connection.setProtocol(SscpProtocol.SSCP3);
+        
+        Logger.log("Benchmark: " + runs + " runs of " + fileCount + " files of " + fileSize + " bytes");
+        
+        for (int run = 0; run <= runs; run++) {
+            long singleNanos = measure(connection, target, () -> {
+                connection.writeString(SINGLE);
+                
+                for (Path file : files) {
+                    connection.writeString(source.relativize(file).toString());
+                    
+                    connection.uploadFrom(file.toString());
+                }
+            });
+            
+            long sstpNanos = measure(connection, target, () -> {
+                connection.writeString(SSTP);
+                
+                SstpManifest manifest = SstpProtocol.send(connection, source, files);
+                
+                if (manifest.size() != fileCount)
+                    throw new IOException("manifest incomplete");
+            });
+            
+            // the first run only warms up
+            if (run > 0)
+                Logger.log(String.format("run %d: one transmission per file %.1f ms, SSTP %.1f ms, %.1fx", run,
+                    singleNanos / 1e6, sstpNanos / 1e6, (double) singleNanos / sstpNanos));
+        }
+        
+        connection.writeString(BYE);
+        
+        connection.close();
+        
+        server.close();
+        
+        delete(source);
+        
+        delete(target);
+    }
+    
+    @FunctionalInterface
+    private static interface Transfer
+    {
+        void run() throws IOException;
+    }
+    
+    // Files arrive into an empty directory, as on a first upload
+    private static long measure(SecStoreClientConnection connection, Path target, Transfer transfer)
+        throws IOException
+    {
+        delete(target);
+        
+        Files.createDirectories(target);
+        
+        long start = System.nanoTime();
+        
+        transfer.run();
+        
+        if (!DONE.equals(connection.readString()))
+            throw new IOException("transfer not acknowledged");
+        
+        return System.nanoTime() - start;
+    }
+    
+    private static void delete(Path directory)
+        throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package com.secstore.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.secstore.Logger;
+import com.secstore.Logger.Loggable;
+import com.secstore.ssap.SsapHandshake;
+import com.secstore.ssap.SsapTicketKeys;
+import com.secstore.sscp.SscpConnection.SocketOptions;
+
+
+/*
+ * Accepts SecStore clients until it is shut down.
+ *
+ * Every accepted socket gets a task of its own on the connection executor,
+ * which runs the SSAP handshake and then hands the connection to the
+ * ConnectionHandler. By default each task runs on a virtual thread, or on a
+ * cached pool of platform threads where the runtime has none.
+ *
+ * At most maxConnections clients are served at once. The accept loop waits
+ * for a free permit before it accepts, so further clients queue up in the
+ * listen backlog instead of being dropped.
+ *
+ * shutdown stops accepting and lets the connections in progress finish,
+ * shutdownNow also closes their sockets, and close does one after the other
+ * with the grace period in between.
+ *
+ * Clients that ask for it get a session ticket with their handshake, which
+ * lets them resume the session on their next connection without the RSA
+ * operations of SSAP/1.0 and SSAP/2.0.
+ */
+public class SecStoreServer
+    implements Closeable, Loggable
+{
+    public static final int DEFAULT_MAX_CONNECTIONS = 4096;
+    public static final int DEFAULT_BACKLOG = 1024;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+    public static final long DEFAULT_GRACE_PERIOD = 30000;
+    
+    private final String host;
+    private final int port;
+    private final ConnectionHandler handler;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int backlog = DEFAULT_BACKLOG;
+    private volatile int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+    private long gracePeriod = DEFAULT_GRACE_PERIOD;
+    private SocketOptions socketOptions = new SocketOptions();
+    private volatile SsapTicketKeys ticketKeys = new SsapTicketKeys();
+    private ExecutorService executor = null;
+    private boolean ownsExecutor = false;
+    private boolean debug = false;
+    private ServerSocket serverSocket = null;
+    private Thread acceptor = null;
+    private Semaphore permits;
+    private volatile boolean running = false;
+    private final Set<SecStoreServerConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong failedConnections = new AtomicLong();
+    private final AtomicLong resumedConnections = new AtomicLong();
+    private final AtomicLong fastConnections = new AtomicLong();
+    
+    @FunctionalInterface
+    public static interface ConnectionHandler
+    {
+        // Serves one client after its handshake, the connection is closed once this returns
+        void handle(SecStoreServerConnection connection) throws IOException;
+    }
+    
+    public SecStoreServer(String host, int port, ConnectionHandler handler)
+    {
+        this.host = host;
+        this.port = port;
+        this.handler = handler;
+    }
+    
+    @Override
+    public boolean debug()
+    {
+        return debug;
+    }
+    
+    public SecStoreServer setDebug(boolean debug)
+    {
+        this.debug = debug;
+        
+        return this;
+    }
+    
+    @Override
+    public void log(String message)
+    {
+        Loggable.super.log("[SERVER] " + message);
+    }
+    
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+    
+    public SecStoreServer setMaxConnections(int maxConnections)
+    {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("max connections must be positive");
+        
+        ensureNotStarted();
+        
+        this.maxConnections = maxConnections;
+        
+        return this;
+    }
+    
+    public int getBacklog()
+    {
+        return backlog;
+    }
+    
+    // The operating system may cap the backlog at a lower value
+    public SecStoreServer setBacklog(int backlog)
+    {
+        if (backlog < 1)
+            throw new IllegalArgumentException("backlog must be positive");
+        
+        ensureNotStarted();
+        
+        this.backlog = backlog;
+        
+        return this;
+    }
+    
+    public int getHandshakeTimeout()
+    {
+        return handshakeTimeout;
+    }
+    
+    // Clients that do not finish their handshake within this many milliseconds are dropped, 0 waits forever
+    public SecStoreServer setHandshakeTimeout(int handshakeTimeout)
+    {
+        if (handshakeTimeout < 0)
+            throw new IllegalArgumentException("handshake timeout must not be negative");
+        
+        this.handshakeTimeout = handshakeTimeout;
+        
+        return this;
+    }
+    
+    public long getGracePeriod()
+    {
+        return gracePeriod;
+    }
+    
+    // How long close waits for the connections in progress, in milliseconds
+    public SecStoreServer setGracePeriod(long gracePeriod)
+    {
+        if (gracePeriod < 0)
+            throw new IllegalArgumentException("grace period must not be negative");
+        
+        this.gracePeriod = gracePeriod;
+        
+        return this;
+    }
+    
+    public SocketOptions getSocketOptions()
+    {
+        return socketOptions;
+    }
+    
+    public SecStoreServer setSocketOptions(SocketOptions socketOptions)
+    {
+        if (socketOptions == null)
+            throw new IllegalArgumentException("socket options missing");
+        
+        this.socketOptions = socketOptions;
+        
+        return this;
+    }
+    
+    public SsapTicketKeys getTicketKeys()
+    {
+        return ticketKeys;
+    }
+    
+    // Null turns session resumption off, so every client runs the full handshake
+    public SecStoreServer setTicketKeys(SsapTicketKeys ticketKeys)
+    {
+        this.ticketKeys = ticketKeys;
+        
+        return this;
+    }
+    
+    // The executor is left running on shutdown, since the caller may share it
+    public SecStoreServer setExecutor(ExecutorService executor)
+    {
+        if (executor == null)
+            throw new IllegalArgumentException("executor missing");
+        
+        ensureNotStarted();
+        
+        this.executor = executor;
+        
+        ownsExecutor = false;
+        
+        return this;
+    }
+    
+    public synchronized void start()
+        throws IOException
+    {
+        ensureNotStarted();
+        
+        if (executor == null) {
+            executor = newDefaultExecutor();
+            
+            ownsExecutor = true;
+        }
+        
+        permits = new Semaphore(maxConnections);
+        
+        serverSocket = new ServerSocket();
+        
+        // large receive buffers only take effect if set before the listener binds
+        if (socketOptions.getReceiveBufferSize() > 0)
+            serverSocket.setReceiveBufferSize(socketOptions.getReceiveBufferSize());
+        
+        serverSocket.bind(new InetSocketAddress(host, port), backlog);
+        
+        running = true;
+        
+        acceptor = new Thread(this::acceptLoop, "secstore-acceptor");
+        
+        acceptor.start();
+        
+        log("Listening on " + serverSocket.getLocalSocketAddress() + " for up to " + maxConnections + " clients");
+    }
+    
+    // Virtual threads need Java 21, older runtimes fall back to a cached pool of platform threads
+    private static ExecutorService newDefaultExecutor()
+    {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            
+            return (ExecutorService) method.invoke(null);
+        }
+        
+        catch (ReflectiveOperationException exception) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "secstore-connection");
+                
+                thread.setDaemon(true);
+                
+                return thread;
+            });
+        }
+    }
+    
+    // The port actually bound, which differs from the requested one if that was 0
+    public int getPort()
+    {
+        ServerSocket serverSocket = this.serverSocket;
+        
+        return (serverSocket == null) ? port : serverSocket.getLocalPort();
+    }
+    
+    public boolean isRunning()
+    {
+        return running;
+    }
+    
+    public int getActiveConnections()
+    {
+        return connections.size();
+    }
+    
+    public long getAcceptedConnections()
+    {
+        return acceptedConnections.get();
+    }
+    
+    public long getFailedConnections()
+    {
+        return failedConnections.get();
+    }
+    
+    // Connections whose handshake resumed a session from a ticket
+    public long getResumedConnections()
+    {
+        return resumedConnections.get();
+    }
+    
+    // Connections whose handshake ran SSAP/1.0 and SSAP/2.0 in a single round trip
+    public long getFastConnections()
+    {
+        return fastConnections.get();
+    }
+    
+    void handshakeDone(SsapHandshake.Kind kind)
+    {
+        if (kind == SsapHandshake.Kind.RESUMED)
+            resumedConnections.incrementAndGet();
+        
+        else if (kind == SsapHandshake.Kind.FAST)
+            fastConnections.incrementAndGet();
+    }
+    
+    private final void acceptLoop()
+    {
+        while (running) {
+            Socket socket;
+            
+            try {
+                permits.acquire();
+            }
+            
+            catch (InterruptedException exception) {
+                break;
+            }
+            
+            try {
+                socket = serverSocket.accept();
+            }
+            
+            catch (IOException exception) {
+                permits.release();
+                
+                // closing the listener is how shutdown stops this loop
+                if (running)
+                    Logger.log("[SERVER] Accept failed: " + exception);
+                
+                continue;
+            }
+            
+            SecStoreServerConnection connection =
+                new SecStoreServerConnection(this, acceptedConnections.incrementAndGet());
+            
+            connections.add(connection);
+            
+            try {
+                executor.execute(() -> serve(connection, socket));
+            }
+            
+            catch (RejectedExecutionException exception) {
+                Logger.log("[SERVER] Connection rejected: " + exception);
+                
+                closeQuietly(socket);
+                
+                release(connection);
+            }
+        }
+        
+        log("Stopped accepting");
+    }
+    
+    private final void serve(SecStoreServerConnection connection, Socket socket)
+    {
+        try {
+            connection.connect(socket, socketOptions);
+            
+            socket.setSoTimeout(handshakeTimeout);
+            
+            connection.establishHandshake();
+            
+            socket.setSoTimeout(0);
+            
+            log("Connection " + connection.getConnectionNumber() + " established with " + connection.getHostAddress());
+            
+            handler.handle(connection);
+        }
+        
+        catch (IOException | RuntimeException exception) {
+            failedConnections.incrementAndGet();
+            
+            // failures after shutdownNow closed the socket are expected
+            if (running || !socket.isClosed())
+                Logger.log("[SERVER] Connection " + connection.getConnectionNumber() + " failed: " + exception);
+        }
+        
+        finally {
+            closeQuietly(socket);
+            
+            release(connection);
+        }
+    }
+    
+    private final void release(SecStoreServerConnection connection)
+    {
+        connections.remove(connection);
+        
+        permits.release();
+        
+        synchronized (connections) {
+            connections.notifyAll();
+        }
+    }
+    
+    // Stops accepting new clients, the ones already connected are served to the end
+    public synchronized void shutdown()
+    {
+        if (!running)
+            return;
+        
+        running = false;
+        
+        log("Shutting down");
+        
+        closeQuietly(serverSocket);
+        
+        acceptor.interrupt();
+    }
+    
+    // Returns true once every connection has ended, false if the timeout ran out first
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        
+        synchronized (connections) {
+            while (!connections.isEmpty()) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                
+                if (remaining <= 0)
+                    return false;
+                
+                connections.wait(remaining);
+            }
+        }
+        
+        Thread acceptor = this.acceptor;
+        
+        if (acceptor != null)
+            acceptor.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        
+        return acceptor == null || !acceptor.isAlive();
+    }
+    
+    // Stops accepting and closes every connection still in progress
+    public void shutdownNow()
+    {
+        shutdown();
+        
+        for (SecStoreServerConnection connection : connections) {
+            try {
+                connection.close();
+            }
+            
+            catch (IOException exception) { }
+        }
+    }
+    
+    @Override
+    public void close()
+        throws IOException
+    {
+        shutdown();
+        
+        try {
+            if (!awaitTermination(gracePeriod, TimeUnit.MILLISECONDS)) {
+                log("Grace period over, closing " + connections.size() + " connections");
+                
+                shutdownNow();
+            }
+        }
+        
+        catch (InterruptedException exception) {
+            shutdownNow();
+            
+            Thread.currentThread().interrupt();
+        }
+        
+        finally {
+            if (ownsExecutor)
+                executor.shutdown();
+        }
+    }
+    
+    private final void ensureNotStarted()
+    {
+        if (serverSocket != null)
+            throw new IllegalStateException("server already started");
+    }
+    
+    private static final void closeQuietly(Closeable closeable)
+    {
+        try {
+            closeable.close();
+        }
+        
+        catch (IOException exception) { }
+    }
+}
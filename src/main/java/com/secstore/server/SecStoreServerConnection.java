@@ -0,0 +1,99 @@
+package com.secstore.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import com.secstore.ssap.SsapHandshake;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+import com.secstore.sscp.SscpConnection;
+
+
+/*
+ * The server end of one client connection accepted by SecStoreServer.
+ *
+ * The handshake runs SSAP/1.0 and then SSAP/2.0, or resumes the session of a
+ * client that sent a ticket, so every protocol is ready to use once it returns.
+ */
+public class SecStoreServerConnection extends SscpConnection
+{
+    private final SecStoreServer server;
+    private final long connectionNumber;
+    private volatile boolean closed = false;
+    
+    SecStoreServerConnection(SecStoreServer server, long connectionNumber)
+    {
+        this.server = server;
+        this.connectionNumber = connectionNumber;
+    }
+    
+    @Override
+    public boolean debug()
+    {
+        return server.debug();
+    }
+    
+    public SecStoreServer getServer()
+    {
+        return server;
+    }
+    
+    // Counts up from 1 in the order the server accepted its connections
+    public long getConnectionNumber()
+    {
+        return connectionNumber;
+    }
+    
+    // A connection closed before its socket arrived closes the socket right away
+    @Override
+    public void connect(Socket socket, SocketOptions options)
+        throws IOException
+    {
+        super.connect(socket, options);
+        
+        if (closed)
+            socket.close();
+    }
+    
+    @Override
+    public void establishHandshake()
+        throws IOException
+    {
+        try {
+            server.handshakeDone(SsapHandshake.doClosingHandShake(this, server.getTicketKeys()));
+        }
+        
+        catch (SsapProtocolException exception) {
+            throw new IOException("ssap handshake failed: " + exception);
+        }
+    }
+    
+    @Override
+    public String getHostAddress()
+    {
+        return super.getHostAddress();
+    }
+    
+    public boolean isClosed()
+        throws IOException
+    {
+        Socket socket = getSocket();
+        
+        return closed || socket == null || socket.isClosed();
+    }
+    
+    public void close()
+        throws IOException
+    {
+        closed = true;
+        
+        Socket socket = getSocket();
+        
+        if (socket != null)
+            socket.close();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SecStoreServerConnection {number=" + connectionNumber + ", host=" + getHostAddress() + "}";
+    }
+}
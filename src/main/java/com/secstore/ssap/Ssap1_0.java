@@ -1,29 +1,23 @@
 package com.secstore.ssap;
 
-import static com.secstore.utils.CryptoUtils.generateCertificate;
 import static com.secstore.utils.CryptoUtils.base64Encode;
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SignatureException;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Scanner;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.crypto.Cipher;
 import com.secstore.sscp.SscpConnection;
 import com.secstore.sscp.SscpProtocol;
+import com.secstore.sscp.SscpSession;
 
 
 public interface Ssap1_0 extends SsapProtocol
 {
     public static SscpProtocol REQUIRED_PROTOCOL = SscpProtocol.DEFAULT;
     public static int NONCE_LENGTH = 64;
+    public static String MAX_BLOCK_SIZE_HEADER = "SecStore-Max-Block-Size";
+    public static String FAST_HANDSHAKE_HEADER = "SecStore-Fast-Handshake";
     
     public static String generateNonce()
     {
@@ -35,31 +29,170 @@ public interface Ssap1_0 extends SsapProtocol
     }
     
     public static String newOpeningHandshake(String nonce)
+    {
+        return newOpeningHandshake(nonce, null);
+    }
+    
+    public static String newOpeningHandshake(String nonce, Integer maxBlockSize)
     {
         StringBuilder builder = new StringBuilder();
         
         builder.append("GET HTTP/1.1" + NEWLINE);
         builder.append("Upgrade: SSTP/1.0" + NEWLINE);
         builder.append("Connection: Upgrade" + NEWLINE);
+        
+        if (maxBlockSize != null)
+            builder.append(MAX_BLOCK_SIZE_HEADER + ": " + maxBlockSize + NEWLINE);
+        
         builder.append("Nonce: " + nonce + NEWLINE + NEWLINE);
         
         return builder.toString();
     }
     
     public static String newClosingHandshake(String encryptedNonce)
+    {
+        return newClosingHandshake(encryptedNonce, null);
+    }
+    
+    public static String newClosingHandshake(String encryptedNonce, Integer blockSize)
+    {
+        return newClosingHandshake(encryptedNonce, blockSize, false);
+    }
+    
+    // Servers that answer SsapFastHandshake say so, so clients can use it on later connections
+    public static String newClosingHandshake(String encryptedNonce, Integer blockSize, boolean fastHandshake)
     {
         StringBuilder builder = new StringBuilder();
         
         builder.append("HTTP/1.1 101 Switching Protocols" + NEWLINE);
         builder.append("Upgrade: SSTP/1.0" + NEWLINE);
         builder.append("Connection: Upgrade" + NEWLINE);
+        
+        if (blockSize != null)
+            builder.append(MAX_BLOCK_SIZE_HEADER + ": " + blockSize + NEWLINE);
+        
+        if (fastHandshake)
+            builder.append(FAST_HANDSHAKE_HEADER + ": " + SsapFastHandshake.REQUEST + NEWLINE);
+        
         builder.append("Encrypted-Nonce: " + encryptedNonce + NEWLINE + NEWLINE);
         builder.append(SECSTORE_CERT_STRING + NEWLINE + NEWLINE);
         
         return builder.toString();
     }
     
-    public static void doOpeningHandShake(SscpConnection connection)
+    // Settles on the smaller of the offered and the local max block size
+    public static Integer parseBlockSize(String data, int maxBlockSize)
+        throws SsapProtocolException
+    {
+        return parseBlockSize(new SsapMessage().parse(data), maxBlockSize);
+    }
+    
+    public static Integer parseBlockSize(SsapMessage message, int maxBlockSize)
+        throws SsapProtocolException
+    {
+        long offeredBlockSize = message.getNumericHeader(SsapMessage.Header.MAX_BLOCK_SIZE);
+        
+        if (offeredBlockSize == -1)
+            return null;
+        
+        if (offeredBlockSize < SscpProtocol.DEFAULT_BLOCK_SIZE)
+            throw new SsapProtocolException("max block size too small: " + offeredBlockSize);
+        
+        return (int) Math.min(offeredBlockSize, maxBlockSize);
+    }
+    
+    /*
+     * Applies the block size settled by parseBlockSize, if any.
+     *
+     * Peers that send SecStore-Max-Block-Size also read EOT on a frame that
+     * carries data, so the end of a transmission can ride on its last frame.
+     * Legacy peers leave the header out and drop the data of such a frame, so
+     * they keep the default block size and get EOT on an empty frame.
+     */
+    public static void applyBlockSize(SscpSession session, Integer blockSize)
+    {
+        if (blockSize == null)
+            return;
+        
+        session.setBlockSize(blockSize);
+        
+        session.setFoldingEOT(true);
+    }
+    
+    // Checks the upgrade request of an opening handshake and returns the client's nonce
+    public static String parseNonce(String openingHandshake)
+        throws SsapProtocolException
+    {
+        return parseNonce(new SsapMessage().parse(openingHandshake));
+    }
+    
+    public static String parseNonce(SsapMessage openingHandshake)
+        throws SsapProtocolException
+    {
+        if (!openingHandshake.headerEquals(SsapMessage.Header.UPGRADE, SSTP))
+            throw new SsapProtocolException("protocol not supported");
+        
+        String nonce = openingHandshake.getHeader(SsapMessage.Header.NONCE);
+        
+        if (nonce == null)
+            throw new SsapProtocolException("nonce not found");
+        
+        return nonce;
+    }
+    
+    // Proves the server holds SecStore's private key
+    public static String encryptNonce(Cipher cipher, String nonce)
+    {
+        return SsapProtocol.decodeEncryptThenEncode(cipher, SECSTORE_PRIVATE_KEY, nonce);
+    }
+    
+    /*
+     * Checks the closing handshake against the nonce that was sent and returns
+     * the public key of the SecStore certificate it carries.
+     *
+     * The certificate must be signed by the CA, and the nonce must come back
+     * encrypted with the matching private key. Certificates verified before are
+     * taken from the certificate cache without checking the signature again.
+     */
+    public static PublicKey verifyClosingHandshake(String closingHandshake, String nonce, Cipher cipher)
+        throws SsapProtocolException
+    {
+        return verifyClosingHandshake(new SsapMessage().parse(closingHandshake), nonce, cipher);
+    }
+    
+    public static PublicKey verifyClosingHandshake(SsapMessage closingHandshake, String nonce, Cipher cipher)
+        throws SsapProtocolException
+    {
+        if (!closingHandshake.hasHeader(SsapMessage.Header.UPGRADE))
+            throw new SsapProtocolException("upgrade protocol missing");
+        
+        if (!closingHandshake.headerEquals(SsapMessage.Header.UPGRADE, SSTP))
+            throw new SsapProtocolException("invalid upgrade protocol");
+        
+        String encryptedNonce = closingHandshake.getHeader(SsapMessage.Header.ENCRYPTED_NONCE);
+        
+        if (encryptedNonce == null)
+            throw new SsapProtocolException("encrypted nonce not found");
+        
+        String secStoreCertString = closingHandshake.getBody();
+        
+        if (secStoreCertString == null)
+            throw new SsapProtocolException("certificate not found");
+        
+        X509Certificate secStoreCert = SsapCertificateCache.getDefault().verify(secStoreCertString);
+        
+        PublicKey key = secStoreCert.getPublicKey();
+        
+        String decryptedNonce = SsapProtocol.decodeDecryptThenEncode(cipher, key, encryptedNonce);
+        
+        if (!decryptedNonce.equals(nonce))
+            throw new SsapProtocolException("encrypted nonce invalid");
+        
+        return key;
+    }
+    
+    // Returns true if the server offers SsapFastHandshake for later connections
+    public static boolean doOpeningHandShake(SscpConnection connection)
         throws IOException, SsapProtocolException
     {
         connection.log("[SSAP/1.0] Starting Opening Handshake");
@@ -79,7 +212,7 @@ public interface Ssap1_0 extends SsapProtocol
         
         connection.log("[SSAP/1.0] [OPENING] Generated nonce: " + nonce);
         
-        String openingHandshake = newOpeningHandshake(nonce);
+        String openingHandshake = newOpeningHandshake(nonce, connection.getMaxBlockSize());
         
         connection.log("[SSAP/1.0] [OPENING] Sending opening handshake");
         
@@ -87,93 +220,30 @@ public interface Ssap1_0 extends SsapProtocol
         
         connection.log("[SSAP/1.0] [OPENING] Waiting for closing handshake");
         
-        String response = connection.readString();
-        
-        connection.log("[SSAP/1.0] [OPENING] Got closing handshake: \n" + response);
-        
-        String encryptedNonce;
-        
-        String secStoreCertString;
-        
-        connection.log ("[SSAP/1.0] [OPENING] Parsing closing handshake");
-        
-        try (Scanner scanner = new Scanner(response)) {
-            String data = scanner.useDelimiter(NEWLINE + NEWLINE).next();
-            
-            connection.log("[SSAP/1.0] [OPENING] Checking upgrade protocol");
-            
-            Matcher matcher = Pattern.compile("Upgrade: (.*)").matcher(data);
-            
-            if (!matcher.find())
-                throw new SsapProtocolException("upgrade protocol missing");
-            
-            else if (!SSTP.equals(matcher.group(1)))
-                throw new SsapProtocolException("invalid upgrade protocol");
-            
-            connection.log("[SSAP/1.0] [OPENING] Getting encrypted nonce");
-            
-            matcher = Pattern.compile("Encrypted-Nonce: (.*)").matcher(data);
-            
-            if (matcher.find())
-                encryptedNonce = matcher.group(1);
-            
-            else
-                throw new SsapProtocolException("encrypted nonce not found");
-            
-            connection.log("[SSAP/1.0] [OPENING] Got encrypted nonce: " + encryptedNonce);
-            
-            connection.log("[SSAP/1.0] [OPENING] Getting SecStore certificate");
-            
-            secStoreCertString = scanner.useDelimiter(NEWLINE + NEWLINE).next();
-            
-            if (secStoreCertString == null)
-                throw new SsapProtocolException("certificate not found");
-        }
-        
-        connection.log("[SSAP/1.0] [OPENING] Generating SecStore certificate");
-        
-        X509Certificate secStoreCert = generateCertificate(secStoreCertString);
-        
-        connection.log("[SSAP/1.0] [OPENING] Verifying SecStore certificate");
-        
-        try {
-            secStoreCert.checkValidity();
-            
-            secStoreCert.verify(CA_CERT.getPublicKey());
-            
-            connection.log("[SSAP/1.0] [OPENING] SecStore certificate verified");
-        }
-        
-        catch (CertificateException exception) {
-            throw new SsapProtocolException("certificate exception: " + exception);
-        }
-        
-        catch (InvalidKeyException
-            | NoSuchAlgorithmException
-            | NoSuchProviderException
-            | SignatureException exception) {
-            throw new SsapProtocolException("verification exception: " + exception);
-        }
-        
-        connection.log("[SSAP/1.0] [OPENING] Decrypting encrypted nonce");
+        SsapMessage response = new SsapMessage().read(connection.getInputStream());
         
-        PublicKey key = secStoreCert.getPublicKey();
+        if (connection.debug())
+            connection.log("[SSAP/1.0] [OPENING] Got closing handshake: \n" + response);
         
-        Cipher cipher = connection.getCipher(SscpProtocol.SSCP1);
+        connection.log("[SSAP/1.0] [OPENING] Verifying closing handshake");
         
-        String decryptedNonce = SsapProtocol.decodeDecryptThenEncode(cipher, key, encryptedNonce);
+        PublicKey key = verifyClosingHandshake(response, nonce, connection.getCipher(SscpProtocol.SSCP1));
         
-        connection.log("[SSAP/1.0] [OPENING] Got decrypted nonce: " + decryptedNonce);
+        connection.log("[SSAP/1.0] [OPENING] SecStore certificate verified, nonce accepted");
         
-        if (!decryptedNonce.equals(nonce))
-            throw new SsapProtocolException("encrypted nonce invalid");
+        // servers that do not read extended frame headers leave this out
+        Integer blockSize = parseBlockSize(response, connection.getMaxBlockSize());
         
-        connection.log("[SSAP/1.0] [OPENING] Nonce accepted");
+        boolean fastHandshake = response.headerEquals(SsapMessage.Header.FAST_HANDSHAKE, SsapFastHandshake.REQUEST);
         
         connection.log("[SSAP/1.0] [OPENING] Setting keys");
         
         connection.setKey(SscpProtocol.SSCP1, key);
         
+        connection.setUseClientMode(true);
+        
+        applyBlockSize(connection, blockSize);
+        
         if (originalProtocol != null) {
             connection.log("[SSAP/1.0] [OPENING] Restoring original protocol");
             
@@ -181,10 +251,23 @@ public interface Ssap1_0 extends SsapProtocol
         }
         
         connection.log("[SSAP/1.0] [OPENING] Handshake Complete");
+        
+        return fastHandshake;
     }
     
     public static void doClosingHandShake(SscpConnection connection)
         throws IOException, SsapProtocolException
+    {
+        doClosingHandShake(connection, null, false);
+    }
+    
+    /*
+     * For an opening handshake that was already read to tell it from others,
+     * null reads it here. Servers that answer SsapFastHandshake offer it.
+     */
+    public static void doClosingHandShake(SscpConnection connection, SsapMessage openingHandshake,
+        boolean fastHandshake)
+        throws IOException, SsapProtocolException
     {
         connection.log("[SSAP/1.0] Starting Closing Handshake");
         
@@ -199,52 +282,35 @@ public interface Ssap1_0 extends SsapProtocol
             connection.setProtocol(REQUIRED_PROTOCOL);
         }
         
-        connection.log("[SSAP/1.0] [CLOSING] Waiting for opening handshake");
+        if (openingHandshake == null) {
+            connection.log("[SSAP/1.0] [CLOSING] Waiting for opening handshake");
+            
+            openingHandshake = new SsapMessage().read(connection.getInputStream());
+        }
         
-        String openingHandshake = connection.readString();
+        if (connection.debug())
+            connection.log("[SSAP/1.0] [CLOSING] Got opening handshake: \n" + openingHandshake);
         
-        connection.log("[SSAP/1.0] [CLOSING] Got opening handshake: \n" + openingHandshake);
+        connection.log("[SSAP/1.0] [CLOSING] Parsing opening handshake");
         
-        String nonce;
+        String nonce = parseNonce(openingHandshake);
         
-        connection.log("[SSAP/1.0] [CLOSING] Parsing opening handshake");
+        connection.log("[SSAP/1.0] [CLOSING] Got nonce: " + nonce);
         
-        try (Scanner scanner = new Scanner(openingHandshake)) {
-            String data = scanner.useDelimiter(NEWLINE + NEWLINE).next();
-            
-            connection.log("[SSAP/1.0] [CLOSING] Checking upgrade protocol");
-            
-            Matcher matcher = Pattern.compile("Upgrade: (.*)").matcher(data);
-            
-            if (!matcher.find() || !SSTP.equals(matcher.group(1)))
-                throw new SsapProtocolException("protocol not supported");
-            
-            connection.log("[SSAP/1.0] [CLOSING] Getting nonce");
-            
-            matcher = Pattern.compile("Nonce: (.*)").matcher(data);
-            
-            if (matcher.find())
-                nonce = matcher.group(1);
-            
-            else
-                throw new SsapProtocolException("encrypted nonce not found");
-            
-            connection.log("[SSAP/1.0] [CLOSING] Got nonce: " + nonce);
-        }
+        // clients that do not read extended frame headers leave this out
+        Integer blockSize = parseBlockSize(openingHandshake, connection.getMaxBlockSize());
         
         connection.log("[SSAP/1.0] [CLOSING] Encrypting nonce");
         
         PrivateKey key = SECSTORE_PRIVATE_KEY;
         
-        Cipher cipher = connection.getCipher(SscpProtocol.SSCP1);
-        
-        String encryptedNonce = SsapProtocol.decodeEncryptThenEncode(cipher, key, nonce);
+        String encryptedNonce = encryptNonce(connection.getCipher(SscpProtocol.SSCP1), nonce);
         
         connection.log("[SSAP/1.0] [CLOSING] Got encrypted nonce: " + encryptedNonce);
         
         connection.log("[SSAP/1.0] [CLOSING] Sending closing handshake");
         
-        String closingHandshake = newClosingHandshake(encryptedNonce);
+        String closingHandshake = newClosingHandshake(encryptedNonce, blockSize, fastHandshake);
         
         connection.writeString(closingHandshake);
         
@@ -252,6 +318,10 @@ public interface Ssap1_0 extends SsapProtocol
         
         connection.setKey(SscpProtocol.SSCP1, key);
         
+        connection.setUseClientMode(false);
+        
+        applyBlockSize(connection, blockSize);
+        
         if (originalProtocol != null) {
             connection.log("[SSAP/1.0] [CLOSING] Restoring original protocol");
             
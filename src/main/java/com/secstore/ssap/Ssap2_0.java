@@ -2,14 +2,16 @@ package com.secstore.ssap;
 
 import static com.secstore.utils.CryptoUtils.base64Encode;
 import static com.secstore.utils.CryptoUtils.base64Decode;
+import static com.secstore.utils.CryptoUtils.decryptBytes;
+import static com.secstore.utils.CryptoUtils.initializeCipher;
 import java.io.IOException;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import com.secstore.sscp.SscpConnection;
 import com.secstore.sscp.SscpProtocol;
+import com.secstore.sscp.SscpSession;
 
 
 public interface Ssap2_0 extends SsapProtocol
@@ -18,13 +20,26 @@ public interface Ssap2_0 extends SsapProtocol
     public static final String REQUEST = "UPGRADE";
     public static final int RESPONSE_CODE = 100;
     public static final String SESSION_KEY_HEADER = "SecStore-Session-Key";
+    public static final String RESUMPTION_HEADER = "SecStore-Resumption";
+    public static final String TICKET_HEADER = "SecStore-Session-Ticket";
+    public static final String TICKET_LIFETIME_HEADER = "SecStore-Ticket-Lifetime";
     public static final String CLOSING_HANDSHAKE = newClosingHandshake();
     
     public static String newOpeningHandshake(String sessionKeyString)
+    {
+        return newOpeningHandshake(sessionKeyString, false);
+    }
+    
+    // Servers that do not resume sessions ignore the request for a ticket
+    public static String newOpeningHandshake(String sessionKeyString, boolean requestTicket)
     {
         StringBuilder builder = new StringBuilder();
         
         builder.append(REQUEST + " " + SSTP + NEWLINE);
+        
+        if (requestTicket)
+            builder.append(RESUMPTION_HEADER + ": ticket" + NEWLINE);
+        
         builder.append(SESSION_KEY_HEADER + ": " + sessionKeyString + NEWLINE + NEWLINE);
         
         return builder.toString();
@@ -35,8 +50,137 @@ public interface Ssap2_0 extends SsapProtocol
         return SSTP + " " + RESPONSE_CODE + " " + "Secure Connection Initialized" + NEWLINE + NEWLINE;
     }
     
+    // Clients only read the status line, so those that asked for no ticket skip the headers
+    public static String newClosingHandshake(String ticket, long ticketLifetime)
+    {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append(SSTP + " " + RESPONSE_CODE + " " + "Secure Connection Initialized" + NEWLINE);
+        builder.append(TICKET_HEADER + ": " + ticket + NEWLINE);
+        builder.append(TICKET_LIFETIME_HEADER + ": " + TimeUnit.MILLISECONDS.toSeconds(ticketLifetime) + NEWLINE);
+        builder.append(NEWLINE);
+        
+        return builder.toString();
+    }
+    
+    public static boolean parseTicketRequest(String openingHandshake)
+    {
+        return parseTicketRequest(new SsapMessage().parse(openingHandshake));
+    }
+    
+    public static boolean parseTicketRequest(SsapMessage openingHandshake)
+    {
+        return openingHandshake.headerEquals(SsapMessage.Header.RESUMPTION, "ticket");
+    }
+    
+    // The ticket a closing handshake carries, null if the server issued none
+    public static SsapTicket parseTicket(String closingHandshake, SecretKey sessionKey, PublicKey serverKey)
+        throws SsapProtocolException
+    {
+        return parseTicket(new SsapMessage().parse(closingHandshake), sessionKey, serverKey);
+    }
+    
+    public static SsapTicket parseTicket(SsapMessage closingHandshake, SecretKey sessionKey, PublicKey serverKey)
+        throws SsapProtocolException
+    {
+        String ticket = closingHandshake.getHeader(SsapMessage.Header.SESSION_TICKET);
+        
+        if (ticket == null)
+            return null;
+        
+        long lifetime = closingHandshake.getNumericHeader(SsapMessage.Header.TICKET_LIFETIME);
+        
+        if (lifetime == -1)
+            throw new SsapProtocolException("ticket lifetime missing");
+        
+        return new SsapTicket(ticket, SsapResumption.newResumptionSecret(sessionKey), serverKey,
+            TimeUnit.SECONDS.toMillis(lifetime));
+    }
+    
+    // SSCP3 keys come from the session key, so the handshake does not change on the wire
+    public static void setDerivedKeys(SscpSession session, SecretKey sessionKey)
+    {
+        session.setKey(SscpProtocol.SSCP3, SscpProtocol.SSCP3.deriveSecretKey(sessionKey));
+        
+        session.setKey(SscpProtocol.SSCP3_CHACHA20, SscpProtocol.SSCP3_CHACHA20.deriveSecretKey(sessionKey));
+    }
+    
+    // The closing handshake is sent under the session key, which shows the server could read it
+    public static String newEncryptedClosingHandshake(Cipher cipher, SecretKey sessionKey)
+    {
+        return SsapProtocol.encryptThenEncode(cipher, sessionKey, CLOSING_HANDSHAKE);
+    }
+    
+    // Tickets travel under the session key as well, so no one else can link the sessions they resume
+    public static String newEncryptedClosingHandshake(Cipher cipher, SecretKey sessionKey, String ticket,
+        long ticketLifetime)
+    {
+        return SsapProtocol.encryptThenEncode(cipher, sessionKey, newClosingHandshake(ticket, ticketLifetime));
+    }
+    
+    // Checks the upgrade request of an opening handshake and returns the session key the client picked
+    public static SecretKey parseSessionKey(String openingHandshake)
+        throws SsapProtocolException
+    {
+        return parseSessionKey(new SsapMessage().parse(openingHandshake));
+    }
+    
+    public static SecretKey parseSessionKey(SsapMessage openingHandshake)
+        throws SsapProtocolException
+    {
+        if (!openingHandshake.startsWith(REQUEST))
+            throw new IllegalStateException("unexpected request");
+        
+        if (!openingHandshake.startsWith(REQUEST, SSTP))
+            throw new IllegalStateException("unexpected protocol");
+        
+        String sessionKeyString = openingHandshake.getHeader(SsapMessage.Header.SESSION_KEY);
+        
+        if (sessionKeyString == null)
+            throw new SsapProtocolException("session key missing");
+        
+        return SscpProtocol.SSCP2.generateSecretKey(base64Decode(sessionKeyString));
+    }
+    
+    // Checks that the server answered under the session key the client picked and returns the answer
+    public static String verifyClosingHandshake(String closingHandshake, Cipher cipher, SecretKey sessionKey)
+        throws SsapProtocolException
+    {
+        return verifyClosingHandshake(new SsapMessage().parse(closingHandshake), cipher, sessionKey).toString();
+    }
+    
+    // The message is decrypted in place, so it holds the answer once this returns
+    public static SsapMessage verifyClosingHandshake(SsapMessage closingHandshake, Cipher cipher, SecretKey sessionKey)
+        throws SsapProtocolException
+    {
+        try {
+            initializeCipher(cipher, Cipher.DECRYPT_MODE, sessionKey);
+            
+            closingHandshake.parse(decryptBytes(cipher, base64Decode(closingHandshake.toString())));
+        }
+        
+        catch (IllegalArgumentException exception) {
+            throw new SsapProtocolException("closing handshake not under the session key: " + exception);
+        }
+        
+        if (!closingHandshake.startsWith(SSTP))
+            throw new IllegalStateException("unexpected protocol");
+        
+        if (closingHandshake.getStatusCode() != RESPONSE_CODE)
+            throw new SsapProtocolException("sscp2 opening handshake failed: " + closingHandshake.getReason());
+        
+        return closingHandshake;
+    }
+    
     public static void doOpeningHandShake(SscpConnection connection)
         throws IOException, SsapProtocolException
+    {
+        doOpeningHandShake(connection, false);
+    }
+    
+    // Returns the ticket the server issued for resuming the session, if one was asked for and issued
+    public static SsapTicket doOpeningHandShake(SscpConnection connection, boolean requestTicket)
+        throws IOException, SsapProtocolException
     {
         connection.log("[SSAP/2.0] Starting Opening Handshake");
         
@@ -59,7 +203,7 @@ public interface Ssap2_0 extends SsapProtocol
         
         connection.log("[SSAP/2.0] [OPENING] Generated session key: " + sessionKeyString);
         
-        String openingHandshake = newOpeningHandshake(sessionKeyString);
+        String openingHandshake = newOpeningHandshake(sessionKeyString, requestTicket);
         
         connection.log("[SSAP/2.0] [OPENING] Sending opening handshake");
         
@@ -67,39 +211,28 @@ public interface Ssap2_0 extends SsapProtocol
         
         connection.log("[SSAP/2.0] [OPENING] Waiting for closing handshake");
         
-        String response = connection.readString();
-        
-        connection.log("[SSAP/2.0] [OPENING] Got closing handshake: \n" + response);
+        SsapMessage response = new SsapMessage().read(connection.getInputStream());
         
-        connection.log("[SSAP/2.0] [OPENING] Decrypting closing handshake");
+        if (connection.debug())
+            connection.log("[SSAP/2.0] [OPENING] Got closing handshake: \n" + response);
         
-        Cipher cipher = connection.getCipher(SscpProtocol.SSCP2);
+        connection.log("[SSAP/2.0] [OPENING] Verifying closing handshake");
         
-        String decryptedResponse = SsapProtocol.decodeThenDecrypt(cipher, sessionKey, response);
+        verifyClosingHandshake(response, connection.getCipher(SscpProtocol.SSCP2), sessionKey);
         
-        connection.log("[SSAP/2.0] [OPENING] Got decrypted closing handshake: \n" + decryptedResponse);
+        connection.log("[SSAP/2.0] [OPENING] Closing handshake accepted");
         
-        connection.log("[SSAP/2.0] [OPENING] Parsing decrypted closing handshake");
-        
-        try (Scanner scanner = new Scanner(decryptedResponse)) {
-            connection.log("[SSAP/2.0] [OPENING] Checking protocol");
-            
-            if (!SSTP.equals(scanner.useDelimiter(" ").next()))
-                throw new IllegalStateException("unexpected protocol");
-            
-            connection.log("[SSAP/2.0] [OPENING] Checking response status");
-            
-            if (scanner.nextInt() != 100)
-                throw new SsapProtocolException("sscp2 opening handshake failed: " +
-                    scanner.useDelimiter(NEWLINE + NEWLINE).next());
-            
-            connection.log("[SSAP/2.0] [OPENING] Closing handshake accepted");
-        }
+        SsapTicket ticket = requestTicket
+            ? parseTicket(response, sessionKey, (PublicKey) connection.getKey(SscpProtocol.SSCP1)) : null;
         
         connection.log("[SSAP/2.0] [OPENING] Setting keys");
         
         connection.setKey(SscpProtocol.SSCP2, sessionKey);
         
+        setDerivedKeys(connection, sessionKey);
+        
+        connection.setUseClientMode(true);
+        
         if (originalProtocol != null) {
             connection.log("[SSAP/2.0] [OPENING] Restoring original protocol");
             
@@ -107,10 +240,19 @@ public interface Ssap2_0 extends SsapProtocol
         }
         
         connection.log("[SSAP/2.0] [OPENING] Handshake Completed");
+        
+        return ticket;
     }
     
     public static void doClosingHandShake(SscpConnection connection)
         throws IOException, SsapProtocolException
+    {
+        doClosingHandShake(connection, null);
+    }
+    
+    // Issues a ticket sealed with the ticket keys to clients that ask for one, null issues none
+    public static void doClosingHandShake(SscpConnection connection, SsapTicketKeys ticketKeys)
+        throws IOException, SsapProtocolException
     {
         connection.log("[SSAP/2.0] Starting Closing Handshake");
         
@@ -127,47 +269,32 @@ public interface Ssap2_0 extends SsapProtocol
         
         connection.log("[SSAP/2.0] [CLOSING] Waiting for opening handshake");
         
-        String openingHandshake = connection.readString();
-        
-        connection.log("[SSAP/2.0] [CLOSING] Got opening handshake: \n" + openingHandshake);
+        SsapMessage openingHandshake = new SsapMessage().read(connection.getInputStream());
         
-        String sessionKeyString = null;
+        if (connection.debug())
+            connection.log("[SSAP/2.0] [CLOSING] Got opening handshake: \n" + openingHandshake);
         
         connection.log("[SSAP/2.0] [CLOSING] Parsing opening handshake");
         
-        try (Scanner scanner = new Scanner(openingHandshake)) {
-            connection.log("[SSAP/2.0] [CLOSING] Checking request");
-            
-            if (!REQUEST.equals(scanner.useDelimiter(" ").next()))
-                throw new IllegalStateException("unexpected request");
-            
-            connection.log("[SSAP/2.0] [CLOSING] Checking protocol");
-            
-            if (!SSTP.equals(scanner.useDelimiter(NEWLINE).next().stripLeading()))
-                throw new IllegalStateException("unexpected protocol");
-            
-            connection.log("[SSAP/2.0] [CLOSING] Getting session key");
-            
-            String data = scanner.useDelimiter(NEWLINE + NEWLINE).next();
-            
-            Matcher matcher = Pattern.compile("SecStore-Session-Key: (.*)").matcher(data);
-            
-            if (matcher.find())
-                sessionKeyString = matcher.group(1);
-            
-            else
-                throw new SsapProtocolException("session key missing");
-        }
-        
-        connection.log("[SSAP/2.0] [CLOSING] Got session key: " + sessionKeyString);
+        SecretKey key = parseSessionKey(openingHandshake);
         
-        SecretKey key = SscpProtocol.SSCP2.generateSecretKey(base64Decode(sessionKeyString));
+        connection.log("[SSAP/2.0] [CLOSING] Got session key: " + base64Encode(key.getEncoded()));
         
         connection.log("[SSAP/2.0] [CLOSING] Encrypting closing handshake");
         
-        Cipher cipher = connection.getCipher(SscpProtocol.SSCP2);
+        String encryptedHandshake;
         
-        String encryptedHandshake = SsapProtocol.encryptThenEncode(cipher, key, CLOSING_HANDSHAKE);
+        if (ticketKeys != null && parseTicketRequest(openingHandshake)) {
+            connection.log("[SSAP/2.0] [CLOSING] Issuing session ticket");
+            
+            String ticket = ticketKeys.seal(SsapResumption.newResumptionSecret(key), System.currentTimeMillis());
+            
+            encryptedHandshake = newEncryptedClosingHandshake(connection.getCipher(SscpProtocol.SSCP2), key, ticket,
+                ticketKeys.getTicketLifetime());
+        }
+        
+        else
+            encryptedHandshake = newEncryptedClosingHandshake(connection.getCipher(SscpProtocol.SSCP2), key);
         
         connection.log("[SSAP/2.0] [CLOSING] Sending encrypted closing handshake");
         
@@ -177,6 +304,10 @@ public interface Ssap2_0 extends SsapProtocol
         
         connection.setKey(SscpProtocol.SSCP2, key);
         
+        setDerivedKeys(connection, key);
+        
+        connection.setUseClientMode(false);
+        
         if (originalProtocol != null) {
             connection.log("[SSAP/2.0] [CLOSING] Restoring original protocol");
             
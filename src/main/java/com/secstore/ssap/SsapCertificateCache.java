@@ -0,0 +1,218 @@
+package com.secstore.ssap;
+
+import static com.secstore.utils.CryptoUtils.base64Encode;
+import static com.secstore.utils.CryptoUtils.digest;
+import static com.secstore.utils.CryptoUtils.generateCertificate;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Remembers the certificates that passed verification against an issuer key.
+ *
+ * Verifying a certificate means parsing it and checking its RSA signature,
+ * which SSAP/1.0 would otherwise do on every handshake for the same server
+ * certificate. Verified certificates are kept by the SHA-256 fingerprint of
+ * their DER encoding, which is read straight off the PEM text, so a hit skips
+ * both the parsing and the signature check. Only the validity period is
+ * checked again on a hit, and an entry is dropped once its certificate
+ * expires.
+ *
+ * Certificates that fail verification are not kept. At most maxSize
+ * certificates are kept, the least recently used are dropped first.
+ */
+public final class SsapCertificateCache
+{
+    public static final int DEFAULT_MAX_SIZE = 64;
+    
+    private static final SsapCertificateCache DEFAULT = new SsapCertificateCache(SsapProtocol.CA_CERT.getPublicKey(),
+        DEFAULT_MAX_SIZE);
+    
+    private static final String PEM_BEGIN = "-----BEGIN CERTIFICATE-----";
+    private static final String PEM_END = "-----END CERTIFICATE-----";
+    
+    private final PublicKey issuerKey;
+    private final int maxSize;
+    private final Map<String, X509Certificate> certificates;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    public SsapCertificateCache(PublicKey issuerKey, int maxSize)
+    {
+        if (issuerKey == null)
+            throw new IllegalArgumentException("issuer key missing");
+        
+        if (maxSize < 0)
+            throw new IllegalArgumentException("max size must not be negative");
+        
+        this.issuerKey = issuerKey;
+        this.maxSize = maxSize;
+        
+        // access order, so the eldest entry is the least recently used
+        certificates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, X509Certificate> eldest)
+            {
+                return size() > SsapCertificateCache.this.maxSize;
+            }
+        };
+    }
+    
+    // The cache SSAP/1.0 uses, for certificates issued by the SecStore CA
+    public static SsapCertificateCache getDefault()
+    {
+        return DEFAULT;
+    }
+    
+    public PublicKey getIssuerKey()
+    {
+        return issuerKey;
+    }
+    
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+    
+    public long getHits()
+    {
+        return hits.get();
+    }
+    
+    public long getMisses()
+    {
+        return misses.get();
+    }
+    
+    public synchronized int getSize()
+    {
+        return certificates.size();
+    }
+    
+    /*
+     * Returns the certificate in the PEM text once it is known to be within its
+     * validity period and signed by the issuer key.
+     */
+    public X509Certificate verify(String certificateString)
+        throws SsapProtocolException
+    {
+        String fingerprint = getFingerprint(certificateString);
+        
+        X509Certificate certificate = (fingerprint == null) ? null : get(fingerprint);
+        
+        if (certificate != null) {
+            try {
+                certificate.checkValidity();
+                
+                hits.incrementAndGet();
+                
+                return certificate;
+            }
+            
+            catch (CertificateException exception) {
+                invalidate(fingerprint);
+            }
+        }
+        
+        misses.incrementAndGet();
+        
+        certificate = generateCertificate(certificateString);
+        
+        try {
+            certificate.checkValidity();
+            
+            certificate.verify(issuerKey);
+        }
+        
+        catch (CertificateException exception) {
+            throw new SsapProtocolException("certificate exception: " + exception);
+        }
+        
+        catch (InvalidKeyException
+            | NoSuchAlgorithmException
+            | NoSuchProviderException
+            | SignatureException exception) {
+            throw new SsapProtocolException("verification exception: " + exception);
+        }
+        
+        // keyed by what was actually verified, in case the PEM text could not be read ahead
+        put(getFingerprint(certificate), certificate);
+        
+        return certificate;
+    }
+    
+    // Drops a certificate, so the next handshake that presents it verifies it again
+    public void invalidate(X509Certificate certificate)
+    {
+        String fingerprint = getFingerprint(certificate);
+        
+        if (fingerprint != null)
+            invalidate(fingerprint);
+    }
+    
+    public synchronized void invalidate(String fingerprint)
+    {
+        certificates.remove(fingerprint);
+    }
+    
+    public synchronized void invalidateAll()
+    {
+        certificates.clear();
+    }
+    
+    // The SHA-256 fingerprint of a certificate's DER encoding, in base64
+    public static String getFingerprint(X509Certificate certificate)
+    {
+        try {
+            return base64Encode(digest("SHA-256", certificate.getEncoded()));
+        }
+        
+        catch (CertificateEncodingException exception) {
+            return null;
+        }
+    }
+    
+    // The same fingerprint read off PEM text, null if the text is not a single PEM certificate
+    public static String getFingerprint(String certificateString)
+    {
+        int begin = certificateString.indexOf(PEM_BEGIN);
+        
+        int end = certificateString.indexOf(PEM_END);
+        
+        if (begin < 0 || end < begin || certificateString.indexOf(PEM_BEGIN, end) >= 0)
+            return null;
+        
+        String body = certificateString.substring(begin + PEM_BEGIN.length(), end);
+        
+        try {
+            return base64Encode(digest("SHA-256", Base64.getMimeDecoder().decode(body.getBytes(SscpProtocol.CHARSET))));
+        }
+        
+        catch (IllegalArgumentException exception) {
+            return null;
+        }
+    }
+    
+    private final synchronized X509Certificate get(String fingerprint)
+    {
+        return certificates.get(fingerprint);
+    }
+    
+    private final synchronized void put(String fingerprint, X509Certificate certificate)
+    {
+        if (fingerprint != null)
+            certificates.put(fingerprint, certificate);
+    }
+}
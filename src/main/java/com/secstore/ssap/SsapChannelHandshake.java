@@ -0,0 +1,223 @@
+package com.secstore.ssap;
+
+import static com.secstore.utils.CryptoUtils.base64Encode;
+import java.io.IOException;
+import java.security.PublicKey;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+import com.secstore.sscp.SscpChannel;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * SSAP/1.0 followed by SSAP/2.0 on a non-blocking SscpChannel.
+ *
+ * The blocking handshakes of Ssap1_0 and Ssap2_0 wait for every reply in turn.
+ * Here each message of the peer moves the handshake on by one state instead,
+ * so an event loop can run thousands of handshakes at once. Messages and checks
+ * are those of the blocking handshakes, so the other end may be either.
+ *
+ * The opening end is the client. Once done, both ends are back on the default
+ * protocol with every key set, just like after the blocking handshakes.
+ */
+public final class SsapChannelHandshake
+    implements SscpChannel.Handshake
+{
+    private static enum State
+    {
+        READY,
+        AWAITING_SSAP1_OPENING,
+        AWAITING_SSAP1_CLOSING,
+        AWAITING_SSAP2_OPENING,
+        AWAITING_SSAP2_CLOSING,
+        DONE
+    }
+    
+    private final boolean opening;
+    private State state = State.READY;
+    private String nonce;
+    private SecretKey sessionKey;
+    private final SsapMessage message = new SsapMessage();
+    
+    private SsapChannelHandshake(boolean opening)
+    {
+        this.opening = opening;
+    }
+    
+    // The client end, which speaks first
+    public static SsapChannelHandshake opening()
+    {
+        return new SsapChannelHandshake(true);
+    }
+    
+    // The server end
+    public static SsapChannelHandshake closing()
+    {
+        return new SsapChannelHandshake(false);
+    }
+    
+    public boolean isDone()
+    {
+        return state == State.DONE;
+    }
+    
+    @Override
+    public void start(SscpChannel channel)
+        throws IOException
+    {
+        if (state != State.READY)
+            throw new IllegalStateException("handshake already started");
+        
+        channel.setProtocol(Ssap1_0.REQUIRED_PROTOCOL);
+        
+        if (!opening) {
+            channel.log("[SSAP/1.0] [CLOSING] Waiting for opening handshake");
+            
+            state = State.AWAITING_SSAP1_OPENING;
+            
+            return;
+        }
+        
+        nonce = Ssap1_0.generateNonce();
+        
+        channel.log("[SSAP/1.0] [OPENING] Sending opening handshake");
+        
+        channel.writeString(Ssap1_0.newOpeningHandshake(nonce, channel.getMaxBlockSize()));
+        
+        state = State.AWAITING_SSAP1_CLOSING;
+    }
+    
+    @Override
+    public boolean onMessage(SscpChannel channel, String string)
+        throws IOException
+    {
+        message.parse(string);
+        
+        try {
+            switch (state) {
+                case AWAITING_SSAP1_OPENING:
+                    acceptSsap1Opening(channel, message);
+                    break;
+                
+                case AWAITING_SSAP1_CLOSING:
+                    acceptSsap1Closing(channel, message);
+                    break;
+                
+                case AWAITING_SSAP2_OPENING:
+                    acceptSsap2Opening(channel, message);
+                    break;
+                
+                case AWAITING_SSAP2_CLOSING:
+                    acceptSsap2Closing(channel, message);
+                    break;
+                
+                default:
+                    throw new IllegalStateException("unexpected handshake message in state " + state);
+            }
+        }
+        
+        catch (SsapProtocolException exception) {
+            throw new IOException("ssap handshake failed: " + exception);
+        }
+        
+        return state == State.DONE;
+    }
+    
+    private final void acceptSsap1Opening(SscpChannel channel, SsapMessage openingHandshake)
+        throws IOException, SsapProtocolException
+    {
+        String nonce = Ssap1_0.parseNonce(openingHandshake);
+        
+        // clients that do not read extended frame headers leave this out
+        Integer blockSize = Ssap1_0.parseBlockSize(openingHandshake, channel.getMaxBlockSize());
+        
+        // every server encrypts with the same private key, so the cipher of the loop thread is reused
+        Cipher cipher = SscpProtocol.SSCP1.getCipher(Cipher.ENCRYPT_MODE, SsapProtocol.SECSTORE_PRIVATE_KEY);
+        
+        String encryptedNonce = Ssap1_0.encryptNonce(cipher, nonce);
+        
+        channel.log("[SSAP/1.0] [CLOSING] Sending closing handshake");
+        
+        channel.writeString(Ssap1_0.newClosingHandshake(encryptedNonce, blockSize));
+        
+        channel.setKey(SscpProtocol.SSCP1, SsapProtocol.SECSTORE_PRIVATE_KEY);
+        
+        channel.setUseClientMode(false);
+        
+        Ssap1_0.applyBlockSize(channel, blockSize);
+        
+        channel.log("[SSAP/1.0] [CLOSING] Handshake Complete");
+        
+        channel.setProtocol(Ssap2_0.REQUIRED_PROTOCOL);
+        
+        channel.log("[SSAP/2.0] [CLOSING] Waiting for opening handshake");
+        
+        state = State.AWAITING_SSAP2_OPENING;
+    }
+    
+    private final void acceptSsap1Closing(SscpChannel channel, SsapMessage closingHandshake)
+        throws IOException, SsapProtocolException
+    {
+        PublicKey key = Ssap1_0.verifyClosingHandshake(closingHandshake, nonce,
+            SscpProtocol.SSCP1.generateCipher());
+        
+        // servers that do not read extended frame headers leave this out
+        Integer blockSize = Ssap1_0.parseBlockSize(closingHandshake, channel.getMaxBlockSize());
+        
+        channel.setKey(SscpProtocol.SSCP1, key);
+        
+        channel.setUseClientMode(true);
+        
+        Ssap1_0.applyBlockSize(channel, blockSize);
+        
+        channel.log("[SSAP/1.0] [OPENING] Handshake Complete");
+        
+        channel.setProtocol(Ssap2_0.REQUIRED_PROTOCOL);
+        
+        sessionKey = SscpProtocol.SSCP2.generateSecretKey();
+        
+        channel.log("[SSAP/2.0] [OPENING] Sending opening handshake");
+        
+        channel.writeString(Ssap2_0.newOpeningHandshake(base64Encode(sessionKey.getEncoded())));
+        
+        state = State.AWAITING_SSAP2_CLOSING;
+    }
+    
+    private final void acceptSsap2Opening(SscpChannel channel, SsapMessage openingHandshake)
+        throws IOException, SsapProtocolException
+    {
+        SecretKey key = Ssap2_0.parseSessionKey(openingHandshake);
+        
+        channel.log("[SSAP/2.0] [CLOSING] Sending encrypted closing handshake");
+        
+        channel.writeString(Ssap2_0.newEncryptedClosingHandshake(SscpProtocol.SSCP2.generateCipher(), key));
+        
+        finish(channel, key);
+    }
+    
+    private final void acceptSsap2Closing(SscpChannel channel, SsapMessage closingHandshake)
+        throws IOException, SsapProtocolException
+    {
+        Ssap2_0.verifyClosingHandshake(closingHandshake, SscpProtocol.SSCP2.generateCipher(), sessionKey);
+        
+        finish(channel, sessionKey);
+    }
+    
+    private final void finish(SscpChannel channel, SecretKey key)
+    {
+        channel.setKey(SscpProtocol.SSCP2, key);
+        
+        Ssap2_0.setDerivedKeys(channel, key);
+        
+        channel.setProtocol(SscpProtocol.DEFAULT);
+        
+        channel.log("[SSAP/2.0] Handshake Complete");
+        
+        nonce = null;
+        
+        sessionKey = null;
+        
+        state = State.DONE;
+    }
+}
@@ -0,0 +1,307 @@
+package com.secstore.ssap;
+
+import static com.secstore.utils.CryptoUtils.base64Decode;
+import static com.secstore.utils.CryptoUtils.base64Encode;
+import static com.secstore.utils.CryptoUtils.digest;
+import static com.secstore.utils.CryptoUtils.generateCertificate;
+import java.io.IOException;
+import java.security.PublicKey;
+import javax.crypto.SecretKey;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * SSAP/1.0 and SSAP/2.0 in a single round trip.
+ *
+ * The full handshake waits for the server certificate before it can send the
+ * session key under the server's public key, so it takes two round trips. A
+ * client that already knows that key from an earlier verified handshake sends
+ * its nonce and the session key, wrapped with the key, together. The server
+ * answers once with the nonce encrypted with its private key, which proves it
+ * holds the key the client trusts, and the SSAP/2.0 closing handshake under the
+ * session key, which proves it unwrapped the session key.
+ *
+ * The client names the key it used by its fingerprint. A server whose key does
+ * not match, because its certificate changed, refuses and then expects the full
+ * handshake on the same connection, which the client falls back to.
+ *
+ * Servers offer this handshake in their SSAP/1.0 closing handshake, so clients
+ * never send it to servers that would not understand it.
+ */
+public interface SsapFastHandshake extends SsapProtocol
+{
+    public static final SscpProtocol REQUIRED_PROTOCOL = SscpProtocol.DEFAULT;
+    public static final String REQUEST = "CONNECT";
+    public static final int RESPONSE_CODE = 100;
+    public static final int REFUSED_RESPONSE_CODE = 401;
+    public static final String KEY_FINGERPRINT_HEADER = "SecStore-Key-Fingerprint";
+    
+    public static final String SECSTORE_KEY_FINGERPRINT = getKeyFingerprint(
+        generateCertificate(SECSTORE_CERT_STRING).getPublicKey());
+    
+    // The SHA-256 fingerprint of a public key's encoding, in base64
+    public static String getKeyFingerprint(PublicKey key)
+    {
+        return base64Encode(digest("SHA-256", key.getEncoded()));
+    }
+    
+    public static String newOpeningHandshake(String nonce, Integer maxBlockSize, String keyFingerprint,
+        String wrappedSessionKey, boolean requestTicket)
+    {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append(REQUEST + " " + SSTP + NEWLINE);
+        builder.append(KEY_FINGERPRINT_HEADER + ": " + keyFingerprint + NEWLINE);
+        builder.append(Ssap2_0.SESSION_KEY_HEADER + ": " + wrappedSessionKey + NEWLINE);
+        
+        if (requestTicket)
+            builder.append(Ssap2_0.RESUMPTION_HEADER + ": ticket" + NEWLINE);
+        
+        if (maxBlockSize != null)
+            builder.append(Ssap1_0.MAX_BLOCK_SIZE_HEADER + ": " + maxBlockSize + NEWLINE);
+        
+        builder.append(SsapResumption.NONCE_HEADER + ": " + nonce + NEWLINE + NEWLINE);
+        
+        return builder.toString();
+    }
+    
+    public static String newClosingHandshake(String encryptedNonce, Integer blockSize, String encryptedHandshake)
+    {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append(SSTP + " " + RESPONSE_CODE + " Connected" + NEWLINE);
+        
+        if (blockSize != null)
+            builder.append(Ssap1_0.MAX_BLOCK_SIZE_HEADER + ": " + blockSize + NEWLINE);
+        
+        builder.append("Encrypted-Nonce: " + encryptedNonce + NEWLINE);
+        builder.append(SsapResumption.ENCRYPTED_HANDSHAKE_HEADER + ": " + encryptedHandshake + NEWLINE + NEWLINE);
+        
+        return builder.toString();
+    }
+    
+    public static String newRefusedHandshake(String reason)
+    {
+        return SSTP + " " + REFUSED_RESPONSE_CODE + " " + reason + NEWLINE + NEWLINE;
+    }
+    
+    public static boolean isOpeningHandshake(SsapMessage handshake)
+    {
+        return handshake.startsWith(REQUEST);
+    }
+    
+    private static String parseHeader(SsapMessage handshake, SsapMessage.Header header)
+        throws SsapProtocolException
+    {
+        String value = handshake.getHeader(header);
+        
+        if (value == null)
+            throw new SsapProtocolException(header.getName().toLowerCase() + " missing");
+        
+        return value;
+    }
+    
+    /*
+     * Runs the combined handshake against the server key, which must come from
+     * an earlier verified handshake with a server that offered this one.
+     *
+     * Returns null if the server refuses, which leaves the connection to the
+     * full handshake.
+     */
+    public static SsapHandshake.Result doOpeningHandShake(SscpConnection connection, PublicKey serverKey,
+        boolean requestTicket)
+        throws IOException, SsapProtocolException
+    {
+        connection.log("[SSAP/FAST] Starting Opening Handshake");
+        
+        SscpProtocol originalProtocol = connection.getProtocol();
+        
+        if (originalProtocol != null && originalProtocol == REQUIRED_PROTOCOL)
+            originalProtocol = null;
+        
+        else {
+            connection.log("[SSAP/FAST] [OPENING] Changing connection protocol");
+            
+            connection.setProtocol(REQUIRED_PROTOCOL);
+        }
+        
+        String nonce = Ssap1_0.generateNonce();
+        
+        SecretKey sessionKey = SscpProtocol.SSCP2.generateSecretKey();
+        
+        String wrappedSessionKey = SsapProtocol.decodeEncryptThenEncode(connection.getCipher(SscpProtocol.SSCP1),
+            serverKey, base64Encode(sessionKey.getEncoded()));
+        
+        connection.log("[SSAP/FAST] [OPENING] Sending nonce and session key");
+        
+        connection.writeString(newOpeningHandshake(nonce, connection.getMaxBlockSize(), getKeyFingerprint(serverKey),
+            wrappedSessionKey, requestTicket));
+        
+        connection.log("[SSAP/FAST] [OPENING] Waiting for closing handshake");
+        
+        SsapMessage response = new SsapMessage().read(connection.getInputStream());
+        
+        if (connection.debug())
+            connection.log("[SSAP/FAST] [OPENING] Got closing handshake: \n" + response);
+        
+        if (!response.startsWith(SSTP))
+            throw new SsapProtocolException("unexpected protocol");
+        
+        int responseCode = response.getStatusCode();
+        
+        if (responseCode == REFUSED_RESPONSE_CODE)
+            connection.log("[SSAP/FAST] [OPENING] Refused: " + response.getReason());
+        
+        else if (responseCode != RESPONSE_CODE)
+            throw new SsapProtocolException("fast handshake failed: " + response.getReason());
+        
+        if (originalProtocol != null) {
+            connection.log("[SSAP/FAST] [OPENING] Restoring original protocol");
+            
+            connection.setProtocol(originalProtocol);
+        }
+        
+        if (responseCode == REFUSED_RESPONSE_CODE)
+            return null;
+        
+        connection.log("[SSAP/FAST] [OPENING] Verifying closing handshake");
+        
+        String encryptedNonce = parseHeader(response, SsapMessage.Header.ENCRYPTED_NONCE);
+        
+        try {
+            if (!nonce.equals(SsapProtocol.decodeDecryptThenEncode(connection.getCipher(SscpProtocol.SSCP1),
+                serverKey, encryptedNonce)))
+                throw new SsapProtocolException("encrypted nonce invalid");
+        }
+        
+        catch (IllegalArgumentException exception) {
+            throw new SsapProtocolException("encrypted nonce invalid: " + exception);
+        }
+        
+        Integer blockSize = Ssap1_0.parseBlockSize(response, connection.getMaxBlockSize());
+        
+        // the encrypted handshake is parsed into the same message once the rest has been read
+        response.parse(parseHeader(response, SsapMessage.Header.ENCRYPTED_HANDSHAKE));
+        
+        Ssap2_0.verifyClosingHandshake(response, connection.getCipher(SscpProtocol.SSCP2), sessionKey);
+        
+        SsapTicket ticket = requestTicket ? Ssap2_0.parseTicket(response, sessionKey, serverKey) : null;
+        
+        connection.log("[SSAP/FAST] [OPENING] Setting keys");
+        
+        connection.setKey(SscpProtocol.SSCP1, serverKey);
+        
+        connection.setKey(SscpProtocol.SSCP2, sessionKey);
+        
+        Ssap2_0.setDerivedKeys(connection, sessionKey);
+        
+        connection.setUseClientMode(true);
+        
+        Ssap1_0.applyBlockSize(connection, blockSize);
+        
+        connection.log("[SSAP/FAST] [OPENING] Handshake Complete");
+        
+        return new SsapHandshake.Result(SsapHandshake.Kind.FAST, ticket, serverKey);
+    }
+    
+    /*
+     * Answers an opening handshake that was already read, issuing a ticket to
+     * clients that ask for one if there are ticket keys.
+     *
+     * Refusals are answered here and leave the connection to the full
+     * handshake. Returns true if the handshake completed.
+     */
+    public static boolean doClosingHandShake(SscpConnection connection, SsapMessage openingHandshake,
+        SsapTicketKeys ticketKeys)
+        throws IOException, SsapProtocolException
+    {
+        connection.log("[SSAP/FAST] Starting Closing Handshake");
+        
+        if (connection.debug())
+            connection.log("[SSAP/FAST] [CLOSING] Got opening handshake: \n" + openingHandshake);
+        
+        SscpProtocol originalProtocol = connection.getProtocol();
+        
+        if (originalProtocol != null && originalProtocol == REQUIRED_PROTOCOL)
+            originalProtocol = null;
+        
+        else {
+            connection.log("[SSAP/FAST] [CLOSING] Changing connection protocol");
+            
+            connection.setProtocol(REQUIRED_PROTOCOL);
+        }
+        
+        if (!openingHandshake.headerEquals(SsapMessage.Header.KEY_FINGERPRINT, SECSTORE_KEY_FINGERPRINT)) {
+            connection.log("[SSAP/FAST] [CLOSING] Refusing: server key changed");
+            
+            connection.writeString(newRefusedHandshake("server key changed"));
+            
+            if (originalProtocol != null)
+                connection.setProtocol(originalProtocol);
+            
+            return false;
+        }
+        
+        String nonce = parseHeader(openingHandshake, SsapMessage.Header.NONCE);
+        
+        Integer blockSize = Ssap1_0.parseBlockSize(openingHandshake, connection.getMaxBlockSize());
+        
+        connection.log("[SSAP/FAST] [CLOSING] Unwrapping session key");
+        
+        SecretKey sessionKey;
+        
+        try {
+            sessionKey = SscpProtocol.SSCP2.generateSecretKey(base64Decode(SsapProtocol.decodeDecryptThenEncode(
+                connection.getCipher(SscpProtocol.SSCP1), SECSTORE_PRIVATE_KEY,
+                parseHeader(openingHandshake, SsapMessage.Header.SESSION_KEY))));
+        }
+        
+        catch (IllegalArgumentException exception) {
+            throw new SsapProtocolException("session key invalid: " + exception);
+        }
+        
+        String encryptedNonce = Ssap1_0.encryptNonce(connection.getCipher(SscpProtocol.SSCP1), nonce);
+        
+        String encryptedHandshake;
+        
+        if (ticketKeys != null && Ssap2_0.parseTicketRequest(openingHandshake)) {
+            connection.log("[SSAP/FAST] [CLOSING] Issuing session ticket");
+            
+            String ticket = ticketKeys.seal(SsapResumption.newResumptionSecret(sessionKey), System.currentTimeMillis());
+            
+            encryptedHandshake = Ssap2_0.newEncryptedClosingHandshake(connection.getCipher(SscpProtocol.SSCP2),
+                sessionKey, ticket, ticketKeys.getTicketLifetime());
+        }
+        
+        else
+            encryptedHandshake = Ssap2_0.newEncryptedClosingHandshake(connection.getCipher(SscpProtocol.SSCP2),
+                sessionKey);
+        
+        connection.log("[SSAP/FAST] [CLOSING] Sending closing handshake");
+        
+        connection.writeString(newClosingHandshake(encryptedNonce, blockSize, encryptedHandshake));
+        
+        connection.log("[SSAP/FAST] [CLOSING] Setting keys");
+        
+        connection.setKey(SscpProtocol.SSCP1, SECSTORE_PRIVATE_KEY);
+        
+        connection.setKey(SscpProtocol.SSCP2, sessionKey);
+        
+        Ssap2_0.setDerivedKeys(connection, sessionKey);
+        
+        connection.setUseClientMode(false);
+        
+        Ssap1_0.applyBlockSize(connection, blockSize);
+        
+        if (originalProtocol != null) {
+            connection.log("[SSAP/FAST] [CLOSING] Restoring original protocol");
+            
+            connection.setProtocol(originalProtocol);
+        }
+        
+        connection.log("[SSAP/FAST] [CLOSING] Handshake Complete");
+        
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package com.secstore.ssap;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Picks the quickest handshake both ends can do.
+ *
+ * A client with a live ticket resumes its session, a client that knows the
+ * server's key from an earlier handshake runs the combined handshake of
+ * SsapFastHandshake, and any other runs SSAP/1.0 and SSAP/2.0 in full. Each
+ * falls back to the next when the server refuses it. The server tells the
+ * handshakes apart by the first message the client sends.
+ */
+public interface SsapHandshake extends SsapProtocol
+{
+    public static final SscpProtocol REQUIRED_PROTOCOL = SscpProtocol.DEFAULT;
+    
+    public static enum Kind
+    {
+        FULL,
+        FAST,
+        RESUMED;
+    }
+    
+    // What a client keeps of a handshake for its next connection to the same server
+    public static final class Result
+    {
+        private final Kind kind;
+        private final SsapTicket ticket;
+        private final PublicKey serverKey;
+        
+        Result(Kind kind, SsapTicket ticket, PublicKey serverKey)
+        {
+            this.kind = kind;
+            this.ticket = ticket;
+            this.serverKey = serverKey;
+        }
+        
+        public Kind getKind()
+        {
+            return kind;
+        }
+        
+        // Null if the server issued none
+        public SsapTicket getTicket()
+        {
+            return ticket;
+        }
+        
+        // Null unless the server offers the combined handshake
+        public PublicKey getServerKey()
+        {
+            return serverKey;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "Result {kind=" + kind + ", ticket=" + ticket + ", serverKey=" + (serverKey != null) + "}";
+        }
+    }
+    
+    /*
+     * Runs the quickest handshake the ticket and the server key allow, either of
+     * which may be null.
+     */
+    public static Result doOpeningHandShake(SscpConnection connection, SsapTicket ticket, PublicKey serverKey)
+        throws IOException, SsapProtocolException
+    {
+        Result result = null;
+        
+        if (ticket != null && !ticket.isExpired())
+            result = SsapResumption.doOpeningHandShake(connection, ticket);
+        
+        if (result == null && serverKey != null)
+            result = SsapFastHandshake.doOpeningHandShake(connection, serverKey, true);
+        
+        if (result != null)
+            return result;
+        
+        boolean fastHandshake = Ssap1_0.doOpeningHandShake(connection);
+        
+        ticket = Ssap2_0.doOpeningHandShake(connection, true);
+        
+        return new Result(Kind.FULL, ticket, fastHandshake ? (PublicKey) connection.getKey(SscpProtocol.SSCP1) : null);
+    }
+    
+    /*
+     * Answers whichever handshake the client opens with, resuming sessions and
+     * issuing tickets only if there are ticket keys.
+     */
+    public static Kind doClosingHandShake(SscpConnection connection, SsapTicketKeys ticketKeys)
+        throws IOException, SsapProtocolException
+    {
+        SscpProtocol originalProtocol = connection.getProtocol();
+        
+        if (originalProtocol != null && originalProtocol == REQUIRED_PROTOCOL)
+            originalProtocol = null;
+        
+        else
+            connection.setProtocol(REQUIRED_PROTOCOL);
+        
+        SsapMessage openingHandshake = new SsapMessage().read(connection.getInputStream());
+        
+        Kind kind = Kind.FULL;
+        
+        if (SsapResumption.isOpeningHandshake(openingHandshake)) {
+            if (SsapResumption.doClosingHandShake(connection, openingHandshake, ticketKeys))
+                kind = Kind.RESUMED;
+            
+            openingHandshake = null;
+        }
+        
+        else if (SsapFastHandshake.isOpeningHandshake(openingHandshake)) {
+            if (SsapFastHandshake.doClosingHandShake(connection, openingHandshake, ticketKeys))
+                kind = Kind.FAST;
+            
+            openingHandshake = null;
+        }
+        
+        if (kind == Kind.FULL) {
+            // a refused handshake leaves the client's SSAP/1.0 opening handshake still to be read
+            Ssap1_0.doClosingHandShake(connection, openingHandshake, true);
+            
+            Ssap2_0.doClosingHandShake(connection, ticketKeys);
+        }
+        
+        if (originalProtocol != null)
+            connection.setProtocol(originalProtocol);
+        
+        return kind;
+    }
+}
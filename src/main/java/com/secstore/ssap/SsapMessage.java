@@ -0,0 +1,409 @@
+package com.secstore.ssap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * One SSAP handshake message, parsed in a single pass over its bytes.
+ *
+ * A message is a start line, header lines up to a blank line and whatever
+ * follows as the body, such as the certificate of the SSAP/1.0 closing
+ * handshake. Only the headers SSAP knows are kept, each found by comparing
+ * its name against the few known names of the same length, and values are
+ * kept as offsets into the message so nothing is copied out unless asked for.
+ * Where a header appears more than once the first one counts.
+ *
+ * A message can be read or parsed again and again, which reuses its buffer.
+ * Instances are not thread safe.
+ *
+ * Messages longer than MAX_MESSAGE_SIZE are refused however they come in.
+ * Reading stops one byte past it with an IOException, and parsing refuses such
+ * a message before copying any of it, so the buffer never grows further.
+ */
+public final class SsapMessage
+{
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    // as much as SscpChannel lets a peer send before the handshake, the longest message is about 1 KB
+    public static final int MAX_MESSAGE_SIZE = 65536;
+    
+    public static enum Header
+    {
+        UPGRADE("Upgrade"),
+        CONNECTION("Connection"),
+        NONCE(SsapResumption.NONCE_HEADER),
+        ENCRYPTED_NONCE("Encrypted-Nonce"),
+        MAX_BLOCK_SIZE(Ssap1_0.MAX_BLOCK_SIZE_HEADER),
+        SESSION_KEY(Ssap2_0.SESSION_KEY_HEADER),
+        RESUMPTION(Ssap2_0.RESUMPTION_HEADER),
+        SESSION_TICKET(Ssap2_0.TICKET_HEADER),
+        TICKET_LIFETIME(Ssap2_0.TICKET_LIFETIME_HEADER),
+        ENCRYPTED_HANDSHAKE(SsapResumption.ENCRYPTED_HANDSHAKE_HEADER),
+        FAST_HANDSHAKE(Ssap1_0.FAST_HANDSHAKE_HEADER),
+        KEY_FINGERPRINT(SsapFastHandshake.KEY_FINGERPRINT_HEADER);
+        
+        private final String name;
+        private final byte[] bytes;
+        
+        private Header(String name)
+        {
+            this.name = name;
+            this.bytes = name.getBytes(SscpProtocol.CHARSET);
+        }
+        
+        public String getName()
+        {
+            return name;
+        }
+    }
+    
+    private static final Header[] HEADERS = Header.values();
+    
+    // the known headers by the length of their names, so a lookup compares against one or two names at most
+    private static final Header[][] HEADERS_BY_LENGTH = newHeadersByLength();
+    
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+    private int startLineEnd = 0;
+    private int bodyStart = -1;
+    private final int[] valueStarts = new int[HEADERS.length];
+    private final int[] valueEnds = new int[HEADERS.length];
+    
+    private static Header[][] newHeadersByLength()
+    {
+        int maxLength = 0;
+        
+        for (Header header : HEADERS)
+            maxLength = Math.max(maxLength, header.bytes.length);
+        
+        Header[][] headersByLength = new Header[maxLength + 1][0];
+        
+        for (Header header : HEADERS) {
+            Header[] headers = headersByLength[header.bytes.length];
+            
+            headers = Arrays.copyOf(headers, headers.length + 1);
+            
+            headers[headers.length - 1] = header;
+            
+            headersByLength[header.bytes.length] = headers;
+        }
+        
+        return headersByLength;
+    }
+    
+    // Reads the rest of the current transmission and parses it
+    public SsapMessage read(InputStream inputStream)
+        throws IOException
+    {
+        length = 0;
+        
+        int bytesRead;
+        
+        while (true) {
+            if (length == buffer.length) {
+                // the peer has not authenticated yet, and could otherwise make the buffer grow for as long as it sends
+                if (length > MAX_MESSAGE_SIZE)
+                    throw new IOException("handshake message longer than " + MAX_MESSAGE_SIZE + " bytes");
+                
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_MESSAGE_SIZE + 1));
+            }
+            
+            if ((bytesRead = inputStream.read(buffer, length, buffer.length - length)) == -1)
+                break;
+            
+            length += bytesRead;
+        }
+        
+        parse();
+        
+        return this;
+    }
+    
+    public SsapMessage parse(byte[] bytes, int offset, int length)
+    {
+        if (length > MAX_MESSAGE_SIZE)
+            throw new IllegalArgumentException("handshake message longer than " + MAX_MESSAGE_SIZE + " bytes");
+        
+        if (buffer.length < length)
+            buffer = new byte[Math.min(Math.max(length, buffer.length * 2), MAX_MESSAGE_SIZE + 1)];
+        
+        System.arraycopy(bytes, offset, buffer, 0, length);
+        
+        this.length = length;
+        
+        parse();
+        
+        return this;
+    }
+    
+    public SsapMessage parse(byte[] bytes)
+    {
+        return parse(bytes, 0, bytes.length);
+    }
+    
+    public SsapMessage parse(String message)
+    {
+        return parse(message.getBytes(SscpProtocol.CHARSET));
+    }
+    
+    private final void parse()
+    {
+        Arrays.fill(valueStarts, -1);
+        
+        Arrays.fill(valueEnds, -1);
+        
+        bodyStart = -1;
+        
+        int lineStart = 0;
+        
+        int next = nextLine(lineStart);
+        
+        startLineEnd = lineEnd(lineStart, next);
+        
+        while (next < length) {
+            lineStart = next;
+            
+            next = nextLine(lineStart);
+            
+            int lineEnd = lineEnd(lineStart, next);
+            
+            if (lineEnd == lineStart) {
+                bodyStart = next;
+                
+                break;
+            }
+            
+            parseHeader(lineStart, lineEnd);
+        }
+    }
+    
+    private final void parseHeader(int lineStart, int lineEnd)
+    {
+        int colon = lineStart;
+        
+        while (colon < lineEnd && buffer[colon] != ':')
+            colon++;
+        
+        int nameLength = colon - lineStart;
+        
+        if (colon == lineEnd || nameLength >= HEADERS_BY_LENGTH.length)
+            return;
+        
+        for (Header header : HEADERS_BY_LENGTH[nameLength]) {
+            if (!Arrays.equals(buffer, lineStart, colon, header.bytes, 0, nameLength))
+                continue;
+            
+            int index = header.ordinal();
+            
+            if (valueStarts[index] != -1)
+                return;
+            
+            int valueStart = colon + 1;
+            
+            while (valueStart < lineEnd && buffer[valueStart] == ' ')
+                valueStart++;
+            
+            int valueEnd = lineEnd;
+            
+            while (valueEnd > valueStart && buffer[valueEnd - 1] == ' ')
+                valueEnd--;
+            
+            valueStarts[index] = valueStart;
+            
+            valueEnds[index] = valueEnd;
+            
+            return;
+        }
+    }
+    
+    // Where the line after the one starting here starts, or the end of the message
+    private final int nextLine(int lineStart)
+    {
+        for (int i = lineStart; i < length; i++)
+            if (buffer[i] == '\n')
+                return i + 1;
+        
+        return length;
+    }
+    
+    // Where the line ends without its line break
+    private final int lineEnd(int lineStart, int next)
+    {
+        int end = next;
+        
+        if (end > lineStart && buffer[end - 1] == '\n')
+            end--;
+        
+        if (end > lineStart && buffer[end - 1] == '\r')
+            end--;
+        
+        return end;
+    }
+    
+    public int length()
+    {
+        return length;
+    }
+    
+    public String getStartLine()
+    {
+        return new String(buffer, 0, startLineEnd, SscpProtocol.CHARSET);
+    }
+    
+    // Whether the start line is the given words followed by a space or nothing
+    public boolean startsWith(String... words)
+    {
+        int offset = 0;
+        
+        for (int i = 0; i < words.length; i++) {
+            if (i > 0) {
+                if (offset >= startLineEnd || buffer[offset] != ' ')
+                    return false;
+                
+                offset++;
+            }
+            
+            String word = words[i];
+            
+            if (offset + word.length() > startLineEnd)
+                return false;
+            
+            for (int j = 0; j < word.length(); j++)
+                if (buffer[offset + j] != word.charAt(j))
+                    return false;
+            
+            offset += word.length();
+        }
+        
+        return offset == startLineEnd || buffer[offset] == ' ';
+    }
+    
+    // The status code of a response start line such as "SSTP/1.0 100 ...", -1 if there is none
+    public int getStatusCode()
+    {
+        int offset = indexOf(' ', 0, startLineEnd);
+        
+        if (offset < 0)
+            return -1;
+        
+        int code = 0;
+        
+        int digits = 0;
+        
+        for (offset++; offset < startLineEnd && buffer[offset] != ' '; offset++, digits++) {
+            if (buffer[offset] < '0' || buffer[offset] > '9' || digits == 9)
+                return -1;
+            
+            code = code * 10 + buffer[offset] - '0';
+        }
+        
+        return (digits == 0) ? -1 : code;
+    }
+    
+    // What follows the status code on a response start line
+    public String getReason()
+    {
+        int offset = indexOf(' ', 0, startLineEnd);
+        
+        offset = (offset < 0) ? -1 : indexOf(' ', offset + 1, startLineEnd);
+        
+        if (offset < 0)
+            return "";
+        
+        return new String(buffer, offset + 1, startLineEnd - offset - 1, SscpProtocol.CHARSET);
+    }
+    
+    public boolean hasHeader(Header header)
+    {
+        return valueStarts[header.ordinal()] != -1;
+    }
+    
+    // The value of the first header of the kind, null if there is none
+    public String getHeader(Header header)
+    {
+        int index = header.ordinal();
+        
+        if (valueStarts[index] == -1)
+            return null;
+        
+        return new String(buffer, valueStarts[index], valueEnds[index] - valueStarts[index], SscpProtocol.CHARSET);
+    }
+    
+    public boolean headerEquals(Header header, String value)
+    {
+        int index = header.ordinal();
+        
+        int start = valueStarts[index];
+        
+        if (start == -1 || valueEnds[index] - start != value.length())
+            return false;
+        
+        for (int i = 0; i < value.length(); i++)
+            if (buffer[start + i] != value.charAt(i))
+                return false;
+        
+        return true;
+    }
+    
+    // The value of a header that holds a non-negative number, -1 if there is none
+    public long getNumericHeader(Header header)
+        throws SsapProtocolException
+    {
+        int index = header.ordinal();
+        
+        int start = valueStarts[index];
+        
+        if (start == -1)
+            return -1;
+        
+        int end = valueEnds[index];
+        
+        if (start == end || end - start > 18)
+            throw new SsapProtocolException(header.name + " invalid");
+        
+        long value = 0;
+        
+        for (int i = start; i < end; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9')
+                throw new SsapProtocolException(header.name + " invalid");
+            
+            value = value * 10 + buffer[i] - '0';
+        }
+        
+        return value;
+    }
+    
+    // What follows the blank line after the headers without its trailing line breaks, null if nothing does
+    public String getBody()
+    {
+        if (bodyStart == -1)
+            return null;
+        
+        int end = length;
+        
+        while (end > bodyStart && (buffer[end - 1] == '\n' || buffer[end - 1] == '\r'))
+            end--;
+        
+        return (end == bodyStart) ? null : new String(buffer, bodyStart, end - bodyStart, SscpProtocol.CHARSET);
+    }
+    
+    private final int indexOf(int b, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+            if (buffer[i] == b)
+                return i;
+        
+        return -1;
+    }
+    
+    // The whole message as text
+    @Override
+    public String toString()
+    {
+        return new String(buffer, 0, length, SscpProtocol.CHARSET);
+    }
+}
@@ -0,0 +1,267 @@
+package com.secstore.ssap;
+
+import static com.secstore.utils.CryptoUtils.base64Decode;
+import static com.secstore.utils.CryptoUtils.digest;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * Resumes a session from a ticket in place of SSAP/1.0 and SSAP/2.0.
+ *
+ * A client that asked for a ticket during SSAP/2.0 sends it back, with a fresh
+ * nonce, as the first message of its next connection. The server opens the
+ * ticket, answers with a nonce of its own and both derive the new session key
+ * from the resumption secret and the two nonces, so no certificate is sent and
+ * no RSA operation is done on either side. The answer carries the SSAP/2.0
+ * closing handshake under the new key, with a fresh ticket in it, which shows
+ * the client the server could open the ticket.
+ *
+ * A server that refuses the ticket says why and then expects the full
+ * handshake on the same connection, which the client falls back to.
+ */
+public interface SsapResumption extends SsapProtocol
+{
+    public static final SscpProtocol REQUIRED_PROTOCOL = SscpProtocol.DEFAULT;
+    public static final String REQUEST = "RESUME";
+    public static final int RESPONSE_CODE = 100;
+    public static final int REFUSED_RESPONSE_CODE = 401;
+    public static final String NONCE_HEADER = "Nonce";
+    public static final String ENCRYPTED_HANDSHAKE_HEADER = "Encrypted-Handshake";
+    
+    public static final byte[] RESUMPTION_SECRET_LABEL = "SSAP resumption".getBytes(SscpProtocol.CHARSET);
+    public static final byte[] SESSION_KEY_LABEL = "SSAP resumed session key".getBytes(SscpProtocol.CHARSET);
+    
+    // What both ends keep of a session key to resume the session with, the key itself is never reused
+    public static byte[] newResumptionSecret(SecretKey sessionKey)
+    {
+        return digest("SHA-256", RESUMPTION_SECRET_LABEL, sessionKey.getEncoded());
+    }
+    
+    // Fresh nonces on both sides keep a resumed session from ever sharing a key with another
+    public static SecretKey deriveSessionKey(byte[] secret, String clientNonce, String serverNonce)
+    {
+        byte[] digest = digest("SHA-256", SESSION_KEY_LABEL, secret, base64Decode(clientNonce),
+            base64Decode(serverNonce));
+        
+        return SscpProtocol.SSCP2.generateSecretKey(Arrays.copyOf(digest, SscpProtocol.SSCP2.getKeySize() / 8));
+    }
+    
+    public static String newOpeningHandshake(String ticket, String nonce, Integer maxBlockSize)
+    {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append(REQUEST + " " + SSTP + NEWLINE);
+        builder.append(Ssap2_0.TICKET_HEADER + ": " + ticket + NEWLINE);
+        
+        if (maxBlockSize != null)
+            builder.append(Ssap1_0.MAX_BLOCK_SIZE_HEADER + ": " + maxBlockSize + NEWLINE);
+        
+        builder.append(NONCE_HEADER + ": " + nonce + NEWLINE + NEWLINE);
+        
+        return builder.toString();
+    }
+    
+    public static String newClosingHandshake(String nonce, Integer blockSize, String encryptedHandshake)
+    {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append(SSTP + " " + RESPONSE_CODE + " Session Resumed" + NEWLINE);
+        
+        if (blockSize != null)
+            builder.append(Ssap1_0.MAX_BLOCK_SIZE_HEADER + ": " + blockSize + NEWLINE);
+        
+        builder.append(NONCE_HEADER + ": " + nonce + NEWLINE);
+        builder.append(ENCRYPTED_HANDSHAKE_HEADER + ": " + encryptedHandshake + NEWLINE + NEWLINE);
+        
+        return builder.toString();
+    }
+    
+    public static String newRefusedHandshake(String reason)
+    {
+        return SSTP + " " + REFUSED_RESPONSE_CODE + " " + reason + NEWLINE + NEWLINE;
+    }
+    
+    public static boolean isOpeningHandshake(SsapMessage handshake)
+    {
+        return handshake.startsWith(REQUEST);
+    }
+    
+    private static String parseHeader(SsapMessage handshake, SsapMessage.Header header)
+        throws SsapProtocolException
+    {
+        String value = handshake.getHeader(header);
+        
+        if (value == null)
+            throw new SsapProtocolException(header.getName().toLowerCase() + " missing");
+        
+        return value;
+    }
+    
+    /*
+     * Resumes the session the ticket belongs to.
+     *
+     * Returns null if the ticket has expired or the server refuses it, which
+     * leaves the connection to another handshake. The result holds the ticket
+     * to resume the next session with, which replaces the one given.
+     */
+    public static SsapHandshake.Result doOpeningHandShake(SscpConnection connection, SsapTicket ticket)
+        throws IOException, SsapProtocolException
+    {
+        if (ticket.isExpired())
+            return null;
+        
+        connection.log("[SSAP/RESUME] Starting Opening Handshake");
+        
+        SscpProtocol originalProtocol = connection.getProtocol();
+        
+        if (originalProtocol != null && originalProtocol == REQUIRED_PROTOCOL)
+            originalProtocol = null;
+        
+        else {
+            connection.log("[SSAP/RESUME] [OPENING] Changing connection protocol");
+            
+            connection.setProtocol(REQUIRED_PROTOCOL);
+        }
+        
+        String clientNonce = Ssap1_0.generateNonce();
+        
+        connection.log("[SSAP/RESUME] [OPENING] Sending ticket");
+        
+        connection.writeString(newOpeningHandshake(ticket.getTicket(), clientNonce, connection.getMaxBlockSize()));
+        
+        connection.log("[SSAP/RESUME] [OPENING] Waiting for closing handshake");
+        
+        SsapMessage response = new SsapMessage().read(connection.getInputStream());
+        
+        if (connection.debug())
+            connection.log("[SSAP/RESUME] [OPENING] Got closing handshake: \n" + response);
+        
+        if (!response.startsWith(SSTP))
+            throw new SsapProtocolException("unexpected protocol");
+        
+        int responseCode = response.getStatusCode();
+        
+        if (responseCode == REFUSED_RESPONSE_CODE)
+            connection.log("[SSAP/RESUME] [OPENING] Ticket refused: " + response.getReason());
+        
+        else if (responseCode != RESPONSE_CODE)
+            throw new SsapProtocolException("resumption failed: " + response.getReason());
+        
+        if (originalProtocol != null) {
+            connection.log("[SSAP/RESUME] [OPENING] Restoring original protocol");
+            
+            connection.setProtocol(originalProtocol);
+        }
+        
+        if (responseCode == REFUSED_RESPONSE_CODE)
+            return null;
+        
+        String serverNonce = parseHeader(response, SsapMessage.Header.NONCE);
+        
+        Integer blockSize = Ssap1_0.parseBlockSize(response, connection.getMaxBlockSize());
+        
+        SecretKey sessionKey = deriveSessionKey(ticket.getSecret(), clientNonce, serverNonce);
+        
+        connection.log("[SSAP/RESUME] [OPENING] Verifying closing handshake");
+        
+        // the encrypted handshake is parsed into the same message once the rest has been read
+        response.parse(parseHeader(response, SsapMessage.Header.ENCRYPTED_HANDSHAKE));
+        
+        Ssap2_0.verifyClosingHandshake(response, connection.getCipher(SscpProtocol.SSCP2), sessionKey);
+        
+        SsapTicket nextTicket = Ssap2_0.parseTicket(response, sessionKey, ticket.getServerKey());
+        
+        if (nextTicket == null)
+            throw new SsapProtocolException("ticket missing");
+        
+        connection.log("[SSAP/RESUME] [OPENING] Setting keys");
+        
+        connection.setKey(SscpProtocol.SSCP1, ticket.getServerKey());
+        
+        connection.setKey(SscpProtocol.SSCP2, sessionKey);
+        
+        Ssap2_0.setDerivedKeys(connection, sessionKey);
+        
+        connection.setUseClientMode(true);
+        
+        Ssap1_0.applyBlockSize(connection, blockSize);
+        
+        connection.log("[SSAP/RESUME] [OPENING] Handshake Complete");
+        
+        return new SsapHandshake.Result(SsapHandshake.Kind.RESUMED, nextTicket, ticket.getServerKey());
+    }
+    
+    /*
+     * Resumes the session of a client whose opening handshake was already read.
+     *
+     * Null ticket keys refuse every ticket. Refusals are answered here and leave
+     * the connection to the full handshake. Returns true if the session was
+     * resumed.
+     */
+    public static boolean doClosingHandShake(SscpConnection connection, SsapMessage openingHandshake,
+        SsapTicketKeys ticketKeys)
+        throws IOException, SsapProtocolException
+    {
+        connection.log("[SSAP/RESUME] Starting Closing Handshake");
+        
+        if (connection.debug())
+            connection.log("[SSAP/RESUME] [CLOSING] Got opening handshake: \n" + openingHandshake);
+        
+        SsapTicketKeys.Ticket ticket;
+        
+        try {
+            if (ticketKeys == null)
+                throw new SsapProtocolException("resumption not supported");
+            
+            ticket = ticketKeys.open(parseHeader(openingHandshake, SsapMessage.Header.SESSION_TICKET));
+        }
+        
+        catch (SsapProtocolException exception) {
+            connection.log("[SSAP/RESUME] [CLOSING] Refusing ticket: " + exception.getMessage());
+            
+            connection.writeString(newRefusedHandshake(exception.getMessage()));
+            
+            return false;
+        }
+        
+        String clientNonce = parseHeader(openingHandshake, SsapMessage.Header.NONCE);
+        
+        Integer blockSize = Ssap1_0.parseBlockSize(openingHandshake, connection.getMaxBlockSize());
+        
+        String serverNonce = Ssap1_0.generateNonce();
+        
+        SecretKey sessionKey = deriveSessionKey(ticket.getSecret(), clientNonce, serverNonce);
+        
+        connection.log("[SSAP/RESUME] [CLOSING] Issuing session ticket");
+        
+        // the next ticket goes back to the same full handshake, so max session age still holds
+        String nextTicket = ticketKeys.seal(newResumptionSecret(sessionKey), ticket.getAuthenticatedAt());
+        
+        String encryptedHandshake = Ssap2_0.newEncryptedClosingHandshake(connection.getCipher(SscpProtocol.SSCP2),
+            sessionKey, nextTicket, ticketKeys.getTicketLifetime());
+        
+        connection.log("[SSAP/RESUME] [CLOSING] Sending closing handshake");
+        
+        connection.writeString(newClosingHandshake(serverNonce, blockSize, encryptedHandshake));
+        
+        connection.log("[SSAP/RESUME] [CLOSING] Setting keys");
+        
+        connection.setKey(SscpProtocol.SSCP1, SECSTORE_PRIVATE_KEY);
+        
+        connection.setKey(SscpProtocol.SSCP2, sessionKey);
+        
+        Ssap2_0.setDerivedKeys(connection, sessionKey);
+        
+        connection.setUseClientMode(false);
+        
+        Ssap1_0.applyBlockSize(connection, blockSize);
+        
+        connection.log("[SSAP/RESUME] [CLOSING] Handshake Complete");
+        
+        return true;
+    }
+}
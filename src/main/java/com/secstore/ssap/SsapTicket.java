@@ -0,0 +1,56 @@
+package com.secstore.ssap;
+
+import java.security.PublicKey;
+
+
+/*
+ * What a client keeps to resume a session with the server that issued it.
+ *
+ * The ticket itself is opaque to the client and is sent back as it came. The
+ * resumption secret never leaves the client, and the server's public key stands
+ * in for the certificate that is not sent again on resumption.
+ *
+ * Every resumption hands out a fresh ticket, which replaces this one.
+ */
+public final class SsapTicket
+{
+    private final String ticket;
+    private final byte[] secret;
+    private final PublicKey serverKey;
+    private final long expiresAt;
+    
+    SsapTicket(String ticket, byte[] secret, PublicKey serverKey, long lifetime)
+    {
+        this.ticket = ticket;
+        this.secret = secret;
+        this.serverKey = serverKey;
+        this.expiresAt = System.currentTimeMillis() + lifetime;
+    }
+    
+    String getTicket()
+    {
+        return ticket;
+    }
+    
+    byte[] getSecret()
+    {
+        return secret;
+    }
+    
+    public PublicKey getServerKey()
+    {
+        return serverKey;
+    }
+    
+    // By the client's clock, the server checks by its own
+    public boolean isExpired()
+    {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SsapTicket {expiresAt=" + expiresAt + "}";
+    }
+}
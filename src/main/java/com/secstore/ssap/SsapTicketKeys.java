@@ -0,0 +1,234 @@
+package com.secstore.ssap;
+
+import static com.secstore.utils.CryptoUtils.base64Decode;
+import static com.secstore.utils.CryptoUtils.base64Encode;
+import static com.secstore.utils.CryptoUtils.decryptBytes;
+import static com.secstore.utils.CryptoUtils.encryptBytes;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import com.secstore.ssap.SsapProtocol.SsapProtocolException;
+import com.secstore.sscp.SscpProtocol;
+
+
+/*
+ * The keys a server seals its session tickets with.
+ *
+ * A ticket holds everything needed to resume a session, sealed with SSCP3
+ * under a key only the server knows, so the server keeps no state per session.
+ * A ticket key is used for one ticket lifetime and kept for one more to open
+ * the tickets it sealed, so at most two keys are ever held.
+ *
+ * Tickets are refused once older than the ticket lifetime, or once the full
+ * handshake they go back to is older than the max session age, however often
+ * the session was resumed in between.
+ *
+ * Keys are generated at random and never leave the process, so tickets do not
+ * survive a restart and servers behind a load balancer each take their own.
+ */
+public final class SsapTicketKeys
+{
+    public static final long DEFAULT_TICKET_LIFETIME = 3600000;
+    public static final long DEFAULT_MAX_SESSION_AGE = 86400000;
+    
+    private static final int TICKET_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int SECRET_SIZE = 32;
+    private static final int PLAINTEXT_SIZE = 1 + 8 + 8 + SECRET_SIZE;
+    
+    private final long ticketLifetime;
+    private final long maxSessionAge;
+    private TicketKey current;
+    private TicketKey previous = null;
+    
+    // Sealed under its id and a counter, so no two tickets ever share a nonce
+    private static final class TicketKey
+    {
+        private final int id;
+        private final SecretKey key = SscpProtocol.SSCP3.generateSecretKey();
+        private final long createdAt = System.currentTimeMillis();
+        private final AtomicLong counter = new AtomicLong();
+        
+        private TicketKey(int id)
+        {
+            this.id = id;
+        }
+    }
+    
+    // What an opened ticket holds
+    static final class Ticket
+    {
+        private final byte[] secret;
+        private final long authenticatedAt;
+        
+        private Ticket(byte[] secret, long authenticatedAt)
+        {
+            this.secret = secret;
+            this.authenticatedAt = authenticatedAt;
+        }
+        
+        byte[] getSecret()
+        {
+            return secret;
+        }
+        
+        // When the full handshake this session goes back to was done
+        long getAuthenticatedAt()
+        {
+            return authenticatedAt;
+        }
+    }
+    
+    public SsapTicketKeys()
+    {
+        this(DEFAULT_TICKET_LIFETIME, DEFAULT_MAX_SESSION_AGE);
+    }
+    
+    // Both in milliseconds
+    public SsapTicketKeys(long ticketLifetime, long maxSessionAge)
+    {
+        if (ticketLifetime <= 0)
+            throw new IllegalArgumentException("ticket lifetime must be positive");
+        
+        if (maxSessionAge < ticketLifetime)
+            throw new IllegalArgumentException("max session age must not be below the ticket lifetime");
+        
+        this.ticketLifetime = ticketLifetime;
+        
+        this.maxSessionAge = maxSessionAge;
+        
+        current = new TicketKey(ThreadLocalRandom.current().nextInt());
+    }
+    
+    public long getTicketLifetime()
+    {
+        return ticketLifetime;
+    }
+    
+    public long getMaxSessionAge()
+    {
+        return maxSessionAge;
+    }
+    
+    // Seals a resumption secret into a ticket for a session first authenticated at the given time
+    String seal(byte[] secret, long authenticatedAt)
+    {
+        if (secret.length != SECRET_SIZE)
+            throw new IllegalArgumentException("resumption secret must be " + SECRET_SIZE + " bytes");
+        
+        TicketKey ticketKey = getCurrentKey();
+        
+        long counter = ticketKey.counter.getAndIncrement();
+        
+        ByteBuffer plaintext = ByteBuffer.allocate(PLAINTEXT_SIZE);
+        
+        plaintext.put((byte) TICKET_VERSION);
+        
+        plaintext.putLong(System.currentTimeMillis());
+        
+        plaintext.putLong(authenticatedAt);
+        
+        plaintext.put(secret);
+        
+        Cipher cipher = SscpProtocol.SSCP3.getCipher(Cipher.ENCRYPT_MODE, ticketKey.key, ticketKey.id, counter);
+        
+        byte[] ciphertext = encryptBytes(cipher, plaintext.array());
+        
+        ByteBuffer ticket = ByteBuffer.allocate(HEADER_SIZE + ciphertext.length);
+        
+        ticket.putInt(ticketKey.id);
+        
+        ticket.putLong(counter);
+        
+        ticket.put(ciphertext);
+        
+        return base64Encode(ticket.array());
+    }
+    
+    // Opens a ticket sealed by this server, refusing it if forged, altered or expired
+    Ticket open(String ticketString)
+        throws SsapProtocolException
+    {
+        byte[] ticket;
+        
+        try {
+            ticket = base64Decode(ticketString);
+        }
+        
+        catch (IllegalArgumentException exception) {
+            throw new SsapProtocolException("ticket malformed");
+        }
+        
+        if (ticket.length != HEADER_SIZE + PLAINTEXT_SIZE + SscpProtocol.TAG_SIZE)
+            throw new SsapProtocolException("ticket malformed");
+        
+        ByteBuffer header = ByteBuffer.wrap(ticket, 0, HEADER_SIZE);
+        
+        int id = header.getInt();
+        
+        long counter = header.getLong();
+        
+        TicketKey ticketKey = getKey(id);
+        
+        if (ticketKey == null)
+            throw new SsapProtocolException("ticket key unknown");
+        
+        Cipher cipher = SscpProtocol.SSCP3.getCipher(Cipher.DECRYPT_MODE, ticketKey.key, id, counter);
+        
+        ByteBuffer plaintext;
+        
+        try {
+            plaintext = ByteBuffer.wrap(decryptBytes(cipher, Arrays.copyOfRange(ticket, HEADER_SIZE, ticket.length)));
+        }
+        
+        catch (IllegalArgumentException exception) {
+            throw new SsapProtocolException("ticket invalid");
+        }
+        
+        if (plaintext.get() != TICKET_VERSION)
+            throw new SsapProtocolException("ticket version unsupported");
+        
+        long issuedAt = plaintext.getLong();
+        
+        long authenticatedAt = plaintext.getLong();
+        
+        long now = System.currentTimeMillis();
+        
+        if (now - issuedAt > ticketLifetime)
+            throw new SsapProtocolException("ticket expired");
+        
+        if (now - authenticatedAt > maxSessionAge)
+            throw new SsapProtocolException("session too old");
+        
+        byte[] secret = new byte[SECRET_SIZE];
+        
+        plaintext.get(secret);
+        
+        return new Ticket(secret, authenticatedAt);
+    }
+    
+    private final synchronized TicketKey getCurrentKey()
+    {
+        if (System.currentTimeMillis() - current.createdAt >= ticketLifetime) {
+            previous = current;
+            
+            current = new TicketKey(current.id + 1);
+        }
+        
+        return current;
+    }
+    
+    private final synchronized TicketKey getKey(int id)
+    {
+        if (current.id == id)
+            return current;
+        
+        if (previous != null && previous.id == id)
+            return previous;
+        
+        return null;
+    }
+}
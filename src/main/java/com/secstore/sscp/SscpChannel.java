@@ -0,0 +1,733 @@
+package com.secstore.sscp;
+
+import static com.secstore.Logger.Loggable;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.Objects;
+
+
+/*
+ * A non-blocking SSCP connection, driven by one event loop of a SscpChannelEngine.
+ *
+ * Nothing ever waits on the socket. Every read is fed to a SscpFrameDecoder,
+ * each frame it completes is opened on the loop thread, and its plaintext goes
+ * to the handshake until that is done and to the Handler after. Writes seal
+ * their frames on the calling thread and queue them, and the loop sends them
+ * as fast as the socket takes them.
+ *
+ * Frames on the wire are the same as those of a SscpConnection, so either end
+ * may be blocking. Incoming compressed frames are inflated, but outgoing ones
+ * are never compressed, and multiplexed streams are not supported.
+ *
+ * An idle channel holds its socket, keys and a few header bytes. The receive,
+ * plaintext and inflate buffers belong to its loop, and the write queue exists
+ * only while something waits in it.
+ */
+public final class SscpChannel
+    implements SscpSession, Loggable, Closeable
+{
+    // a peer that has not authenticated yet gets no more than a handshake needs, and no frame past the legacy size
+    public static final int MAX_HANDSHAKE_FRAME_SIZE = 16384;
+    public static final int MAX_HANDSHAKE_MESSAGE_SIZE = 65536;
+    
+    // reads taken per readiness event before other channels of the loop get their turn
+    private static final int MAX_READS_PER_EVENT = 4;
+    
+    private static final byte[] EMPTY = new byte[0];
+    
+    private final SscpChannelEngine engine;
+    private final SscpEventLoop loop;
+    private final SocketChannel socketChannel;
+    private final Handler handler;
+    private Handshake handshake;
+    private SelectionKey selectionKey;
+    private volatile State state;
+    private final SscpFrameDecoder decoder = new SscpFrameDecoder();
+    private Key[] keys = null;
+    private SscpProtocol protocol = SscpProtocol.DEFAULT;
+    private SscpProtocol inputProtocol = SscpProtocol.DEFAULT;
+    private Boolean clientMode = null;
+    private int blockSize = SscpProtocol.DEFAULT_BLOCK_SIZE;
+    private int maxBlockSize = SscpProtocol.MAX_BLOCK_SIZE;
+    private boolean foldingEOT = false;
+    private long inputNonceCounter;
+    private long outputNonceCounter;
+    private ByteArrayOutputStream message = null;
+    private ArrayDeque<ByteBuffer> writeQueue = null;
+    private long queuedBytes;
+    private boolean flushScheduled;
+    private boolean closeRequested;
+    private volatile Object attachment;
+    
+    private static enum State
+    {
+        CONNECTING,
+        HANDSHAKE,
+        OPEN,
+        CLOSED
+    }
+    
+    /*
+     * Receives what arrives on a channel, always on its event loop thread.
+     *
+     * None of these may block, since every other channel of the loop waits
+     * meanwhile. The bytes passed to onData are only valid during the call.
+     */
+    public static interface Handler
+    {
+        // Called once the handshake is done, or right after connecting if there is none
+        default void onOpen(SscpChannel channel) throws IOException { }
+        
+        // Called for every frame, EOT marks the last one of a transmission
+        void onData(SscpChannel channel, byte[] bytes, int offset, int length, boolean EOT) throws IOException;
+        
+        // Called whenever everything written so far has gone to the socket
+        default void onDrained(SscpChannel channel) throws IOException { }
+        
+        // Called once the channel is closed, failure is null if that happened in order
+        default void onClose(SscpChannel channel, IOException failure) { }
+    }
+    
+    /*
+     * Sets up a channel one message of the peer at a time, see SsapChannelHandshake.
+     *
+     * Messages are whole transmissions, decoded as strings.
+     */
+    public static interface Handshake
+    {
+        // Called once the socket is connected, the opening end sends its first message here
+        void start(SscpChannel channel) throws IOException;
+        
+        // Called for every message of the peer, returns true once the handshake is done
+        boolean onMessage(SscpChannel channel, String message) throws IOException;
+    }
+    
+    SscpChannel(SscpChannelEngine engine, SscpEventLoop loop, SocketChannel socketChannel,
+        Handshake handshake, Handler handler)
+    {
+        this.engine = engine;
+        this.loop = loop;
+        this.socketChannel = socketChannel;
+        this.handshake = handshake;
+        this.handler = handler;
+        
+        if (handshake != null)
+            decoder.setMaxFrameSize(MAX_HANDSHAKE_FRAME_SIZE);
+        
+        state = State.CONNECTING;
+    }
+    
+    @Override
+    public boolean debug()
+    {
+        return engine.debug();
+    }
+    
+    @Override
+    public void log(String message)
+    {
+        Loggable.super.log("[" + getRemoteAddress() + "] [" + protocol + "] " + message);
+    }
+    
+    public SocketAddress getRemoteAddress()
+    {
+        try {
+            return socketChannel.getRemoteAddress();
+        }
+        
+        catch (IOException exception) {
+            return null;
+        }
+    }
+    
+    // Any per-connection state the handler wants to keep with the channel
+    public Object getAttachment()
+    {
+        return attachment;
+    }
+    
+    public void setAttachment(Object attachment)
+    {
+        this.attachment = attachment;
+    }
+    
+    public boolean isOpen()
+    {
+        return state == State.OPEN;
+    }
+    
+    public boolean isClosed()
+    {
+        return state == State.CLOSED;
+    }
+    
+    public synchronized SscpProtocol getProtocol()
+    {
+        return protocol;
+    }
+    
+    // Both ends must switch between two transmissions, just like on a SscpConnection
+    public synchronized void setProtocol(SscpProtocol protocol)
+    {
+        log("Setting SSCP protocol to: " + protocol);
+        
+        this.protocol = protocol;
+        
+        inputProtocol = protocol;
+    }
+    
+    public synchronized int getBlockSize()
+    {
+        return blockSize;
+    }
+    
+    @Override
+    public synchronized void setBlockSize(int blockSize)
+    {
+        if (blockSize < 1 || blockSize > maxBlockSize)
+            throw new IllegalArgumentException("block size invalid, must be between 1 and " + maxBlockSize);
+        
+        log("Setting block size to: " + blockSize);
+        
+        this.blockSize = blockSize;
+    }
+    
+    public synchronized boolean isFoldingEOT()
+    {
+        return foldingEOT;
+    }
+    
+    @Override
+    public synchronized void setFoldingEOT(boolean foldingEOT)
+    {
+        this.foldingEOT = foldingEOT;
+    }
+    
+    @Override
+    public synchronized int getMaxBlockSize()
+    {
+        return maxBlockSize;
+    }
+    
+    public synchronized void setMaxBlockSize(int maxBlockSize)
+    {
+        if (maxBlockSize < SscpProtocol.DEFAULT_BLOCK_SIZE || maxBlockSize > SscpProtocol.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("max block size invalid, must be between "
+                + SscpProtocol.DEFAULT_BLOCK_SIZE + " and " + SscpProtocol.MAX_BLOCK_SIZE);
+        
+        this.maxBlockSize = maxBlockSize;
+    }
+    
+    @Override
+    public synchronized Key getKey(SscpProtocol protocol)
+    {
+        if (!protocol.isNotDefault())
+            throw new IllegalArgumentException("protocol invalid, default has no key");
+        
+        return (keys == null) ? null : keys[protocol.ordinal() - 1];
+    }
+    
+    @Override
+    public synchronized void setKey(SscpProtocol protocol, Key key)
+    {
+        if (!protocol.isNotDefault())
+            throw new IllegalArgumentException("protocol invalid, default has no key");
+        
+        if (keys == null)
+            keys = new Key[SscpProtocol.PROTOCOLS.length];
+        
+        keys[protocol.ordinal() - 1] = key;
+    }
+    
+    @Override
+    public synchronized boolean getUseClientMode()
+    {
+        if (clientMode == null)
+            throw new IllegalStateException("client mode not set");
+        
+        return clientMode;
+    }
+    
+    @Override
+    public synchronized void setUseClientMode(boolean clientMode)
+    {
+        this.clientMode = clientMode;
+    }
+    
+    private final int getNoncePrefix(boolean outbound)
+    {
+        return (getUseClientMode() == outbound)
+            ? SscpProtocol.CLIENT_NONCE_PREFIX
+            : SscpProtocol.SERVER_NONCE_PREFIX;
+    }
+    
+    // Bytes sealed but not yet taken by the socket, for handlers that pace their writes
+    public synchronized long getQueuedBytes()
+    {
+        return queuedBytes;
+    }
+    
+    public void writeString(String string)
+        throws IOException
+    {
+        byte[] bytes = string.getBytes(SscpProtocol.CHARSET);
+        
+        write(bytes, 0, bytes.length, true);
+    }
+    
+    public void write(byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        write(bytes, offset, length, false);
+    }
+    
+    public void writeEOT()
+        throws IOException
+    {
+        write(EMPTY, 0, 0, true);
+    }
+    
+    /*
+     * Seals the bytes into frames of at most one block each and queues them.
+     *
+     * Never blocks. Frames are sealed and queued under the channel's lock, so
+     * nonces go out in the order they were handed out even with several writers.
+     */
+    public void write(byte[] bytes, int offset, int length, boolean EOT)
+        throws IOException
+    {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        
+        if (length == 0 && !EOT)
+            return;
+        
+        synchronized (this) {
+            if (state == State.CLOSED || closeRequested)
+                throw new IOException("channel closed");
+            
+            SscpProtocol protocol = this.protocol;
+            
+            int blockSize = protocol.hasFixedBlockSize() ? protocol.getMaxBlockSize() : this.blockSize;
+            
+            int frames = Math.max(1, (length + blockSize - 1) / blockSize);
+            
+            int lastLength = length - (frames - 1) * blockSize;
+            
+            // legacy peers drop the data of a frame that carries EOT, so they get it on an empty frame
+            boolean separateEOT = EOT && length > 0 && !foldingEOT;
+            
+            int capacity = (frames - 1) * (SscpProtocol.STREAM_HEADER_SIZE + protocol.getMaxBodyLength(blockSize))
+                + SscpProtocol.STREAM_HEADER_SIZE + protocol.getMaxBodyLength(lastLength)
+                + (separateEOT ? SscpProtocol.STREAM_HEADER_SIZE + protocol.getMaxBodyLength(0) : 0);
+            
+            byte[] output = new byte[capacity];
+            
+            Key key = protocol.isNotDefault() ? getKey(protocol) : null;
+            
+            int noncePrefix = protocol.usesNonces() ? getNoncePrefix(true) : 0;
+            
+            int outputLength = 0;
+            
+            for (int i = 0; i < frames; i++) {
+                int frameLength = (i == frames - 1) ? lastLength : blockSize;
+                
+                outputLength += SscpOutputStream.sealFrame(protocol, key, noncePrefix, outputNonceCounter, 0, 0,
+                    bytes, offset + i * blockSize, frameLength, EOT && !separateEOT && (i == frames - 1),
+                    output, outputLength);
+                
+                if (protocol.usesNonces())
+                    outputNonceCounter++;
+            }
+            
+            if (separateEOT) {
+                outputLength += SscpOutputStream.sealFrame(protocol, key, noncePrefix, outputNonceCounter, 0, 0,
+                    EMPTY, 0, 0, true, output, outputLength);
+                
+                if (protocol.usesNonces())
+                    outputNonceCounter++;
+            }
+            
+            if (writeQueue == null)
+                writeQueue = new ArrayDeque<>();
+            
+            writeQueue.add(ByteBuffer.wrap(output, 0, outputLength));
+            
+            queuedBytes += outputLength;
+        }
+        
+        requestFlush();
+    }
+    
+    private final void requestFlush()
+    {
+        if (loop.inEventLoop()) {
+            flush();
+            
+            return;
+        }
+        
+        synchronized (this) {
+            if (flushScheduled)
+                return;
+            
+            flushScheduled = true;
+        }
+        
+        loop.execute(this::flush);
+    }
+    
+    /*
+     * Closes the channel once everything written so far has been sent.
+     *
+     * Frames that arrive meanwhile are still delivered.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            if (state == State.CLOSED || closeRequested)
+                return;
+            
+            closeRequested = true;
+        }
+        
+        requestFlush();
+    }
+    
+    // Closes the socket right away, dropping whatever is still queued
+    public void abort()
+    {
+        loop.execute(() -> closeNow(null));
+    }
+    
+    // Runs on the loop thread once the channel has been handed to its loop
+    void register()
+    {
+        try {
+            int ops = socketChannel.isConnectionPending() ? SelectionKey.OP_CONNECT : 0;
+            
+            selectionKey = loop.register(socketChannel, ops, new EventHandler());
+            
+            engine.channelOpened();
+            
+            if (!socketChannel.isConnectionPending())
+                connected();
+        }
+        
+        catch (IOException | RuntimeException exception) {
+            closeNow(asIOException(exception));
+        }
+    }
+    
+    private final void connected()
+        throws IOException
+    {
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        
+        log("Connected");
+        
+        if (handshake != null) {
+            state = State.HANDSHAKE;
+            
+            handshake.start(this);
+        }
+        
+        else
+            opened();
+        
+        flush();
+    }
+    
+    private final void opened()
+        throws IOException
+    {
+        state = State.OPEN;
+        
+        decoder.setMaxFrameSize(SscpProtocol.MAX_FRAME_SIZE);
+        
+        log("Channel open");
+        
+        handler.onOpen(this);
+    }
+    
+    private final class EventHandler
+        implements SscpEventLoop.EventHandler
+    {
+        @Override
+        public void handleEvent(SelectionKey key)
+        {
+            try {
+                if (key.isConnectable()) {
+                    if (!socketChannel.finishConnect())
+                        return;
+                    
+                    connected();
+                }
+                
+                if (key.isValid() && key.isReadable())
+                    read();
+                
+                if (key.isValid() && key.isWritable())
+                    flush();
+            }
+            
+            catch (IOException | RuntimeException exception) {
+                closeNow(asIOException(exception));
+            }
+        }
+        
+        @Override
+        public void handleShutdown()
+        {
+            closeNow(new IOException("engine closed"));
+        }
+    }
+    
+    private final void read()
+        throws IOException
+    {
+        ByteBuffer readBuffer = loop.getReadBuffer();
+        
+        for (int i = 0; i < MAX_READS_PER_EVENT && state != State.CLOSED; i++) {
+            readBuffer.clear();
+            
+            int n = socketChannel.read(readBuffer);
+            
+            if (n == -1) {
+                if (decoder.isPartial() || message != null)
+                    throw new EOFException("connection closed in the middle of a frame");
+                
+                closeNow(null);
+                
+                return;
+            }
+            
+            readBuffer.flip();
+            
+            while (state != State.CLOSED && decoder.decode(readBuffer))
+                deliverFrame();
+            
+            // a short read means the socket has nothing more for now
+            if (n < readBuffer.capacity())
+                return;
+        }
+    }
+    
+    private final void deliverFrame()
+        throws IOException
+    {
+        if (decoder.getStreamId() != 0)
+            throw new IOException("multiplexed streams not supported");
+        
+        int flags = decoder.getFlags();
+        
+        byte[] bytes = decoder.getBuffer();
+        
+        int offset = decoder.getBodyOffset();
+        
+        int length = decoder.getBodyLength();
+        
+        SscpProtocol protocol;
+        
+        Key key = null;
+        
+        int noncePrefix = 0;
+        
+        long nonceCounter = 0;
+        
+        synchronized (this) {
+            SscpProtocol frameProtocol = SscpProtocol.fromOrdinal(decoder.getProtocolOrdinal());
+            
+            // frames of an authenticated protocol are the only ones it accepts, or any forged frame would get in
+            if (inputProtocol != frameProtocol && inputProtocol.usesNonces())
+                throw new IOException("frame of " + frameProtocol + " received while " + inputProtocol + " is in use");
+            
+            // extended headers name the protocol, legacy ones only have a version bit
+            if (inputProtocol != frameProtocol && inputProtocol.isNotDefault() && frameProtocol.isNotDefault())
+                inputProtocol = frameProtocol;
+            
+            protocol = inputProtocol;
+            
+            // nonce-based frames always carry a tag, even when empty, so none goes unchecked
+            if (protocol.isNotDefault() && (length > 0 || protocol.usesNonces())) {
+                key = getKey(protocol);
+                
+                if (key == null)
+                    throw new IOException("no key for " + protocol);
+                
+                if (protocol.usesNonces()) {
+                    noncePrefix = getNoncePrefix(false);
+                    
+                    nonceCounter = inputNonceCounter++;
+                }
+            }
+        }
+        
+        // fixed-size blocks leave nothing to gain, so no peer compresses them
+        if ((flags & SscpProtocol.FLAG_COMPRESSED) != 0 && protocol.hasFixedBlockSize())
+            throw new IOException("compressed frame not allowed for " + protocol);
+        
+        if (key != null) {
+            byte[] plaintext = loop.getPlaintext(length);
+            
+            length = SscpInputStream.openFrame(protocol, key, noncePrefix, nonceCounter, decoder.getHeaderSize(),
+                bytes, offset, length, plaintext, 0);
+            
+            bytes = plaintext;
+            
+            offset = 0;
+        }
+        
+        if ((flags & SscpProtocol.FLAG_COMPRESSED) != 0) {
+            SscpDecompressor decompressor = loop.getDecompressor();
+            
+            length = decompressor.decompress(bytes, offset, length);
+            
+            bytes = decompressor.getBuffer();
+            
+            offset = 0;
+        }
+        
+        if (state == State.HANDSHAKE)
+            receiveMessage(bytes, offset, length, decoder.isEOT());
+        
+        else
+            handler.onData(this, bytes, offset, length, decoder.isEOT());
+    }
+    
+    // Handshake messages are collected until their transmission ends
+    private final void receiveMessage(byte[] bytes, int offset, int length, boolean EOT)
+        throws IOException
+    {
+        if (message == null)
+            message = new ByteArrayOutputStream();
+        
+        // a message that never ends would otherwise grow for as long as the peer keeps sending
+        if (message.size() + length > MAX_HANDSHAKE_MESSAGE_SIZE)
+            throw new IOException("handshake message longer than " + MAX_HANDSHAKE_MESSAGE_SIZE + " bytes");
+        
+        message.write(bytes, offset, length);
+        
+        if (!EOT)
+            return;
+        
+        String string = message.toString(SscpProtocol.CHARSET);
+        
+        message = null;
+        
+        if (!handshake.onMessage(this, string))
+            return;
+        
+        handshake = null;
+        
+        opened();
+    }
+    
+    // Runs on the loop thread and sends as much of the queue as the socket takes
+    private final void flush()
+    {
+        boolean drained = false;
+        
+        boolean close = false;
+        
+        try {
+            synchronized (this) {
+                flushScheduled = false;
+                
+                if (state == State.CLOSED || state == State.CONNECTING)
+                    return;
+                
+                while (writeQueue != null && !writeQueue.isEmpty()) {
+                    ByteBuffer buffer = writeQueue.peek();
+                    
+                    int n = socketChannel.write(buffer);
+                    
+                    queuedBytes -= n;
+                    
+                    if (buffer.hasRemaining()) {
+                        // the socket is full, so the loop resumes once it has room again
+                        selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        
+                        return;
+                    }
+                    
+                    writeQueue.poll();
+                    
+                    drained = true;
+                }
+                
+                writeQueue = null;
+                
+                selectionKey.interestOps(SelectionKey.OP_READ);
+                
+                close = closeRequested;
+            }
+            
+            if (close)
+                closeNow(null);
+            
+            else if (drained && state == State.OPEN)
+                handler.onDrained(this);
+        }
+        
+        catch (IOException | RuntimeException exception) {
+            closeNow(asIOException(exception));
+        }
+    }
+    
+    private final void closeNow(IOException failure)
+    {
+        synchronized (this) {
+            if (state == State.CLOSED)
+                return;
+            
+            state = State.CLOSED;
+            
+            writeQueue = null;
+            
+            queuedBytes = 0;
+        }
+        
+        if (selectionKey != null) {
+            selectionKey.cancel();
+            
+            engine.channelClosed();
+        }
+        
+        try {
+            socketChannel.close();
+        }
+        
+        catch (IOException exception) { }
+        
+        if (failure != null)
+            log("Channel failed: " + failure);
+        
+        else
+            log("Channel closed");
+        
+        handler.onClose(this, failure);
+    }
+    
+    private static final IOException asIOException(Exception exception)
+    {
+        if (exception instanceof IOException)
+            return (IOException) exception;
+        
+        return new IOException(exception.toString(), exception);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SscpChannel {remote=" + getRemoteAddress() + ", state=" + state + "}";
+    }
+}
@@ -0,0 +1,271 @@
+package com.secstore.sscp;
+
+import static com.secstore.Logger.Loggable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import com.secstore.Logger;
+
+
+/*
+ * Runs any number of SscpChannels on a handful of event loop threads.
+ *
+ * A blocking SscpConnection needs a thread of its own that sits in a read for
+ * as long as the connection lives. Here a channel only takes up a loop thread
+ * while something arrives for it, so thousands of mostly idle connections cost
+ * a few threads and very little memory each.
+ *
+ * Channels are spread over the loops in turn, and each stays on its loop for
+ * good. Listeners accept on the first loop.
+ */
+public final class SscpChannelEngine
+    implements Closeable, Loggable
+{
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final int DEFAULT_BACKLOG = 1024;
+    
+    // connections accepted per readiness event before the loop serves its other channels
+    private static final int MAX_ACCEPTS_PER_EVENT = 64;
+    
+    private final SscpEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger openChannels = new AtomicInteger();
+    private final List<ServerSocketChannel> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean debug = false;
+    private volatile boolean closed = false;
+    
+    public SscpChannelEngine()
+        throws IOException
+    {
+        this(DEFAULT_EVENT_LOOPS);
+    }
+    
+    public SscpChannelEngine(int eventLoops)
+        throws IOException
+    {
+        if (eventLoops < 1)
+            throw new IllegalArgumentException("event loops must be positive");
+        
+        loops = new SscpEventLoop[eventLoops];
+        
+        for (int i = 0; i < eventLoops; i++)
+            loops[i] = new SscpEventLoop("sscp-loop-" + i);
+        
+        for (SscpEventLoop loop : loops)
+            loop.start();
+    }
+    
+    @Override
+    public boolean debug()
+    {
+        return debug;
+    }
+    
+    public SscpChannelEngine setDebug(boolean debug)
+    {
+        this.debug = debug;
+        
+        return this;
+    }
+    
+    @Override
+    public void log(String message)
+    {
+        Loggable.super.log("[SSCP ENGINE] " + message);
+    }
+    
+    public int getEventLoops()
+    {
+        return loops.length;
+    }
+    
+    // Channels registered with a loop and not yet closed
+    public int getOpenChannels()
+    {
+        return openChannels.get();
+    }
+    
+    /*
+     * Accepts connections on the given address until the engine is closed and
+     * returns the port bound, which differs from the one asked for if that was 0.
+     *
+     * Every accepted channel runs a fresh handshake from the supplier, which may
+     * return null to skip it, and then shares the handler with the others.
+     */
+    public int listen(InetSocketAddress address, Supplier<SscpChannel.Handshake> handshakes,
+        SscpChannel.Handler handler)
+        throws IOException
+    {
+        ensureOpen();
+        
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        
+        serverChannel.configureBlocking(false);
+        
+        serverChannel.bind(address, DEFAULT_BACKLOG);
+        
+        listeners.add(serverChannel);
+        
+        SscpEventLoop loop = loops[0];
+        
+        loop.execute(() -> {
+            try {
+                loop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(serverChannel, handshakes, handler));
+            }
+            
+            catch (IOException exception) {
+                Logger.log("[SSCP ENGINE] Listener failed: " + exception);
+            }
+        });
+        
+        log("Listening on " + serverChannel.getLocalAddress());
+        
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+    
+    // Starts connecting and returns at once, the handler hears when the channel is open
+    public SscpChannel connect(InetSocketAddress address, SscpChannel.Handshake handshake, SscpChannel.Handler handler)
+        throws IOException
+    {
+        ensureOpen();
+        
+        SocketChannel socketChannel = SocketChannel.open();
+        
+        try {
+            socketChannel.configureBlocking(false);
+            
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            
+            socketChannel.connect(address);
+        }
+        
+        catch (IOException exception) {
+            socketChannel.close();
+            
+            throw exception;
+        }
+        
+        return register(socketChannel, handshake, handler);
+    }
+    
+    private final SscpChannel register(SocketChannel socketChannel, SscpChannel.Handshake handshake,
+        SscpChannel.Handler handler)
+    {
+        SscpEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        
+        SscpChannel channel = new SscpChannel(this, loop, socketChannel, handshake, handler);
+        
+        loop.execute(channel::register);
+        
+        return channel;
+    }
+    
+    void channelOpened()
+    {
+        openChannels.incrementAndGet();
+    }
+    
+    void channelClosed()
+    {
+        openChannels.decrementAndGet();
+    }
+    
+    private final class Acceptor
+        implements SscpEventLoop.EventHandler
+    {
+        private final ServerSocketChannel serverChannel;
+        private final Supplier<SscpChannel.Handshake> handshakes;
+        private final SscpChannel.Handler handler;
+        
+        private Acceptor(ServerSocketChannel serverChannel, Supplier<SscpChannel.Handshake> handshakes,
+            SscpChannel.Handler handler)
+        {
+            this.serverChannel = serverChannel;
+            this.handshakes = handshakes;
+            this.handler = handler;
+        }
+        
+        @Override
+        public void handleEvent(SelectionKey key)
+        {
+            for (int i = 0; i < MAX_ACCEPTS_PER_EVENT; i++) {
+                SocketChannel socketChannel;
+                
+                try {
+                    socketChannel = serverChannel.accept();
+                    
+                    if (socketChannel == null)
+                        return;
+                    
+                    socketChannel.configureBlocking(false);
+                    
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                
+                catch (IOException exception) {
+                    Logger.log("[SSCP ENGINE] Accept failed: " + exception);
+                    
+                    return;
+                }
+                
+                register(socketChannel, handshakes.get(), handler);
+            }
+        }
+        
+        @Override
+        public void handleShutdown()
+        {
+            try {
+                serverChannel.close();
+            }
+            
+            catch (IOException exception) { }
+        }
+    }
+    
+    // Closes the listeners and every channel, which hear about it through onClose
+    @Override
+    public void close()
+    {
+        if (closed)
+            return;
+        
+        closed = true;
+        
+        log("Closing");
+        
+        for (ServerSocketChannel serverChannel : listeners) {
+            try {
+                serverChannel.close();
+            }
+            
+            catch (IOException exception) { }
+        }
+        
+        for (SscpEventLoop loop : loops)
+            loop.close();
+        
+        try {
+            for (SscpEventLoop loop : loops)
+                loop.join();
+        }
+        
+        catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private final void ensureOpen()
+    {
+        if (closed)
+            throw new IllegalStateException("engine closed");
+    }
+}
@@ -0,0 +1,141 @@
+package com.secstore.sscp;
+
+import java.util.zip.Deflater;
+
+
+/*
+ * Deflates outgoing frame bodies before they are encrypted.
+ *
+ * Every frame is compressed on its own with one reused Deflater, so frames can
+ * still be opened independently and in parallel. A frame is only sent
+ * compressed if that makes it smaller.
+ *
+ * The first SAMPLE_FRAMES frames of every transmission are always tried. If
+ * they shrink by less than a tenth in total, the rest of the transmission is
+ * sent as is, which keeps jpg, mp3 or gif uploads from paying for nothing.
+ */
+final class SscpCompressor
+{
+    public static final int SAMPLE_FRAMES = 4;
+    
+    private final Deflater deflater;
+    private byte[] output;
+    private int sampledFrames;
+    private long sampledBytesIn;
+    private long sampledBytesOut;
+    private boolean skipping;
+    private long framesIn;
+    private long framesCompressed;
+    private long bytesIn;
+    private long bytesOut;
+    private long nanos;
+    
+    public SscpCompressor(int level)
+    {
+        deflater = new Deflater(level);
+        
+        output = new byte[0];
+    }
+    
+    public void setLevel(int level)
+    {
+        deflater.setLevel(level);
+    }
+    
+    public byte[] getBuffer()
+    {
+        return output;
+    }
+    
+    // Returns the compressed length in getBuffer, or -1 if the frame should be sent as is
+    public int compress(byte[] bytes, int offset, int length)
+    {
+        framesIn++;
+        
+        bytesIn += length;
+        
+        if (skipping) {
+            bytesOut += length;
+            
+            return -1;
+        }
+        
+        long start = System.nanoTime();
+        
+        if (output.length < length)
+            output = new byte[length];
+        
+        deflater.reset();
+        
+        deflater.setInput(bytes, offset, length);
+        
+        deflater.finish();
+        
+        // output that does not fit in the original size is not worth sending
+        int compressedLength = deflater.deflate(output, 0, length);
+        
+        boolean smaller = deflater.finished() && compressedLength < length;
+        
+        nanos += System.nanoTime() - start;
+        
+        if (sampledFrames < SAMPLE_FRAMES) {
+            sampledFrames++;
+            
+            sampledBytesIn += length;
+            
+            sampledBytesOut += smaller ? compressedLength : length;
+            
+            if (sampledFrames == SAMPLE_FRAMES && sampledBytesOut * 10 > sampledBytesIn * 9)
+                skipping = true;
+        }
+        
+        if (!smaller) {
+            bytesOut += length;
+            
+            return -1;
+        }
+        
+        framesCompressed++;
+        
+        bytesOut += compressedLength;
+        
+        return compressedLength;
+    }
+    
+    // Sampling starts over with every transmission, since the next one may be a different kind of file
+    public void endTransmission()
+    {
+        sampledFrames = 0;
+        
+        sampledBytesIn = 0;
+        
+        sampledBytesOut = 0;
+        
+        skipping = false;
+    }
+    
+    public long getFramesIn()
+    {
+        return framesIn;
+    }
+    
+    public long getFramesCompressed()
+    {
+        return framesCompressed;
+    }
+    
+    public long getBytesIn()
+    {
+        return bytesIn;
+    }
+    
+    public long getBytesOut()
+    {
+        return bytesOut;
+    }
+    
+    public long getNanos()
+    {
+        return nanos;
+    }
+}
@@ -1,6 +1,7 @@
 package com.secstore.sscp;
 
 import static com.secstore.Logger.Loggable;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -8,17 +9,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.Key;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 import javax.crypto.Cipher;
 
 
 public abstract class SscpConnection
-    implements Loggable
+    implements Loggable, SscpSession
 {
     private static final int TRANSFER_BUFFER_SIZE = 8192;
     
+    private static Executor defaultPipelineExecutor = null;
+    private static Executor defaultAsyncExecutor = null;
+    
     private final Key[] keys = new Key[SscpProtocol.PROTOCOLS.length];
     
+    // only the handshake uses these, the streams take their ciphers from CipherPool
     private final Cipher[] ciphers = new Cipher[SscpProtocol.PROTOCOLS.length];
     {
         SscpProtocol[] protocols = SscpProtocol.PROTOCOLS;
@@ -28,9 +41,23 @@ public abstract class SscpConnection
     }
     
     private SscpProtocol protocol = SscpProtocol.DEFAULT;
+    private int blockSize = SscpProtocol.DEFAULT_BLOCK_SIZE;
+    private int maxBlockSize = SscpProtocol.MAX_BLOCK_SIZE;
+    private volatile boolean foldingEOT = false;
+    private Executor pipelineExecutor = null;
+    private int pipelineWindow = 0;
+    private Boolean clientMode = null;
+    private int compressionLevel = 0;
     private Socket socket = null;
     private SscpInputStream in;
     private SscpOutputStream out;
+    private SscpMultiplexer multiplexer = null;
+    private Executor asyncExecutor = null;
+    private final SscpTransferQueue uploads = new SscpTransferQueue(TransferResult.Direction.UPLOAD);
+    private final SscpTransferQueue downloads = new SscpTransferQueue(TransferResult.Direction.DOWNLOAD);
+    
+    // streams take turns writing to the socket in the order they asked
+    private final ReentrantLock writeLock = new ReentrantLock(true);
     
     @Override
     public boolean debug()
@@ -49,6 +76,14 @@ public abstract class SscpConnection
     public void connect(Socket socket)
         throws IOException
     {
+        connect(socket, new SocketOptions());
+    }
+    
+    public void connect(Socket socket, SocketOptions options)
+        throws IOException
+    {
+        options.applyTo(socket);
+        
         this.socket = socket;
         
         in = new SscpInputStream(this);
@@ -93,55 +128,436 @@ public abstract class SscpConnection
         out.setProtocol(protocol);
     }
     
-    public Key getKey(SscpProtocol protocol)
+    public int getBlockSize()
     {
-        switch (protocol) {
-            case SSCP1:
-                return keys[0];
-            
-            case SSCP2:
-                return keys[1];
-            
-            case DEFAULT:
-            default:
-                throw new IllegalArgumentException("protocol invalid, must be sscp1 or sscp2");
+        return blockSize;
+    }
+    
+    // Block sizes above the legacy default need a peer that reads extended frame headers
+    @Override
+    public void setBlockSize(int blockSize)
+    {
+        if (blockSize < 1 || blockSize > maxBlockSize)
+            throw new IllegalArgumentException("block size invalid, must be between 1 and " + maxBlockSize);
+        
+        log("Setting block size to: " + blockSize);
+        
+        this.blockSize = blockSize;
+        
+        if (out != null)
+            out.reinitialize();
+    }
+    
+    public int getBlockSize(SscpProtocol protocol)
+    {
+        if (protocol.hasFixedBlockSize())
+            return protocol.getMaxBlockSize();
+        
+        return blockSize;
+    }
+    
+    // True when EOT rides on the last data frame of a transmission instead of an empty frame of its own
+    public boolean isFoldingEOT()
+    {
+        return foldingEOT;
+    }
+    
+    @Override
+    public void setFoldingEOT(boolean foldingEOT)
+    {
+        this.foldingEOT = foldingEOT;
+    }
+    
+    // The largest block size offered to the peer during the handshake
+    @Override
+    public int getMaxBlockSize()
+    {
+        return maxBlockSize;
+    }
+    
+    public void setMaxBlockSize(int maxBlockSize)
+    {
+        if (maxBlockSize < SscpProtocol.DEFAULT_BLOCK_SIZE || maxBlockSize > SscpProtocol.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("max block size invalid, must be between "
+                + SscpProtocol.DEFAULT_BLOCK_SIZE + " and " + SscpProtocol.MAX_BLOCK_SIZE);
+        
+        this.maxBlockSize = maxBlockSize;
+    }
+    
+    public Executor getPipelineExecutor()
+    {
+        return pipelineExecutor;
+    }
+    
+    public int getPipelineWindow()
+    {
+        return pipelineWindow;
+    }
+    
+    public void setPipelining(int window)
+    {
+        setPipelining(getDefaultPipelineExecutor(), window);
+    }
+    
+    // The common pool hands out a fresh thread per task on small machines, so connections share a fixed pool
+    private static synchronized Executor getDefaultPipelineExecutor()
+    {
+        if (defaultPipelineExecutor == null) {
+            defaultPipelineExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "sscp-pipeline");
+                    
+                    thread.setDaemon(true);
+                    
+                    return thread;
+                });
         }
+        
+        return defaultPipelineExecutor;
     }
     
-    public void setKey(SscpProtocol protocol, Key key)
+    /*
+     * Seals and opens up to window slots of frames in parallel on the executor.
+     *
+     * A slot is one SSCP2 frame or a batch of SSCP1 frames. Frames are still
+     * written and delivered in order, and each stream holds at most window slots
+     * in flight. A window of 0 turns pipelining off.
+     */
+    public void setPipelining(Executor executor, int window)
     {
-        switch (protocol) {
-            case SSCP1:
-                keys[0] = key;
-                break;
-            
-            case SSCP2:
-                keys[1] = key;
-                break;
-            
-            case DEFAULT:
-            default:
-                throw new IllegalArgumentException("protocol invalid, must be sscp1 or sscp2");
+        if (window < 0)
+            throw new IllegalArgumentException("pipeline window must not be negative");
+        
+        if (window > 0 && executor == null)
+            throw new IllegalArgumentException("pipeline executor missing");
+        
+        log("Setting pipeline window to: " + window);
+        
+        this.pipelineExecutor = (window > 0) ? executor : null;
+        
+        this.pipelineWindow = window;
+        
+        if (out != null)
+            out.reinitialize();
+    }
+    
+    public synchronized Executor getAsyncExecutor()
+    {
+        if (asyncExecutor == null)
+            asyncExecutor = getDefaultAsyncExecutor();
+        
+        return asyncExecutor;
+    }
+    
+    // Runs the transfers of the async methods, of this connection and its streams
+    public synchronized void setAsyncExecutor(Executor executor)
+    {
+        if (executor == null)
+            throw new IllegalArgumentException("async executor missing");
+        
+        this.asyncExecutor = executor;
+    }
+    
+    // Each direction of each connection runs one transfer at a time, so a thread is only held while bytes move
+    private static synchronized Executor getDefaultAsyncExecutor()
+    {
+        if (defaultAsyncExecutor == null) {
+            defaultAsyncExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "sscp-async");
+                
+                thread.setDaemon(true);
+                
+                return thread;
+            });
         }
+        
+        return defaultAsyncExecutor;
+    }
+    
+    public boolean isPipelined(SscpProtocol protocol)
+    {
+        return pipelineWindow > 0 && protocol.isNotDefault();
+    }
+    
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+    
+    /*
+     * Deflates outgoing frames at the given level before they are encrypted.
+     *
+     * A level of 0 turns compression off. Compressed frames use the extended
+     * header, so the peer must read those. Incoming compressed frames are always
+     * inflated, whatever the local level.
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("compression level invalid, must be between -1 and 9");
+        
+        log("Setting compression level to: " + compressionLevel);
+        
+        this.compressionLevel = compressionLevel;
+        
+        if (out != null)
+            out.reinitialize();
+    }
+    
+    // SSCP1 frames are too small to gain anything from compression
+    public boolean isCompressed(SscpProtocol protocol)
+    {
+        return compressionLevel != 0 && !protocol.hasFixedBlockSize();
+    }
+    
+    public CompressionStats getCompressionStats()
+    {
+        return new CompressionStats(out.getCompressor(), in.getDecompressor());
+    }
+    
+    @Override
+    public Key getKey(SscpProtocol protocol)
+    {
+        if (!protocol.isNotDefault())
+            throw new IllegalArgumentException("protocol invalid, default has no key");
+        
+        return keys[protocol.ordinal() - 1];
+    }
+    
+    @Override
+    public void setKey(SscpProtocol protocol, Key key)
+    {
+        if (!protocol.isNotDefault())
+            throw new IllegalArgumentException("protocol invalid, default has no key");
+        
+        keys[protocol.ordinal() - 1] = key;
     }
     
     public Cipher getCipher(SscpProtocol protocol)
     {
-        switch (protocol) {
-            case SSCP1:
-                return ciphers[0];
-            
-            case SSCP2:
-                return ciphers[1];
-            
-            case DEFAULT:
-            default:
-                throw new IllegalArgumentException("protocol invalid");
-        }
+        if (!protocol.isNotDefault())
+            throw new IllegalArgumentException("protocol invalid");
+        
+        return ciphers[protocol.ordinal() - 1];
+    }
+    
+    @Override
+    public boolean getUseClientMode()
+    {
+        if (clientMode == null)
+            throw new IllegalStateException("client mode not set");
+        
+        return clientMode;
+    }
+    
+    // Tells the two ends of a connection apart, which nonce-based protocols need to keep their nonces distinct
+    @Override
+    public void setUseClientMode(boolean clientMode)
+    {
+        this.clientMode = clientMode;
+    }
+    
+    public int getNoncePrefix(boolean outbound)
+    {
+        return (getUseClientMode() == outbound)
+            ? SscpProtocol.CLIENT_NONCE_PREFIX
+            : SscpProtocol.SERVER_NONCE_PREFIX;
+    }
+    
+    // Every stream counts its frames from 0, so its id goes into the nonce prefix as well
+    public int getNoncePrefix(boolean outbound, int streamId)
+    {
+        return (streamId << 2) | getNoncePrefix(outbound);
+    }
+    
+    ReentrantLock getWriteLock()
+    {
+        return writeLock;
+    }
+    
+    /*
+     * True when neither end is in the middle of a transmission and nothing has
+     * arrived that was not read, so the connection can be handed to someone
+     * else. Multiplexed connections are never idle, their streams may be busy.
+     */
+    public boolean isIdle()
+        throws IOException
+    {
+        if (in == null || multiplexer != null)
+            return false;
+        
+        return in.isIdle() && out.isIdle() && socket.getInputStream().available() == 0;
+    }
+    
+    public boolean isMultiplexed()
+    {
+        return multiplexer != null;
+    }
+    
+    /*
+     * Lets this connection carry many streams at once, see SscpStream.
+     *
+     * Both ends must call this between two transmissions, after the handshake
+     * has set the client mode. From then on a daemon thread reads the socket and
+     * hands every frame to its stream. readString, downloadTo and their kin keep
+     * working on stream 0.
+     */
+    public synchronized void startMultiplexing()
+    {
+        if (multiplexer != null)
+            return;
+        
+        log("Starting multiplexing");
+        
+        SscpStreamInput primaryInput = new SscpStreamInput(SscpMultiplexer.STREAM_QUEUE_FRAMES);
+        
+        SscpFrameReader socketFrameReader = in.redirect(primaryInput);
+        
+        multiplexer = new SscpMultiplexer(this, socketFrameReader, primaryInput);
+        
+        Thread thread = new Thread(multiplexer, "sscp-demux");
+        
+        thread.setDaemon(true);
+        
+        thread.start();
+    }
+    
+    // Streams start out with the protocol of the connection at the time they are opened
+    public SscpStream openStream()
+        throws IOException
+    {
+        return getMultiplexer().openStream();
+    }
+    
+    // Blocks until the peer opens a stream
+    public SscpStream acceptStream()
+        throws IOException
+    {
+        return getMultiplexer().acceptStream();
+    }
+    
+    private synchronized SscpMultiplexer getMultiplexer()
+    {
+        if (multiplexer == null)
+            throw new IllegalStateException("connection not multiplexed");
+        
+        return multiplexer;
     }
     
     public String readString()
         throws IOException
+    {
+        return readString(in);
+    }
+    
+    // Reads up to the end of the current transmission, for those that parse it as it arrives
+    public SscpInputStream getInputStream()
+    {
+        return in;
+    }
+    
+    // Writes into the current transmission, for those that frame it themselves and end it with writeEOT
+    public SscpOutputStream getOutputStream()
+    {
+        return out;
+    }
+    
+    public void downloadTo(String fileName)
+        throws IOException
+    {
+        downloadTo(in, fileName);
+    }
+    
+    // Copies the next transmission into outputStream, which is left open
+    public void downloadTo(OutputStream outputStream)
+        throws IOException
+    {
+        transferTo(in, outputStream);
+    }
+    
+    // Copies the next transmission into the file with the disk writes on a thread of their own
+    public SscpDiskWriter.Stats downloadTo(Path path, SscpDiskWriter.Options options)
+        throws IOException
+    {
+        return SscpDiskWriter.download(in, path, options);
+    }
+    
+    public void writeString(String string)
+        throws IOException
+    {
+        writeString(out, string);
+    }
+    
+    public void uploadFrom(String fileName)
+        throws IOException
+    {
+        uploadFrom(out, fileName);
+    }
+    
+    // Sends everything left in inputStream as one transmission, inputStream is left open
+    public void uploadFrom(InputStream inputStream)
+        throws IOException
+    {
+        uploadFrom(out, inputStream);
+    }
+    
+    /*
+     * The async methods queue a transfer and return at once.
+     *
+     * Uploads run one after the other in the order they were queued, and so do
+     * downloads, each on the async executor. Cancelling a transfer or letting it
+     * time out stops it as described in SscpTransferQueue. They must not be
+     * mixed with the blocking methods of the same direction while any is queued.
+     */
+    public CompletableFuture<String> readStringAsync()
+    {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        
+        CompletableFuture<TransferResult> download = downloadToAsync(byteArrayOutputStream);
+        
+        CompletableFuture<String> string = download
+            .thenApply(result -> byteArrayOutputStream.toString(SscpProtocol.CHARSET));
+        
+        // cancelling the string or letting it time out stops the download behind it
+        string.whenComplete((result, failure) -> download.cancel(false));
+        
+        return string;
+    }
+    
+    public CompletableFuture<TransferResult> downloadToAsync(Path path)
+    {
+        return downloads.submit(getAsyncExecutor(), future -> SscpTransferQueue.download(in, path, future));
+    }
+    
+    public CompletableFuture<TransferResult> downloadToAsync(OutputStream outputStream)
+    {
+        return downloads.submit(getAsyncExecutor(), future -> SscpTransferQueue.download(in, outputStream, future));
+    }
+    
+    public CompletableFuture<TransferResult> writeStringAsync(String string)
+    {
+        byte[] bytes = string.getBytes(SscpProtocol.CHARSET);
+        
+        return uploadFromAsync(new ByteArrayInputStream(bytes));
+    }
+    
+    public CompletableFuture<TransferResult> uploadFromAsync(Path path)
+    {
+        return uploads.submit(getAsyncExecutor(), future -> {
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                return SscpTransferQueue.upload(out, inputStream, future, socket);
+            }
+        });
+    }
+    
+    public CompletableFuture<TransferResult> uploadFromAsync(InputStream inputStream)
+    {
+        return uploads.submit(getAsyncExecutor(),
+            future -> SscpTransferQueue.upload(out, inputStream, future, socket));
+    }
+    
+    static String readString(SscpInputStream in)
+        throws IOException
     {
         try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
             transferTo(in, byteArrayOutputStream);
@@ -150,7 +566,7 @@ public abstract class SscpConnection
         }
     }
     
-    public void downloadTo(String fileName)
+    static void downloadTo(SscpInputStream in, String fileName)
         throws IOException
     {
         try (FileOutputStream fileOutputStream = new FileOutputStream(fileName)) {
@@ -158,7 +574,7 @@ public abstract class SscpConnection
         }
     }
     
-    public void writeString(String string)
+    static void writeString(SscpOutputStream out, String string)
         throws IOException
     {
         out.write(string.getBytes(SscpProtocol.CHARSET));
@@ -166,17 +582,23 @@ public abstract class SscpConnection
         out.writeEOT();
     }
     
-    public void uploadFrom(String fileName)
+    static void uploadFrom(SscpOutputStream out, String fileName)
         throws IOException
     {
         try (FileInputStream dataInputStream = new FileInputStream(fileName)) {
-            transferTo(dataInputStream, out);
+            uploadFrom(out, dataInputStream);
         }
+    }
+    
+    static void uploadFrom(SscpOutputStream out, InputStream inputStream)
+        throws IOException
+    {
+        transferTo(inputStream, out);
         
         out.writeEOT();
     }
     
-    private static final void transferTo(InputStream inputStream, OutputStream outputStream)
+    static final void transferTo(InputStream inputStream, OutputStream outputStream)
         throws IOException
     {
         byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
@@ -186,4 +608,228 @@ public abstract class SscpConnection
         while ((bytesRead = inputStream.read(buffer, 0, TRANSFER_BUFFER_SIZE)) != -1)
             outputStream.write(buffer, 0, bytesRead);
     }
+    
+    /*
+     * A snapshot of how well compression has done on this connection so far.
+     *
+     * Ratios are compressed size over original size, so lower is better. CPU
+     * cost is the time spent inside Deflater and Inflater.
+     */
+    public static class CompressionStats
+    {
+        private final long framesSent;
+        private final long framesCompressed;
+        private final long bytesBeforeCompression;
+        private final long bytesAfterCompression;
+        private final long compressionNanos;
+        private final long framesInflated;
+        private final long bytesBeforeInflation;
+        private final long bytesAfterInflation;
+        private final long inflationNanos;
+        
+        CompressionStats(SscpCompressor compressor, SscpDecompressor decompressor)
+        {
+            framesSent = (compressor != null) ? compressor.getFramesIn() : 0;
+            framesCompressed = (compressor != null) ? compressor.getFramesCompressed() : 0;
+            bytesBeforeCompression = (compressor != null) ? compressor.getBytesIn() : 0;
+            bytesAfterCompression = (compressor != null) ? compressor.getBytesOut() : 0;
+            compressionNanos = (compressor != null) ? compressor.getNanos() : 0;
+            framesInflated = decompressor.getFramesInflated();
+            bytesBeforeInflation = decompressor.getBytesIn();
+            bytesAfterInflation = decompressor.getBytesOut();
+            inflationNanos = decompressor.getNanos();
+        }
+        
+        public long getFramesSent()
+        {
+            return framesSent;
+        }
+        
+        public long getFramesCompressed()
+        {
+            return framesCompressed;
+        }
+        
+        public long getBytesBeforeCompression()
+        {
+            return bytesBeforeCompression;
+        }
+        
+        public long getBytesAfterCompression()
+        {
+            return bytesAfterCompression;
+        }
+        
+        public long getCompressionNanos()
+        {
+            return compressionNanos;
+        }
+        
+        public double getCompressionRatio()
+        {
+            return (bytesBeforeCompression == 0) ? 1.0 : (double) bytesAfterCompression / bytesBeforeCompression;
+        }
+        
+        public long getFramesInflated()
+        {
+            return framesInflated;
+        }
+        
+        public long getBytesBeforeInflation()
+        {
+            return bytesBeforeInflation;
+        }
+        
+        public long getBytesAfterInflation()
+        {
+            return bytesAfterInflation;
+        }
+        
+        public long getInflationNanos()
+        {
+            return inflationNanos;
+        }
+        
+        public double getInflationRatio()
+        {
+            return (bytesAfterInflation == 0) ? 1.0 : (double) bytesBeforeInflation / bytesAfterInflation;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return String.format("CompressionStats {out: %d/%d frames, ratio=%.3f, cpu=%.1f ms; "
+                + "in: %d frames, ratio=%.3f, cpu=%.1f ms}",
+                framesCompressed, framesSent, getCompressionRatio(), compressionNanos / 1e6,
+                framesInflated, getInflationRatio(), inflationNanos / 1e6);
+        }
+    }
+    
+    /*
+     * What an asynchronous transfer moved and how long it took.
+     *
+     * The time spent queued behind earlier transfers of the same direction is
+     * kept apart from the time spent moving bytes.
+     */
+    public static class TransferResult
+    {
+        public static enum Direction
+        {
+            UPLOAD,
+            DOWNLOAD
+        }
+        
+        private final Direction direction;
+        private final long bytes;
+        private final long queuedNanos;
+        private final long transferNanos;
+        
+        TransferResult(Direction direction, long bytes, long queuedNanos, long transferNanos)
+        {
+            this.direction = direction;
+            this.bytes = bytes;
+            this.queuedNanos = queuedNanos;
+            this.transferNanos = transferNanos;
+        }
+        
+        public Direction getDirection()
+        {
+            return direction;
+        }
+        
+        public long getBytes()
+        {
+            return bytes;
+        }
+        
+        public long getQueuedNanos()
+        {
+            return queuedNanos;
+        }
+        
+        public long getTransferNanos()
+        {
+            return transferNanos;
+        }
+        
+        public double getBytesPerSecond()
+        {
+            return (transferNanos == 0) ? 0.0 : bytes * 1e9 / transferNanos;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return String.format("TransferResult {%s %d bytes, queued=%.1f ms, transfer=%.1f ms, %.2f MB/s}",
+                direction, bytes, queuedNanos / 1e6, transferNanos / 1e6, getBytesPerSecond() / 1e6);
+        }
+    }
+    
+    /*
+     * Socket options applied when a connection is established.
+     *
+     * SSCP already coalesces frames into large writes, so Nagle's algorithm is
+     * disabled by default. Buffer sizes of 0 keep the operating system defaults.
+     */
+    public static class SocketOptions
+    {
+        private boolean tcpNoDelay = true;
+        private int sendBufferSize = 0;
+        private int receiveBufferSize = 0;
+        
+        public boolean getTcpNoDelay()
+        {
+            return tcpNoDelay;
+        }
+        
+        public SocketOptions setTcpNoDelay(boolean tcpNoDelay)
+        {
+            this.tcpNoDelay = tcpNoDelay;
+            
+            return this;
+        }
+        
+        public int getSendBufferSize()
+        {
+            return sendBufferSize;
+        }
+        
+        public SocketOptions setSendBufferSize(int sendBufferSize)
+        {
+            if (sendBufferSize < 0)
+                throw new IllegalArgumentException("send buffer size must not be negative");
+            
+            this.sendBufferSize = sendBufferSize;
+            
+            return this;
+        }
+        
+        public int getReceiveBufferSize()
+        {
+            return receiveBufferSize;
+        }
+        
+        public SocketOptions setReceiveBufferSize(int receiveBufferSize)
+        {
+            if (receiveBufferSize < 0)
+                throw new IllegalArgumentException("receive buffer size must not be negative");
+            
+            this.receiveBufferSize = receiveBufferSize;
+            
+            return this;
+        }
+        
+        // Receive buffers above 64 KB only take full effect if set before the socket connects
+        public void applyTo(Socket socket)
+            throws SocketException
+        {
+            socket.setTcpNoDelay(tcpNoDelay);
+            
+            if (sendBufferSize > 0)
+                socket.setSendBufferSize(sendBufferSize);
+            
+            if (receiveBufferSize > 0)
+                socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
 }
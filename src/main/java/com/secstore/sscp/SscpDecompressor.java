@@ -0,0 +1,103 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/*
+ * Inflates frame bodies that were sent with the compressed flag.
+ *
+ * One Inflater and one output buffer are reused for every frame. The output
+ * grows up to the largest frame a peer may send.
+ */
+final class SscpDecompressor
+{
+    private final Inflater inflater;
+    private byte[] output;
+    private long framesInflated;
+    private long bytesIn;
+    private long bytesOut;
+    private long nanos;
+    
+    public SscpDecompressor()
+    {
+        inflater = new Inflater();
+        
+        output = new byte[SscpProtocol.DEFAULT_BLOCK_SIZE];
+    }
+    
+    public byte[] getBuffer()
+    {
+        return output;
+    }
+    
+    // Returns the inflated length in getBuffer
+    public int decompress(byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        
+        inflater.reset();
+        
+        inflater.setInput(bytes, offset, length);
+        
+        int inflatedLength = 0;
+        
+        try {
+            while (!inflater.finished()) {
+                if (inflatedLength == output.length) {
+                    if (output.length >= SscpProtocol.MAX_BLOCK_SIZE)
+                        throw new IOException("compressed frame too large");
+                    
+                    byte[] newOutput = new byte[Math.min(output.length * 2, SscpProtocol.MAX_BLOCK_SIZE)];
+                    
+                    System.arraycopy(output, 0, newOutput, 0, inflatedLength);
+                    
+                    output = newOutput;
+                }
+                
+                int n = inflater.inflate(output, inflatedLength, output.length - inflatedLength);
+                
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("compressed frame truncated");
+                
+                inflatedLength += n;
+            }
+        }
+        
+        catch (DataFormatException exception) {
+            throw new IOException("compressed frame invalid: " + exception);
+        }
+        
+        nanos += System.nanoTime() - start;
+        
+        framesInflated++;
+        
+        bytesIn += length;
+        
+        bytesOut += inflatedLength;
+        
+        return inflatedLength;
+    }
+    
+    public long getFramesInflated()
+    {
+        return framesInflated;
+    }
+    
+    public long getBytesIn()
+    {
+        return bytesIn;
+    }
+    
+    public long getBytesOut()
+    {
+        return bytesOut;
+    }
+    
+    public long getNanos()
+    {
+        return nanos;
+    }
+}
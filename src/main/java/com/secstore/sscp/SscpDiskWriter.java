@@ -0,0 +1,544 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+
+/*
+ * Downloads a transmission into a file with the disk writes taken off the
+ * thread that reads the socket.
+ *
+ * The reading thread opens frames into buffers and hands them over through a
+ * bounded queue to a writer on its own thread, which writes them to the file
+ * and gives them back. Only queueDepth buffers exist, so a disk that falls
+ * behind for longer than the queue covers still holds back the socket, but a
+ * single slow write or sync no longer does.
+ *
+ * A file of known size can be sized up front, which keeps its length from
+ * growing one write at a time, and is cut back if fewer bytes arrive. How often
+ * the data is synced to disk follows the SyncPolicy. A disk that fails does not
+ * stop the download, the rest of the transmission is read and thrown away so
+ * the connection stays usable, and then the failure is thrown.
+ */
+public final class SscpDiskWriter
+{
+    private static Executor defaultExecutor = null;
+    
+    public static enum SyncPolicy
+    {
+        NONE,
+        AT_END,
+        INTERVAL
+    }
+    
+    /*
+     * How a download is written.
+     *
+     * A preallocated size of 0 or less leaves the file to grow as it is written.
+     * The sync interval only counts under SyncPolicy.INTERVAL, which also syncs
+     * at the end.
+     */
+    public static class Options
+    {
+        public static final int DEFAULT_QUEUE_DEPTH = 16;
+        public static final int DEFAULT_BUFFER_SIZE = 262144;
+        public static final long DEFAULT_SYNC_INTERVAL = 64L << 20;
+        
+        private int queueDepth = DEFAULT_QUEUE_DEPTH;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+        private SyncPolicy syncPolicy = SyncPolicy.AT_END;
+        private long syncInterval = DEFAULT_SYNC_INTERVAL;
+        private long preallocatedSize = 0;
+        private Executor executor = null;
+        
+        public int getQueueDepth()
+        {
+            return queueDepth;
+        }
+        
+        public Options setQueueDepth(int queueDepth)
+        {
+            if (queueDepth < 1)
+                throw new IllegalArgumentException("queue depth must be positive");
+            
+            this.queueDepth = queueDepth;
+            
+            return this;
+        }
+        
+        public int getBufferSize()
+        {
+            return bufferSize;
+        }
+        
+        public Options setBufferSize(int bufferSize)
+        {
+            if (bufferSize < 1)
+                throw new IllegalArgumentException("buffer size must be positive");
+            
+            this.bufferSize = bufferSize;
+            
+            return this;
+        }
+        
+        public SyncPolicy getSyncPolicy()
+        {
+            return syncPolicy;
+        }
+        
+        public Options setSyncPolicy(SyncPolicy syncPolicy)
+        {
+            if (syncPolicy == null)
+                throw new IllegalArgumentException("sync policy missing");
+            
+            this.syncPolicy = syncPolicy;
+            
+            return this;
+        }
+        
+        public long getSyncInterval()
+        {
+            return syncInterval;
+        }
+        
+        public Options setSyncInterval(long syncInterval)
+        {
+            if (syncInterval < 1)
+                throw new IllegalArgumentException("sync interval must be positive");
+            
+            this.syncInterval = syncInterval;
+            
+            return this;
+        }
+        
+        public long getPreallocatedSize()
+        {
+            return preallocatedSize;
+        }
+        
+        public Options setPreallocatedSize(long preallocatedSize)
+        {
+            this.preallocatedSize = preallocatedSize;
+            
+            return this;
+        }
+        
+        // Runs the writers, a shared pool of daemon threads by default
+        public Executor getExecutor()
+        {
+            return (executor != null) ? executor : getDefaultExecutor();
+        }
+        
+        public Options setExecutor(Executor executor)
+        {
+            this.executor = executor;
+            
+            return this;
+        }
+    }
+    
+    /*
+     * How each stage of a download spent its time.
+     *
+     * The network stage reads and opens frames, the disk stage writes and syncs.
+     * Each stage's throughput counts only the time it was busy, not the time it
+     * waited for the other, so the slower stage is the one with the lower
+     * throughput and the other one shows the waiting.
+     */
+    public static class Stats
+    {
+        private final long bytes;
+        private final long totalNanos;
+        private final long networkNanos;
+        private final long networkWaitNanos;
+        private final long diskNanos;
+        private final long diskWaitNanos;
+        private final long syncNanos;
+        private final int syncs;
+        
+        Stats(long bytes, long totalNanos, long networkNanos, long networkWaitNanos, long diskNanos,
+            long diskWaitNanos, long syncNanos, int syncs)
+        {
+            this.bytes = bytes;
+            this.totalNanos = totalNanos;
+            this.networkNanos = networkNanos;
+            this.networkWaitNanos = networkWaitNanos;
+            this.diskNanos = diskNanos;
+            this.diskWaitNanos = diskWaitNanos;
+            this.syncNanos = syncNanos;
+            this.syncs = syncs;
+        }
+        
+        public long getBytes()
+        {
+            return bytes;
+        }
+        
+        public long getTotalNanos()
+        {
+            return totalNanos;
+        }
+        
+        // Reading and opening frames
+        public long getNetworkNanos()
+        {
+            return networkNanos;
+        }
+        
+        // Waiting for the disk stage to give a buffer back
+        public long getNetworkWaitNanos()
+        {
+            return networkWaitNanos;
+        }
+        
+        // Writing and syncing
+        public long getDiskNanos()
+        {
+            return diskNanos;
+        }
+        
+        // Waiting for the network stage to fill a buffer
+        public long getDiskWaitNanos()
+        {
+            return diskWaitNanos;
+        }
+        
+        public long getSyncNanos()
+        {
+            return syncNanos;
+        }
+        
+        public int getSyncs()
+        {
+            return syncs;
+        }
+        
+        public double getBytesPerSecond()
+        {
+            return (totalNanos == 0) ? 0.0 : bytes * 1e9 / totalNanos;
+        }
+        
+        public double getNetworkBytesPerSecond()
+        {
+            return (networkNanos == 0) ? 0.0 : bytes * 1e9 / networkNanos;
+        }
+        
+        public double getDiskBytesPerSecond()
+        {
+            return (diskNanos == 0) ? 0.0 : bytes * 1e9 / diskNanos;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return String.format("Stats {%d bytes in %.1f ms, %.2f MB/s; network %.2f MB/s, waited %.1f ms; "
+                + "disk %.2f MB/s, waited %.1f ms, %d syncs in %.1f ms}", bytes, totalNanos / 1e6,
+                getBytesPerSecond() / 1e6, getNetworkBytesPerSecond() / 1e6, networkWaitNanos / 1e6,
+                getDiskBytesPerSecond() / 1e6, diskWaitNanos / 1e6, syncs, syncNanos / 1e6);
+        }
+    }
+    
+    // One buffer going around between the stages, a length of -1 ends the download
+    private static final class Block
+    {
+        private final byte[] bytes;
+        private int length;
+        
+        Block(int size)
+        {
+            this.bytes = new byte[size];
+        }
+    }
+    
+    private final Options options;
+    private final FileChannel channel;
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> filled;
+    private volatile IOException failure = null;
+    private long diskNanos = 0;
+    private long diskWaitNanos = 0;
+    private long syncNanos = 0;
+    private int syncs = 0;
+    
+    private SscpDiskWriter(FileChannel channel, Options options)
+    {
+        this.options = options;
+        this.channel = channel;
+        this.free = new ArrayBlockingQueue<>(options.queueDepth);
+        this.filled = new ArrayBlockingQueue<>(options.queueDepth + 1);
+        
+        for (int i = 0; i < options.queueDepth; i++)
+            free.add(new Block(options.bufferSize));
+    }
+    
+    // Copies the rest of the transmission into the file, which is replaced
+    public static Stats download(InputStream inputStream, Path path, Options options)
+        throws IOException
+    {
+        FileChannel channel;
+        
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        
+        catch (IOException exception) {
+            // the transmission is read all the same, so the next one is where it should be
+            inputStream.transferTo(OutputStream.nullOutputStream());
+            
+            throw exception;
+        }
+        
+        try (channel) {
+            return new SscpDiskWriter(channel, options).run(inputStream);
+        }
+    }
+    
+    private Stats run(InputStream inputStream)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        
+        CompletableFuture<Long> writer = CompletableFuture.supplyAsync(this::write, options.getExecutor());
+        
+        long networkNanos = 0;
+        
+        long networkWaitNanos = 0;
+        
+        IOException networkFailure = null;
+        
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                
+                Block block = take(free);
+                
+                long readStart = System.nanoTime();
+                
+                networkWaitNanos += readStart - waitStart;
+                
+                // filled whole, so the writer wakes once per buffer rather than once per frame
+                int length = 0;
+                
+                int bytesRead = 0;
+                
+                while (length < block.bytes.length
+                    && (bytesRead = inputStream.read(block.bytes, length, block.bytes.length - length)) != -1)
+                    length += bytesRead;
+                
+                block.length = length;
+                
+                networkNanos += System.nanoTime() - readStart;
+                
+                if (length > 0)
+                    filled.add(block);
+                
+                if (bytesRead == -1)
+                    break;
+            }
+        }
+        
+        catch (IOException exception) {
+            // the writer is waited for all the same, the file must not be closed under it
+            networkFailure = exception;
+        }
+        
+        finally {
+            // there is always room for the end, filled holds one more than there are buffers
+            Block end = new Block(0);
+            
+            end.length = -1;
+            
+            filled.add(end);
+        }
+        
+        long bytes;
+        
+        try {
+            bytes = writer.join();
+        }
+        
+        catch (CompletionException exception) {
+            Throwable cause = exception.getCause();
+            
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            
+            if (cause instanceof Error)
+                throw (Error) cause;
+            
+            throw new IOException("disk writer failed: " + cause, cause);
+        }
+        
+        if (networkFailure != null)
+            throw networkFailure;
+        
+        if (failure != null)
+            throw failure;
+        
+        return new Stats(bytes, System.nanoTime() - start, networkNanos, networkWaitNanos, diskNanos,
+            diskWaitNanos, syncNanos, syncs);
+    }
+    
+    // Runs on the executor until the end comes through, and returns the bytes written
+    private long write()
+    {
+        long position = 0;
+        
+        long unsynced = 0;
+        
+        try {
+            // only sets the length, Java has no portable way to reserve the blocks themselves
+            if (options.preallocatedSize > 0)
+                channel.write(ByteBuffer.wrap(new byte[1]), options.preallocatedSize - 1);
+        }
+        
+        catch (IOException exception) {
+            fail(exception);
+        }
+        
+        boolean interrupted = false;
+        
+        RuntimeException error = null;
+        
+        while (true) {
+            long waitStart = System.nanoTime();
+            
+            Block block;
+            
+            try {
+                block = take(filled);
+            }
+            
+            catch (InterruptedIOException exception) {
+                fail(exception);
+                
+                // the reader still waits for its buffers, so they keep going around until the end
+                interrupted = Thread.interrupted();
+                
+                continue;
+            }
+            
+            long writeStart = System.nanoTime();
+            
+            diskWaitNanos += writeStart - waitStart;
+            
+            if (block.length == -1)
+                break;
+            
+            // after a failure buffers only go around, so the rest of the transmission is still read
+            if (failure == null && error == null) {
+                try {
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(block.bytes, 0, block.length);
+                    
+                    while (byteBuffer.hasRemaining())
+                        position += channel.write(byteBuffer, position);
+                    
+                    unsynced += block.length;
+                    
+                    if (options.syncPolicy == SyncPolicy.INTERVAL && unsynced >= options.syncInterval) {
+                        sync();
+                        
+                        unsynced = 0;
+                    }
+                }
+                
+                catch (IOException exception) {
+                    fail(exception);
+                }
+                
+                // thrown once the end comes through, leaving now would keep the reader waiting for this buffer
+                catch (RuntimeException exception) {
+                    error = exception;
+                }
+            }
+            
+            free.add(block);
+            
+            diskNanos += System.nanoTime() - writeStart;
+        }
+        
+        long endStart = System.nanoTime();
+        
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        
+        if (error != null)
+            throw error;
+        
+        try {
+            if (failure == null && position < options.preallocatedSize)
+                channel.truncate(position);
+            
+            if (failure == null && options.syncPolicy != SyncPolicy.NONE)
+                sync();
+        }
+        
+        catch (IOException exception) {
+            fail(exception);
+        }
+        
+        diskNanos += System.nanoTime() - endStart;
+        
+        return position;
+    }
+    
+    private void sync()
+        throws IOException
+    {
+        long syncStart = System.nanoTime();
+        
+        channel.force(false);
+        
+        syncNanos += System.nanoTime() - syncStart;
+        
+        syncs++;
+    }
+    
+    private void fail(IOException exception)
+    {
+        if (failure == null)
+            failure = exception;
+    }
+    
+    private static Block take(BlockingQueue<Block> queue)
+        throws InterruptedIOException
+    {
+        try {
+            return queue.take();
+        }
+        
+        catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            
+            throw new InterruptedIOException("interrupted while waiting for a buffer");
+        }
+    }
+    
+    private static synchronized Executor getDefaultExecutor()
+    {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "sscp-disk-writer");
+                
+                thread.setDaemon(true);
+                
+                return thread;
+            });
+        }
+        
+        return defaultExecutor;
+    }
+}
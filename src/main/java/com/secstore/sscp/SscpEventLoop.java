@@ -0,0 +1,189 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import com.secstore.Logger;
+
+
+/*
+ * One selector and the thread that runs it.
+ *
+ * Every channel belongs to exactly one loop, which does all of its reading,
+ * decrypting and handshaking. The buffers a frame passes through on its way in
+ * belong to the loop as well, so a connection holds none of them while it waits.
+ *
+ * Other threads hand work to a loop through execute, which wakes the selector.
+ */
+final class SscpEventLoop
+    implements Runnable
+{
+    public static final int READ_BUFFER_SIZE = 65536;
+    
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] plaintext = new byte[SscpProtocol.DEFAULT_BLOCK_SIZE];
+    private SscpDecompressor decompressor = null;
+    private volatile boolean running = true;
+    
+    static interface EventHandler
+    {
+        // Called on the loop thread whenever the key is selected
+        void handleEvent(SelectionKey key);
+        
+        // Called on the loop thread for every key still registered when the loop stops
+        void handleShutdown();
+    }
+    
+    public SscpEventLoop(String name)
+        throws IOException
+    {
+        selector = Selector.open();
+        
+        thread = new Thread(this, name);
+    }
+    
+    public void start()
+    {
+        thread.start();
+    }
+    
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+    
+    // Runs the task on the loop thread, right away if already there
+    public void execute(Runnable task)
+    {
+        if (inEventLoop()) {
+            task.run();
+            
+            return;
+        }
+        
+        tasks.add(task);
+        
+        selector.wakeup();
+    }
+    
+    // Must be called on the loop thread
+    public SelectionKey register(SelectableChannel channel, int ops, EventHandler handler)
+        throws ClosedChannelException
+    {
+        return channel.register(selector, ops, handler);
+    }
+    
+    // Holds what a read returned until its frames have been handed out, never across reads
+    public ByteBuffer getReadBuffer()
+    {
+        return readBuffer;
+    }
+    
+    // Decrypted bodies are handed out from here, so they must be consumed before the next frame
+    public byte[] getPlaintext(int length)
+    {
+        if (plaintext.length < length)
+            plaintext = new byte[length];
+        
+        return plaintext;
+    }
+    
+    // Inflaters keep native memory, so connections share the one of their loop
+    public SscpDecompressor getDecompressor()
+    {
+        if (decompressor == null)
+            decompressor = new SscpDecompressor();
+        
+        return decompressor;
+    }
+    
+    public int getChannelCount()
+    {
+        return selector.keys().size();
+    }
+    
+    @Override
+    public void run()
+    {
+        try {
+            while (running) {
+                selector.select();
+                
+                runTasks();
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    
+                    keys.remove();
+                    
+                    if (key.isValid())
+                        ((EventHandler) key.attachment()).handleEvent(key);
+                }
+            }
+        }
+        
+        catch (IOException exception) {
+            Logger.log("[SSCP] Event loop failed: " + exception);
+        }
+        
+        finally {
+            shutdown();
+        }
+    }
+    
+    private final void runTasks()
+    {
+        Runnable task;
+        
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            
+            catch (RuntimeException exception) {
+                Logger.log("[SSCP] Event loop task failed: " + exception);
+            }
+        }
+    }
+    
+    private final void shutdown()
+    {
+        running = false;
+        
+        runTasks();
+        
+        for (SelectionKey key : selector.keys())
+            ((EventHandler) key.attachment()).handleShutdown();
+        
+        try {
+            selector.close();
+        }
+        
+        catch (IOException exception) { }
+    }
+    
+    // Stops the loop, which closes every channel it still holds
+    public void close()
+    {
+        running = false;
+        
+        selector.wakeup();
+    }
+    
+    public void join()
+        throws InterruptedException
+    {
+        thread.join();
+    }
+}
@@ -0,0 +1,273 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/*
+ * Decodes SSCP frames from whatever bytes a non-blocking read returned.
+ *
+ * SscpFrameReader blocks until a frame is complete. This decoder instead
+ * keeps its place between reads, moving from the legacy header through the
+ * extended and stream headers to the body as the bytes arrive.
+ *
+ * A frame that arrives whole is handed out in place, straight from the read
+ * buffer. Only a frame split across reads is copied, into an array sized for
+ * that frame alone, which is let go once the frame has been handed out. Between
+ * frames the decoder holds nothing but its header bytes, so an idle connection
+ * costs the same whatever the size of the frames it has seen.
+ *
+ * The header always sits right in front of the body, which the nonce-based
+ * protocols need to authenticate it.
+ *
+ * Frames larger than the max frame size are refused before anything is
+ * allocated for them, so a channel can keep peers it does not trust yet to
+ * small frames.
+ */
+final class SscpFrameDecoder
+{
+    private static enum State
+    {
+        LEGACY_HEADER,
+        EXTENDED_HEADER,
+        STREAM_HEADER,
+        BODY
+    }
+    
+    private final byte[] header = new byte[SscpProtocol.STREAM_HEADER_SIZE];
+    private int maxFrameSize = SscpProtocol.MAX_FRAME_SIZE;
+    private State state = State.LEGACY_HEADER;
+    private int headerLength;
+    private int headerSize;
+    private boolean split;
+    private boolean extended;
+    private int protocolOrdinal;
+    private int flags;
+    private int streamId;
+    private boolean EOT;
+    private byte[] frame;
+    private int frameLength;
+    private byte[] buffer;
+    private int bodyOffset;
+    private int bodyLength;
+    
+    public int getMaxFrameSize()
+    {
+        return maxFrameSize;
+    }
+    
+    public void setMaxFrameSize(int maxFrameSize)
+    {
+        if (maxFrameSize < 0 || maxFrameSize > SscpProtocol.MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("max frame size invalid, must be between 0 and "
+                + SscpProtocol.MAX_FRAME_SIZE);
+        
+        this.maxFrameSize = maxFrameSize;
+    }
+    
+    /*
+     * Consumes bytes from input until a frame is complete and returns true, or
+     * returns false once input runs out in the middle of one.
+     *
+     * The frame stays valid until the next call, and until input is reused if it
+     * was handed out in place.
+     */
+    public boolean decode(ByteBuffer input)
+        throws IOException
+    {
+        while (true) {
+            switch (state) {
+                case LEGACY_HEADER:
+                    if (!fillHeader(input, SscpProtocol.LEGACY_HEADER_SIZE))
+                        return false;
+                    
+                    // packet size is the last 14 bits of the first two bytes
+                    bodyLength = ((header[0] & 0x3f) << 8) | (header[1] & 0xff);
+                    
+                    extended = (bodyLength == SscpProtocol.EXTENDED_SIZE_MARKER);
+                    
+                    // version is the first bit of the first byte
+                    protocolOrdinal = ((header[0] & 0x80) == 0)
+                        ? SscpProtocol.SSCP1.ordinal()
+                        : SscpProtocol.SSCP2.ordinal();
+                    
+                    // EOT is the second bit of the first byte
+                    EOT = (header[0] & 0x40) != 0;
+                    
+                    flags = 0;
+                    
+                    streamId = 0;
+                    
+                    headerSize = SscpProtocol.LEGACY_HEADER_SIZE;
+                    
+                    state = extended ? State.EXTENDED_HEADER : State.BODY;
+                    
+                    break;
+                
+                case EXTENDED_HEADER:
+                    if (!fillHeader(input, SscpProtocol.EXTENDED_HEADER_SIZE))
+                        return false;
+                    
+                    int version = (header[2] & 0xf0) >> 4;
+                    
+                    if (version != SscpProtocol.FRAME_FORMAT_VERSION)
+                        throw new IOException("unsupported frame format version: " + version);
+                    
+                    protocolOrdinal = header[2] & 0x0f;
+                    
+                    flags = header[3] & 0xff;
+                    
+                    bodyLength = readInt(4);
+                    
+                    if (bodyLength < 0 || bodyLength > maxFrameSize)
+                        throw new IOException("frame size invalid: " + Integer.toUnsignedString(bodyLength));
+                    
+                    headerSize = SscpProtocol.getHeaderSize(true, flags);
+                    
+                    state = ((flags & SscpProtocol.FLAG_STREAM) != 0) ? State.STREAM_HEADER : State.BODY;
+                    
+                    break;
+                
+                case STREAM_HEADER:
+                    if (!fillHeader(input, SscpProtocol.STREAM_HEADER_SIZE))
+                        return false;
+                    
+                    streamId = readInt(SscpProtocol.EXTENDED_HEADER_SIZE);
+                    
+                    if (streamId <= 0 || streamId > SscpProtocol.MAX_STREAM_ID)
+                        throw new IOException("stream id invalid: " + Integer.toUnsignedString(streamId));
+                    
+                    state = State.BODY;
+                    
+                    break;
+                
+                case BODY:
+                    if (!fillBody(input))
+                        return false;
+                    
+                    state = State.LEGACY_HEADER;
+                    
+                    headerLength = 0;
+                    
+                    return true;
+            }
+        }
+    }
+    
+    // Collects header bytes up to size, which may take several reads
+    private final boolean fillHeader(ByteBuffer input, int size)
+    {
+        if (headerLength == 0)
+            split = false;
+        
+        int n = Math.min(size - headerLength, input.remaining());
+        
+        input.get(header, headerLength, n);
+        
+        headerLength += n;
+        
+        if (headerLength < size)
+            split = true;
+        
+        return headerLength == size;
+    }
+    
+    private final boolean fillBody(ByteBuffer input)
+    {
+        // the whole frame came in this read, so it is handed out where it lies
+        if (frame == null && !split && input.remaining() >= bodyLength && input.hasArray()) {
+            buffer = input.array();
+            
+            bodyOffset = input.arrayOffset() + input.position();
+            
+            input.position(input.position() + bodyLength);
+            
+            return true;
+        }
+        
+        if (frame == null) {
+            frame = new byte[headerSize + bodyLength];
+            
+            System.arraycopy(header, 0, frame, 0, headerSize);
+            
+            frameLength = headerSize;
+        }
+        
+        int n = Math.min(frame.length - frameLength, input.remaining());
+        
+        input.get(frame, frameLength, n);
+        
+        frameLength += n;
+        
+        if (frameLength < frame.length)
+            return false;
+        
+        buffer = frame;
+        
+        bodyOffset = headerSize;
+        
+        frame = null;
+        
+        return true;
+    }
+    
+    public boolean isExtended()
+    {
+        return extended;
+    }
+    
+    public int getProtocolOrdinal()
+    {
+        return protocolOrdinal;
+    }
+    
+    public int getFlags()
+    {
+        return flags;
+    }
+    
+    // 0 for frames of the connection's own stream
+    public int getStreamId()
+    {
+        return streamId;
+    }
+    
+    public boolean isEOT()
+    {
+        return EOT;
+    }
+    
+    public int getHeaderSize()
+    {
+        return headerSize;
+    }
+    
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+    
+    public int getBodyOffset()
+    {
+        return bodyOffset;
+    }
+    
+    public int getBodyLength()
+    {
+        return bodyLength;
+    }
+    
+    // True while a frame has been started but not finished
+    public boolean isPartial()
+    {
+        return headerLength > 0;
+    }
+    
+    private final int readInt(int offset)
+    {
+        return ((header[offset] & 0xff) << 24)
+            | ((header[offset + 1] & 0xff) << 16)
+            | ((header[offset + 2] & 0xff) << 8)
+            | (header[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,279 @@
+package com.secstore.sscp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/*
+ * Decodes SSCP frames from a large receive buffer.
+ *
+ * The buffer is filled with as many bytes as a single read returns, and every
+ * complete frame in it is handed out without touching the socket again. A
+ * frame that spans two reads is compacted to the front of the buffer before
+ * the rest of it is read.
+ *
+ * Both the legacy and the extended header formats are recognised, so a peer
+ * never needs to be told which one is coming. Frames of a multiplexed stream
+ * also carry the stream id.
+ *
+ * The body of the current frame stays valid until the next call to nextFrame.
+ */
+final class SscpFrameReader
+{
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    
+    // frames of a multiplexed stream are handed over one at a time, so there is little to read ahead
+    public static final int STREAM_BUFFER_SIZE = 16384;
+    
+    private final InputStream inputStream;
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private int header;
+    private boolean extended;
+    private int protocolOrdinal;
+    private int flags;
+    private int streamId;
+    private int bodyOffset;
+    private int bodyLength;
+    private long readCount;
+    private long bytesRead;
+    
+    public SscpFrameReader(InputStream inputStream)
+    {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+    
+    public SscpFrameReader(InputStream inputStream, int bufferSize)
+    {
+        this.inputStream = inputStream;
+        
+        buffer = new byte[Math.max(bufferSize, SscpProtocol.STREAM_HEADER_SIZE)];
+        
+        start = 0;
+        
+        end = 0;
+    }
+    
+    public void nextFrame()
+        throws IOException
+    {
+        // the previous frame is consumed once the next one is requested
+        start = bodyOffset + bodyLength;
+        
+        bodyOffset = start;
+        
+        bodyLength = 0;
+        
+        ensureBuffered(SscpProtocol.LEGACY_HEADER_SIZE);
+        
+        header = buffer[start] & 0xff;
+        
+        // packet size is the last 14 bits of the first two bytes
+        int length = ((header & 0x3f) << 8) | (buffer[start + 1] & 0xff);
+        
+        int headerSize = SscpProtocol.LEGACY_HEADER_SIZE;
+        
+        extended = (length == SscpProtocol.EXTENDED_SIZE_MARKER);
+        
+        flags = 0;
+        
+        streamId = 0;
+        
+        protocolOrdinal = legacyProtocolOrdinal(buffer[start]);
+        
+        if (extended) {
+            headerSize = SscpProtocol.EXTENDED_HEADER_SIZE;
+            
+            ensureBuffered(headerSize);
+            
+            int version = (buffer[start + 2] & 0xf0) >> 4;
+            
+            if (version != SscpProtocol.FRAME_FORMAT_VERSION)
+                throw new IOException("unsupported frame format version: " + version);
+            
+            protocolOrdinal = buffer[start + 2] & 0x0f;
+            
+            flags = buffer[start + 3] & 0xff;
+            
+            length = readInt(start + 4);
+            
+            if (length < 0 || length > SscpProtocol.MAX_FRAME_SIZE)
+                throw new IOException("frame size invalid: " + Integer.toUnsignedString(length));
+            
+            if ((flags & SscpProtocol.FLAG_STREAM) != 0) {
+                headerSize = SscpProtocol.STREAM_HEADER_SIZE;
+                
+                ensureBuffered(headerSize);
+                
+                streamId = readInt(start + SscpProtocol.EXTENDED_HEADER_SIZE);
+                
+                if (streamId <= 0 || streamId > SscpProtocol.MAX_STREAM_ID)
+                    throw new IOException("stream id invalid: " + Integer.toUnsignedString(streamId));
+            }
+        }
+        
+        ensureBuffered(headerSize + length);
+        
+        bodyOffset = start + headerSize;
+        
+        bodyLength = length;
+    }
+    
+    // True when the next frame can be read without waiting on the peer for long
+    public boolean isFrameAvailable()
+        throws IOException
+    {
+        // a partly received frame is already on its way
+        return peekProtocolOrdinal() >= 0 || inputStream.available() > 0;
+    }
+    
+    // Bytes received past the current frame
+    public int getBufferedBytes()
+    {
+        return end - (bodyOffset + bodyLength);
+    }
+    
+    // Protocol ordinal of the next frame if it is already buffered in full, -1 otherwise
+    public int peekProtocolOrdinal()
+    {
+        int next = bodyOffset + bodyLength;
+        
+        int buffered = end - next;
+        
+        if (buffered < SscpProtocol.LEGACY_HEADER_SIZE)
+            return -1;
+        
+        int length = ((buffer[next] & 0x3f) << 8) | (buffer[next + 1] & 0xff);
+        
+        if (length != SscpProtocol.EXTENDED_SIZE_MARKER) {
+            if (buffered < SscpProtocol.LEGACY_HEADER_SIZE + length)
+                return -1;
+            
+            return legacyProtocolOrdinal(buffer[next]);
+        }
+        
+        if (buffered < SscpProtocol.EXTENDED_HEADER_SIZE)
+            return -1;
+        
+        int headerSize = SscpProtocol.getHeaderSize(true, buffer[next + 3] & 0xff);
+        
+        length = readInt(next + 4);
+        
+        if (length < 0 || buffered - headerSize < length)
+            return -1;
+        
+        return buffer[next + 2] & 0x0f;
+    }
+    
+    public int getHeader()
+    {
+        return header;
+    }
+    
+    public boolean isExtended()
+    {
+        return extended;
+    }
+    
+    public int getProtocolOrdinal()
+    {
+        return protocolOrdinal;
+    }
+    
+    public int getFlags()
+    {
+        return flags;
+    }
+    
+    // 0 for frames of the connection's own stream
+    public int getStreamId()
+    {
+        return streamId;
+    }
+    
+    public int getFrameOffset()
+    {
+        return start;
+    }
+    
+    public int getHeaderSize()
+    {
+        return bodyOffset - start;
+    }
+    
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+    
+    public int getBodyOffset()
+    {
+        return bodyOffset;
+    }
+    
+    public int getBodyLength()
+    {
+        return bodyLength;
+    }
+    
+    public long getReadCount()
+    {
+        return readCount;
+    }
+    
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+    
+    // version is the first bit of the first byte
+    private static final int legacyProtocolOrdinal(byte header)
+    {
+        return ((header & 0x80) == 0) ? SscpProtocol.SSCP1.ordinal() : SscpProtocol.SSCP2.ordinal();
+    }
+    
+    private final int readInt(int offset)
+    {
+        return ((buffer[offset] & 0xff) << 24)
+            | ((buffer[offset + 1] & 0xff) << 16)
+            | ((buffer[offset + 2] & 0xff) << 8)
+            | (buffer[offset + 3] & 0xff);
+    }
+    
+    private final void ensureBuffered(int length)
+        throws IOException
+    {
+        while (end - start < length) {
+            if (buffer.length - start < length)
+                compact(length);
+            
+            int n = inputStream.read(buffer, end, buffer.length - end);
+            
+            if (n == -1)
+                throw new EOFException("connection closed");
+            
+            readCount++;
+            
+            bytesRead += n;
+            
+            end += n;
+        }
+    }
+    
+    private final void compact(int length)
+    {
+        byte[] newBuffer = (buffer.length < length) ? new byte[length] : buffer;
+        
+        System.arraycopy(buffer, start, newBuffer, 0, end - start);
+        
+        end -= start;
+        
+        bodyOffset -= start;
+        
+        start = 0;
+        
+        buffer = newBuffer;
+    }
+}
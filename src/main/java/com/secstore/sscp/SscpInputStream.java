@@ -3,7 +3,11 @@ package com.secstore.sscp;
 import static com.secstore.Logger.Loggable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.security.Key;
+import java.util.Arrays;
+import java.util.Objects;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import com.secstore.Logger.Loggable;
 import com.secstore.utils.CryptoUtils;
@@ -13,16 +17,26 @@ public class SscpInputStream extends InputStream
     implements Loggable
 {
     private SscpConnection connection;
-    private final InputStream inputStream;
+    private final int streamId;
+    private InputStream inputStream;
+    private SscpFrameReader frameReader;
     private SscpProtocol protocol;
-    private Key key;
-    private Cipher cipher;
     private boolean EOT;
+    private boolean transmitting;
+    private byte[] plaintext;
     private byte[] buffer;
     private int ptr;
     private int bytesLeft;
     private boolean open;
     private int ctr = 1;
+    private long readCount;
+    private long bytesRead;
+    private long nonceCounter;
+    private SscpPipelineSlot[] slots;
+    private int head;
+    private int count;
+    private boolean readAheadEOT;
+    private final SscpDecompressor decompressor;
     
     private static int debug_MaxDataLength = 60;
     
@@ -35,21 +49,47 @@ public class SscpInputStream extends InputStream
     @Override
     public void log(String message)
     {
-        message = "[" + connection.getHostAddress()  + "] [" + protocol + "] [IN] " + message;
+        String direction = (streamId == 0) ? "[IN]" : "[IN " + streamId + "]";
+        
+        message = "[" + connection.getHostAddress()  + "] [" + protocol + "] " + direction + " " + message;
         
         Loggable.super.log(message);
     }
     
     public SscpInputStream(SscpConnection connection)
         throws IOException
+    {
+        this(connection, connection.getSocket().getInputStream(), 0);
+    }
+    
+    // Reads the frames of one stream, which come straight from the socket only for stream 0
+    SscpInputStream(SscpConnection connection, InputStream inputStream, int streamId)
     {
         this.connection = connection;
         
-        this.inputStream = connection.getSocket().getInputStream();
+        this.streamId = streamId;
+        
+        this.inputStream = inputStream;
+        
+        int bufferSize = (streamId == 0) ? SscpFrameReader.DEFAULT_BUFFER_SIZE : SscpFrameReader.STREAM_BUFFER_SIZE;
+        
+        this.frameReader = new SscpFrameReader(inputStream, bufferSize);
         
         EOT = false;
         
-        buffer = new byte[0];
+        plaintext = new byte[SscpProtocol.DEFAULT_BLOCK_SIZE];
+        
+        buffer = plaintext;
+        
+        slots = new SscpPipelineSlot[0];
+        
+        head = 0;
+        
+        count = 0;
+        
+        readAheadEOT = false;
+        
+        decompressor = new SscpDecompressor();
         
         ptr = 0;
         
@@ -58,6 +98,41 @@ public class SscpInputStream extends InputStream
         open = true;
     }
     
+    public int getStreamId()
+    {
+        return streamId;
+    }
+    
+    /*
+     * Hands the socket's frame reader over to the demultiplexer, which passes
+     * the frames of this stream back through the given input from now on.
+     *
+     * Bytes the reader has already buffered stay with it, so no frame is lost.
+     */
+    SscpFrameReader redirect(InputStream inputStream)
+    {
+        if (bytesLeft > 0 || count > 0)
+            throw new IllegalStateException("transmission in progress");
+        
+        SscpFrameReader socketFrameReader = frameReader;
+        
+        this.inputStream = inputStream;
+        
+        frameReader = new SscpFrameReader(inputStream);
+        
+        readCount = 0;
+        
+        bytesRead = 0;
+        
+        return socketFrameReader;
+    }
+    
+    // True between transmissions with nothing received beyond the last one
+    boolean isIdle()
+    {
+        return !transmitting && count == 0 && frameReader.getBufferedBytes() == 0;
+    }
+    
     public SscpProtocol getProtocol()
     {
         return protocol;
@@ -72,13 +147,14 @@ public class SscpInputStream extends InputStream
     public int read()
         throws IOException
     {
-        byte[] buffer = new byte[1];
+        ensureOpen();
         
-        if (read(buffer, 0, 1) == -1)
+        if (!fill())
             return -1;
         
-        else
-            return buffer[0];
+        bytesLeft--;
+        
+        return buffer[ptr++] & 0xff;
     }
     
     @Override
@@ -87,109 +163,354 @@ public class SscpInputStream extends InputStream
     {
         ensureOpen();
         
+        Objects.checkFromIndexSize(offset, length, buffer.length);
+        
         if (length == 0)
             return 0;
         
-        if (atEOT())
+        if (!fill())
             return -1;
         
-        // if buffer consumed
-        if (bytesLeft == 0) {
+        int bytesRead = Math.min(length, bytesLeft);
+        
+        System.arraycopy(this.buffer, ptr, buffer, offset, bytesRead);
+        
+        ptr += bytesRead;
+        
+        bytesLeft -= bytesRead;
+        
+        return bytesRead;
+    }
+    
+    // Returns false once the current transmission has been fully read
+    private final boolean fill()
+        throws IOException
+    {
+        if (bytesLeft > 0)
+            return true;
+        
+        while (!EOT) {
+            transmitting = true;
             
             consumePacket();
             
-            if (atEOT())
-                return -1;
+            if (bytesLeft > 0)
+                return true;
         }
         
-        // skip buffer
-        while (true) {
-            if (offset >= bytesLeft) {
-                offset -= bytesLeft;
-                
-                consumePacket();
-                
-                if (atEOT())
-                    return -1;
-            }
+        EOT = false;
+        
+        transmitting = false;
+        
+        logTransmission();
+        
+        ctr = 1;
+        
+        return false;
+    }
+    
+    private final void consumePacket()
+        throws IOException
+    {
+        // frames already read ahead are delivered first, even if pipelining was turned off since
+        if (count > 0 || connection.isPipelined(protocol)) {
+            consumePipelinedPacket();
             
-            else {
-                ptr += offset;
-                
-                bytesLeft -= offset;
-                
-                break;
-            }
+            return;
         }
         
-        int bytesRead = 0;
+        EOT = readFrame(0);
         
-        int bytesToRead = 0;
+        int packetSize = frameReader.getBodyLength();
         
-        boolean lastPacket;
+        // nonce-based frames always carry a tag, even when empty, so none goes unchecked
+        if (this.protocol.isNotDefault() && (packetSize > 0 || this.protocol.usesNonces())) {
+            bytesLeft = decryptBytes(frameReader.getBuffer(), frameReader.getBodyOffset(), packetSize);
+            
+            buffer = plaintext;
+            
+            ptr = 0;
+        }
         
-        while (true) {
-            lastPacket = (length < bytesLeft);
+        // unencrypted bodies are served straight from the receive buffer
+        else {
+            bytesLeft = packetSize;
             
-            bytesToRead = lastPacket ? length : bytesLeft;
+            buffer = frameReader.getBuffer();
             
-            for (int i = 0; i < bytesToRead; i++)
-                buffer[bytesRead++] = this.buffer[ptr++];
+            ptr = frameReader.getBodyOffset();
+        }
+        
+        if ((frameReader.getFlags() & SscpProtocol.FLAG_COMPRESSED) != 0)
+            inflate();
+        
+        logPacket();
+    }
+    
+    // Replaces the current packet with its inflated body
+    private final void inflate()
+        throws IOException
+    {
+        bytesLeft = decompressor.decompress(buffer, ptr, bytesLeft);
+        
+        buffer = decompressor.getBuffer();
+        
+        ptr = 0;
+    }
+    
+    SscpDecompressor getDecompressor()
+    {
+        return decompressor;
+    }
+    
+    /*
+     * Reads the next frame header, switching protocol if needed, and returns its
+     * EOT bit.
+     *
+     * framesAhead counts the frames read but not yet opened, which the nonce of
+     * a close frame has to skip.
+     */
+    private final boolean readFrame(int framesAhead)
+        throws IOException
+    {
+        frameReader.nextFrame();
+        
+        // extended headers name the protocol, legacy ones only have a version bit
+        SscpProtocol protocol = SscpProtocol.fromOrdinal(frameReader.getProtocolOrdinal());
+        
+        // frames of an authenticated protocol are the only ones it accepts, or any forged frame would get in
+        if (this.protocol != protocol && this.protocol.usesNonces())
+            throw new IOException("frame of " + protocol + " received while " + this.protocol + " is in use");
+        
+        if (this.protocol != protocol && this.protocol.isNotDefault() && protocol.isNotDefault())
+            setProtocol(protocol);
+        
+        // the peer sends nothing after a close frame, so the next read ends in EOFException
+        if ((frameReader.getFlags() & SscpProtocol.FLAG_STREAM_CLOSE) != 0) {
+            acceptClose(framesAhead);
             
-            bytesLeft -= bytesToRead;
+            frameReader.nextFrame();
+        }
+        
+        int firstByte = frameReader.getHeader();
+        
+        // fixed-size blocks leave nothing to gain, so no peer compresses them
+        if ((frameReader.getFlags() & SscpProtocol.FLAG_COMPRESSED) != 0 && this.protocol.hasFixedBlockSize())
+            throw new IOException("compressed frame not allowed for " + this.protocol);
+        
+        // EOT is the second bit of the first byte
+        return (((firstByte & 0x40) >> 6) == 1);
+    }
+    
+    // Ends a multiplexed stream once its close frame is found to be genuine
+    private final void acceptClose(int framesAhead)
+        throws IOException
+    {
+        if (streamId == 0 || !(inputStream instanceof SscpStreamInput))
+            throw new IOException("close frame outside a multiplexed stream");
+        
+        int length = frameReader.getBodyLength();
+        
+        // the close frame is sealed like any other, so nonce-based protocols authenticate it
+        if (protocol.usesNonces())
+            length = openFrame(protocol, connection.getKey(protocol), connection.getNoncePrefix(false, streamId),
+                nonceCounter + framesAhead, frameReader.getHeaderSize(), frameReader.getBuffer(),
+                frameReader.getBodyOffset(), length, plaintext, 0);
+        
+        if (length != 0)
+            throw new IOException("close frame carries data: " + length);
+        
+        ((SscpStreamInput) inputStream).closeRemotely();
+    }
+    
+    /*
+     * Decrypts frames that have already arrived on the pipeline executor while
+     * the caller reads the oldest one.
+     *
+     * Read-ahead never blocks on the socket and stops at the end of the current
+     * transmission, so a peer waiting for a reply is never waited on in turn.
+     */
+    private final void consumePipelinedPacket()
+        throws IOException
+    {
+        if (count == 0) {
+            int window = connection.getPipelineWindow();
             
-            if (!lastPacket) {
-                length -= bytesToRead;
+            if (slots.length != window) {
+                slots = new SscpPipelineSlot[window];
                 
-                consumePacket();
+                for (int i = 0; i < window; i++)
+                    slots[i] = new SscpPipelineSlot();
                 
-                if (!EOT)
-                    continue;
+                head = 0;
             }
             
-            break;
+            submitFrame();
         }
         
-        return bytesRead;
+        // the slot delivered last time has been read in full, so every slot is free to refill
+        while (count < slots.length && !readAheadEOT && connection.isPipelined(protocol)
+            && frameReader.isFrameAvailable())
+            submitFrame();
+        
+        SscpPipelineSlot slot = slots[head];
+        
+        head = (head + 1) % slots.length;
+        
+        count--;
+        
+        slot.await();
+        
+        EOT = slot.isEOT();
+        
+        if (EOT)
+            readAheadEOT = false;
+        
+        buffer = slot.getOutput();
+        
+        ptr = 0;
+        
+        bytesLeft = slot.getOutputLength();
+        
+        if ((slot.getFlags() & SscpProtocol.FLAG_COMPRESSED) != 0)
+            inflate();
+        
+        logPacket();
     }
     
-    private final void consumePacket()
+    private final void submitFrame()
         throws IOException
     {
-        int firstByte = inputStream.read();
+        SscpPipelineSlot slot = slots[(head + count) % slots.length];
         
-        // version is the first bit of the first byte
-        SscpProtocol protocol = ((firstByte & 0x80) == 0) ? SscpProtocol.SSCP1 : SscpProtocol.SSCP2;
+        count++;
         
-        if (this.protocol != protocol && this.protocol.isNotDefault())
-            setProtocol(protocol);
+        slot.clear();
         
-        // EOT is the second bit of the first byte
-        EOT = (((firstByte & 0x40) >> 6) == 1);
+        boolean frameEOT = readFrame(0);
         
-        // packet size is the last 14 bits of the first two bytes
-        int packetSize = (((firstByte & 0x3f) << 8) | inputStream.read());
+        // compressed frames are never batched, since only fixed-size blocks are
+        slot.setFlags(frameReader.getFlags());
         
-        byte[] bytes = new byte[packetSize];
+        if (!protocol.isNotDefault())
+            slot.setOutput(frameReader.getBuffer(), frameReader.getBodyOffset(), frameReader.getBodyLength());
         
-        int bytesRead = 0;
+        else {
+            // the receive buffer is reused by the next frame, so frames are copied into the slot
+            appendFrame(slot);
+            
+            int batchFrames = SscpPipelineSlot.getBatchFrames(protocol);
+            
+            // only frames that are already buffered join the batch, so it never waits on the socket
+            while (!frameEOT && slot.getFrameCount() < batchFrames
+                && frameReader.peekProtocolOrdinal() == protocol.ordinal()) {
+                frameEOT = readFrame(slot.getFrameCount());
+                
+                appendFrame(slot);
+            }
+            
+            SscpProtocol protocol = this.protocol;
+            
+            Key key = connection.getKey(protocol);
+            
+            int noncePrefix = protocol.usesNonces() ? connection.getNoncePrefix(false, streamId) : 0;
+            
+            long nonceCounter = this.nonceCounter;
+            
+            if (protocol.usesNonces())
+                this.nonceCounter += slot.getFrameCount();
+            
+            // decrypting never makes a frame longer
+            slot.ensureOutputCapacity(slot.getInputLength());
+            
+            slot.submit(() -> slot.setOutputLength(openFrames(protocol, key, noncePrefix, nonceCounter, slot)),
+                connection.getPipelineExecutor());
+        }
         
-        while (bytesRead < packetSize)
-            bytesRead += inputStream.read(bytes, bytesRead, packetSize - bytesRead);
+        slot.setEOT(frameEOT);
         
-        if (this.protocol.isNotDefault())
-            bytes = decryptBytes(bytes);
+        if (frameEOT)
+            readAheadEOT = true;
+    }
+    
+    // Frames of nonce-based protocols keep their header, which is authenticated along with the body
+    private final void appendFrame(SscpPipelineSlot slot)
+    {
+        int headerSize = protocol.usesNonces() ? frameReader.getHeaderSize() : 0;
         
-        logPacket(bytes);
+        slot.appendFrame(frameReader.getBuffer(), frameReader.getBodyOffset() - headerSize,
+            frameReader.getBodyLength() + headerSize);
+    }
+    
+    // Decrypts every frame of the slot back to back into its output and returns the plaintext length
+    private static final int openFrames(SscpProtocol protocol, Key key, int noncePrefix, long nonceCounter,
+        SscpPipelineSlot slot)
+    {
+        byte[] input = slot.getInput();
         
-        buffer = bytes;
+        int inputPtr = 0;
         
-        bytesLeft = buffer.length;
+        int outputPtr = 0;
         
-        ptr = 0;
+        try {
+            for (int i = 0; i < slot.getFrameCount(); i++) {
+                // stream frames carry a longer header
+                int headerSize = protocol.usesNonces()
+                    ? SscpProtocol.getHeaderSize(true, input[inputPtr + 3] & 0xff) : 0;
+                
+                int length = slot.getFrameLength(i) - headerSize;
+                
+                if (length > 0 || protocol.usesNonces())
+                    outputPtr += openFrame(protocol, key, noncePrefix, nonceCounter + i, headerSize,
+                        input, inputPtr + headerSize, length, slot.getOutput(), outputPtr);
+                
+                inputPtr += headerSize + length;
+            }
+        }
+        
+        // unwrapped again by the slot, so the reader sees the IOException
+        catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        
+        return outputPtr;
+    }
+    
+    /*
+     * Decrypts one frame body, whose header sits right in front of it, and
+     * returns the plaintext length.
+     *
+     * A frame that fails authentication was altered on the way, which is an I/O
+     * failure like any other the connection can run into.
+     */
+    static final int openFrame(SscpProtocol protocol, Key key, int noncePrefix, long nonceCounter,
+        int headerSize, byte[] bytes, int offset, int length, byte[] output, int outputOffset)
+        throws IOException
+    {
+        // ciphers come from the pool of whichever thread opens the frame
+        if (protocol.usesNonces()) {
+            if (length < SscpProtocol.TAG_SIZE)
+                throw new IOException("frame too short for its tag: " + length);
+            
+            Cipher cipher = protocol.getCipher(Cipher.DECRYPT_MODE, key, noncePrefix, nonceCounter);
+            
+            cipher.updateAAD(bytes, offset - headerSize, SscpProtocol.ASSOCIATED_DATA_SIZE);
+            
+            try {
+                return CryptoUtils.decryptAuthenticatedBytes(cipher, bytes, offset, length, output, outputOffset);
+            }
+            
+            catch (AEADBadTagException exception) {
+                throw new IOException("frame authentication failed: " + exception.getMessage(), exception);
+            }
+        }
+        
+        Cipher cipher = protocol.getCipher(Cipher.DECRYPT_MODE, key);
+        
+        return CryptoUtils.decryptBytes(cipher, bytes, offset, length, output, outputOffset);
     }
     
-    private final void logPacket(byte[] packet)
+    private final void logPacket()
     {
         if (!debug())
             return;
@@ -200,12 +521,12 @@ public class SscpInputStream extends InputStream
         
         builder.append("EOT=" + EOT + ", ");
         
-        builder.append("packet_size=" + packet.length);
+        builder.append("packet_size=" + bytesLeft);
         
-        if (packet.length > 0) {
+        if (bytesLeft > 0) {
             builder.append(", data=");
             
-            String data = CryptoUtils.base64Encode(packet);
+            String data = CryptoUtils.base64Encode(Arrays.copyOfRange(buffer, ptr, ptr + bytesLeft));
             
             if (data.length() > debug_MaxDataLength)
                 data = data.substring(0, debug_MaxDataLength - 3) + "...";
@@ -217,23 +538,38 @@ public class SscpInputStream extends InputStream
         log(builder.toString());
     }
     
-    private final void initializeCipher()
+    private final void logTransmission()
     {
-        key = connection.getKey(protocol);
+        if (!debug())
+            return;
+        
+        long reads = frameReader.getReadCount() - readCount;
+        
+        long bytes = frameReader.getBytesRead() - bytesRead;
         
-        cipher = connection.getCipher(protocol);
+        readCount = frameReader.getReadCount();
         
-        CryptoUtils.initializeCipher(cipher, Cipher.DECRYPT_MODE, key);
+        bytesRead = frameReader.getBytesRead();
+        
+        log("Transmission complete {socket_reads=" + reads + ", bytes=" + bytes + "}");
     }
     
-    private final byte[] decryptBytes(byte[] bytes)
+    private final int decryptBytes(byte[] bytes, int offset, int length)
+        throws IOException
     {
-        if (bytes.length == 0)
-            return bytes;
+        // decrypting never makes a frame longer
+        if (plaintext.length < length)
+            plaintext = new byte[length];
+        
+        int noncePrefix = protocol.usesNonces() ? connection.getNoncePrefix(false, streamId) : 0;
         
-        initializeCipher();
+        int plaintextLength = openFrame(protocol, connection.getKey(protocol), noncePrefix, nonceCounter,
+            frameReader.getHeaderSize(), bytes, offset, length, plaintext, 0);
         
-        return CryptoUtils.decryptBytes(cipher, bytes);
+        if (protocol.usesNonces())
+            nonceCounter++;
+        
+        return plaintextLength;
     }
     
     @Override
@@ -260,22 +596,4 @@ public class SscpInputStream extends InputStream
         if (!open)
             throw new IOException("Stream closed");
     }
-    
-    private final boolean atEOT()
-    {
-        if (EOT) {
-            EOT = false;
-            
-            bytesLeft = 0;
-            
-            ptr = buffer.length;
-            
-            ctr = 1;
-            
-            return true;
-        }
-        
-        return false;
-    }
 }
-
@@ -0,0 +1,305 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+ * Routes the frames of a multiplexed connection to the stream they belong to.
+ *
+ * A single daemon thread owns the socket's frame reader. It copies every frame,
+ * header included, into the queue of its stream, whose SscpInputStream then
+ * decodes it as if it came from the socket. Frames of stream 0 go to the
+ * connection's own input stream.
+ *
+ * Close frames are sealed like any other frame of their stream, so they are
+ * queued as well and only end the stream once its reader has opened them.
+ *
+ * Clients open odd stream ids and servers even ones, so the two ends never
+ * pick the same id. The first frame on a new id of the peer opens that stream
+ * for acceptStream.
+ *
+ * Each end opens at most MAX_STREAMS streams that are not yet closed at both
+ * ends. The peer may still count a few that are closing here, so only a peer
+ * with twice as many open, accepted or not, is taken to be broken and fails
+ * the connection.
+ *
+ * Each queue holds STREAM_QUEUE_FRAMES frames, which is also the credit the
+ * writer at the other end starts with. The reader grants it back as it goes,
+ * so a stream that is not read stops its writer and never the demultiplexer.
+ * Only stream 0 takes no credit, and holds up the others while its queue is
+ * full.
+ */
+final class SscpMultiplexer
+    implements Runnable
+{
+    public static final int STREAM_QUEUE_FRAMES = 256;
+    public static final int MAX_STREAMS = 128;
+    
+    // queued in place of a stream id once no more streams can be accepted
+    private static final int NO_STREAM = 0;
+    
+    private final SscpConnection connection;
+    private final SscpFrameReader frameReader;
+    private final SscpStreamInput primaryInput;
+    private final Map<Integer, SscpStream> streams;
+    private final Set<Integer> halfClosedStreamIds;
+    private final BlockingQueue<Integer> acceptedStreamIds;
+    private final boolean clientMode;
+    private final AtomicInteger localStreams;
+    private final AtomicInteger remoteStreams;
+    private int nextStreamId;
+    private volatile IOException failure;
+    
+    public SscpMultiplexer(SscpConnection connection, SscpFrameReader frameReader, SscpStreamInput primaryInput)
+    {
+        this.connection = connection;
+        
+        this.frameReader = frameReader;
+        
+        this.primaryInput = primaryInput;
+        
+        streams = new ConcurrentHashMap<>();
+        
+        halfClosedStreamIds = ConcurrentHashMap.newKeySet();
+        
+        // with room for NO_STREAM besides every stream the peer may open
+        acceptedStreamIds = new LinkedBlockingQueue<>(2 * MAX_STREAMS + 1);
+        
+        clientMode = connection.getUseClientMode();
+        
+        localStreams = new AtomicInteger();
+        
+        remoteStreams = new AtomicInteger();
+        
+        nextStreamId = clientMode ? 1 : 2;
+    }
+    
+    public synchronized SscpStream openStream()
+        throws IOException
+    {
+        ensureRunning();
+        
+        if (nextStreamId > SscpProtocol.MAX_STREAM_ID)
+            throw new IllegalStateException("stream ids exhausted");
+        
+        if (localStreams.get() >= MAX_STREAMS)
+            throw new IllegalStateException("too many open streams: " + MAX_STREAMS);
+        
+        SscpStream stream = new SscpStream(connection, this, nextStreamId);
+        
+        streams.put(nextStreamId, stream);
+        
+        localStreams.incrementAndGet();
+        
+        nextStreamId += 2;
+        
+        return stream;
+    }
+    
+    public SscpStream acceptStream()
+        throws IOException
+    {
+        int id;
+        
+        try {
+            id = acceptedStreamIds.take();
+        }
+        
+        catch (InterruptedException exception) {
+            throw new InterruptedIOException("interrupted while accepting a stream");
+        }
+        
+        if (id == NO_STREAM) {
+            acceptedStreamIds.offer(NO_STREAM);
+            
+            ensureRunning();
+        }
+        
+        // a stream is only forgotten once closed locally, which needs it to be accepted first
+        return streams.get(id);
+    }
+    
+    void closeLocally(SscpStream stream)
+    {
+        halfClose(stream);
+    }
+    
+    @Override
+    public void run()
+    {
+        try {
+            while (true) {
+                frameReader.nextFrame();
+                
+                dispatchFrame();
+            }
+        }
+        
+        catch (IOException exception) {
+            fail(exception);
+        }
+        
+        catch (InterruptedException exception) {
+            fail(new InterruptedIOException("demultiplexer interrupted"));
+        }
+        
+        // anything else would end the thread silently and leave every stream waiting
+        catch (RuntimeException exception) {
+            fail(new IOException("demultiplexer failed: " + exception, exception));
+        }
+    }
+    
+    private final void dispatchFrame()
+        throws IOException, InterruptedException
+    {
+        int id = frameReader.getStreamId();
+        
+        int flags = frameReader.getFlags();
+        
+        if ((flags & SscpProtocol.FLAG_STREAM_CREDIT) != 0) {
+            receiveCredit(id);
+            
+            return;
+        }
+        
+        if (id == 0) {
+            primaryInput.put(frameReader.getBuffer(), frameReader.getFrameOffset(), getFrameLength(), false);
+            
+            return;
+        }
+        
+        SscpStream stream = streams.get(id);
+        
+        if (stream == null)
+            stream = openRemoteStream(id);
+        
+        boolean close = (flags & SscpProtocol.FLAG_STREAM_CLOSE) != 0;
+        
+        // the peer reads nothing of a stream it has closed, so writing to it waits for nobody
+        if (close)
+            stream.getCredit().release();
+        
+        if (!stream.getSource().offer(frameReader.getBuffer(), frameReader.getFrameOffset(), getFrameLength(), close))
+            throw new IOException("stream " + id + " sent past its credit of " + STREAM_QUEUE_FRAMES + " frames");
+    }
+    
+    // Credit for a stream forgotten meanwhile is of no use any more
+    private final void receiveCredit(int id)
+        throws IOException
+    {
+        if (frameReader.getBodyLength() != SscpProtocol.CREDIT_SIZE)
+            throw new IOException("credit frame size invalid: " + frameReader.getBodyLength());
+        
+        byte[] buffer = frameReader.getBuffer();
+        
+        int offset = frameReader.getBodyOffset();
+        
+        int frames = ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+            | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+        
+        if (frames <= 0 || frames > STREAM_QUEUE_FRAMES)
+            throw new IOException("credit invalid: " + frames);
+        
+        SscpStream stream = streams.get(id);
+        
+        if (stream != null)
+            stream.getCredit().grant(frames);
+    }
+    
+    // Called by the reader of a stream once it has made room for that many frames
+    void sendCredit(SscpStream stream, int frames)
+        throws IOException
+    {
+        SscpOutputStream.writeCredit(connection, stream.getId(), frames);
+    }
+    
+    /*
+     * Streams opened concurrently may send their first frames in any order, so
+     * every unknown id of the peer is a new stream. The peer sends nothing after
+     * closing a stream, so a stream forgotten by both ends never comes back.
+     */
+    private final SscpStream openRemoteStream(int id)
+        throws IOException
+    {
+        boolean remote = (id % 2 == 1) != clientMode;
+        
+        if (!remote)
+            throw new IOException("frame for unknown stream: " + id);
+        
+        // streams cost memory until accepted and closed, so a peer cannot open them without end
+        if (remoteStreams.get() >= 2 * MAX_STREAMS)
+            throw new IOException("too many streams opened by the peer: " + remoteStreams.get());
+        
+        SscpStream stream = new SscpStream(connection, this, id);
+        
+        streams.put(id, stream);
+        
+        remoteStreams.incrementAndGet();
+        
+        acceptedStreamIds.offer(id);
+        
+        return stream;
+    }
+    
+    // Called once the peer's close frame has been read
+    void closeRemotely(SscpStream stream)
+    {
+        stream.getSource().end(null);
+        
+        halfClose(stream);
+    }
+    
+    // Forgets a stream once both ends have closed it
+    private final void halfClose(SscpStream stream)
+    {
+        synchronized (halfClosedStreamIds) {
+            if (!halfClosedStreamIds.remove(stream.getId())) {
+                halfClosedStreamIds.add(stream.getId());
+                
+                return;
+            }
+            
+            streams.remove(stream.getId());
+        }
+        
+        boolean remote = (stream.getId() % 2 == 1) != clientMode;
+        
+        (remote ? remoteStreams : localStreams).decrementAndGet();
+    }
+    
+    // The header stays with the frame, since nonce-based protocols authenticate part of it
+    private final int getFrameLength()
+    {
+        return frameReader.getBodyOffset() + frameReader.getBodyLength() - frameReader.getFrameOffset();
+    }
+    
+    // Synchronized with openStream, so no stream opened meanwhile misses the failure
+    private final synchronized void fail(IOException exception)
+    {
+        failure = exception;
+        
+        primaryInput.end(exception);
+        
+        for (SscpStream stream : streams.values()) {
+            stream.getSource().end(exception);
+            
+            stream.getCredit().end(exception);
+        }
+        
+        acceptedStreamIds.offer(NO_STREAM);
+    }
+    
+    private final void ensureRunning()
+        throws IOException
+    {
+        if (failure != null)
+            throw new IOException("connection failed: " + failure.getMessage(), failure);
+    }
+}
@@ -4,6 +4,9 @@ import static com.secstore.Logger.Loggable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.Key;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.crypto.Cipher;
 import com.secstore.utils.CryptoUtils;
 
@@ -11,16 +14,32 @@ import com.secstore.utils.CryptoUtils;
 public class SscpOutputStream extends OutputStream
     implements Loggable
 {
+    // frames are coalesced up to this many bytes before going to the socket
+    private static final int SEND_BUFFER_SIZE = 65536;
+    
     private SscpConnection connection;
+    private final int streamId;
+    private final SscpStreamCredit credit;
     private final OutputStream outputStream;
     private byte[] buffer;
     private int ptr;
-    private int spacesLeft;
+    private int blockSize;
+    private int batchSize;
+    private int maxBodyLength;
+    private byte[] sendBuffer;
+    private int sendPtr;
     private boolean initialized;
     private SscpProtocol protocol;
     private boolean open;
+    private boolean transmitting;
     private Key key;
-    private Cipher cipher;
+    private int noncePrefix;
+    private long nonceCounter;
+    private SscpCompressor compressor;
+    private boolean compressing;
+    private boolean pipelined;
+    private SscpPipelineSlot[] slots;
+    private int slotPtr;
     private int ctr = 1;
     
     private static int debug_MaxDataLength = 60;
@@ -34,29 +53,58 @@ public class SscpOutputStream extends OutputStream
     @Override
     public void log(String message)
     {
-        message = "[" + connection.getHostAddress()  + "] [" + protocol + "] [OUT] " + message;
+        String direction = (streamId == 0) ? "[OUT]" : "[OUT " + streamId + "]";
+        
+        message = "[" + connection.getHostAddress()  + "] [" + protocol + "] " + direction + " " + message;
         
         Loggable.super.log(message);
     }
     
     public SscpOutputStream(SscpConnection connection)
         throws IOException
+    {
+        this(connection, 0, null);
+    }
+    
+    // Frames of any stream other than 0 are tagged with its id, and wait for the peer's credit
+    SscpOutputStream(SscpConnection connection, int streamId, SscpStreamCredit credit)
+        throws IOException
     {
         this.connection = connection;
         
+        this.streamId = streamId;
+        
+        this.credit = credit;
+        
         this.outputStream = connection.getSocket().getOutputStream();
         
         buffer = new byte[0];
         
+        // a stream sends one batch at a time, so streams take turns on the socket frame by frame
+        sendBuffer = new byte[(streamId == 0) ? SEND_BUFFER_SIZE : 0];
+        
+        sendPtr = 0;
+        
+        slots = new SscpPipelineSlot[0];
+        
+        slotPtr = 0;
+        
         ptr = 0;
         
-        spacesLeft = 0;
+        blockSize = 0;
+        
+        batchSize = 0;
         
         initialized = false;
         
         open = true;
     }
     
+    public int getStreamId()
+    {
+        return streamId;
+    }
+    
     public SscpProtocol getProtocol()
     {
         return protocol;
@@ -72,11 +120,27 @@ public class SscpOutputStream extends OutputStream
         initialized = false;
     }
     
+    // Picks up a new block size or pipeline window from the connection before the next frame
+    void reinitialize()
+    {
+        initialized = false;
+    }
+    
     @Override
     public void write(int value)
         throws IOException
     {
-        write(new byte[] { (byte) value }, 0, 1);
+        ensureOpen();
+        
+        if (!initialized)
+            initialize();
+        
+        if (ptr >= batchSize)
+            writePacket();
+        
+        buffer[ptr++] = (byte) value;
+        
+        transmitting = true;
     }
     
     @Override
@@ -88,16 +152,24 @@ public class SscpOutputStream extends OutputStream
         if (!initialized)
             initialize();
         
-        if ((offset + length) > buffer.length)
-            throw new IndexOutOfBoundsException();
+        Objects.checkFromIndexSize(offset, length, buffer.length);
         
-        for (int i = 0; i < length; i++) {
-            if (spacesLeft == 0)
+        while (length > 0) {
+            // a full block is only sent once more data arrives
+            if (ptr >= batchSize)
                 writePacket();
             
-            this.buffer[ptr++] = buffer[offset + i];
+            int bytesToCopy = Math.min(length, batchSize - ptr);
+            
+            System.arraycopy(buffer, offset, this.buffer, ptr, bytesToCopy);
+            
+            ptr += bytesToCopy;
+            
+            offset += bytesToCopy;
             
-            spacesLeft--;
+            length -= bytesToCopy;
+            
+            transmitting = true;
         }
     }
     
@@ -107,70 +179,324 @@ public class SscpOutputStream extends OutputStream
         if (ptr == 0)
             return;
         
-        byte[] bytes = new byte[ptr];
+        if (!initialized)
+            initialize();
         
-        System.arraycopy(buffer, 0, bytes, 0, ptr);
+        writePackets(false);
+    }
+    
+    public void writeEOT()
+        throws IOException
+    {
+        ensureOpen();
+        
+        if (!initialized)
+            initialize();
         
-        if (protocol.isNotDefault())
-            bytes = encryptBytes(bytes);
+        // the EOT marker rides on the last data frame when the peer reads it there, legacy peers drop that data
+        if (ptr > 0 && connection.isFoldingEOT())
+            writePackets(true);
+        
+        else {
+            writePackets(false);
+            
+            writeFrame(0, 0, true);
+        }
         
-        byte[] header = generateHeader(bytes, false);
+        drainPipeline();
         
-        logPacket(header, bytes);
+        drainSendBuffer();
         
-        outputStream.write(header);
+        outputStream.flush();
         
-        outputStream.write(bytes);
+        transmitting = false;
         
-        spacesLeft += ptr;
+        ctr = 1;
+    }
+    
+    // True between transmissions
+    boolean isIdle()
+    {
+        return !transmitting;
+    }
+    
+    private final void writePackets(boolean EOT)
+        throws IOException
+    {
+        // pending bytes may exceed the batch size after a protocol change
+        for (int offset = 0; offset < ptr; offset += batchSize) {
+            int length = Math.min(batchSize, ptr - offset);
+            
+            writeFrame(offset, length, EOT && (offset + length == ptr));
+        }
         
         ptr = 0;
+    }
+    
+    private final void writeFrame(int offset, int length, boolean EOT)
+        throws IOException
+    {
+        byte[] bytes = buffer;
         
-        initializeBuffer();
+        int flags = (streamId == 0) ? 0 : SscpProtocol.FLAG_STREAM;
+        
+        if (compressing && length > 0) {
+            int compressedLength = compressor.compress(buffer, offset, length);
+            
+            if (compressedLength >= 0) {
+                bytes = compressor.getBuffer();
+                
+                offset = 0;
+                
+                length = compressedLength;
+                
+                flags |= SscpProtocol.FLAG_COMPRESSED;
+            }
+        }
+        
+        if (compressing && EOT)
+            compressor.endTransmission();
+        
+        // a batch becomes as many frames as it has blocks, and an empty one still takes one
+        if (credit != null)
+            credit.acquire(pipelined ? Math.max((length + blockSize - 1) / blockSize, 1) : 1);
+        
+        if (pipelined) {
+            submitFrame(bytes, offset, length, EOT, flags);
+            
+            return;
+        }
+        
+        if (sendBuffer.length - sendPtr < SscpProtocol.STREAM_HEADER_SIZE + maxBodyLength)
+            drainSendBuffer();
+        
+        int frameLength = sealFrame(protocol, key, noncePrefix, nonceCounter, flags, streamId,
+            bytes, offset, length, EOT, sendBuffer, sendPtr);
+        
+        if (protocol.usesNonces())
+            nonceCounter++;
+        
+        logPackets(sendBuffer, sendPtr, frameLength);
+        
+        sendPtr += frameLength;
     }
     
-    public void writeEOT()
+    // Hands a batch of frames to the next slot of the ring, after sending whatever that slot still holds
+    private final void submitFrame(byte[] bytes, int offset, int length, boolean EOT, int flags)
         throws IOException
     {
-        ensureOpen();
+        SscpPipelineSlot slot = slots[slotPtr];
         
-        flush();
+        if (slot.isPending())
+            completeSlot(slot);
         
-        byte[] bytes = new byte[0];
+        slotPtr = (slotPtr + 1) % slots.length;
         
-        byte[] header = generateHeader(bytes, true);
+        slot.clear();
         
-        logPacket(header, bytes);
+        slot.appendFrame(bytes, offset, Math.min(blockSize, length));
         
-        outputStream.write(header);
+        for (int i = offset + blockSize; i < offset + length; i += blockSize)
+            slot.appendFrame(bytes, i, Math.min(blockSize, offset + length - i));
         
-        outputStream.write(bytes);
+        slot.setEOT(EOT);
         
-        outputStream.flush();
+        slot.setFlags(flags);
         
-        ctr = 1;
+        slot.ensureOutputCapacity(slot.getFrameCount() * (SscpProtocol.STREAM_HEADER_SIZE + maxBodyLength));
+        
+        SscpProtocol protocol = this.protocol;
+        
+        int streamId = this.streamId;
+        
+        Key key = this.key;
+        
+        int noncePrefix = this.noncePrefix;
+        
+        long nonceCounter = this.nonceCounter;
+        
+        // nonces are handed out in submission order, which is also the order on the wire
+        if (protocol.usesNonces())
+            this.nonceCounter += slot.getFrameCount();
+        
+        slot.submit(() -> slot.setOutputLength(sealFrames(protocol, key, noncePrefix, nonceCounter, streamId, slot)),
+            connection.getPipelineExecutor());
+    }
+    
+    // Seals every frame of the slot back to back into its output and returns the total length
+    private static final int sealFrames(SscpProtocol protocol, Key key, int noncePrefix, long nonceCounter,
+        int streamId, SscpPipelineSlot slot)
+    {
+        byte[] input = slot.getInput();
+        
+        int inputPtr = 0;
+        
+        int outputPtr = 0;
+        
+        for (int i = 0; i < slot.getFrameCount(); i++) {
+            int length = slot.getFrameLength(i);
+            
+            boolean EOT = slot.isEOT() && (i == slot.getFrameCount() - 1);
+            
+            outputPtr += sealFrame(protocol, key, noncePrefix, nonceCounter + i, slot.getFlags(), streamId,
+                input, inputPtr, length, EOT, slot.getOutput(), outputPtr);
+            
+            inputPtr += length;
+        }
+        
+        return outputPtr;
+    }
+    
+    private final void completeSlot(SscpPipelineSlot slot)
+        throws IOException
+    {
+        slot.await();
+        
+        int frameLength = slot.getOutputLength();
+        
+        if (sendBuffer.length - sendPtr < frameLength)
+            drainSendBuffer();
+        
+        System.arraycopy(slot.getOutput(), 0, sendBuffer, sendPtr, frameLength);
+        
+        logPackets(sendBuffer, sendPtr, frameLength);
+        
+        sendPtr += frameLength;
+    }
+    
+    // Frames leave the ring in the order they were submitted, oldest first
+    private final void drainPipeline()
+        throws IOException
+    {
+        for (int i = 0; i < slots.length; i++) {
+            SscpPipelineSlot slot = slots[(slotPtr + i) % slots.length];
+            
+            if (slot.isPending())
+                completeSlot(slot);
+        }
+    }
+    
+    /*
+     * Hands every coalesced frame to the socket in a single write.
+     *
+     * Streams of a connection take turns on the socket in the order they asked
+     * for it, so a large upload cannot starve the small ones.
+     */
+    private final void drainSendBuffer()
+        throws IOException
+    {
+        if (sendPtr == 0)
+            return;
+        
+        ReentrantLock writeLock = connection.getWriteLock();
+        
+        writeLock.lock();
+        
+        try {
+            outputStream.write(sendBuffer, 0, sendPtr);
+        }
+        
+        finally {
+            writeLock.unlock();
+        }
+        
+        sendPtr = 0;
+    }
+    
+    // Writes one whole frame into the target array and returns its length
+    static final int sealFrame(SscpProtocol protocol, Key key, int noncePrefix, long nonceCounter, int flags,
+        int streamId, byte[] bytes, int offset, int length, boolean EOT, byte[] frame, int frameStart)
+    {
+        // the header goes in front of the body, so its size is settled from an upper bound first
+        int maxLength = protocol.getMaxBodyLength(length);
+        
+        // flags only fit in the extended header
+        boolean extended = protocol.usesNonces() || flags != 0 || (maxLength >= SscpProtocol.EXTENDED_SIZE_MARKER);
+        
+        int headerSize = SscpProtocol.getHeaderSize(extended, flags);
+        
+        int bodyStart = frameStart + headerSize;
+        
+        int bodyLength;
+        
+        // ciphers come from the pool of whichever thread seals the frame
+        if (protocol.usesNonces()) {
+            Cipher cipher = protocol.getCipher(Cipher.ENCRYPT_MODE, key, noncePrefix, nonceCounter);
+            
+            // the authenticated part of the header does not depend on the body size
+            writeHeader(protocol, frame, frameStart, extended, flags, streamId, 0, EOT);
+            
+            cipher.updateAAD(frame, frameStart, SscpProtocol.ASSOCIATED_DATA_SIZE);
+            
+            bodyLength = CryptoUtils.encryptBytes(cipher, bytes, offset, length, frame, bodyStart);
+        }
+        
+        else if (length == 0)
+            bodyLength = 0;
+        
+        else if (protocol.isNotDefault()) {
+            Cipher cipher = protocol.getCipher(Cipher.ENCRYPT_MODE, key);
+            
+            bodyLength = CryptoUtils.encryptBytes(cipher, bytes, offset, length, frame, bodyStart);
+        }
+        
+        else {
+            System.arraycopy(bytes, offset, frame, bodyStart, length);
+            
+            bodyLength = length;
+        }
+        
+        writeHeader(protocol, frame, frameStart, extended, flags, streamId, bodyLength, EOT);
+        
+        return headerSize + bodyLength;
     }
     
-    private final void logPacket(byte[] header, byte[] bytes)
+    private final void logPackets(byte[] frames, int start, int length)
     {
         if (!debug())
             return;
         
+        for (int frameStart = start; frameStart < start + length; )
+            frameStart += logPacket(frames, frameStart);
+    }
+    
+    // Logs the frame at frameStart and returns its length
+    private final int logPacket(byte[] frame, int frameStart)
+    {
+        int size = ((frame[frameStart] & 0x3f) << 8) | (frame[frameStart + 1] & 0xff);
+        
+        int headerSize = SscpProtocol.LEGACY_HEADER_SIZE;
+        
+        int bodyLength = size;
+        
+        if (size == SscpProtocol.EXTENDED_SIZE_MARKER) {
+            headerSize = SscpProtocol.getHeaderSize(true, frame[frameStart + 3] & 0xff);
+            
+            bodyLength = ((frame[frameStart + 4] & 0xff) << 24)
+                | ((frame[frameStart + 5] & 0xff) << 16)
+                | ((frame[frameStart + 6] & 0xff) << 8)
+                | (frame[frameStart + 7] & 0xff);
+        }
+        
         StringBuilder builder = new StringBuilder();
         
         builder.append("Packet " + (ctr++) + " {");
         
-        builder.append("header={" + (int) header[0]);
+        builder.append("header={" + (int) frame[frameStart]);
         
-        for (int i = 1; i < header.length; i++)
-            builder.append(", " + (int) header[i]);
+        for (int i = 1; i < headerSize; i++)
+            builder.append(", " + (int) frame[frameStart + i]);
         
-        builder.append("}, packet_size=" + bytes.length);
+        builder.append("}, packet_size=" + bodyLength);
         
-        if (bytes.length > 0) {
+        if (bodyLength > 0) {
             builder.append(", data=");
             
-            String data = CryptoUtils.base64Encode(bytes);
+            int bodyStart = frameStart + headerSize;
+            
+            byte[] body = Arrays.copyOfRange(frame, bodyStart, bodyStart + bodyLength);
+            
+            String data = CryptoUtils.base64Encode(body);
             
             if (data.length() > debug_MaxDataLength)
                 data = data.substring(0, debug_MaxDataLength - 3) + "...";
@@ -181,13 +507,13 @@ public class SscpOutputStream extends OutputStream
         builder.append("}");
         
         log(builder.toString());
+        
+        return headerSize + bodyLength;
     }
     
-    private final byte[] generateHeader(byte[] bytes, boolean EOT)
-        throws IOException
+    private static final void writeHeader(SscpProtocol protocol, byte[] frame, int frameStart,
+        boolean extended, int flags, int streamId, int bodyLength, boolean EOT)
     {
-        ensureOpen();
-        
         int firstByte = 0;
         
         if (protocol == SscpProtocol.SSCP2)
@@ -196,68 +522,216 @@ public class SscpOutputStream extends OutputStream
         if (EOT)
             firstByte += 0x40;
         
-        firstByte += ((bytes.length & 0x3f00) >> 8);
+        int size = extended ? SscpProtocol.EXTENDED_SIZE_MARKER : bodyLength;
+        
+        firstByte += ((size & 0x3f00) >> 8);
+        
+        int secondByte = (size & 0xff);
+        
+        frame[frameStart] = (byte) firstByte;
+        
+        frame[frameStart + 1] = (byte) secondByte;
+        
+        if (!extended)
+            return;
+        
+        frame[frameStart + 2] = (byte) ((SscpProtocol.FRAME_FORMAT_VERSION << 4) | protocol.ordinal());
+        
+        frame[frameStart + 3] = (byte) flags;
+        
+        frame[frameStart + 4] = (byte) (bodyLength >>> 24);
+        
+        frame[frameStart + 5] = (byte) (bodyLength >>> 16);
+        
+        frame[frameStart + 6] = (byte) (bodyLength >>> 8);
+        
+        frame[frameStart + 7] = (byte) bodyLength;
+        
+        if ((flags & SscpProtocol.FLAG_STREAM) == 0)
+            return;
+        
+        frame[frameStart + 8] = (byte) (streamId >>> 24);
+        
+        frame[frameStart + 9] = (byte) (streamId >>> 16);
         
-        int secondByte = (bytes.length & 0xff);
+        frame[frameStart + 10] = (byte) (streamId >>> 8);
         
-        return new byte[] {(byte) firstByte, (byte) secondByte};
+        frame[frameStart + 11] = (byte) streamId;
     }
     
     private final void initialize()
+        throws IOException
     {
+        // frames still in flight were sealed under the old settings and go out first
+        drainPipeline();
+        
         switch (protocol) {
+            case SSCP3:
+            case SSCP3_CHACHA20:
+                noncePrefix = connection.getNoncePrefix(true, streamId);
+                // fall through
+            
             case SSCP1:
             case SSCP2:
-                initializeCipher();
+                key = connection.getKey(protocol);
                 // fall through
             
             case DEFAULT:
             default:
-                initializeBuffer();
+                initializePipeline();
+                
+                initializeCompressor();
+                
+                initializeBuffers();
                 
                 initialized = true;
         }
     }
     
-    private final void initializeBuffer()
+    private final void initializeBuffers()
     {
-        byte[] newBuffer = new byte[protocol.getMaxBlockSize()];
+        blockSize = connection.getBlockSize(protocol);
         
-        if (ptr > 0)
-            System.arraycopy(buffer, 0, newBuffer, 0, ptr);
-            
-        buffer = newBuffer;
+        int batchFrames = pipelined ? SscpPipelineSlot.getBatchFrames(protocol) : 1;
+        
+        batchSize = blockSize * batchFrames;
         
-        spacesLeft = buffer.length - ptr;
+        // buffers only ever grow, so switching protocols back and forth is free
+        if (buffer.length < batchSize)
+            buffer = Arrays.copyOf(buffer, batchSize);
         
+        maxBodyLength = protocol.getMaxBodyLength(blockSize);
+        
+        int maxBatchLength = batchFrames * (SscpProtocol.STREAM_HEADER_SIZE + maxBodyLength);
+        
+        if (sendBuffer.length < maxBatchLength)
+            sendBuffer = Arrays.copyOf(sendBuffer, maxBatchLength);
     }
     
-    private final void initializeCipher()
+    private final void initializePipeline()
     {
-        key = connection.getKey(protocol);
+        pipelined = connection.isPipelined(protocol);
         
-        cipher = connection.getCipher(protocol);
+        int window = pipelined ? connection.getPipelineWindow() : 0;
+        
+        if (slots.length == window)
+            return;
         
-        CryptoUtils.initializeCipher(cipher, Cipher.ENCRYPT_MODE, key);
+        // the ring is sized by the window, which caps the bytes held in flight
+        slots = new SscpPipelineSlot[window];
+        
+        for (int i = 0; i < window; i++)
+            slots[i] = new SscpPipelineSlot();
+        
+        slotPtr = 0;
     }
     
-    private final byte[] encryptBytes(byte[] bytes)
+    private final void initializeCompressor()
     {
-        if (!initialized)
-            initialize();
+        compressing = connection.isCompressed(protocol);
+        
+        if (!compressing)
+            return;
+        
+        // the compressor outlives protocol changes so its statistics cover the whole connection
+        if (compressor == null)
+            compressor = new SscpCompressor(connection.getCompressionLevel());
         
-        return CryptoUtils.encryptBytes(cipher, bytes);
+        else
+            compressor.setLevel(connection.getCompressionLevel());
     }
     
+    SscpCompressor getCompressor()
+    {
+        return compressor;
+    }
+    
+    // Closing a multiplexed stream only tells the peer that it has ended, the socket stays open
     @Override
     public void close()
         throws IOException
     {
-        outputStream.close();
+        if (!open)
+            return;
+        
+        if (streamId == 0)
+            outputStream.close();
+        
+        else
+            writeStreamClose();
         
         open = false;
     }
     
+    /*
+     * Sends whatever is pending, followed by an empty frame marking the end of
+     * the stream.
+     *
+     * The close frame is sealed under the stream's protocol like any other, so
+     * with nonce-based protocols nobody on the path can end a stream for it.
+     */
+    private final void writeStreamClose()
+        throws IOException
+    {
+        flush();
+        
+        // a stream that never wrote has no key nor buffer to seal with yet
+        if (!initialized)
+            initialize();
+        
+        int flags = SscpProtocol.FLAG_STREAM | SscpProtocol.FLAG_STREAM_CLOSE;
+        
+        sendPtr = sealFrame(protocol, key, noncePrefix, nonceCounter, flags, streamId,
+            buffer, 0, 0, false, sendBuffer, 0);
+        
+        if (protocol.usesNonces())
+            nonceCounter++;
+        
+        logPackets(sendBuffer, 0, sendPtr);
+        
+        drainSendBuffer();
+        
+        outputStream.flush();
+    }
+    
+    /*
+     * Grants the peer room for that many more frames on a stream.
+     *
+     * Credit frames are not sealed, so the demultiplexer can act on them without
+     * taking a nonce out of the stream's order. Forging one only makes the peer
+     * overrun the queue, which fails the connection like dropping its frames
+     * would.
+     */
+    static final void writeCredit(SscpConnection connection, int streamId, int frames)
+        throws IOException
+    {
+        int flags = SscpProtocol.FLAG_STREAM | SscpProtocol.FLAG_STREAM_CREDIT;
+        
+        byte[] frame = new byte[SscpProtocol.STREAM_HEADER_SIZE + SscpProtocol.CREDIT_SIZE];
+        
+        writeHeader(SscpProtocol.DEFAULT, frame, 0, true, flags, streamId, SscpProtocol.CREDIT_SIZE, false);
+        
+        frame[SscpProtocol.STREAM_HEADER_SIZE] = (byte) (frames >>> 24);
+        
+        frame[SscpProtocol.STREAM_HEADER_SIZE + 1] = (byte) (frames >>> 16);
+        
+        frame[SscpProtocol.STREAM_HEADER_SIZE + 2] = (byte) (frames >>> 8);
+        
+        frame[SscpProtocol.STREAM_HEADER_SIZE + 3] = (byte) frames;
+        
+        ReentrantLock writeLock = connection.getWriteLock();
+        
+        writeLock.lock();
+        
+        try {
+            connection.getSocket().getOutputStream().write(frame);
+        }
+        
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
     @Override
     public void flush()
         throws IOException
@@ -266,6 +740,10 @@ public class SscpOutputStream extends OutputStream
         
         writePacket();
         
+        drainPipeline();
+        
+        drainSendBuffer();
+        
         outputStream.flush();
     }
     
@@ -0,0 +1,180 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+
+/*
+ * One in-flight batch of frames of a pipelined SSCP stream.
+ *
+ * A slot owns its input and output buffers, so it can be sealed or opened on
+ * any thread while the stream moves on to the next slot. The worker takes its
+ * cipher from its own CipherPool.
+ * Streams keep a fixed ring of slots, which bounds the memory held in flight.
+ *
+ * SSCP2 slots carry a single frame. SSCP1 frames hold only 117 bytes each, so
+ * its slots carry a batch of them to keep the hand-off cost per RSA operation low.
+ */
+final class SscpPipelineSlot
+{
+    public static final int FIXED_BLOCK_BATCH_FRAMES = 64;
+    
+    private byte[] input = new byte[0];
+    private int inputLength;
+    private int[] frameLengths = new int[1];
+    private int frameCount;
+    private byte[] output = new byte[0];
+    private int outputLength;
+    private boolean EOT;
+    private int flags;
+    private CompletableFuture<Void> task;
+    
+    public byte[] getInput()
+    {
+        return input;
+    }
+    
+    public int getInputLength()
+    {
+        return inputLength;
+    }
+    
+    public static int getBatchFrames(SscpProtocol protocol)
+    {
+        return protocol.hasFixedBlockSize() ? FIXED_BLOCK_BATCH_FRAMES : 1;
+    }
+    
+    public void clear()
+    {
+        inputLength = 0;
+        
+        frameCount = 0;
+        
+        outputLength = 0;
+        
+        EOT = false;
+        
+        flags = 0;
+    }
+    
+    public void appendFrame(byte[] bytes, int offset, int length)
+    {
+        if (input.length - inputLength < length)
+            input = Arrays.copyOf(input, Math.max(inputLength + length, input.length * 2));
+        
+        if (frameCount == frameLengths.length)
+            frameLengths = Arrays.copyOf(frameLengths, frameCount * 2);
+        
+        System.arraycopy(bytes, offset, input, inputLength, length);
+        
+        inputLength += length;
+        
+        frameLengths[frameCount++] = length;
+    }
+    
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+    
+    public int getFrameLength(int index)
+    {
+        return frameLengths[index];
+    }
+    
+    public byte[] getOutput()
+    {
+        return output;
+    }
+    
+    public int getOutputLength()
+    {
+        return outputLength;
+    }
+    
+    public void setOutputLength(int outputLength)
+    {
+        this.outputLength = outputLength;
+    }
+    
+    // Frames that need no cipher are copied straight into the output
+    public void setOutput(byte[] bytes, int offset, int length)
+    {
+        ensureOutputCapacity(length);
+        
+        System.arraycopy(bytes, offset, output, 0, length);
+        
+        outputLength = length;
+    }
+    
+    public void ensureOutputCapacity(int capacity)
+    {
+        if (output.length < capacity)
+            output = new byte[capacity];
+    }
+    
+    public boolean isEOT()
+    {
+        return EOT;
+    }
+    
+    public void setEOT(boolean EOT)
+    {
+        this.EOT = EOT;
+    }
+    
+    // Header flags shared by every frame of the slot
+    public int getFlags()
+    {
+        return flags;
+    }
+    
+    public void setFlags(int flags)
+    {
+        this.flags = flags;
+    }
+    
+    public void submit(Runnable work, Executor executor)
+    {
+        task = CompletableFuture.runAsync(work, executor);
+    }
+    
+    public boolean isPending()
+    {
+        return task != null;
+    }
+    
+    public void await()
+        throws IOException
+    {
+        if (task == null)
+            return;
+        
+        try {
+            task.join();
+        }
+        
+        catch (CompletionException exception) {
+            Throwable cause = exception.getCause();
+            
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            
+            if (cause instanceof Error)
+                throw (Error) cause;
+            
+            throw new IOException("pipeline task failed: " + cause);
+        }
+        
+        finally {
+            task = null;
+        }
+    }
+}
@@ -1,23 +1,33 @@
 package com.secstore.sscp;
 
+import com.secstore.utils.CipherPool;
 import com.secstore.utils.CryptoUtils;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.Key;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 
 
 public enum SscpProtocol
 {
     DEFAULT,
     SSCP1("RSA", "ECB/PKCS1Padding", 1024, 117),
-    SSCP2("AES", "ECB/PKCS5Padding", 128, 8192);
+    SSCP2("AES", "ECB/PKCS5Padding", 128, 8192),
+    SSCP3("AES", "AES", "GCM/NoPadding", 128, 8192),
+    SSCP3_CHACHA20("ChaCha20-Poly1305", "ChaCha20", "None/NoPadding", 256, 8192);
     
     public static final SscpProtocol[] PROTOCOLS;
     
+    private static final SscpProtocol[] VALUES = values();
+    
     static {
         SscpProtocol[] protocols = SscpProtocol.values();
         
@@ -27,9 +37,65 @@ public enum SscpProtocol
     }
     
     public static final int DEFAULT_BLOCK_SIZE = 8192;
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
     public static final Charset CHARSET = StandardCharsets.UTF_8;
     
+    /*
+     * Frame headers come in two formats.
+     *
+     * The legacy header is two bytes: version bit, EOT bit and a 14-bit body size.
+     *
+     * The extended header starts with a legacy header whose size field is all ones,
+     * which no legacy sender ever produces. It is followed by one byte holding the
+     * frame format version (high nibble) and protocol ordinal (low nibble), one byte
+     * of flags and a 32-bit big-endian body size.
+     *
+     * Frames of a multiplexed stream carry FLAG_STREAM and a 32-bit big-endian
+     * stream id right after the extended header. Frames without it belong to
+     * stream 0, the connection's own stream.
+     *
+     * A credit frame carries FLAG_STREAM_CREDIT and a plain 32-bit big-endian
+     * count of frames of the stream that its sender has read. It is left to the
+     * demultiplexer and never reaches the stream itself.
+     */
+    public static final int LEGACY_HEADER_SIZE = 2;
+    public static final int EXTENDED_HEADER_SIZE = 8;
+    public static final int STREAM_HEADER_SIZE = 12;
+    public static final int EXTENDED_SIZE_MARKER = 0x3fff;
+    public static final int FRAME_FORMAT_VERSION = 1;
+    
+    // extended header flags
+    public static final int FLAG_COMPRESSED = 0x01;
+    public static final int FLAG_STREAM = 0x02;
+    public static final int FLAG_STREAM_CLOSE = 0x04;
+    public static final int FLAG_STREAM_CREDIT = 0x08;
+    
+    // the body of a credit frame
+    public static final int CREDIT_SIZE = 4;
+    
+    // stream ids share the nonce prefix with the two bits naming the sending side
+    public static final int MAX_STREAM_ID = (1 << 30) - 1;
+    
+    // leaves room for cipher padding on top of the largest block
+    public static final int MAX_FRAME_SIZE = MAX_BLOCK_SIZE + 1024;
+    
+    /*
+     * SSCP3 frames are sealed with an AEAD cipher and always use the extended header.
+     *
+     * The nonce is never sent. It is a 4-byte prefix naming the sending side and
+     * stream followed by a 64-bit count of the SSCP3 frames that side has sent on
+     * the stream, so both ends derive it from the order of the frames alone. The
+     * first four header bytes are authenticated along with the body, and a frame
+     * moved to another stream fails to open under that stream's nonce.
+     */
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+    public static final int ASSOCIATED_DATA_SIZE = 4;
+    public static final int CLIENT_NONCE_PREFIX = 1;
+    public static final int SERVER_NONCE_PREFIX = 2;
+    
     private final String algorithm;
+    private final String keyAlgorithm;
     private final String config;
     private final Integer keySize;
     private final Integer maxBlockSize;
@@ -40,8 +106,14 @@ public enum SscpProtocol
     }
     
     private SscpProtocol(String algorithm, String config, Integer keySize, Integer maxBlockSize)
+    {
+        this(algorithm, algorithm, config, keySize, maxBlockSize);
+    }
+    
+    private SscpProtocol(String algorithm, String keyAlgorithm, String config, Integer keySize, Integer maxBlockSize)
     {
         this.algorithm = algorithm;
+        this.keyAlgorithm = keyAlgorithm;
         this.config = config;
         this.keySize = keySize;
         this.maxBlockSize = maxBlockSize;
@@ -72,6 +144,53 @@ public enum SscpProtocol
         return (ordinal() > 0);
     }
     
+    // RSA cannot encrypt more than one key-sized block at a time
+    public boolean hasFixedBlockSize()
+    {
+        return this == SSCP1;
+    }
+    
+    public boolean usesNonces()
+    {
+        return this == SSCP3 || this == SSCP3_CHACHA20;
+    }
+    
+    // Upper bound of the encrypted size of length bytes, without asking a cipher
+    public int getMaxBodyLength(int length)
+    {
+        switch (this) {
+            case SSCP1:
+                return keySize / 8;
+            
+            case SSCP2:
+                return (length / 16 + 1) * 16;
+            
+            case SSCP3:
+            case SSCP3_CHACHA20:
+                return length + TAG_SIZE;
+            
+            case DEFAULT:
+            default:
+                return length;
+        }
+    }
+    
+    public static int getHeaderSize(boolean extended, int flags)
+    {
+        if (!extended)
+            return LEGACY_HEADER_SIZE;
+        
+        return ((flags & FLAG_STREAM) != 0) ? STREAM_HEADER_SIZE : EXTENDED_HEADER_SIZE;
+    }
+    
+    public static SscpProtocol fromOrdinal(int ordinal)
+    {
+        if (ordinal < 0 || ordinal >= VALUES.length)
+            throw new IllegalArgumentException("protocol ordinal invalid: " + ordinal);
+        
+        return VALUES[ordinal];
+    }
+    
     @Override
     public String toString()
     {
@@ -82,6 +201,12 @@ public enum SscpProtocol
             case SSCP2:
                 return "SSCP/2.0";
             
+            case SSCP3:
+                return "SSCP/3.0";
+            
+            case SSCP3_CHACHA20:
+                return "SSCP/3.0-ChaCha20";
+            
             case DEFAULT:
             default:
                 return "DEFAULT";
@@ -93,14 +218,57 @@ public enum SscpProtocol
         return CryptoUtils.generateCipher(algorithm, config);
     }
     
+    // Returns an initialised cipher confined to the calling thread
+    public Cipher getCipher(int mode, Key key)
+    {
+        return CipherPool.getCipher(algorithm, config, mode, key);
+    }
+    
+    // Returns a cipher confined to the calling thread and initialised for one frame of a nonce-based protocol
+    public Cipher getCipher(int mode, Key key, int noncePrefix, long nonceCounter)
+    {
+        byte[] nonce = new byte[NONCE_SIZE];
+        
+        for (int i = 0; i < 4; i++)
+            nonce[i] = (byte) (noncePrefix >>> (24 - 8 * i));
+        
+        for (int i = 0; i < 8; i++)
+            nonce[4 + i] = (byte) (nonceCounter >>> (56 - 8 * i));
+        
+        AlgorithmParameterSpec parameters;
+        
+        switch (this) {
+            case SSCP3:
+                parameters = new GCMParameterSpec(TAG_SIZE * 8, nonce);
+                break;
+            
+            case SSCP3_CHACHA20:
+                parameters = new IvParameterSpec(nonce);
+                break;
+            
+            default:
+                throw new IllegalArgumentException("protocol does not use nonces: " + this);
+        }
+        
+        return CipherPool.getCipher(algorithm, config, mode, key, parameters);
+    }
+    
     public SecretKey generateSecretKey()
     {
-        return CryptoUtils.generateSecretKey(algorithm, keySize);
+        return CryptoUtils.generateSecretKey(keyAlgorithm, keySize);
     }
     
     public SecretKey generateSecretKey(byte[] keyBytes)
     {
-        return CryptoUtils.generateSecretKey(algorithm, keyBytes);
+        return CryptoUtils.generateSecretKey(keyAlgorithm, keyBytes);
+    }
+    
+    // Derives a key for this protocol from a session key agreed for another one
+    public SecretKey deriveSecretKey(Key key)
+    {
+        byte[] digest = CryptoUtils.digest("SHA-256", toString().getBytes(CHARSET), key.getEncoded());
+        
+        return generateSecretKey(Arrays.copyOf(digest, keySize / 8));
     }
     
     public KeyPair generateKeyPair()
@@ -0,0 +1,28 @@
+package com.secstore.sscp;
+
+import java.security.Key;
+
+
+/*
+ * What an SSAP handshake settles for one end of a connection.
+ *
+ * Both the blocking SscpConnection and the non-blocking SscpChannel keep these,
+ * so the handshakes can set them up on either.
+ */
+public interface SscpSession
+{
+    public Key getKey(SscpProtocol protocol);
+    
+    public void setKey(SscpProtocol protocol, Key key);
+    
+    public boolean getUseClientMode();
+    
+    public void setUseClientMode(boolean clientMode);
+    
+    public int getMaxBlockSize();
+    
+    public void setBlockSize(int blockSize);
+    
+    // Set once the peer is known to read EOT on frames that carry data
+    public void setFoldingEOT(boolean foldingEOT);
+}
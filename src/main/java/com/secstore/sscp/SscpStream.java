@@ -0,0 +1,199 @@
+package com.secstore.sscp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import com.secstore.sscp.SscpConnection.TransferResult;
+
+
+/*
+ * One of many independent byte streams sharing a multiplexed SscpConnection.
+ *
+ * A stream has its own input and output, each delimited by EOT frames just
+ * like the connection's own stream, so several files can move at the same time
+ * over a single handshake. Frames of all streams share the socket in turns.
+ *
+ * Closing a stream ends its output and stops reading its input. The peer reads
+ * whatever was sent before the close and then sees the end of the stream.
+ *
+ * The async methods work as those of SscpConnection, on its async executor, so
+ * transfers on different streams run at the same time.
+ */
+public final class SscpStream
+    implements Closeable
+{
+    private final SscpConnection connection;
+    private final SscpMultiplexer multiplexer;
+    private final int id;
+    private final SscpStreamInput source;
+    private final SscpStreamCredit credit;
+    private final SscpInputStream in;
+    private final SscpOutputStream out;
+    private final SscpTransferQueue uploads = new SscpTransferQueue(TransferResult.Direction.UPLOAD);
+    private final SscpTransferQueue downloads = new SscpTransferQueue(TransferResult.Direction.DOWNLOAD);
+    private boolean closed;
+    
+    SscpStream(SscpConnection connection, SscpMultiplexer multiplexer, int id)
+        throws IOException
+    {
+        this.connection = connection;
+        
+        this.multiplexer = multiplexer;
+        
+        this.id = id;
+        
+        source = new SscpStreamInput(SscpMultiplexer.STREAM_QUEUE_FRAMES, () -> multiplexer.closeRemotely(this),
+            frames -> multiplexer.sendCredit(this, frames));
+        
+        credit = new SscpStreamCredit(SscpMultiplexer.STREAM_QUEUE_FRAMES);
+        
+        in = new SscpInputStream(connection, source, id);
+        
+        in.setProtocol(connection.getProtocol());
+        
+        out = new SscpOutputStream(connection, id, credit);
+        
+        out.setProtocol(connection.getProtocol());
+    }
+    
+    public int getId()
+    {
+        return id;
+    }
+    
+    public SscpInputStream getInputStream()
+    {
+        return in;
+    }
+    
+    public SscpOutputStream getOutputStream()
+    {
+        return out;
+    }
+    
+    SscpStreamInput getSource()
+    {
+        return source;
+    }
+    
+    SscpStreamCredit getCredit()
+    {
+        return credit;
+    }
+    
+    public String readString()
+        throws IOException
+    {
+        return SscpConnection.readString(in);
+    }
+    
+    public void downloadTo(String fileName)
+        throws IOException
+    {
+        SscpConnection.downloadTo(in, fileName);
+    }
+    
+    public void downloadTo(OutputStream outputStream)
+        throws IOException
+    {
+        SscpConnection.transferTo(in, outputStream);
+    }
+    
+    public void writeString(String string)
+        throws IOException
+    {
+        SscpConnection.writeString(out, string);
+    }
+    
+    public void uploadFrom(String fileName)
+        throws IOException
+    {
+        SscpConnection.uploadFrom(out, fileName);
+    }
+    
+    public void uploadFrom(InputStream inputStream)
+        throws IOException
+    {
+        SscpConnection.uploadFrom(out, inputStream);
+    }
+    
+    public CompletableFuture<String> readStringAsync()
+    {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        
+        CompletableFuture<TransferResult> download = downloadToAsync(byteArrayOutputStream);
+        
+        CompletableFuture<String> string = download
+            .thenApply(result -> byteArrayOutputStream.toString(SscpProtocol.CHARSET));
+        
+        // cancelling the string or letting it time out stops the download behind it
+        string.whenComplete((result, failure) -> download.cancel(false));
+        
+        return string;
+    }
+    
+    public CompletableFuture<TransferResult> downloadToAsync(Path path)
+    {
+        return downloads.submit(connection.getAsyncExecutor(), future -> SscpTransferQueue.download(in, path, future));
+    }
+    
+    public CompletableFuture<TransferResult> downloadToAsync(OutputStream outputStream)
+    {
+        return downloads.submit(connection.getAsyncExecutor(),
+            future -> SscpTransferQueue.download(in, outputStream, future));
+    }
+    
+    public CompletableFuture<TransferResult> writeStringAsync(String string)
+    {
+        return uploadFromAsync(new ByteArrayInputStream(string.getBytes(SscpProtocol.CHARSET)));
+    }
+    
+    public CompletableFuture<TransferResult> uploadFromAsync(Path path)
+    {
+        return uploads.submit(connection.getAsyncExecutor(), future -> {
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                return SscpTransferQueue.upload(out, inputStream, future, this);
+            }
+        });
+    }
+    
+    public CompletableFuture<TransferResult> uploadFromAsync(InputStream inputStream)
+    {
+        return uploads.submit(connection.getAsyncExecutor(),
+            future -> SscpTransferQueue.upload(out, inputStream, future, this));
+    }
+    
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        
+        closed = true;
+        
+        // frames arriving from now on are dropped as they come, the peer's close frame included
+        in.close();
+        
+        // forgetting the stream only once its close frame is out keeps the peer's count of open streams in step
+        try {
+            out.close();
+        }
+        
+        finally {
+            multiplexer.closeLocally(this);
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SscpStream {id=" + id + "}";
+    }
+}
@@ -0,0 +1,73 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+
+/*
+ * Frames a multiplexed stream may still send before the peer has to make room
+ * for them.
+ *
+ * Each end of a stream starts with a window of as many frames as the peer's
+ * queue for it holds. Sending a frame takes one, and the peer grants them back
+ * in credit frames as its reader works through the queue, so a stream that is
+ * not read stops its writer instead of the demultiplexer shared by all streams.
+ *
+ * Once the peer has closed the stream it reads nothing any more, and writes no
+ * longer wait for credit.
+ */
+final class SscpStreamCredit
+{
+    private int frames;
+    private boolean unlimited;
+    private IOException failure;
+    
+    public SscpStreamCredit(int window)
+    {
+        frames = window;
+    }
+    
+    // Blocks until the peer has room for that many frames
+    public synchronized void acquire(int count)
+        throws IOException
+    {
+        try {
+            while (frames < count && !unlimited && failure == null)
+                wait();
+        }
+        
+        catch (InterruptedException exception) {
+            throw new InterruptedIOException("interrupted while waiting for credit");
+        }
+        
+        if (failure != null)
+            throw new IOException("connection failed: " + failure.getMessage(), failure);
+        
+        if (!unlimited)
+            frames -= count;
+    }
+    
+    // Called by the demultiplexer when a credit frame of the peer arrives
+    public synchronized void grant(int count)
+    {
+        frames += count;
+        
+        notifyAll();
+    }
+    
+    // Called by the demultiplexer once the peer has closed the stream
+    public synchronized void release()
+    {
+        unlimited = true;
+        
+        notifyAll();
+    }
+    
+    // Called by the demultiplexer when the connection fails, so no writer waits for credit that never comes
+    public synchronized void end(IOException failure)
+    {
+        this.failure = failure;
+        
+        notifyAll();
+    }
+}
@@ -0,0 +1,263 @@
+package com.secstore.sscp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/*
+ * Raw frames of one multiplexed stream, handed over by the demultiplexer.
+ *
+ * The stream's SscpFrameReader reads from here exactly as it would from the
+ * socket. Once the stream or the connection ends, the remaining frames are
+ * still delivered before read reports the end.
+ *
+ * Frames are copied into buffers that go back to a free list once read, so a
+ * stream allocates no more of them than its queue holds.
+ *
+ * The queue of a multiplexed stream holds the window of frames the peer may
+ * send, and every half window read is granted back to it. A peer sending past
+ * its credit is broken, so such a frame is refused rather than waited for.
+ * Stream 0 has no credit and holds up the demultiplexer while its queue is full.
+ */
+final class SscpStreamInput extends InputStream
+{
+    private static final Frame END = new Frame();
+    
+    private final BlockingQueue<Frame> frames;
+    private final BlockingQueue<Frame> free;
+    private final Runnable remoteClose;
+    private final CreditSender creditSender;
+    private final int creditBatch;
+    private int framesRead;
+    private boolean remotelyClosed;
+    private Frame frame;
+    private int ptr;
+    private volatile boolean ended;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    
+    private static final class Frame
+    {
+        private byte[] bytes = new byte[0];
+        private int length;
+        private boolean close;
+    }
+    
+    @FunctionalInterface
+    static interface CreditSender
+    {
+        void send(int frames)
+            throws IOException;
+    }
+    
+    // Stream 0 takes no credit
+    public SscpStreamInput(int capacity)
+    {
+        this(capacity, null, null);
+    }
+    
+    // remoteClose runs once the peer's close frame has been read, or dropped because the stream was closed
+    public SscpStreamInput(int capacity, Runnable remoteClose, CreditSender creditSender)
+    {
+        // the close frame takes no credit, so it has a place of its own
+        frames = new ArrayBlockingQueue<>(capacity + 1);
+        
+        // one more frame is being read and one more is being filled
+        free = new ArrayBlockingQueue<>(capacity + 2);
+        
+        this.remoteClose = remoteClose;
+        
+        this.creditSender = creditSender;
+        
+        creditBatch = Math.max(capacity / 2, 1);
+        
+        frame = END;
+        
+        ptr = 0;
+    }
+    
+    // Returns false if the queue is full, which a peer keeping to its credit never causes
+    public boolean offer(byte[] bytes, int offset, int length, boolean close)
+    {
+        boolean queued = closed || frames.offer(copy(bytes, offset, length, close));
+        
+        // a stream closed meanwhile is not read any more, so its frames are dropped here
+        if (closed)
+            drop();
+        
+        return queued;
+    }
+    
+    // Blocks while the queue is full, which holds up the demultiplexer until this stream is read
+    public void put(byte[] bytes, int offset, int length, boolean close)
+        throws InterruptedException
+    {
+        if (!closed)
+            frames.put(copy(bytes, offset, length, close));
+        
+        if (closed)
+            drop();
+    }
+    
+    private final Frame copy(byte[] bytes, int offset, int length, boolean close)
+    {
+        Frame frame = free.poll();
+        
+        if (frame == null)
+            frame = new Frame();
+        
+        if (frame.bytes.length < length)
+            frame.bytes = new byte[length];
+        
+        System.arraycopy(bytes, offset, frame.bytes, 0, length);
+        
+        frame.length = length;
+        
+        frame.close = close;
+        
+        return frame;
+    }
+    
+    // Called by the demultiplexer when the connection fails, and by the stream once the peer closes it
+    public void end(IOException failure)
+    {
+        this.failure = failure;
+        
+        ended = true;
+        
+        // a full queue is drained by the reader, which then finds ended set
+        frames.offer(END);
+    }
+    
+    // Called by the stream's reader once the close frame at the front has been authenticated
+    synchronized void closeRemotely()
+    {
+        if (remotelyClosed || remoteClose == null)
+            return;
+        
+        remotelyClosed = true;
+        
+        remoteClose.run();
+    }
+    
+    @Override
+    public int read()
+        throws IOException
+    {
+        byte[] bytes = new byte[1];
+        
+        return (read(bytes, 0, 1) == -1) ? -1 : bytes[0] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        if (length == 0)
+            return 0;
+        
+        if (ptr == frame.length && !nextFrame())
+            return -1;
+        
+        int bytesRead = Math.min(length, frame.length - ptr);
+        
+        System.arraycopy(frame.bytes, ptr, bytes, offset, bytesRead);
+        
+        ptr += bytesRead;
+        
+        return bytesRead;
+    }
+    
+    private final boolean nextFrame()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("Stream closed");
+        
+        if (frame != END)
+            release(frame);
+        
+        frame = END;
+        
+        ptr = 0;
+        
+        Frame next = frames.poll();
+        
+        try {
+            if (next == null && !ended)
+                next = frames.take();
+        }
+        
+        catch (InterruptedException exception) {
+            throw new InterruptedIOException("interrupted while waiting for a frame");
+        }
+        
+        if (next == null || next == END) {
+            frames.offer(END);
+            
+            if (failure != null)
+                throw new IOException("connection failed: " + failure.getMessage(), failure);
+            
+            return false;
+        }
+        
+        frame = next;
+        
+        return true;
+    }
+    
+    // Hands a frame read back to the free list, and its room in the queue back to the peer
+    private final void release(Frame frame)
+        throws IOException
+    {
+        free.offer(frame);
+        
+        if (creditSender == null || frame.close)
+            return;
+        
+        if (++framesRead < creditBatch)
+            return;
+        
+        creditSender.send(framesRead);
+        
+        framesRead = 0;
+    }
+    
+    @Override
+    public int available()
+    {
+        if (ptr < frame.length)
+            return frame.length - ptr;
+        
+        Frame next = frames.peek();
+        
+        return (next == null) ? 0 : next.length;
+    }
+    
+    // Frames that arrive for a closed stream are dropped
+    @Override
+    public void close()
+    {
+        closed = true;
+        
+        drop();
+    }
+    
+    /*
+     * Nothing reads a closed stream, so a close frame left in its queue cannot
+     * be authenticated any more. It is taken at its word, which at worst makes
+     * the multiplexer forget a stream that is closed at this end already.
+     */
+    private final void drop()
+    {
+        Frame dropped;
+        
+        while ((dropped = frames.poll()) != null) {
+            if (dropped.close)
+                closeRemotely();
+        }
+    }
+}
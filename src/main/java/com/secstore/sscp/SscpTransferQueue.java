@@ -0,0 +1,208 @@
+package com.secstore.sscp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import com.secstore.sscp.SscpConnection.TransferResult;
+
+
+/*
+ * Runs the asynchronous transfers of one direction of a connection or stream.
+ *
+ * Transmissions on the wire are strictly in order, so each transfer starts on
+ * the executor once the one before it is done. A waiting transfer holds no
+ * thread, and only the running one of each direction takes one.
+ *
+ * A transfer whose future is completed by someone else, by cancel or one of
+ * the timeouts of CompletableFuture, stops at the next buffer:
+ *
+ * - A download keeps reading its transmission to the end and throws it away,
+ *   so the downloads after it still get their own.
+ * - An upload that has not sent anything yet sends nothing. One that has sent
+ *   part of its transmission closes the transport, because SSCP cannot take
+ *   back a transmission once begun.
+ */
+final class SscpTransferQueue
+{
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+    
+    private final TransferResult.Direction direction;
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+    
+    static interface Transfer
+    {
+        // Returns the bytes moved, future tells whether the caller still wants them
+        long run(Future<?> future) throws IOException;
+    }
+    
+    public SscpTransferQueue(TransferResult.Direction direction)
+    {
+        this.direction = direction;
+    }
+    
+    public CompletableFuture<TransferResult> submit(Executor executor, Transfer transfer)
+    {
+        CompletableFuture<TransferResult> future = new CompletableFuture<>();
+        
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        CompletableFuture<Void> previous;
+        
+        synchronized (this) {
+            previous = tail;
+            
+            tail = done;
+        }
+        
+        long submitted = System.nanoTime();
+        
+        previous.whenComplete((ignored, failure) -> {
+            try {
+                executor.execute(() -> {
+                    try {
+                        run(transfer, future, submitted);
+                    }
+                    
+                    finally {
+                        done.complete(null);
+                    }
+                });
+            }
+            
+            catch (RejectedExecutionException exception) {
+                future.completeExceptionally(exception);
+                
+                done.complete(null);
+            }
+        });
+        
+        return future;
+    }
+    
+    private final void run(Transfer transfer, CompletableFuture<TransferResult> future, long submitted)
+    {
+        long started = System.nanoTime();
+        
+        try {
+            long bytes = transfer.run(future);
+            
+            future.complete(new TransferResult(direction, bytes, started - submitted, System.nanoTime() - started));
+        }
+        
+        catch (IOException | RuntimeException exception) {
+            future.completeExceptionally(exception);
+        }
+    }
+    
+    static long download(SscpInputStream in, OutputStream outputStream, Future<?> future)
+        throws IOException
+    {
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        
+        long bytes = 0;
+        
+        int bytesRead;
+        
+        while ((bytesRead = in.read(buffer, 0, TRANSFER_BUFFER_SIZE)) != -1) {
+            if (!future.isDone())
+                outputStream.write(buffer, 0, bytesRead);
+            
+            bytes += bytesRead;
+        }
+        
+        return bytes;
+    }
+    
+    /*
+     * Downloads into a file that is only opened once the transfer still wants
+     * the bytes, so a download cancelled or timed out while queued leaves an
+     * existing file alone.
+     *
+     * A file that cannot be opened or written does not stop the download, the
+     * rest of the transmission is read and thrown away so the next one starts
+     * in step, and then the failure is thrown.
+     */
+    static long download(SscpInputStream in, Path path, Future<?> future)
+        throws IOException
+    {
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        
+        OutputStream outputStream = null;
+        
+        IOException failure = null;
+        
+        long bytes = 0;
+        
+        int bytesRead;
+        
+        try {
+            while ((bytesRead = in.read(buffer, 0, TRANSFER_BUFFER_SIZE)) != -1) {
+                if (!future.isDone() && failure == null) {
+                    try {
+                        if (outputStream == null)
+                            outputStream = Files.newOutputStream(path);
+                        
+                        outputStream.write(buffer, 0, bytesRead);
+                    }
+                    
+                    catch (IOException exception) {
+                        failure = exception;
+                    }
+                }
+                
+                bytes += bytesRead;
+            }
+            
+            // an empty transmission still leaves an empty file
+            if (outputStream == null && !future.isDone() && failure == null)
+                outputStream = Files.newOutputStream(path);
+        }
+        
+        finally {
+            if (outputStream != null)
+                outputStream.close();
+        }
+        
+        if (failure != null)
+            throw failure;
+        
+        return bytes;
+    }
+    
+    static long upload(SscpOutputStream out, InputStream inputStream, Future<?> future, Closeable transport)
+        throws IOException
+    {
+        if (future.isDone())
+            return 0;
+        
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        
+        long bytes = 0;
+        
+        int bytesRead;
+        
+        while ((bytesRead = inputStream.read(buffer, 0, TRANSFER_BUFFER_SIZE)) != -1) {
+            if (future.isDone()) {
+                if (bytes > 0)
+                    transport.close();
+                
+                return bytes;
+            }
+            
+            out.write(buffer, 0, bytesRead);
+            
+            bytes += bytesRead;
+        }
+        
+        out.writeEOT();
+        
+        return bytes;
+    }
+}
@@ -0,0 +1,213 @@
+package com.secstore.sstp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+
+/*
+ * Keeps the chunks of deduplicated uploads once each, named by their hash, and
+ * for every file the list of chunks it is made of.
+ *
+ * Chunks live under chunks/, in a directory per first byte of their hash so no
+ * directory grows too large, and file manifests under files/, by the name the
+ * file was uploaded as. Both are written under a temporary name, synced and
+ * only then moved into place, so a chunk or manifest that exists is always
+ * whole, even after a crash, which leaves at most a stray temporary file. A chunk is only stored if its bytes match
+ * its hash, so no client can plant bytes under another chunk's name.
+ *
+ * Chunks are never removed, a file replaced by a new upload leaves its old
+ * chunks behind for the next one that has them.
+ */
+public final class SstpChunkStore
+{
+    private static final String CHUNKS = "chunks";
+    private static final String FILES = "files";
+    private static final String TEMPORARY_PREFIX = ".tmp-";
+    
+    private final Path directory;
+    private final Path chunks;
+    private final Path files;
+    
+    public SstpChunkStore(Path directory)
+        throws IOException
+    {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.chunks = Files.createDirectories(this.directory.resolve(CHUNKS));
+        this.files = Files.createDirectories(this.directory.resolve(FILES));
+    }
+    
+    public Path getDirectory()
+    {
+        return directory;
+    }
+    
+    public boolean contains(byte[] hash)
+    {
+        return Files.exists(getChunkPath(hash));
+    }
+    
+    // Stores the chunk unless it is already there, and fails if the bytes are not what the hash says
+    public void put(byte[] hash, byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        if (!Arrays.equals(hash, SstpChunker.hash(bytes, offset, length)))
+            throw new IOException("chunk does not match its hash: " + HexFormat.of().formatHex(hash));
+        
+        Path path = getChunkPath(hash);
+        
+        if (Files.exists(path))
+            return;
+        
+        Path temporary = Files.createTempFile(Files.createDirectories(path.getParent()), TEMPORARY_PREFIX, null);
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, length);
+                
+                while (byteBuffer.hasRemaining())
+                    channel.write(byteBuffer);
+                
+                channel.force(true);
+            }
+            
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+        catch (FileAlreadyExistsException exception) {
+            // another upload stored the same chunk meanwhile
+        }
+        
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+    
+    public byte[] get(byte[] hash)
+        throws IOException
+    {
+        return Files.readAllBytes(getChunkPath(hash));
+    }
+    
+    // Records the file as made of the chunks, all of which must be stored already
+    public void putFile(String name, List<SstpChunker.Chunk> chunks)
+        throws IOException
+    {
+        Path path = getFilePath(name);
+        
+        Path temporary = Files.createTempFile(Files.createDirectories(path.getParent()), TEMPORARY_PREFIX, null);
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                // not closed, the channel is closed after it is forced
+                DataOutputStream dataOutputStream = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+                
+                dataOutputStream.writeInt(chunks.size());
+                
+                for (SstpChunker.Chunk chunk : chunks) {
+                    dataOutputStream.write(chunk.getHash());
+                    
+                    dataOutputStream.writeInt(chunk.getLength());
+                }
+                
+                dataOutputStream.flush();
+                
+                channel.force(true);
+            }
+            
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+    
+    // The chunks of the file in order, or null if there is no such file
+    public List<SstpChunker.Chunk> getFile(String name)
+        throws IOException
+    {
+        try (DataInputStream dataInputStream = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(getFilePath(name))))) {
+            int count = dataInputStream.readInt();
+            
+            List<SstpChunker.Chunk> chunks = new ArrayList<>();
+            
+            long offset = 0;
+            
+            byte[] hash = new byte[SstpChunker.HASH_LENGTH];
+            
+            for (int i = 0; i < count; i++) {
+                dataInputStream.readFully(hash);
+                
+                int length = dataInputStream.readInt();
+                
+                chunks.add(new SstpChunker.Chunk(offset, length, hash));
+                
+                offset += length;
+            }
+            
+            return chunks;
+        }
+        
+        catch (NoSuchFileException exception) {
+            return null;
+        }
+    }
+    
+    // Writes the file back out of its chunks and returns its size
+    public long copyFile(String name, OutputStream outputStream)
+        throws IOException
+    {
+        List<SstpChunker.Chunk> chunks = getFile(name);
+        
+        if (chunks == null)
+            throw new NoSuchFileException(name);
+        
+        long size = 0;
+        
+        for (SstpChunker.Chunk chunk : chunks) {
+            byte[] bytes = get(chunk.getHash());
+            
+            if (bytes.length != chunk.getLength())
+                throw new IOException("chunk length invalid: " + chunk.getHashString());
+            
+            outputStream.write(bytes);
+            
+            size += bytes.length;
+        }
+        
+        return size;
+    }
+    
+    private Path getChunkPath(byte[] hash)
+    {
+        String name = HexFormat.of().formatHex(hash);
+        
+        return chunks.resolve(name.substring(0, 2)).resolve(name);
+    }
+    
+    private Path getFilePath(String name)
+    {
+        SstpManifest.checkName(name);
+        
+        return files.resolve(name);
+    }
+}
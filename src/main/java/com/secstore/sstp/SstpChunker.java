@@ -0,0 +1,191 @@
+package com.secstore.sstp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+
+/*
+ * Splits files into chunks where their content says so, rather than at fixed
+ * offsets, so bytes inserted or removed in one place only change the chunks
+ * around that place and every other chunk keeps its hash.
+ *
+ * A gear hash rolls over the last 64 bytes and a chunk ends where its top bits
+ * are all zero. Chunks are never shorter than MIN_CHUNK_SIZE nor longer than
+ * MAX_CHUNK_SIZE. Below AVERAGE_CHUNK_SIZE a cut takes two more zero bits and
+ * above it two fewer, which keeps most chunks close to the average. The gear
+ * table is fixed, so every client cuts the same content in the same places.
+ *
+ * Each chunk is named by the SHA-256 of its bytes.
+ */
+public final class SstpChunker
+{
+    public static final int MIN_CHUNK_SIZE = 16384;
+    public static final int AVERAGE_CHUNK_SIZE = 65536;
+    public static final int MAX_CHUNK_SIZE = 262144;
+    
+    public static final String HASH_ALGORITHM = "SHA-256";
+    public static final int HASH_LENGTH = 32;
+    
+    private static final int AVERAGE_BITS = Integer.numberOfTrailingZeros(AVERAGE_CHUNK_SIZE);
+    private static final long SMALL_MASK = -1L << (64 - AVERAGE_BITS - 2);
+    private static final long LARGE_MASK = -1L << (64 - AVERAGE_BITS + 2);
+    
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    private static final long[] GEAR = new long[256];
+    
+    static {
+        // splitmix64, written out so the table never depends on the JDK
+        long seed = 0x5353545043444300L;
+        
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+    
+    public static final class Chunk
+    {
+        private final long offset;
+        private final int length;
+        private final byte[] hash;
+        
+        public Chunk(long offset, int length, byte[] hash)
+        {
+            if (hash.length != HASH_LENGTH)
+                throw new IllegalArgumentException("hash length invalid");
+            
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash.clone();
+        }
+        
+        public long getOffset()
+        {
+            return offset;
+        }
+        
+        public int getLength()
+        {
+            return length;
+        }
+        
+        public byte[] getHash()
+        {
+            return hash.clone();
+        }
+        
+        public String getHashString()
+        {
+            return HexFormat.of().formatHex(hash);
+        }
+        
+        public boolean hasHash(byte[] hash)
+        {
+            return Arrays.equals(this.hash, hash);
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "Chunk {offset=" + offset + ", length=" + length + ", hash=" + getHashString() + "}";
+        }
+    }
+    
+    private SstpChunker()
+    {
+    }
+    
+    public static List<Chunk> split(Path path)
+        throws IOException
+    {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            return split(inputStream);
+        }
+    }
+    
+    public static List<Chunk> split(InputStream inputStream)
+        throws IOException
+    {
+        List<Chunk> chunks = new ArrayList<>();
+        
+        MessageDigest messageDigest = newMessageDigest();
+        
+        byte[] buffer = new byte[BUFFER_SIZE];
+        
+        long offset = 0;
+        
+        int length = 0;
+        
+        long hash = 0;
+        
+        int bytesRead;
+        
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            int start = 0;
+            
+            for (int i = 0; i < bytesRead; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                
+                if (++length < MIN_CHUNK_SIZE)
+                    continue;
+                
+                if ((hash & ((length < AVERAGE_CHUNK_SIZE) ? SMALL_MASK : LARGE_MASK)) != 0
+                    && length < MAX_CHUNK_SIZE)
+                    continue;
+                
+                messageDigest.update(buffer, start, i + 1 - start);
+                
+                chunks.add(new Chunk(offset, length, messageDigest.digest()));
+                
+                offset += length;
+                
+                length = 0;
+                
+                hash = 0;
+                
+                start = i + 1;
+            }
+            
+            messageDigest.update(buffer, start, bytesRead - start);
+        }
+        
+        if (length > 0)
+            chunks.add(new Chunk(offset, length, messageDigest.digest()));
+        
+        return chunks;
+    }
+    
+    public static byte[] hash(byte[] bytes, int offset, int length)
+    {
+        MessageDigest messageDigest = newMessageDigest();
+        
+        messageDigest.update(bytes, offset, length);
+        
+        return messageDigest.digest();
+    }
+    
+    private static MessageDigest newMessageDigest()
+    {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        
+        catch (NoSuchAlgorithmException exception) {
+            throw new IllegalArgumentException("algorithm invalid: " + exception);
+        }
+    }
+}
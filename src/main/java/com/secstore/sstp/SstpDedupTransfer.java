@@ -0,0 +1,244 @@
+package com.secstore.sstp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+
+
+/*
+ * Uploads a file into an SstpChunkStore sending only the chunks the store does
+ * not have yet, so uploading a file much like one uploaded before costs its
+ * list of chunks and the few chunks that changed.
+ *
+ * The sender splits the file with SstpChunker and offers its name, size and the
+ * hash and length of every chunk. The receiver answers with the indexes of the
+ * chunks it is missing, asking for each hash only once, and the sender sends
+ * their bytes in that order. The receiver checks every chunk against its hash,
+ * stores it, records the file and answers with its size. Each step takes a
+ * transmission of its own.
+ */
+public interface SstpDedupTransfer
+{
+    public static final int MAGIC = 0x53535444;
+    public static final int VERSION = 1;
+    
+    // enough for files of hundreds of gigabytes, and it keeps a corrupt count from allocating without bound
+    public static final int MAX_CHUNKS = 1 << 22;
+    
+    // Returns how many bytes of chunks had to be sent
+    public static long upload(SscpConnection connection, Path path, String name)
+        throws IOException
+    {
+        return upload(connection.getOutputStream(), connection.getInputStream(), path, name);
+    }
+    
+    public static long upload(SscpOutputStream outputStream, SscpInputStream inputStream, Path path, String name)
+        throws IOException
+    {
+        SstpManifest.checkName(name);
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            
+            // read through the channel, so it is the same file the chunks are sent from
+            List<SstpChunker.Chunk> chunks = SstpChunker.split(Channels.newInputStream(channel));
+            
+            long chunkedSize = chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).getOffset()
+                + chunks.get(chunks.size() - 1).getLength();
+            
+            if (chunkedSize != size)
+                throw new IOException(name + " changed during transfer");
+            
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            
+            dataOutputStream.writeInt(MAGIC);
+            
+            dataOutputStream.writeShort(VERSION);
+            
+            dataOutputStream.writeUTF(name);
+            
+            dataOutputStream.writeLong(size);
+            
+            dataOutputStream.writeInt(chunks.size());
+            
+            for (SstpChunker.Chunk chunk : chunks) {
+                dataOutputStream.write(chunk.getHash());
+                
+                dataOutputStream.writeInt(chunk.getLength());
+            }
+            
+            outputStream.writeEOT();
+            
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            
+            int missingCount = dataInputStream.readInt();
+            
+            if (missingCount < 0 || missingCount > chunks.size())
+                throw new IOException("missing chunk count invalid: " + missingCount);
+            
+            int[] missing = new int[missingCount];
+            
+            for (int i = 0; i < missingCount; i++) {
+                missing[i] = dataInputStream.readInt();
+                
+                if (missing[i] < 0 || missing[i] >= chunks.size())
+                    throw new IOException("missing chunk index invalid: " + missing[i]);
+            }
+            
+            if (inputStream.read() != -1)
+                throw new IOException("reply longer than expected");
+            
+            ByteBuffer byteBuffer = ByteBuffer.allocate(SstpChunker.MAX_CHUNK_SIZE);
+            
+            long bytesSent = 0;
+            
+            for (int index : missing) {
+                SstpChunker.Chunk chunk = chunks.get(index);
+                
+                byteBuffer.clear().limit(chunk.getLength());
+                
+                long position = chunk.getOffset();
+                
+                while (byteBuffer.hasRemaining()) {
+                    int bytesRead = channel.read(byteBuffer, position + byteBuffer.position());
+                    
+                    if (bytesRead == -1)
+                        throw new IOException(name + " shrank during transfer");
+                }
+                
+                outputStream.write(byteBuffer.array(), 0, chunk.getLength());
+                
+                bytesSent += chunk.getLength();
+            }
+            
+            outputStream.writeEOT();
+            
+            long committed = dataInputStream.readLong();
+            
+            if (inputStream.read() != -1)
+                throw new IOException("reply longer than expected");
+            
+            if (committed != size)
+                throw new IOException("transfer not committed: " + committed + " of " + size + " bytes");
+            
+            return bytesSent;
+        }
+    }
+    
+    // Receives an upload into the store and returns the name it was recorded under
+    public static String receive(SscpConnection connection, SstpChunkStore store)
+        throws IOException
+    {
+        return receive(connection.getInputStream(), connection.getOutputStream(), store);
+    }
+    
+    public static String receive(SscpInputStream inputStream, SscpOutputStream outputStream, SstpChunkStore store)
+        throws IOException
+    {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        
+        if (dataInputStream.readInt() != MAGIC)
+            throw new IOException("not a deduplicated transfer");
+        
+        int version = dataInputStream.readUnsignedShort();
+        
+        if (version != VERSION)
+            throw new IOException("deduplicated transfer version not supported: " + version);
+        
+        String name = dataInputStream.readUTF();
+        
+        try {
+            SstpManifest.checkName(name);
+        }
+        
+        catch (IllegalArgumentException exception) {
+            throw new IOException(exception.getMessage());
+        }
+        
+        long size = dataInputStream.readLong();
+        
+        int count = dataInputStream.readInt();
+        
+        if (count < 0 || count > MAX_CHUNKS)
+            throw new IOException("chunk count invalid: " + count);
+        
+        List<SstpChunker.Chunk> chunks = new ArrayList<>(count);
+        
+        long offset = 0;
+        
+        byte[] hash = new byte[SstpChunker.HASH_LENGTH];
+        
+        for (int i = 0; i < count; i++) {
+            dataInputStream.readFully(hash);
+            
+            int length = dataInputStream.readInt();
+            
+            if (length < 1 || length > SstpChunker.MAX_CHUNK_SIZE)
+                throw new IOException("chunk length invalid: " + length);
+            
+            chunks.add(new SstpChunker.Chunk(offset, length, hash));
+            
+            offset += length;
+        }
+        
+        if (offset != size)
+            throw new IOException("chunks add up to " + offset + " of " + size + " bytes");
+        
+        if (inputStream.read() != -1)
+            throw new IOException("offer longer than expected");
+        
+        List<Integer> missing = new ArrayList<>();
+        
+        Set<String> requested = new HashSet<>();
+        
+        // a chunk the file holds more than once is only asked for the first time
+        for (int i = 0; i < count; i++) {
+            SstpChunker.Chunk chunk = chunks.get(i);
+            
+            if (!store.contains(chunk.getHash()) && requested.add(chunk.getHashString()))
+                missing.add(i);
+        }
+        
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        
+        dataOutputStream.writeInt(missing.size());
+        
+        for (int index : missing)
+            dataOutputStream.writeInt(index);
+        
+        outputStream.writeEOT();
+        
+        byte[] buffer = new byte[SstpChunker.MAX_CHUNK_SIZE];
+        
+        for (int index : missing) {
+            SstpChunker.Chunk chunk = chunks.get(index);
+            
+            dataInputStream.readFully(buffer, 0, chunk.getLength());
+            
+            store.put(chunk.getHash(), buffer, 0, chunk.getLength());
+        }
+        
+        if (inputStream.read() != -1)
+            throw new IOException("transfer longer than expected");
+        
+        store.putFile(name, chunks);
+        
+        dataOutputStream.writeLong(size);
+        
+        outputStream.writeEOT();
+        
+        return name;
+    }
+}
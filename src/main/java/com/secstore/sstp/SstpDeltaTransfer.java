@@ -0,0 +1,728 @@
+package com.secstore.sstp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+
+
+/*
+ * Uploads a new version of a file the receiver already holds an older version
+ * of, sending only what the old version does not have, the way rsync does.
+ *
+ * The receiver cuts its version into blocks and sends a weak rolling checksum
+ * and a strong hash of each. The sender slides a window of one block over the
+ * new version a byte at a time, rolling the weak checksum along, and wherever
+ * the weak checksum and then the strong hash match a block it sends an
+ * instruction to copy that block, and otherwise the bytes themselves. Runs of
+ * blocks copied in order go as one instruction. It ends with the size and the
+ * SHA-256 of the whole new version.
+ *
+ * The receiver builds the new version under a temporary name from the old one
+ * and the bytes sent, checks it against the size and hash, and moves it over
+ * the old one in one step. A receiver without an old version sends no blocks,
+ * so the first upload sends the whole file.
+ *
+ * The receiver answers with the size it committed, or REFUSED if it did not
+ * take the new version. A delta it refuses is read to its end first, so the
+ * connection is ready for the next transfer.
+ */
+public interface SstpDeltaTransfer
+{
+    public static final int MAGIC = 0x53535464;
+    public static final int VERSION = 1;
+    
+    public static final int END = 0;
+    public static final int COPY = 1;
+    public static final int LITERAL = 2;
+    
+    public static final int MIN_BLOCK_SIZE = 2048;
+    public static final int MAX_BLOCK_SIZE = 131072;
+    
+    public static final String HASH_ALGORITHM = "SHA-256";
+    public static final int HASH_LENGTH = 32;
+    
+    // the weak checksum already sorts out nearly every block, so half a SHA-256 is plenty on top
+    public static final int STRONG_HASH_LENGTH = 16;
+    
+    public static final int MAX_LITERAL_LENGTH = 65536;
+    
+    public static final long REFUSED = -1;
+    
+    static final int WINDOW_SIZE = 1 << 20;
+    static final String TEMPORARY_SUFFIX = ".sstp-delta";
+    static final int WEAK_FILTER_BITS = 22;
+    static final int WEAK_FILTER_SIZE = 1 << WEAK_FILTER_BITS;
+    
+    // About the square root of the size, so signatures and literal data grow alike
+    public static int getBlockSize(long size)
+    {
+        long blockSize = Long.highestOneBit((long) Math.sqrt(size));
+        
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+    
+    // Returns how many bytes had to be sent as they are, rather than copied from the old version
+    public static long upload(SscpConnection connection, Path path)
+        throws IOException
+    {
+        return upload(connection.getOutputStream(), connection.getInputStream(), path);
+    }
+    
+    public static long upload(SscpOutputStream outputStream, SscpInputStream inputStream, Path path)
+        throws IOException
+    {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        
+        if (dataInputStream.readInt() != MAGIC)
+            throw new IOException("not a delta transfer");
+        
+        int version = dataInputStream.readUnsignedShort();
+        
+        if (version != VERSION)
+            throw new IOException("delta transfer version not supported: " + version);
+        
+        Signatures signatures = Signatures.read(dataInputStream);
+        
+        if (inputStream.read() != -1)
+            throw new IOException("signatures longer than expected");
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Encoder encoder = new Encoder(signatures, new DataOutputStream(outputStream));
+            
+            encoder.encode(channel);
+            
+            outputStream.writeEOT();
+            
+            long committed = dataInputStream.readLong();
+            
+            if (inputStream.read() != -1)
+                throw new IOException("reply longer than expected");
+            
+            if (committed == REFUSED)
+                throw new IOException("transfer refused by the receiver");
+            
+            if (committed != encoder.size)
+                throw new IOException("transfer not committed: " + committed + " of " + encoder.size + " bytes");
+            
+            return encoder.literalBytes;
+        }
+    }
+    
+    // Replaces the file, which need not exist yet, with the new version and returns its size
+    public static long receive(SscpConnection connection, Path path)
+        throws IOException
+    {
+        return receive(connection.getInputStream(), connection.getOutputStream(), path);
+    }
+    
+    public static long receive(SscpInputStream inputStream, SscpOutputStream outputStream, Path path)
+        throws IOException
+    {
+        Path temporary = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+        
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        
+        long size;
+        
+        boolean replyDue = false;
+        
+        try {
+            // closed before the move, some file systems will not replace a file that is open
+            try (FileChannel base = openBase(path);
+                FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Signatures signatures = Signatures.of(base, getBlockSize((base == null) ? 0 : base.size()));
+                
+                dataOutputStream.writeInt(MAGIC);
+                
+                dataOutputStream.writeShort(VERSION);
+                
+                signatures.write(dataOutputStream);
+                
+                outputStream.writeEOT();
+                
+                // from here on the sender waits for a reply, whatever becomes of its delta
+                replyDue = true;
+                
+                try {
+                    size = decode(new DataInputStream(inputStream), base, signatures, channel);
+                    
+                    if (inputStream.read() != -1)
+                        throw new IOException("transfer longer than expected");
+                }
+                
+                catch (EOFException exception) {
+                    // the end of the transmission is read already
+                    throw exception;
+                }
+                
+                catch (IOException exception) {
+                    throw discard(inputStream, exception);
+                }
+                
+                channel.force(false);
+            }
+            
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+        catch (IOException exception) {
+            if (replyDue)
+                refuse(outputStream, exception);
+            
+            throw exception;
+        }
+        
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+        
+        dataOutputStream.writeLong(size);
+        
+        outputStream.writeEOT();
+        
+        return size;
+    }
+    
+    // Reads the rest of the transmission, so the next one is where it should be, and returns the failure
+    private static IOException discard(SscpInputStream inputStream, IOException failure)
+        throws IOException
+    {
+        try {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        
+        catch (IOException exception) {
+            failure.addSuppressed(exception);
+        }
+        
+        return failure;
+    }
+    
+    // Tells the sender nothing was committed, anything that fails on the way is added to the failure
+    private static void refuse(SscpOutputStream outputStream, IOException failure)
+    {
+        try {
+            new DataOutputStream(outputStream).writeLong(REFUSED);
+            
+            outputStream.writeEOT();
+        }
+        
+        catch (IOException exception) {
+            failure.addSuppressed(exception);
+        }
+    }
+    
+    private static FileChannel openBase(Path path)
+        throws IOException
+    {
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+        
+        catch (NoSuchFileException exception) {
+            return null;
+        }
+    }
+    
+    private static long decode(DataInputStream dataInputStream, FileChannel base, Signatures signatures,
+        FileChannel channel)
+        throws IOException
+    {
+        MessageDigest messageDigest = newMessageDigest();
+        
+        ByteBuffer byteBuffer = ByteBuffer.allocate(Math.max(signatures.blockSize, MAX_LITERAL_LENGTH));
+        
+        long position = 0;
+        
+        while (true) {
+            int operation = dataInputStream.readUnsignedByte();
+            
+            if (operation == END)
+                break;
+            
+            if (operation == COPY) {
+                int first = dataInputStream.readInt();
+                
+                int count = dataInputStream.readInt();
+                
+                if (first < 0 || count < 1 || count > signatures.blockCount - first)
+                    throw new IOException("blocks invalid: " + count + " from " + first);
+                
+                for (int block = first; block < first + count; block++) {
+                    byteBuffer.clear().limit(signatures.getBlockLength(block));
+                    
+                    long basePosition = (long) block * signatures.blockSize;
+                    
+                    while (byteBuffer.hasRemaining())
+                        if (base.read(byteBuffer, basePosition + byteBuffer.position()) == -1)
+                            throw new IOException("old version shrank during transfer");
+                    
+                    byteBuffer.flip();
+                    
+                    position += write(channel, byteBuffer, position, messageDigest);
+                }
+            }
+            
+            else if (operation == LITERAL) {
+                int length = dataInputStream.readInt();
+                
+                if (length < 1 || length > MAX_LITERAL_LENGTH)
+                    throw new IOException("literal length invalid: " + length);
+                
+                dataInputStream.readFully(byteBuffer.array(), 0, length);
+                
+                byteBuffer.clear().limit(length);
+                
+                position += write(channel, byteBuffer, position, messageDigest);
+            }
+            
+            else
+                throw new IOException("operation invalid: " + operation);
+        }
+        
+        long size = dataInputStream.readLong();
+        
+        byte[] hash = new byte[HASH_LENGTH];
+        
+        dataInputStream.readFully(hash);
+        
+        if (size != position)
+            throw new IOException("new version is " + position + " bytes, expected " + size);
+        
+        if (!Arrays.equals(hash, messageDigest.digest()))
+            throw new IOException("new version does not match its hash");
+        
+        return size;
+    }
+    
+    // Writes the bytes from the start of the buffer up to its limit
+    private static int write(FileChannel channel, ByteBuffer byteBuffer, long position, MessageDigest messageDigest)
+        throws IOException
+    {
+        int length = byteBuffer.remaining();
+        
+        messageDigest.update(byteBuffer.array(), 0, length);
+        
+        while (byteBuffer.hasRemaining())
+            channel.write(byteBuffer, position + byteBuffer.position());
+        
+        return length;
+    }
+    
+    // rsync's checksum: the sum of the bytes and the sum of those sums, each in 16 bits
+    public static int getWeakChecksum(byte[] bytes, int offset, int length)
+    {
+        int a = 0;
+        
+        int b = 0;
+        
+        for (int i = 0; i < length; i++) {
+            a += bytes[offset + i] & 0xff;
+            
+            b += a;
+        }
+        
+        return (a & 0xffff) | (b << 16);
+    }
+    
+    public static byte[] getStrongHash(byte[] bytes, int offset, int length)
+    {
+        MessageDigest messageDigest = newMessageDigest();
+        
+        messageDigest.update(bytes, offset, length);
+        
+        return Arrays.copyOf(messageDigest.digest(), STRONG_HASH_LENGTH);
+    }
+    
+    private static MessageDigest newMessageDigest()
+    {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        
+        catch (NoSuchAlgorithmException exception) {
+            throw new IllegalArgumentException("algorithm invalid: " + exception);
+        }
+    }
+    
+    // The blocks of the receiver's version
+    static final class Signatures
+    {
+        final int blockSize;
+        final long size;
+        final int blockCount;
+        final int[] weak;
+        final byte[] strong;
+        
+        private Signatures(int blockSize, long size)
+            throws IOException
+        {
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || size < 0)
+                throw new IOException("signatures invalid");
+            
+            long blockCount = (size + blockSize - 1) / blockSize;
+            
+            if (blockCount > Integer.MAX_VALUE / STRONG_HASH_LENGTH)
+                throw new IOException("too many blocks: " + blockCount);
+            
+            this.blockSize = blockSize;
+            this.size = size;
+            this.blockCount = (int) blockCount;
+            this.weak = new int[this.blockCount];
+            this.strong = new byte[this.blockCount * STRONG_HASH_LENGTH];
+        }
+        
+        static Signatures of(FileChannel channel, int blockSize)
+            throws IOException
+        {
+            Signatures signatures = new Signatures(blockSize, (channel == null) ? 0 : channel.size());
+            
+            ByteBuffer byteBuffer = ByteBuffer.allocate(blockSize);
+            
+            for (int block = 0; block < signatures.blockCount; block++) {
+                byteBuffer.clear().limit(signatures.getBlockLength(block));
+                
+                while (byteBuffer.hasRemaining())
+                    if (channel.read(byteBuffer, (long) block * blockSize + byteBuffer.position()) == -1)
+                        throw new IOException("file shrank while its signatures were made");
+                
+                signatures.weak[block] = getWeakChecksum(byteBuffer.array(), 0, byteBuffer.limit());
+                
+                System.arraycopy(getStrongHash(byteBuffer.array(), 0, byteBuffer.limit()), 0, signatures.strong,
+                    block * STRONG_HASH_LENGTH, STRONG_HASH_LENGTH);
+            }
+            
+            return signatures;
+        }
+        
+        int getBlockLength(int block)
+        {
+            return (int) Math.min(blockSize, size - (long) block * blockSize);
+        }
+        
+        boolean hasStrongHash(int block, byte[] hash)
+        {
+            return Arrays.equals(strong, block * STRONG_HASH_LENGTH, (block + 1) * STRONG_HASH_LENGTH, hash, 0,
+                STRONG_HASH_LENGTH);
+        }
+        
+        void write(DataOutputStream dataOutputStream)
+            throws IOException
+        {
+            dataOutputStream.writeInt(blockSize);
+            
+            dataOutputStream.writeLong(size);
+            
+            for (int block = 0; block < blockCount; block++) {
+                dataOutputStream.writeInt(weak[block]);
+                
+                dataOutputStream.write(strong, block * STRONG_HASH_LENGTH, STRONG_HASH_LENGTH);
+            }
+        }
+        
+        static Signatures read(DataInputStream dataInputStream)
+            throws IOException
+        {
+            Signatures signatures = new Signatures(dataInputStream.readInt(), dataInputStream.readLong());
+            
+            for (int block = 0; block < signatures.blockCount; block++) {
+                signatures.weak[block] = dataInputStream.readInt();
+                
+                dataInputStream.readFully(signatures.strong, block * STRONG_HASH_LENGTH, STRONG_HASH_LENGTH);
+            }
+            
+            return signatures;
+        }
+    }
+    
+    /*
+     * Slides the window over the new version. The buffer holds the bytes from
+     * the first one not yet sent on, and is refilled from the file whenever
+     * less than a block and a byte is left past the window.
+     */
+    static final class Encoder
+    {
+        private final Signatures signatures;
+        private final DataOutputStream dataOutputStream;
+        private final MessageDigest messageDigest = newMessageDigest();
+        private final Map<Integer, Integer> firstBlocks = new HashMap<>();
+        private final int[] nextBlocks;
+        private final long[] weakFilter = new long[WEAK_FILTER_SIZE / 64];
+        private final byte[] buffer;
+        private int literalStart = 0;
+        private int start = 0;
+        private int end = 0;
+        private int copyFirst = -1;
+        private int copyCount = 0;
+        long size = 0;
+        long literalBytes = 0;
+        
+        Encoder(Signatures signatures, DataOutputStream dataOutputStream)
+        {
+            this.signatures = signatures;
+            this.dataOutputStream = dataOutputStream;
+            this.nextBlocks = new int[signatures.blockCount];
+            this.buffer = new byte[Math.max(WINDOW_SIZE, 2 * (signatures.blockSize + 1))];
+            
+            // later blocks first, so each chain lists its blocks in order
+            for (int block = signatures.blockCount - 1; block >= 0; block--) {
+                Integer next = firstBlocks.put(signatures.weak[block], block);
+                
+                int bit = getFilterBit(signatures.weak[block]);
+                
+                weakFilter[bit >>> 6] |= 1L << bit;
+                
+                nextBlocks[block] = (next == null) ? -1 : next;
+            }
+        }
+        
+        void encode(FileChannel channel)
+            throws IOException
+        {
+            int blockSize = signatures.blockSize;
+            
+            boolean endOfFile = false;
+            
+            boolean checksumValid = false;
+            
+            int a = 0;
+            
+            int b = 0;
+            
+            while (true) {
+                if (end - start <= blockSize && !endOfFile) {
+                    endOfFile = fill(channel);
+                    
+                    continue;
+                }
+                
+                int available = end - start;
+                
+                if (available < blockSize) {
+                    // only the last block of the old version can be this short
+                    int lastBlock = signatures.blockCount - 1;
+                    
+                    if (available > 0 && lastBlock >= 0 && signatures.getBlockLength(lastBlock) == available
+                        && match(lastBlock, getWeakChecksum(buffer, start, available), available)) {
+                        copy(lastBlock);
+                        
+                        start = end;
+                        
+                        literalStart = start;
+                    }
+                    
+                    break;
+                }
+                
+                if (!checksumValid) {
+                    a = 0;
+                    
+                    b = 0;
+                    
+                    for (int i = start; i < start + blockSize; i++) {
+                        a += buffer[i] & 0xff;
+                        
+                        b += a;
+                    }
+                    
+                    checksumValid = true;
+                }
+                
+                int block = find((a & 0xffff) | (b << 16), blockSize);
+                
+                if (block >= 0) {
+                    copy(block);
+                    
+                    start += blockSize;
+                    
+                    literalStart = start;
+                    
+                    checksumValid = false;
+                    
+                    continue;
+                }
+                
+                // at the end of the file there is nothing left to roll in
+                if (available == blockSize) {
+                    start = end;
+                    
+                    break;
+                }
+                
+                int out = buffer[start] & 0xff;
+                
+                a += (buffer[start + blockSize] & 0xff) - out;
+                
+                b += a - blockSize * out;
+                
+                start++;
+                
+                if (start - literalStart == MAX_LITERAL_LENGTH)
+                    literal(start);
+            }
+            
+            literal(end);
+            
+            flushCopy();
+            
+            dataOutputStream.writeByte(END);
+            
+            dataOutputStream.writeLong(size);
+            
+            dataOutputStream.write(messageDigest.digest());
+        }
+        
+        // Returns whether the file has ended
+        private boolean fill(FileChannel channel)
+            throws IOException
+        {
+            // whatever lies before the window is literal, it can go now
+            literal(start);
+            
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            
+            end -= start;
+            
+            start = 0;
+            
+            literalStart = 0;
+            
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, end, buffer.length - end);
+            
+            int bytesRead = channel.read(byteBuffer);
+            
+            if (bytesRead == -1)
+                return true;
+            
+            messageDigest.update(buffer, end, bytesRead);
+            
+            end += bytesRead;
+            
+            size += bytesRead;
+            
+            return false;
+        }
+        
+        private int find(int weak, int length)
+        {
+            int bit = getFilterBit(weak);
+            
+            // most windows match no block, and a bit is far cheaper to test than a boxed lookup
+            if ((weakFilter[bit >>> 6] & (1L << bit)) == 0)
+                return -1;
+            
+            Integer first = firstBlocks.get(weak);
+            
+            if (first == null)
+                return -1;
+            
+            byte[] hash = null;
+            
+            // a block that follows the last one copied keeps the copy going, so it is tried first
+            int expected = (copyCount > 0) ? copyFirst + copyCount : -1;
+            
+            for (int block = first; block != -1; block = nextBlocks[block]) {
+                if (signatures.getBlockLength(block) != length)
+                    continue;
+                
+                if (hash == null)
+                    hash = getStrongHash(buffer, start, length);
+                
+                if (block == expected && signatures.hasStrongHash(block, hash))
+                    return block;
+            }
+            
+            for (int block = first; block != -1; block = nextBlocks[block])
+                if (signatures.getBlockLength(block) == length && signatures.hasStrongHash(block, hash))
+                    return block;
+            
+            return -1;
+        }
+        
+        private static int getFilterBit(int weak)
+        {
+            return (weak * 0x9E3779B1) >>> (32 - WEAK_FILTER_BITS);
+        }
+        
+        private boolean match(int block, int weak, int length)
+        {
+            return signatures.weak[block] == weak
+                && signatures.hasStrongHash(block, getStrongHash(buffer, start, length));
+        }
+        
+        private void copy(int block)
+            throws IOException
+        {
+            literal(start);
+            
+            if (copyCount > 0 && block == copyFirst + copyCount) {
+                copyCount++;
+                
+                return;
+            }
+            
+            flushCopy();
+            
+            copyFirst = block;
+            
+            copyCount = 1;
+        }
+        
+        private void flushCopy()
+            throws IOException
+        {
+            if (copyCount == 0)
+                return;
+            
+            dataOutputStream.writeByte(COPY);
+            
+            dataOutputStream.writeInt(copyFirst);
+            
+            dataOutputStream.writeInt(copyCount);
+            
+            copyCount = 0;
+        }
+        
+        // Sends the bytes from literalStart up to the given end of them
+        private void literal(int literalEnd)
+            throws IOException
+        {
+            if (literalEnd == literalStart)
+                return;
+            
+            flushCopy();
+            
+            for (int offset = literalStart; offset < literalEnd; offset += MAX_LITERAL_LENGTH) {
+                int length = Math.min(MAX_LITERAL_LENGTH, literalEnd - offset);
+                
+                dataOutputStream.writeByte(LITERAL);
+                
+                dataOutputStream.writeInt(length);
+                
+                dataOutputStream.write(buffer, offset, length);
+                
+                literalBytes += length;
+            }
+            
+            literalStart = literalEnd;
+        }
+    }
+}
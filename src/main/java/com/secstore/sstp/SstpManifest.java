@@ -0,0 +1,230 @@
+package com.secstore.sstp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+
+/*
+ * The list of files an SSTP transfer carries, in the order their bodies follow.
+ *
+ * Each entry has a name relative to the directory the files are sent from and
+ * received into, always with '/' between its parts, the exact size of its body
+ * and its POSIX permission bits, or NO_MODE where the sender's file system has
+ * none. Names that could reach outside the directory are refused on both ends.
+ */
+public final class SstpManifest
+{
+    public static final int NO_MODE = -1;
+    
+    // far more than anyone sends at once, and it keeps a corrupt count from allocating without bound
+    public static final int MAX_ENTRIES = 1 << 20;
+    
+    private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+    
+    public static final class Entry
+    {
+        private final String name;
+        private final long size;
+        private final int mode;
+        
+        private Entry(String name, long size, int mode)
+        {
+            this.name = name;
+            this.size = size;
+            this.mode = mode;
+        }
+        
+        public String getName()
+        {
+            return name;
+        }
+        
+        public long getSize()
+        {
+            return size;
+        }
+        
+        public int getMode()
+        {
+            return mode;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "Entry {name=" + name + ", size=" + size + ", mode="
+                + ((mode == NO_MODE) ? "none" : Integer.toOctalString(mode)) + "}";
+        }
+    }
+    
+    private final List<Entry> entries = new ArrayList<>();
+    private long totalSize = 0;
+    
+    // The files as they are now, named relative to the directory they must be in
+    public static SstpManifest of(Path directory, Collection<Path> files)
+        throws IOException
+    {
+        SstpManifest manifest = new SstpManifest();
+        
+        Path base = directory.toAbsolutePath().normalize();
+        
+        for (Path file : files) {
+            Path path = base.resolve(file).normalize();
+            
+            if (!path.startsWith(base) || path.equals(base))
+                throw new IllegalArgumentException("file not in directory: " + file);
+            
+            // one stat for type, size and mode, which for many small files costs about as much as reading them
+            BasicFileAttributes attributes = readAttributes(path);
+            
+            if (!attributes.isRegularFile())
+                throw new IllegalArgumentException("not a regular file: " + file);
+            
+            int mode = (attributes instanceof PosixFileAttributes)
+                ? toMode(((PosixFileAttributes) attributes).permissions()) : NO_MODE;
+            
+            manifest.add(base.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/"),
+                attributes.size(), mode);
+        }
+        
+        return manifest;
+    }
+    
+    public SstpManifest add(String name, long size, int mode)
+    {
+        checkName(name);
+        
+        if (size < 0)
+            throw new IllegalArgumentException("size must not be negative");
+        
+        if (mode != NO_MODE && (mode & ~0777) != 0)
+            throw new IllegalArgumentException("mode invalid");
+        
+        if (entries.size() == MAX_ENTRIES)
+            throw new IllegalArgumentException("too many entries");
+        
+        entries.add(new Entry(name, size, mode));
+        
+        totalSize += size;
+        
+        return this;
+    }
+    
+    public List<Entry> getEntries()
+    {
+        return Collections.unmodifiableList(entries);
+    }
+    
+    public int size()
+    {
+        return entries.size();
+    }
+    
+    // The bytes of all bodies together
+    public long getTotalSize()
+    {
+        return totalSize;
+    }
+    
+    // Only relative names made of plain parts, so a manifest can never point outside the directory
+    public static void checkName(String name)
+    {
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("name missing");
+        
+        if (name.startsWith("/") || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0 || name.indexOf(':') >= 0)
+            throw new IllegalArgumentException("name invalid: " + name);
+        
+        for (String part : name.split("/", -1))
+            if (part.isEmpty() || part.equals(".") || part.equals(".."))
+                throw new IllegalArgumentException("name invalid: " + name);
+    }
+    
+    private static BasicFileAttributes readAttributes(Path path)
+        throws IOException
+    {
+        try {
+            return Files.readAttributes(path, PosixFileAttributes.class);
+        }
+        
+        catch (UnsupportedOperationException exception) {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }
+    }
+    
+    // PosixFilePermission lists owner, group and others from the highest bit down
+    public static int toMode(Set<PosixFilePermission> permissions)
+    {
+        int mode = 0;
+        
+        for (PosixFilePermission permission : permissions)
+            mode |= 1 << (PERMISSIONS.length - 1 - permission.ordinal());
+        
+        return mode;
+    }
+    
+    public static Set<PosixFilePermission> toPermissions(int mode)
+    {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        
+        for (PosixFilePermission permission : PERMISSIONS)
+            if ((mode & (1 << (PERMISSIONS.length - 1 - permission.ordinal()))) != 0)
+                permissions.add(permission);
+        
+        return permissions;
+    }
+    
+    void write(DataOutputStream dataOutputStream)
+        throws IOException
+    {
+        dataOutputStream.writeInt(entries.size());
+        
+        for (Entry entry : entries) {
+            dataOutputStream.writeUTF(entry.name);
+            
+            dataOutputStream.writeLong(entry.size);
+            
+            dataOutputStream.writeInt(entry.mode);
+        }
+    }
+    
+    static SstpManifest read(DataInputStream dataInputStream)
+        throws IOException
+    {
+        int count = dataInputStream.readInt();
+        
+        if (count < 0 || count > MAX_ENTRIES)
+            throw new IOException("manifest invalid: " + count + " entries");
+        
+        SstpManifest manifest = new SstpManifest();
+        
+        try {
+            for (int i = 0; i < count; i++)
+                manifest.add(dataInputStream.readUTF(), dataInputStream.readLong(), dataInputStream.readInt());
+        }
+        
+        catch (IllegalArgumentException exception) {
+            throw new IOException("manifest invalid: " + exception.getMessage());
+        }
+        
+        return manifest;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SstpManifest {entries=" + entries.size() + ", totalSize=" + totalSize + "}";
+    }
+}
@@ -0,0 +1,327 @@
+package com.secstore.sstp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+
+
+/*
+ * SSTP, the SecStore Transfer Protocol, sends any number of files as a single
+ * SSCP transmission under whatever protocol the connection is set to.
+ *
+ * A transfer is the magic number and version, the manifest, and then the body
+ * of every file in manifest order, each exactly as long as the manifest says,
+ * followed by the end of the transmission. Since the receiver knows every size
+ * up front it sizes each file before writing it, and since nothing but the
+ * last frame ends a transmission, many small files go out in the same frames
+ * with a single flush at the end.
+ *
+ * New small files are written in place, since writing under a temporary name
+ * and renaming costs them several times what writing them does. Large files,
+ * and any file that replaces one of the same name, are written under a
+ * temporary name and renamed into place once whole. A failed transfer leaves
+ * no partial file behind and every file it was replacing as it was.
+ *
+ * A transfer that fails on the file system is still read to its end, so the
+ * connection's next transmission is where it should be.
+ */
+public interface SstpProtocol
+{
+    public static final int MAGIC = 0x53535450;
+    public static final int VERSION = 1;
+    
+    public static final int TRANSFER_BUFFER_SIZE = 65536;
+    
+    static final String TEMPORARY_SUFFIX = ".sstp-part";
+    
+    static final Set<StandardOpenOption> CREATE_OPTIONS = EnumSet.of(StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+    
+    // Sends the files, named relative to the directory they must be in, and returns what was sent
+    public static SstpManifest send(SscpConnection connection, Path directory, Collection<Path> files)
+        throws IOException
+    {
+        SstpManifest manifest = SstpManifest.of(directory, files);
+        
+        send(connection.getOutputStream(), manifest, directory);
+        
+        return manifest;
+    }
+    
+    public static void send(SscpOutputStream outputStream, SstpManifest manifest, Path directory)
+        throws IOException
+    {
+        // not closed, that would close the connection's stream
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        
+        dataOutputStream.writeInt(MAGIC);
+        
+        dataOutputStream.writeShort(VERSION);
+        
+        manifest.write(dataOutputStream);
+        
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        
+        for (SstpManifest.Entry entry : manifest.getEntries())
+            sendBody(outputStream, directory.resolve(entry.getName()), entry, buffer);
+        
+        outputStream.writeEOT();
+    }
+    
+    // A file that changed size since the manifest was made cannot be sent, the sizes are already out
+    private static void sendBody(SscpOutputStream outputStream, Path path, SstpManifest.Entry entry, byte[] buffer)
+        throws IOException
+    {
+        long bytesLeft = entry.getSize();
+        
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            while (true) {
+                // asking for a byte more than is left finds a grown file without another read
+                int length = (int) Math.min(buffer.length, bytesLeft + 1);
+                
+                int bytesRead = inputStream.read(buffer, 0, length);
+                
+                if (bytesRead == -1) {
+                    if (bytesLeft > 0)
+                        throw new IOException(entry.getName() + " shrank during transfer");
+                    
+                    return;
+                }
+                
+                if (bytesRead > bytesLeft)
+                    throw new IOException(entry.getName() + " grew during transfer");
+                
+                outputStream.write(buffer, 0, bytesRead);
+                
+                bytesLeft -= bytesRead;
+                
+                // files only read short at their end
+                if (bytesLeft == 0 && bytesRead < length)
+                    return;
+            }
+        }
+    }
+    
+    // Receives a transfer into the directory and returns its manifest
+    public static SstpManifest receive(SscpConnection connection, Path directory)
+        throws IOException
+    {
+        return receive(connection.getInputStream(), directory);
+    }
+    
+    public static SstpManifest receive(SscpInputStream inputStream, Path directory)
+        throws IOException
+    {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        
+        if (dataInputStream.readInt() != MAGIC)
+            throw discard(inputStream, new IOException("not an sstp transfer"));
+        
+        int version = dataInputStream.readUnsignedShort();
+        
+        if (version != VERSION)
+            throw discard(inputStream, new IOException("sstp version not supported: " + version));
+        
+        SstpManifest manifest;
+        
+        try {
+            manifest = SstpManifest.read(dataInputStream);
+        }
+        
+        catch (EOFException exception) {
+            // the end of the transmission is read already
+            throw exception;
+        }
+        
+        catch (IOException exception) {
+            throw discard(inputStream, exception);
+        }
+        
+        Path base = directory.toAbsolutePath().normalize();
+        
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        
+        Path lastDirectory = null;
+        
+        for (SstpManifest.Entry entry : manifest.getEntries()) {
+            Path path = base.resolve(entry.getName()).normalize();
+            
+            // checked when the manifest was read already, this only guards against the file system's own ideas
+            if (!path.startsWith(base) || path.equals(base))
+                throw discard(inputStream, new IOException("name outside directory: " + entry.getName()));
+            
+            try {
+                // files of the same directory tend to come together, so most need no directory made
+                if (!path.getParent().equals(lastDirectory))
+                    lastDirectory = Files.createDirectories(path.getParent());
+            }
+            
+            catch (IOException exception) {
+                throw discard(inputStream, exception);
+            }
+            
+            IOException failure = receiveBody(inputStream, path, entry, buffer);
+            
+            if (failure != null)
+                throw discard(inputStream, failure);
+        }
+        
+        if (inputStream.read() != -1)
+            throw discard(inputStream, new IOException("transfer longer than its manifest"));
+        
+        return manifest;
+    }
+    
+    // Reads the rest of the transmission, so the next one is where it should be, and returns the failure
+    private static IOException discard(SscpInputStream inputStream, IOException failure)
+        throws IOException
+    {
+        try {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        
+        catch (IOException exception) {
+            failure.addSuppressed(exception);
+        }
+        
+        return failure;
+    }
+    
+    /*
+     * Throws what the transmission failed with, and returns what the file
+     * system failed with, once nothing of the file is left behind. The body
+     * is then still to be read.
+     */
+    private static IOException receiveBody(SscpInputStream inputStream, Path path, SstpManifest.Entry entry,
+        byte[] buffer)
+        throws IOException
+    {
+        long size = entry.getSize();
+        
+        Path written = null;
+        
+        FileChannel channel = null;
+        
+        boolean complete = false;
+        
+        try {
+            try {
+                if (size <= buffer.length) {
+                    try {
+                        channel = create(path, entry.getMode());
+                        
+                        written = path;
+                    }
+                    
+                    catch (FileAlreadyExistsException exception) {
+                        // written aside below, a failure must not cost the copy already there
+                    }
+                }
+                
+                if (channel == null) {
+                    written = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+                    
+                    // left behind by a transfer that never got to clean up
+                    Files.deleteIfExists(written);
+                    
+                    channel = create(written, entry.getMode());
+                }
+                
+                // sets the length up front for files that take more than one write
+                if (size > buffer.length)
+                    channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+            
+            catch (IOException exception) {
+                return exception;
+            }
+            
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            
+            long position = 0;
+            
+            while (position < size) {
+                int bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+                
+                if (bytesRead == -1)
+                    throw new IOException("transfer ended inside " + entry.getName());
+                
+                byteBuffer.clear().limit(bytesRead);
+                
+                try {
+                    while (byteBuffer.hasRemaining())
+                        position += channel.write(byteBuffer, position);
+                }
+                
+                catch (IOException exception) {
+                    return exception;
+                }
+            }
+            
+            try {
+                // closed before the move, some file systems will not replace a file that is open
+                channel.close();
+                
+                if (!written.equals(path))
+                    Files.move(written, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            
+            catch (IOException exception) {
+                return exception;
+            }
+            
+            complete = true;
+            
+            return null;
+        }
+        
+        finally {
+            if (channel != null)
+                channel.close();
+            
+            if (!complete && written != null)
+                Files.deleteIfExists(written);
+        }
+    }
+    
+    /*
+     * Files get the mode as they are created, so the umask applies to it as it
+     * does for cp or tar. An existing file is never opened, whatever is
+     * replaced is replaced by a rename.
+     */
+    private static FileChannel create(Path path, int mode)
+        throws IOException
+    {
+        if (mode == SstpManifest.NO_MODE)
+            return FileChannel.open(path, CREATE_OPTIONS);
+        
+        Set<PosixFilePermission> permissions = SstpManifest.toPermissions(mode);
+        
+        try {
+            return FileChannel.open(path, CREATE_OPTIONS, PosixFilePermissions.asFileAttribute(permissions));
+        }
+        
+        catch (UnsupportedOperationException exception) {
+            // modes only mean something where the file system has them
+            return FileChannel.open(path, CREATE_OPTIONS);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.secstore.sstp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+
+
+/*
+ * Sends one file so that a transfer cut off part way continues where it
+ * stopped on the next connection, rather than from the start.
+ *
+ * The sender offers the file by an id and its size, the receiver answers with
+ * the offset it has committed for that id, the sender sends the rest from
+ * there and the receiver acknowledges once all of it is on disk. Each takes a
+ * transmission of its own.
+ *
+ * The receiver writes into a partial file next to the target, named with
+ * PARTIAL_SUFFIX, and keeps its committed offset in a record named with
+ * RECORD_SUFFIX. The partial file is forced to disk before the record says any
+ * of it is committed, every CHECKPOINT_INTERVAL bytes and once more when a
+ * transfer fails, so even a crash loses at most one interval. Whatever lies
+ * past the committed offset is cut off before a transfer continues. Once the
+ * partial file is complete it is moved over the target in one step, so the
+ * target keeps whatever it held until then, and the record goes.
+ *
+ * A receiver that refuses an offer or the data answers REFUSED instead of an
+ * offset or the size, once it has read the rest of the transmission, so the
+ * connection is ready for the next transfer.
+ *
+ * The default id is the file name, size and modification time, so a file that
+ * changed since the last attempt starts over. A record for another id, or a
+ * file without a record, also starts over from the first byte.
+ */
+public interface SstpResumableTransfer
+{
+    public static final int MAGIC = 0x53535452;
+    public static final int VERSION = 1;
+    public static final String RECORD_SUFFIX = ".sstp-resume";
+    public static final String PARTIAL_SUFFIX = ".sstp-partial";
+    
+    public static final long REFUSED = -1;
+    
+    public static final long CHECKPOINT_INTERVAL = 8 << 20;
+    public static final int TRANSFER_BUFFER_SIZE = 65536;
+    
+    // Files keep their id as long as they are not changed
+    public static String getId(Path path)
+        throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        
+        return path.getFileName() + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+    }
+    
+    // Returns the offset the receiver had already committed, which was not sent again
+    public static long upload(SscpConnection connection, Path path)
+        throws IOException
+    {
+        return upload(connection.getOutputStream(), connection.getInputStream(), path, getId(path));
+    }
+    
+    public static long upload(SscpOutputStream outputStream, SscpInputStream inputStream, Path path, String id)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            
+            dataOutputStream.writeInt(MAGIC);
+            
+            dataOutputStream.writeShort(VERSION);
+            
+            dataOutputStream.writeUTF(id);
+            
+            dataOutputStream.writeLong(size);
+            
+            outputStream.writeEOT();
+            
+            long offset = readLong(inputStream);
+            
+            if (offset == REFUSED)
+                throw new IOException("transfer refused by the receiver");
+            
+            if (offset < 0 || offset > size)
+                throw new IOException("resume offset invalid: " + offset);
+            
+            channel.position(offset);
+            
+            ByteBuffer byteBuffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+            
+            long bytesLeft = size - offset;
+            
+            while (bytesLeft > 0) {
+                byteBuffer.clear().limit((int) Math.min(byteBuffer.capacity(), bytesLeft));
+                
+                int bytesRead = channel.read(byteBuffer);
+                
+                if (bytesRead == -1)
+                    throw new IOException(path.getFileName() + " shrank during transfer");
+                
+                outputStream.write(byteBuffer.array(), 0, bytesRead);
+                
+                bytesLeft -= bytesRead;
+            }
+            
+            outputStream.writeEOT();
+            
+            long committed = readLong(inputStream);
+            
+            if (committed == REFUSED)
+                throw new IOException("transfer refused by the receiver");
+            
+            if (committed != size)
+                throw new IOException("transfer not committed: " + committed + " of " + size + " bytes");
+            
+            return offset;
+        }
+    }
+    
+    // Returns the offset the transfer continued from
+    public static long download(SscpConnection connection, Path path)
+        throws IOException
+    {
+        return download(connection.getInputStream(), connection.getOutputStream(), path);
+    }
+    
+    public static long download(SscpInputStream inputStream, SscpOutputStream outputStream, Path path)
+        throws IOException
+    {
+        // the sender waits for an answer to its offer and then to its data, so no failure goes unanswered
+        try {
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            
+            String id;
+            
+            long size;
+            
+            try {
+                if (dataInputStream.readInt() != MAGIC)
+                    throw new IOException("not a resumable transfer");
+                
+                int version = dataInputStream.readUnsignedShort();
+                
+                if (version != VERSION)
+                    throw new IOException("resumable transfer version not supported: " + version);
+                
+                id = dataInputStream.readUTF();
+                
+                size = dataInputStream.readLong();
+                
+                if (size < 0)
+                    throw new IOException("size invalid: " + size);
+                
+                if (inputStream.read() != -1)
+                    throw new IOException("offer longer than expected");
+            }
+            
+            catch (EOFException exception) {
+                // the end of the transmission is read already
+                throw exception;
+            }
+            
+            catch (IOException exception) {
+                throw discard(inputStream, exception);
+            }
+            
+            Path record = path.resolveSibling(path.getFileName() + RECORD_SUFFIX);
+            
+            Path partial = path.resolveSibling(path.getFileName() + PARTIAL_SUFFIX);
+            
+            long offset = readRecord(record, id);
+            
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // anything past the committed offset may not have reached the disk whole
+                if (offset > size || offset > channel.size())
+                    offset = 0;
+                
+                channel.truncate(offset);
+                
+                writeRecord(record, id, offset);
+                
+                writeLong(outputStream, offset);
+                
+                long position;
+                
+                try {
+                    position = receive(inputStream, channel, record, id, offset, size);
+                }
+                
+                catch (EOFException exception) {
+                    // the end of the transmission is read already
+                    throw exception;
+                }
+                
+                catch (IOException exception) {
+                    throw discard(inputStream, exception);
+                }
+                
+                if (position != size)
+                    throw new IOException("transfer ended at " + position + " of " + size + " bytes");
+                
+                if (inputStream.read() != -1)
+                    throw discard(inputStream, new IOException("transfer longer than offered"));
+                
+                channel.force(false);
+            }
+            
+            Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            Files.delete(record);
+            
+            writeLong(outputStream, size);
+            
+            return offset;
+        }
+        
+        catch (IOException exception) {
+            refuse(outputStream, exception);
+            
+            throw exception;
+        }
+    }
+    
+    // Returns the position reached, which is committed before any failure is passed on
+    private static long receive(SscpInputStream inputStream, FileChannel channel, Path record, String id,
+        long offset, long size)
+        throws IOException
+    {
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        
+        long position = offset;
+        
+        long checkpoint = offset + CHECKPOINT_INTERVAL;
+        
+        try {
+            while (position < size) {
+                int bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+                
+                // the sender ended early, which only a broken sender does
+                if (bytesRead == -1) {
+                    commit(channel, record, id, position);
+                    
+                    break;
+                }
+                
+                byteBuffer.clear().limit(bytesRead);
+                
+                while (byteBuffer.hasRemaining())
+                    position += channel.write(byteBuffer, position);
+                
+                if (position >= checkpoint) {
+                    commit(channel, record, id, position);
+                    
+                    checkpoint = position + CHECKPOINT_INTERVAL;
+                }
+            }
+        }
+        
+        catch (IOException exception) {
+            try {
+                commit(channel, record, id, position);
+            }
+            
+            catch (IOException commitException) {
+                exception.addSuppressed(commitException);
+            }
+            
+            throw exception;
+        }
+        
+        return position;
+    }
+    
+    // The data goes to disk before the record that vouches for it
+    private static void commit(FileChannel channel, Path record, String id, long position)
+        throws IOException
+    {
+        channel.force(false);
+        
+        writeRecord(record, id, position);
+    }
+    
+    // The committed offset for the id, 0 if there is no record or it is for another id
+    private static long readRecord(Path record, String id)
+        throws IOException
+    {
+        try (DataInputStream dataInputStream = new DataInputStream(Files.newInputStream(record))) {
+            if (!id.equals(dataInputStream.readUTF()))
+                return 0;
+            
+            return Math.max(0, dataInputStream.readLong());
+        }
+        
+        catch (NoSuchFileException exception) {
+            return 0;
+        }
+        
+        catch (EOFException | UTFDataFormatException exception) {
+            // a record torn by a crash only costs the progress it recorded
+            return 0;
+        }
+    }
+    
+    // Overwritten in place, the record is short enough to be written whole
+    private static void writeRecord(Path record, String id, long offset)
+        throws IOException
+    {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        
+        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+        
+        dataOutputStream.writeUTF(id);
+        
+        dataOutputStream.writeLong(offset);
+        
+        ByteBuffer byteBuffer = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+        
+        try (FileChannel channel = FileChannel.open(record, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            while (byteBuffer.hasRemaining())
+                channel.write(byteBuffer, byteBuffer.position());
+            
+            channel.truncate(byteBuffer.limit());
+            
+            channel.force(true);
+        }
+    }
+    
+    // Reads the rest of the transmission, so the next one is where it should be, and returns the failure
+    private static IOException discard(SscpInputStream inputStream, IOException failure)
+        throws IOException
+    {
+        try {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        
+        catch (IOException exception) {
+            failure.addSuppressed(exception);
+        }
+        
+        return failure;
+    }
+    
+    // Tells the sender nothing more was committed, anything that fails on the way is added to the failure
+    private static void refuse(SscpOutputStream outputStream, IOException failure)
+    {
+        try {
+            writeLong(outputStream, REFUSED);
+        }
+        
+        catch (IOException exception) {
+            failure.addSuppressed(exception);
+        }
+    }
+    
+    private static long readLong(SscpInputStream inputStream)
+        throws IOException
+    {
+        long value = new DataInputStream(inputStream).readLong();
+        
+        if (inputStream.read() != -1)
+            throw new IOException("reply longer than expected");
+        
+        return value;
+    }
+    
+    private static void writeLong(SscpOutputStream outputStream, long value)
+        throws IOException
+    {
+        new DataOutputStream(outputStream).writeLong(value);
+        
+        outputStream.writeEOT();
+    }
+}
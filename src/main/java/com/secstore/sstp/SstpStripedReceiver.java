@@ -0,0 +1,304 @@
+package com.secstore.sstp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+
+
+/*
+ * Receives striped transfers into a directory, see SstpStripedTransfer.
+ *
+ * The first connection of a transfer creates a temporary file next to the
+ * target, sized to the whole file, and every connection writes its stripes
+ * into it at their own position. The last connection to finish forces the
+ * file to disk and moves it over the target in one step, so the target is
+ * either the old file or the complete new one, never a mix. Every connection
+ * of the transfer is answered once that is done.
+ *
+ * A transfer fails as a whole when any of its connections does, which deletes
+ * the temporary file and fails the connections still waiting. It also fails
+ * when a connection that has sent all its stripes waits longer than
+ * commitTimeout for the others, which covers connections that never arrive.
+ */
+public final class SstpStripedReceiver
+{
+    public static final long DEFAULT_COMMIT_TIMEOUT = 60000;
+    
+    private static final String TEMPORARY_SUFFIX = ".sstp-striped";
+    
+    private final Path directory;
+    private final Map<String, Transfer> transfers = new HashMap<>();
+    private volatile long commitTimeout = DEFAULT_COMMIT_TIMEOUT;
+    
+    public SstpStripedReceiver(Path directory)
+    {
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+    
+    public Path getDirectory()
+    {
+        return directory;
+    }
+    
+    public long getCommitTimeout()
+    {
+        return commitTimeout;
+    }
+    
+    public SstpStripedReceiver setCommitTimeout(long commitTimeout)
+    {
+        if (commitTimeout <= 0)
+            throw new IllegalArgumentException("commit timeout must be positive");
+        
+        this.commitTimeout = commitTimeout;
+        
+        return this;
+    }
+    
+    // Runs one connection's part of a transfer and returns the committed file
+    public Path receive(SscpConnection connection)
+        throws IOException
+    {
+        return receive(connection.getInputStream(), connection.getOutputStream());
+    }
+    
+    public Path receive(SscpInputStream inputStream, SscpOutputStream outputStream)
+        throws IOException
+    {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        
+        SstpStripedTransfer.Header header = SstpStripedTransfer.Header.read(dataInputStream);
+        
+        Transfer transfer = join(header);
+        
+        try {
+            byte[] buffer = new byte[SstpStripedTransfer.TRANSFER_BUFFER_SIZE];
+            
+            long index;
+            
+            while ((index = dataInputStream.readLong()) != SstpStripedTransfer.END_OF_STRIPES)
+                receiveStripe(inputStream, transfer, index, buffer);
+            
+            if (inputStream.read() != -1)
+                throw new IOException("transfer longer than expected");
+            
+            transfer.finish();
+        }
+        
+        catch (IOException | RuntimeException exception) {
+            transfer.fail(exception);
+            
+            throw exception;
+        }
+        
+        try {
+            transfer.committed.get(commitTimeout, TimeUnit.MILLISECONDS);
+        }
+        
+        catch (ExecutionException exception) {
+            throw new IOException("striped transfer failed: " + exception.getCause(), exception.getCause());
+        }
+        
+        catch (TimeoutException exception) {
+            IOException timeoutException = new IOException("striped transfer " + header.id + " timed out");
+            
+            transfer.fail(timeoutException);
+            
+            throw timeoutException;
+        }
+        
+        catch (InterruptedException exception) {
+            throw new InterruptedIOException("interrupted while waiting for striped transfer " + header.id);
+        }
+        
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        
+        dataOutputStream.writeLong(header.size);
+        
+        outputStream.writeEOT();
+        
+        return transfer.path;
+    }
+    
+    // Transfers in progress
+    public synchronized int getTransferCount()
+    {
+        return transfers.size();
+    }
+    
+    private synchronized Transfer join(SstpStripedTransfer.Header header)
+        throws IOException
+    {
+        Transfer transfer = transfers.get(header.id);
+        
+        if (transfer == null) {
+            Path path = directory.resolve(header.name).normalize();
+            
+            if (!path.startsWith(directory) || path.equals(directory))
+                throw new IOException("name outside directory: " + header.name);
+            
+            Files.createDirectories(path.getParent());
+            
+            transfer = new Transfer(header, path);
+            
+            transfers.put(header.id, transfer);
+        }
+        
+        else if (!transfer.header.matches(header)) {
+            IOException exception = new IOException("connection disagrees with transfer " + header.id);
+            
+            transfer.fail(exception);
+            
+            throw exception;
+        }
+        
+        if (++transfer.joined > header.connections) {
+            IOException exception = new IOException("more connections than announced for " + header.id);
+            
+            transfer.fail(exception);
+            
+            throw exception;
+        }
+        
+        return transfer;
+    }
+    
+    private static void receiveStripe(SscpInputStream inputStream, Transfer transfer, long index, byte[] buffer)
+        throws IOException
+    {
+        transfer.claim(index);
+        
+        long position = index * transfer.header.stripeSize;
+        
+        long end = Math.min(position + transfer.header.stripeSize, transfer.header.size);
+        
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        
+        while (position < end) {
+            int bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            
+            if (bytesRead == -1)
+                throw new IOException("transfer ended inside stripe " + index);
+            
+            byteBuffer.clear().limit(bytesRead);
+            
+            while (byteBuffer.hasRemaining())
+                position += transfer.channel.write(byteBuffer, position);
+        }
+    }
+    
+    private final class Transfer
+    {
+        private final SstpStripedTransfer.Header header;
+        private final Path path;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final long stripeCount;
+        private final BitSet stripes = new BitSet();
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+        private int joined = 0;
+        private int finished = 0;
+        
+        Transfer(SstpStripedTransfer.Header header, Path path)
+            throws IOException
+        {
+            this.header = header;
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + "." + header.id + TEMPORARY_SUFFIX);
+            this.stripeCount = SstpStripedTransfer.getStripeCount(header.size, header.stripeSize);
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            
+            try {
+                // sized up front, so stripes written out of order never extend the file
+                if (header.size > 0)
+                    channel.write(ByteBuffer.wrap(new byte[1]), header.size - 1);
+            }
+            
+            catch (IOException exception) {
+                channel.close();
+                
+                Files.deleteIfExists(temporary);
+                
+                throw exception;
+            }
+        }
+        
+        synchronized void claim(long index)
+            throws IOException
+        {
+            if (committed.isDone())
+                throw new IOException("striped transfer " + header.id + " already ended");
+            
+            if (index < 0 || index >= stripeCount)
+                throw new IOException("stripe index invalid: " + index);
+            
+            if (stripes.get((int) index))
+                throw new IOException("stripe " + index + " received twice");
+            
+            stripes.set((int) index);
+        }
+        
+        // The last connection to finish commits for all of them
+        void finish()
+            throws IOException
+        {
+            synchronized (SstpStripedReceiver.this) {
+                if (++finished < header.connections)
+                    return;
+                
+                transfers.remove(header.id);
+            }
+            
+            synchronized (this) {
+                if (stripes.cardinality() != stripeCount)
+                    throw new IOException("stripes missing: " + (stripeCount - stripes.cardinality()) + " of "
+                        + stripeCount);
+            }
+            
+            channel.force(false);
+            
+            channel.close();
+            
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            committed.complete(null);
+        }
+        
+        void fail(Exception exception)
+        {
+            synchronized (SstpStripedReceiver.this) {
+                transfers.remove(header.id, this);
+            }
+            
+            if (!committed.completeExceptionally(exception))
+                return;
+            
+            try {
+                channel.close();
+                
+                Files.deleteIfExists(temporary);
+            }
+            
+            catch (IOException closeException) {
+                exception.addSuppressed(closeException);
+            }
+        }
+    }
+}
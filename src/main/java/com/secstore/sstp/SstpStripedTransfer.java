@@ -0,0 +1,285 @@
+package com.secstore.sstp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.secstore.sscp.SscpConnection;
+import com.secstore.sscp.SscpInputStream;
+import com.secstore.sscp.SscpOutputStream;
+
+
+/*
+ * Uploads one large file over several connections at once, so it is not held
+ * to what a single TCP flow and a single thread sealing its frames can carry.
+ *
+ * The file is cut into stripes of stripeSize bytes, the last one shorter. Every
+ * connection sends a header naming the transfer, the file, its size, the stripe
+ * size and how many connections take part, and then takes the next stripe not
+ * yet sent until none are left, so faster connections carry more of them. Each
+ * stripe goes as its index followed by its bytes, an index of -1 ends the
+ * stripes and the transmission. The receiver answers every connection with the
+ * size once the whole file is committed.
+ *
+ * Connections must already be handshaken and set to their protocol, and the
+ * server must hand every one of them to the same SstpStripedReceiver. Only as
+ * many connections as there are stripes take part, the rest are left alone.
+ */
+public interface SstpStripedTransfer
+{
+    public static final int MAGIC = 0x53535453;
+    public static final int VERSION = 1;
+    
+    public static final int END_OF_STRIPES = -1;
+    
+    public static final int DEFAULT_STRIPE_SIZE = 4 << 20;
+    public static final int MIN_STRIPE_SIZE = 65536;
+    public static final int MAX_STRIPE_SIZE = 1 << 30;
+    
+    public static final int TRANSFER_BUFFER_SIZE = 65536;
+    
+    public static long upload(List<? extends SscpConnection> connections, Path path, String name)
+        throws IOException
+    {
+        return upload(connections, path, name, DEFAULT_STRIPE_SIZE);
+    }
+    
+    // Returns the size of the file, which the receiver has committed under the name
+    public static long upload(List<? extends SscpConnection> connections, Path path, String name, int stripeSize)
+        throws IOException
+    {
+        if (connections.isEmpty())
+            throw new IllegalArgumentException("connections missing");
+        
+        if (stripeSize < MIN_STRIPE_SIZE || stripeSize > MAX_STRIPE_SIZE)
+            throw new IllegalArgumentException("stripe size invalid, must be between " + MIN_STRIPE_SIZE + " and "
+                + MAX_STRIPE_SIZE);
+        
+        SstpManifest.checkName(name);
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            
+            long stripeCount = getStripeCount(size, stripeSize);
+            
+            // an empty file still takes one connection to announce it
+            int connectionCount = (int) Math.max(1, Math.min(connections.size(), stripeCount));
+            
+            Header header = new Header(UUID.randomUUID().toString(), name, size, stripeSize, connectionCount);
+            
+            AtomicLong nextStripe = new AtomicLong();
+            
+            AtomicBoolean failed = new AtomicBoolean();
+            
+            List<CompletableFuture<Void>> stripes = new ArrayList<>();
+            
+            for (SscpConnection connection : connections.subList(0, connectionCount)) {
+                stripes.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        send(connection, channel, header, nextStripe, failed);
+                    }
+                    
+                    catch (IOException exception) {
+                        failed.set(true);
+                        
+                        throw new UncheckedIOException(exception);
+                    }
+                    
+                    catch (RuntimeException | Error exception) {
+                        failed.set(true);
+                        
+                        throw exception;
+                    }
+                }, connection.getAsyncExecutor()));
+            }
+            
+            IOException failure = null;
+            
+            for (CompletableFuture<Void> stripe : stripes) {
+                try {
+                    stripe.join();
+                }
+                
+                catch (CompletionException exception) {
+                    IOException cause = unwrap(exception);
+                    
+                    if (failure == null)
+                        failure = cause;
+                    
+                    else
+                        failure.addSuppressed(cause);
+                }
+            }
+            
+            if (failure != null)
+                throw failure;
+            
+            return size;
+        }
+    }
+    
+    public static long getStripeCount(long size, int stripeSize)
+    {
+        return (size + stripeSize - 1) / stripeSize;
+    }
+    
+    // Stripes are read at their own position, so the connections share the channel without taking turns
+    private static void send(SscpConnection connection, FileChannel channel, Header header, AtomicLong nextStripe,
+        AtomicBoolean failed)
+        throws IOException
+    {
+        SscpOutputStream outputStream = connection.getOutputStream();
+        
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        
+        header.write(dataOutputStream);
+        
+        long stripeCount = getStripeCount(header.size, header.stripeSize);
+        
+        ByteBuffer byteBuffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        
+        long index;
+        
+        // once any connection fails the transfer is lost, so the others stop taking stripes
+        while (!failed.get() && (index = nextStripe.getAndIncrement()) < stripeCount) {
+            long position = index * header.stripeSize;
+            
+            long end = Math.min(position + header.stripeSize, header.size);
+            
+            dataOutputStream.writeLong(index);
+            
+            while (position < end) {
+                byteBuffer.clear().limit((int) Math.min(byteBuffer.capacity(), end - position));
+                
+                int bytesRead = channel.read(byteBuffer, position);
+                
+                if (bytesRead == -1)
+                    throw new IOException(header.name + " shrank during transfer");
+                
+                outputStream.write(byteBuffer.array(), 0, bytesRead);
+                
+                position += bytesRead;
+            }
+        }
+        
+        dataOutputStream.writeLong(END_OF_STRIPES);
+        
+        outputStream.writeEOT();
+        
+        SscpInputStream inputStream = connection.getInputStream();
+        
+        long committed = new DataInputStream(inputStream).readLong();
+        
+        if (inputStream.read() != -1)
+            throw new IOException("reply longer than expected");
+        
+        if (committed != header.size)
+            throw new IOException("transfer not committed: " + committed + " of " + header.size + " bytes");
+    }
+    
+    private static IOException unwrap(CompletionException exception)
+    {
+        Throwable cause = exception.getCause();
+        
+        if (cause instanceof UncheckedIOException)
+            return ((UncheckedIOException) cause).getCause();
+        
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        
+        if (cause instanceof Error)
+            throw (Error) cause;
+        
+        return new IOException("stripe failed: " + cause);
+    }
+    
+    // What every connection of a transfer announces, and all of them must agree on
+    static final class Header
+    {
+        final String id;
+        final String name;
+        final long size;
+        final int stripeSize;
+        final int connections;
+        
+        Header(String id, String name, long size, int stripeSize, int connections)
+        {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.stripeSize = stripeSize;
+            this.connections = connections;
+        }
+        
+        void write(DataOutputStream dataOutputStream)
+            throws IOException
+        {
+            dataOutputStream.writeInt(MAGIC);
+            
+            dataOutputStream.writeShort(VERSION);
+            
+            dataOutputStream.writeUTF(id);
+            
+            dataOutputStream.writeUTF(name);
+            
+            dataOutputStream.writeLong(size);
+            
+            dataOutputStream.writeInt(stripeSize);
+            
+            dataOutputStream.writeInt(connections);
+        }
+        
+        static Header read(DataInputStream dataInputStream)
+            throws IOException
+        {
+            if (dataInputStream.readInt() != MAGIC)
+                throw new IOException("not a striped transfer");
+            
+            int version = dataInputStream.readUnsignedShort();
+            
+            if (version != VERSION)
+                throw new IOException("striped transfer version not supported: " + version);
+            
+            Header header = new Header(dataInputStream.readUTF(), dataInputStream.readUTF(),
+                dataInputStream.readLong(), dataInputStream.readInt(), dataInputStream.readInt());
+            
+            if (!header.id.matches("[0-9A-Za-z-]{1,64}"))
+                throw new IOException("transfer id invalid");
+            
+            if (header.size < 0 || header.stripeSize < MIN_STRIPE_SIZE || header.stripeSize > MAX_STRIPE_SIZE)
+                throw new IOException("size or stripe size invalid");
+            
+            // one more connection than there are stripes is what an empty file takes
+            if (header.connections < 1 || header.connections > Math.max(1, getStripeCount(header.size,
+                header.stripeSize)))
+                throw new IOException("connection count invalid: " + header.connections);
+            
+            try {
+                SstpManifest.checkName(header.name);
+            }
+            
+            catch (IllegalArgumentException exception) {
+                throw new IOException(exception.getMessage());
+            }
+            
+            return header;
+        }
+        
+        boolean matches(Header header)
+        {
+            return name.equals(header.name) && size == header.size && stripeSize == header.stripeSize
+                && connections == header.connections;
+        }
+    }
+}
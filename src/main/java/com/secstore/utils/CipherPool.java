@@ -0,0 +1,113 @@
+package com.secstore.utils;
+
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+
+
+/*
+ * Hands out initialised Cipher instances that belong to the calling thread.
+ *
+ * Every thread keeps its own small cache keyed by (algorithm, config, mode, key),
+ * so a cipher is never shared and needs no lock. A cached cipher is returned in
+ * the state right after init, since every encryptBytes and decryptBytes call
+ * finishes with doFinal. Keys are matched by identity, which lets a connection
+ * reuse its ciphers for as long as it keeps its session keys.
+ *
+ * The least recently used cipher is dropped once a thread holds more than
+ * MAX_CIPHERS_PER_THREAD of them.
+ */
+public final class CipherPool
+{
+    public static final int MAX_CIPHERS_PER_THREAD = 16;
+    
+    private static final ThreadLocal<Entry[]> ENTRIES =
+        ThreadLocal.withInitial(() -> new Entry[MAX_CIPHERS_PER_THREAD]);
+    
+    private static final class Entry
+    {
+        private final String algorithm;
+        private final String config;
+        private final int mode;
+        private final Key key;
+        private Cipher cipher;
+        
+        private Entry(String algorithm, String config, int mode, Key key)
+        {
+            this.algorithm = algorithm;
+            this.config = config;
+            this.mode = mode;
+            this.key = key;
+        }
+        
+        private boolean matches(String algorithm, String config, int mode, Key key)
+        {
+            return this.key == key && this.mode == mode
+                && this.algorithm.equals(algorithm) && this.config.equals(config);
+        }
+    }
+    
+    private CipherPool()
+    {
+    }
+    
+    /*
+     * The returned cipher must only be used on the calling thread, and only
+     * through calls that leave it in its initial state again.
+     */
+    public static final Cipher getCipher(String algorithm, String config, int mode, Key key)
+    {
+        Entry entry = getEntry(algorithm, config, mode, key);
+        
+        if (entry.cipher == null) {
+            entry.cipher = CryptoUtils.generateCipher(algorithm, config);
+            
+            CryptoUtils.initializeCipher(entry.cipher, mode, key);
+        }
+        
+        return entry.cipher;
+    }
+    
+    // Ciphers that need fresh parameters for every message are initialised again on each call
+    public static final Cipher getCipher(String algorithm, String config, int mode, Key key,
+        AlgorithmParameterSpec parameters)
+    {
+        Entry entry = getEntry(algorithm, config, mode, key);
+        
+        if (entry.cipher == null)
+            entry.cipher = CryptoUtils.generateCipher(algorithm, config);
+        
+        CryptoUtils.initializeCipher(entry.cipher, mode, key, parameters);
+        
+        return entry.cipher;
+    }
+    
+    private static final Entry getEntry(String algorithm, String config, int mode, Key key)
+    {
+        Entry[] entries = ENTRIES.get();
+        
+        int i = 0;
+        
+        while (i < entries.length - 1 && entries[i] != null && !entries[i].matches(algorithm, config, mode, key))
+            i++;
+        
+        Entry entry = entries[i];
+        
+        // a miss falls through to the last slot, which holds the least recently used cipher
+        if (entry == null || !entry.matches(algorithm, config, mode, key))
+            entry = new Entry(algorithm, config, mode, key);
+        
+        // most recently used ciphers move to the front
+        System.arraycopy(entries, 0, entries, 1, i);
+        
+        entries[0] = entry;
+        
+        return entry;
+    }
+    
+    // Drops every cipher cached by the calling thread, e.g. once its session keys are gone
+    public static final void clear()
+    {
+        ENTRIES.remove();
+    }
+}
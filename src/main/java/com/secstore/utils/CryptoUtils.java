@@ -5,28 +5,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 
@@ -57,12 +62,11 @@ public class CryptoUtils
         }
     }
     
+    // Ciphers are not thread safe, so callers keep each one on a single thread (see CipherPool)
     public static final void initializeCipher(Cipher cipher, int mode, Key key)
     {
         try {
-            synchronized (cipher) {
-                cipher.init(mode, key);
-            }
+            cipher.init(mode, key);
         }
         
         catch (InvalidKeyException exception) {
@@ -70,12 +74,64 @@ public class CryptoUtils
         }
     }
     
+    public static final void initializeCipher(Cipher cipher, int mode, Key key, AlgorithmParameterSpec parameters)
+    {
+        try {
+            cipher.init(mode, key, parameters);
+        }
+        
+        catch (InvalidKeyException exception) {
+            throw new IllegalArgumentException("key invalid: " + exception);
+        }
+        
+        catch (InvalidAlgorithmParameterException exception) {
+            throw new IllegalArgumentException("parameters invalid: " + exception);
+        }
+    }
+    
+    public static final byte[] digest(String algorithm, byte[]... inputs)
+    {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
+            
+            for (byte[] input : inputs)
+                messageDigest.update(input);
+            
+            return messageDigest.digest();
+        }
+        
+        catch (NoSuchAlgorithmException exception) {
+            throw new IllegalArgumentException("algorithm invalid: " + exception);
+        }
+    }
+    
     public static final byte[] encryptBytes(Cipher cipher, byte[] bytes)
     {
         try {
-            synchronized (cipher) {
-                return cipher.doFinal(bytes);
-            }
+            return cipher.doFinal(bytes);
+        }
+        
+        catch (IllegalBlockSizeException exception) {
+            throw new IllegalArgumentException("block size invalid: " + exception);
+        }
+        
+        catch (BadPaddingException exception) {
+            throw new IllegalArgumentException("padding invalid: " + exception);
+        }
+    }
+    
+    public static final int encryptBytes(Cipher cipher, byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset)
+    {
+        try {
+            // padding ciphers copy their whole input in doFinal, so only the tail goes through it
+            int bytesWritten = cipher.update(input, inputOffset, inputLength, output, outputOffset);
+            
+            return bytesWritten + cipher.doFinal(output, outputOffset + bytesWritten);
+        }
+        
+        catch (ShortBufferException exception) {
+            throw new IllegalArgumentException("output buffer too short: " + exception);
         }
         
         catch (IllegalBlockSizeException exception) {
@@ -90,9 +146,29 @@ public class CryptoUtils
     public static final byte[] decryptBytes(Cipher cipher, byte[] bytes)
     {
         try {
-            synchronized (cipher) {
-                return cipher.doFinal(bytes);
-            }
+            return cipher.doFinal(bytes);
+        }
+        
+        catch (IllegalBlockSizeException exception) {
+            throw new IllegalArgumentException("block size invalid: " + exception);
+        }
+        
+        catch (BadPaddingException exception) {
+            throw new IllegalArgumentException("padding invalid: " + exception);
+        }
+    }
+    
+    public static final int decryptBytes(Cipher cipher, byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset)
+    {
+        try {
+            int bytesWritten = cipher.update(input, inputOffset, inputLength, output, outputOffset);
+            
+            return bytesWritten + cipher.doFinal(output, outputOffset + bytesWritten);
+        }
+        
+        catch (ShortBufferException exception) {
+            throw new IllegalArgumentException("output buffer too short: " + exception);
         }
         
         catch (IllegalBlockSizeException exception) {
@@ -104,6 +180,38 @@ public class CryptoUtils
         }
     }
     
+    /*
+     * AEAD ciphers hold back all input until the tag is checked, so one doFinal
+     * saves them a buffered copy.
+     *
+     * A tag that does not match means the input was tampered with rather than
+     * misused, so it is left to the caller to report as such.
+     */
+    public static final int decryptAuthenticatedBytes(Cipher cipher, byte[] input, int inputOffset, int inputLength,
+        byte[] output, int outputOffset)
+        throws AEADBadTagException
+    {
+        try {
+            return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+        }
+        
+        catch (ShortBufferException exception) {
+            throw new IllegalArgumentException("output buffer too short: " + exception);
+        }
+        
+        catch (IllegalBlockSizeException exception) {
+            throw new IllegalArgumentException("block size invalid: " + exception);
+        }
+        
+        catch (AEADBadTagException exception) {
+            throw exception;
+        }
+        
+        catch (BadPaddingException exception) {
+            throw new IllegalArgumentException("padding invalid: " + exception);
+        }
+    }
+    
     public static final X509Certificate generateCertificate(InputStream inputStream)
     {
         try {
@@ -1,9 +1,14 @@
 module com.secstore
 {
+    exports com.secstore.client;
     exports com.secstore.example;
+    exports com.secstore.server;
+    exports com.secstore.ssap;
     exports com.secstore.sscp;
+    exports com.secstore.sstp;
     exports com.secstore;
     
     requires java.logging;
     requires java.sql;
+    requires jdk.management;
 }